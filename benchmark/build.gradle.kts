@@ -14,6 +14,7 @@ dependencies {
     annotationProcessor("org.openjdk.jmh:jmh-generator-annprocess:$jmhVersion")
 
     implementation(project(":plumo"))
+    implementation(project(":plumo-router"))
 }
 
 tasks.compileJava {
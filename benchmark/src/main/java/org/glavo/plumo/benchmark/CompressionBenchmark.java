@@ -0,0 +1,111 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.benchmark;
+
+import org.glavo.plumo.CompressionPolicy;
+import org.glavo.plumo.internal.util.Compression;
+import org.glavo.plumo.internal.util.OutputWrapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the brotli encoder with gzip, for whole bodies and for chunked bodies written through {@link OutputWrapper}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+
+    @Param({"BROTLI", "GZIP"})
+    public CompressionPolicy.Encoding encoding;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    @Param({"html", "json"})
+    public String content;
+
+    @Param({"16384", "262144"})
+    public int size;
+
+    private ByteBuffer data;
+    private OutputWrapper output;
+
+    private static final class DiscardChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static byte[] generate(String content, int size) {
+        Random random = new Random(0);
+        StringBuilder builder = new StringBuilder(size + 256);
+        int i = 0;
+        while (builder.length() < size) {
+            if (content.equals("json")) {
+                builder.append("{\"id\":").append(i)
+                        .append(",\"name\":\"user").append(random.nextInt(100000))
+                        .append("\",\"active\":").append(random.nextBoolean())
+                        .append(",\"score\":").append(random.nextInt(1000)).append("},\n");
+            } else {
+                builder.append("<li class=\"item\"><a href=\"/items/").append(i).append("\">Item ")
+                        .append(random.nextInt(100000)).append("</a><span>").append(random.nextInt(1000))
+                        .append(" in stock</span></li>\n");
+            }
+            i++;
+        }
+        return builder.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Setup
+    public void setup() {
+        data = ByteBuffer.wrap(generate(content, size));
+        output = new OutputWrapper(new DiscardChannel(), 16384);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return Compression.encode(data, encoding, level);
+    }
+
+    @Benchmark
+    public OutputWrapper stream() throws IOException {
+        output.transferCompressedFrom(data.duplicate(), encoding, level);
+        output.flush();
+        return output;
+    }
+}
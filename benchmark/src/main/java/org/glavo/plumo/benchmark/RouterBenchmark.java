@@ -0,0 +1,135 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.benchmark;
+
+import org.glavo.plumo.HttpRequest;
+import org.glavo.plumo.HttpResponse;
+import org.glavo.plumo.router.Route;
+import org.glavo.plumo.router.RouteHandler;
+import org.glavo.plumo.router.Router;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to find the route of a request path, with the radix tree of {@link Router}
+ * and with a list of templates checked one by one, as a chain of {@code if} statements would.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RouterBenchmark {
+
+    private static final RouteHandler HANDLER = (request, parameters) -> HttpResponse.newResponse();
+
+    /**
+     * The number of resources, each of which has four routes.
+     */
+    @Param({"10", "250", "2500"})
+    public int resources;
+
+    private Router router;
+    private int[] captures;
+
+    private String[][] templates;
+
+    private String[] paths;
+    private int index;
+
+    @Setup
+    public void setup() {
+        Router.Builder builder = Router.newBuilder();
+        List<String[]> templates = new ArrayList<>();
+        for (int i = 0; i < resources; i++) {
+            String resource = "/api/v1/resource" + i;
+            for (String template : new String[]{
+                    resource,
+                    resource + "/{id}",
+                    resource + "/{id}/items/{item}",
+                    "/static/" + i + "/{path...}"
+            }) {
+                builder.get(template, HANDLER);
+                templates.add(template.substring(1).split("/"));
+            }
+        }
+        this.router = builder.build();
+        this.captures = new int[2 * router.getMaxParameterCount()];
+        this.templates = templates.toArray(new String[0][]);
+
+        Random random = new Random(0);
+        this.paths = new String[1024];
+        for (int i = 0; i < paths.length; i++) {
+            int resource = random.nextInt(resources);
+            switch (random.nextInt(4)) {
+                case 0:
+                    paths[i] = "/api/v1/resource" + resource;
+                    break;
+                case 1:
+                    paths[i] = "/api/v1/resource" + resource + "/" + random.nextInt(100000);
+                    break;
+                case 2:
+                    paths[i] = "/api/v1/resource" + resource + "/" + random.nextInt(100000) + "/items/" + random.nextInt(100);
+                    break;
+                default:
+                    paths[i] = "/static/" + resource + "/css/site.css";
+                    break;
+            }
+        }
+    }
+
+    private String nextPath() {
+        return paths[index++ & (paths.length - 1)];
+    }
+
+    @Benchmark
+    public Route radixTree() {
+        String path = nextPath();
+        return router.find(HttpRequest.Method.GET, path, 0, path.length(), captures);
+    }
+
+    @Benchmark
+    public String[] linear() {
+        String[] segments = nextPath().substring(1).split("/");
+        for (String[] template : templates) {
+            if (matches(template, segments)) {
+                return template;
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(String[] template, String[] segments) {
+        for (int i = 0; i < template.length; i++) {
+            String part = template[i];
+            if (part.endsWith("...}")) {
+                return true;
+            }
+            if (i >= segments.length) {
+                return false;
+            }
+            if (!part.startsWith("{") && !part.equals(segments[i])) {
+                return false;
+            }
+        }
+        return template.length == segments.length;
+    }
+}
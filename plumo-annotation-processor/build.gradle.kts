@@ -0,0 +1,7 @@
+tasks.compileJava {
+    options.release.set(9)
+}
+
+dependencies {
+    testImplementation(project(":plumo-router"))
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.annotation;
+
+import java.lang.annotation.*;
+
+/**
+ * Routes {@code DELETE} requests whose path matches the template to the annotated method.
+ * The template syntax is that of {@code org.glavo.plumo.router.Router}.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.METHOD)
+public @interface Delete {
+    /**
+     * The path template, such as {@code /users/{id}}.
+     */
+    String value();
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.annotation;
+
+import java.lang.annotation.*;
+
+/**
+ * Binds the parameter to the first value of a request header.
+ * <p>
+ * Parameters may be of type {@link String}, a primitive type or its wrapper, or an enum type.
+ * Absent headers are handled as for {@link QueryParam}.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.PARAMETER)
+public @interface Header {
+    String value();
+
+    String defaultValue() default ValueConstants.NO_DEFAULT_VALUE;
+}
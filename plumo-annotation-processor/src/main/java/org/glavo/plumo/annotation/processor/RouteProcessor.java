@@ -0,0 +1,542 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.annotation.processor;
+
+import org.glavo.plumo.annotation.*;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Generates a {@code <Class>_Handler} for each class with methods annotated with {@link Get}, {@link Post},
+ * {@link Put}, {@link Delete} or {@link Patch}.
+ * <p>
+ * The generated handler registers a route for each method in a {@code org.glavo.plumo.router.Router}.
+ * Each route has its own generated method, which extracts and converts the parameters and calls the annotated method directly.
+ */
+@SupportedAnnotationTypes({
+        "org.glavo.plumo.annotation.Get",
+        "org.glavo.plumo.annotation.Post",
+        "org.glavo.plumo.annotation.Put",
+        "org.glavo.plumo.annotation.Delete",
+        "org.glavo.plumo.annotation.Patch",
+        "org.glavo.plumo.annotation.PathParam",
+        "org.glavo.plumo.annotation.QueryParam",
+        "org.glavo.plumo.annotation.Header",
+})
+public final class RouteProcessor extends AbstractProcessor {
+
+    private static final String HTTP_RESPONSE = "org.glavo.plumo.HttpResponse";
+    private static final String HTTP_REQUEST = "org.glavo.plumo.HttpRequest";
+    private static final String PATH_PARAMETERS = "org.glavo.plumo.router.PathParameters";
+
+    private static final class RouteMethod {
+        final ExecutableElement element;
+        final String httpMethod;
+        final String template;
+
+        RouteMethod(ExecutableElement element, String httpMethod, String template) {
+            this.element = element;
+            this.httpMethod = httpMethod;
+            this.template = template;
+        }
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        Map<TypeElement, List<RouteMethod>> controllers = new LinkedHashMap<>();
+        collect(roundEnv, controllers, Get.class, "GET", Get::value);
+        collect(roundEnv, controllers, Post.class, "POST", Post::value);
+        collect(roundEnv, controllers, Put.class, "PUT", Put::value);
+        collect(roundEnv, controllers, Delete.class, "DELETE", Delete::value);
+        collect(roundEnv, controllers, Patch.class, "PATCH", Patch::value);
+
+        checkParameters(roundEnv, PathParam.class);
+        checkParameters(roundEnv, QueryParam.class);
+        checkParameters(roundEnv, Header.class);
+
+        for (Map.Entry<TypeElement, List<RouteMethod>> entry : controllers.entrySet()) {
+            TypeElement controller = entry.getKey();
+            List<Element> members = new ArrayList<>(controller.getEnclosedElements());
+            entry.getValue().sort(Comparator.comparingInt(route -> members.indexOf(route.element)));
+
+            try {
+                new Generator(controller, entry.getValue()).generate();
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to generate handler: " + e, controller);
+            }
+        }
+        return true;
+    }
+
+    private static <A extends Annotation> void collect(RoundEnvironment roundEnv, Map<TypeElement, List<RouteMethod>> controllers,
+                                                       Class<A> annotationType, String httpMethod, Function<A, String> template) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(annotationType)) {
+            if (element.getKind() != ElementKind.METHOD) {
+                continue;
+            }
+
+            TypeElement controller = (TypeElement) element.getEnclosingElement();
+            controllers.computeIfAbsent(controller, key -> new ArrayList<>())
+                    .add(new RouteMethod((ExecutableElement) element, httpMethod, template.apply(element.getAnnotation(annotationType))));
+        }
+    }
+
+    private static boolean isRouteMethod(Element element) {
+        return element.getKind() == ElementKind.METHOD
+               && (element.getAnnotation(Get.class) != null
+                   || element.getAnnotation(Post.class) != null
+                   || element.getAnnotation(Put.class) != null
+                   || element.getAnnotation(Delete.class) != null
+                   || element.getAnnotation(Patch.class) != null);
+    }
+
+    /**
+     * Reports parameter annotations outside route methods, which would otherwise be ignored silently.
+     */
+    private void checkParameters(RoundEnvironment roundEnv, Class<? extends Annotation> annotationType) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(annotationType)) {
+            if (!isRouteMethod(element.getEnclosingElement())) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "@" + annotationType.getSimpleName() + " is only allowed on parameters of methods annotated with "
+                        + "@Get, @Post, @Put, @Delete or @Patch", element);
+            }
+        }
+    }
+
+    /**
+     * Returns the names of the parameters of the template, in order.
+     */
+    static List<String> getTemplateParameters(String template) {
+        List<String> names = new ArrayList<>();
+        int i = 0;
+        while (i < template.length()) {
+            char ch = template.charAt(i);
+            if (ch == '*') {
+                names.add("*");
+            } else if (ch == '{') {
+                int close = template.indexOf('}', i);
+                if (close < 0) {
+                    break;
+                }
+                String name = template.substring(i + 1, close);
+                names.add(name.endsWith("...") ? name.substring(0, name.length() - 3) : name);
+                i = close;
+            }
+            i++;
+        }
+        return names;
+    }
+
+    static String quote(String value) {
+        StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (ch < ' ' || ch > '~') {
+                        builder.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        builder.append(ch);
+                    }
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    private final class Generator {
+        private final TypeElement controller;
+        private final List<RouteMethod> routes;
+
+        private final Elements elements = processingEnv.getElementUtils();
+        private final Types types = processingEnv.getTypeUtils();
+
+        private final String packageName;
+        private final String simpleName;
+        private final String controllerName;
+
+        private final List<String> headerFields = new ArrayList<>();
+        private final StringBuilder routeMethods = new StringBuilder();
+        private boolean usesQuery = false;
+        private boolean usesBadRequest = false;
+        private boolean failed = false;
+
+        Generator(TypeElement controller, List<RouteMethod> routes) {
+            this.controller = controller;
+            this.routes = routes;
+            this.packageName = elements.getPackageOf(controller).getQualifiedName().toString();
+            this.controllerName = controller.getQualifiedName().toString();
+
+            StringBuilder name = new StringBuilder(controller.getSimpleName());
+            for (Element e = controller.getEnclosingElement(); e instanceof TypeElement; e = e.getEnclosingElement()) {
+                name.insert(0, '_').insert(0, e.getSimpleName());
+            }
+            this.simpleName = name.append("_Handler").toString();
+        }
+
+        private void error(String message, Element element) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+            failed = true;
+        }
+
+        void generate() throws IOException {
+            for (Element e = controller; e instanceof TypeElement; e = e.getEnclosingElement()) {
+                if (e.getModifiers().contains(Modifier.PRIVATE)) {
+                    error("Classes with routes must not be private", e);
+                }
+            }
+            if (!controller.getTypeParameters().isEmpty()) {
+                error("Classes with routes must not be generic", controller);
+            }
+
+            TypeElement httpResponse = elements.getTypeElement(HTTP_RESPONSE);
+            if (httpResponse == null || elements.getTypeElement(PATH_PARAMETERS) == null) {
+                error("plumo-router is not on the classpath", controller);
+                return;
+            }
+
+            for (int i = 0; i < routes.size(); i++) {
+                generateRouteMethod(i, routes.get(i), httpResponse.asType());
+            }
+            if (failed) {
+                return;
+            }
+
+            try (Writer writer = processingEnv.getFiler().createSourceFile(
+                    packageName.isEmpty() ? simpleName : packageName + "." + simpleName, controller).openWriter()) {
+                writer.write(generateSource());
+            }
+        }
+
+        private String generateSource() {
+            StringBuilder out = new StringBuilder();
+            out.append("// Generated by ").append(RouteProcessor.class.getName()).append(", do not edit\n");
+            if (!packageName.isEmpty()) {
+                out.append("package ").append(packageName).append(";\n");
+            }
+            out.append('\n');
+            out.append("import org.glavo.plumo.HttpHandler;\n");
+            out.append("import org.glavo.plumo.HttpHeaderField;\n");
+            out.append("import org.glavo.plumo.HttpRequest;\n");
+            out.append("import org.glavo.plumo.HttpResponse;\n");
+            out.append("import org.glavo.plumo.router.PathParameters;\n");
+            out.append("import org.glavo.plumo.router.Router;\n");
+            out.append('\n');
+            out.append("/**\n");
+            out.append(" * Routes requests to {@link ").append(controllerName).append("}.\n");
+            out.append(" */\n");
+            out.append("public final class ").append(simpleName).append(" implements HttpHandler {\n");
+
+            for (int i = 0; i < headerFields.size(); i++) {
+                out.append("    private static final HttpHeaderField HEADER_").append(i)
+                        .append(" = HttpHeaderField.of(").append(quote(headerFields.get(i))).append(");\n");
+            }
+            if (!headerFields.isEmpty()) {
+                out.append('\n');
+            }
+
+            out.append("    private final Router router;\n\n");
+            out.append("    public ").append(simpleName).append('(').append(controllerName).append(" controller) {\n");
+            out.append("        this.router = addRoutes(Router.newBuilder(), controller).build();\n");
+            out.append("    }\n\n");
+
+            out.append("    /**\n");
+            out.append("     * Registers the routes of the controller, so that they can be combined with other routes.\n");
+            out.append("     */\n");
+            out.append("    public static Router.Builder addRoutes(Router.Builder builder, ").append(controllerName).append(" controller) {\n");
+            out.append("        java.util.Objects.requireNonNull(controller);\n");
+            out.append("        return builder");
+            for (int i = 0; i < routes.size(); i++) {
+                RouteMethod route = routes.get(i);
+                out.append("\n                .route(HttpRequest.Method.").append(route.httpMethod).append(", ")
+                        .append(quote(route.template)).append(", (request, parameters) -> route").append(i)
+                        .append("(controller, request, parameters))");
+            }
+            out.append(";\n");
+            out.append("    }\n\n");
+
+            out.append("    @Override\n");
+            out.append("    public HttpResponse handle(HttpRequest request) throws Exception {\n");
+            out.append("        return router.handle(request);\n");
+            out.append("    }\n");
+
+            out.append(routeMethods);
+
+            if (usesBadRequest) {
+                out.append('\n');
+                out.append("    private static HttpResponse badRequest(String message) {\n");
+                out.append("        return HttpResponse.newTextResponse(HttpResponse.Status.BAD_REQUEST, message, \"text/plain\");\n");
+                out.append("    }\n");
+            }
+
+            if (usesQuery) {
+                out.append('\n');
+                out.append("    private static String queryParameter(HttpRequest request, String name) {\n");
+                out.append("        String uri = request.getRawURI();\n");
+                out.append("        int start = uri.indexOf('?');\n");
+                out.append("        if (start < 0) {\n");
+                out.append("            return null;\n");
+                out.append("        }\n");
+                out.append("        start++;\n");
+                out.append("        int length = uri.length();\n");
+                out.append("        while (start < length) {\n");
+                out.append("            int end = uri.indexOf('&', start);\n");
+                out.append("            if (end < 0) {\n");
+                out.append("                end = length;\n");
+                out.append("            }\n");
+                out.append("            int nameEnd = uri.indexOf('=', start);\n");
+                out.append("            if (nameEnd < 0 || nameEnd > end) {\n");
+                out.append("                nameEnd = end;\n");
+                out.append("            }\n");
+                out.append("            if (decode(uri.substring(start, nameEnd)).equals(name)) {\n");
+                out.append("                return nameEnd < end ? decode(uri.substring(nameEnd + 1, end)) : \"\";\n");
+                out.append("            }\n");
+                out.append("            start = end + 1;\n");
+                out.append("        }\n");
+                out.append("        return null;\n");
+                out.append("    }\n\n");
+                out.append("    private static String decode(String value) {\n");
+                out.append("        if (value.indexOf('%') < 0 && value.indexOf('+') < 0) {\n");
+                out.append("            return value;\n");
+                out.append("        }\n");
+                out.append("        try {\n");
+                out.append("            return java.net.URLDecoder.decode(value, \"UTF-8\");\n");
+                out.append("        } catch (java.io.UnsupportedEncodingException e) {\n");
+                out.append("            throw new AssertionError(e);\n");
+                out.append("        }\n");
+                out.append("    }\n");
+            }
+
+            out.append("}\n");
+            return out.toString();
+        }
+
+        private void generateRouteMethod(int index, RouteMethod route, TypeMirror httpResponse) {
+            ExecutableElement method = route.element;
+            if (method.getModifiers().contains(Modifier.PRIVATE)) {
+                error("Route methods must not be private", method);
+                return;
+            }
+            if (!method.getTypeParameters().isEmpty()) {
+                error("Route methods must not be generic", method);
+                return;
+            }
+
+            List<String> templateParameters = getTemplateParameters(route.template);
+            StringBuilder body = new StringBuilder();
+            List<String> arguments = new ArrayList<>();
+
+            List<? extends VariableElement> parameters = method.getParameters();
+            for (int i = 0; i < parameters.size(); i++) {
+                VariableElement parameter = parameters.get(i);
+                PathParam pathParam = parameter.getAnnotation(PathParam.class);
+                QueryParam queryParam = parameter.getAnnotation(QueryParam.class);
+                Header header = parameter.getAnnotation(Header.class);
+
+                int annotationCount = (pathParam != null ? 1 : 0) + (queryParam != null ? 1 : 0) + (header != null ? 1 : 0);
+                if (annotationCount > 1) {
+                    error("Parameters must have at most one of @PathParam, @QueryParam and @Header", parameter);
+                    continue;
+                }
+
+                String variable = "p" + i;
+                arguments.add(variable);
+
+                String source;
+                String description;
+                String defaultValue = null;
+                if (pathParam != null) {
+                    int parameterIndex = templateParameters.indexOf(pathParam.value());
+                    if (parameterIndex < 0) {
+                        error("Template " + route.template + " has no parameter '" + pathParam.value() + "'", parameter);
+                        continue;
+                    }
+                    source = "parameters.getDecoded(" + parameterIndex + ")";
+                    description = "path parameter '" + pathParam.value() + "'";
+                } else if (queryParam != null) {
+                    usesQuery = true;
+                    source = "queryParameter(request, " + quote(queryParam.value()) + ")";
+                    description = "query parameter '" + queryParam.value() + "'";
+                    if (!queryParam.defaultValue().equals(ValueConstants.NO_DEFAULT_VALUE)) {
+                        defaultValue = queryParam.defaultValue();
+                    }
+                } else if (header != null) {
+                    String field = header.value().toLowerCase(Locale.ROOT);
+                    if (field.isEmpty() || !field.chars().allMatch(ch -> ch > ' ' && ch < 127 && "\"(),/:;<=>?@[\\]{}".indexOf(ch) < 0)) {
+                        error("Invalid header name: " + header.value(), parameter);
+                        continue;
+                    }
+                    int fieldIndex = headerFields.indexOf(field);
+                    if (fieldIndex < 0) {
+                        fieldIndex = headerFields.size();
+                        headerFields.add(field);
+                    }
+                    source = "request.getHeader(HEADER_" + fieldIndex + ")";
+                    description = "header '" + header.value() + "'";
+                    if (!header.defaultValue().equals(ValueConstants.NO_DEFAULT_VALUE)) {
+                        defaultValue = header.defaultValue();
+                    }
+                } else {
+                    String type = types.erasure(parameter.asType()).toString();
+                    if (type.equals(HTTP_REQUEST)) {
+                        arguments.set(i, "request");
+                    } else if (type.equals(PATH_PARAMETERS)) {
+                        arguments.set(i, "parameters");
+                    } else {
+                        error("Parameters must be annotated with @PathParam, @QueryParam or @Header, "
+                              + "or be of type HttpRequest or PathParameters", parameter);
+                    }
+                    continue;
+                }
+
+                TypeMirror type = parameter.asType();
+                String conversion = getConversion(type);
+                if (conversion == null) {
+                    error("Unsupported parameter type: " + type, parameter);
+                    continue;
+                }
+
+                usesBadRequest = true;
+                body.append("        ").append(type).append(' ').append(variable).append(";\n");
+                body.append("        try {\n");
+                body.append("            String value = ").append(source).append(";\n");
+                if (defaultValue != null) {
+                    body.append("            if (value == null) {\n");
+                    body.append("                value = ").append(quote(defaultValue)).append(";\n");
+                    body.append("            }\n");
+                }
+                if (type.getKind().isPrimitive()) {
+                    if (defaultValue == null && pathParam == null) {
+                        body.append("            if (value == null) {\n");
+                        body.append("                return badRequest(").append(quote("Missing " + description)).append(");\n");
+                        body.append("            }\n");
+                    }
+                    body.append("            ").append(variable).append(" = ").append(String.format(conversion, "value")).append(";\n");
+                } else if (conversion.equals("%s")) {
+                    body.append("            ").append(variable).append(" = value;\n");
+                } else {
+                    body.append("            ").append(variable).append(" = value != null ? ")
+                            .append(String.format(conversion, "value")).append(" : null;\n");
+                }
+                body.append("        } catch (IllegalArgumentException e) {\n");
+                body.append("            return badRequest(").append(quote("Invalid " + description)).append(");\n");
+                body.append("        }\n");
+            }
+
+            String call = (method.getModifiers().contains(Modifier.STATIC) ? controllerName : "controller")
+                          + "." + method.getSimpleName() + "(" + String.join(", ", arguments) + ")";
+
+            TypeMirror returnType = method.getReturnType();
+            if (returnType.getKind() == TypeKind.VOID) {
+                body.append("        ").append(call).append(";\n");
+                body.append("        return HttpResponse.newResponse(HttpResponse.Status.NO_CONTENT);\n");
+            } else if (types.isAssignable(returnType, httpResponse)) {
+                body.append("        return ").append(call).append(";\n");
+            } else if (returnType.toString().equals("java.lang.String")) {
+                body.append("        return HttpResponse.newTextResponse(").append(call).append(");\n");
+            } else {
+                error("Route methods must return HttpResponse, String or void", method);
+            }
+
+            routeMethods.append('\n');
+            routeMethods.append("    // ").append(route.httpMethod).append(' ').append(route.template.replace("*/", "*\\/"))
+                    .append(" -> ").append(method.getSimpleName()).append('\n');
+            routeMethods.append("    private static HttpResponse route").append(index).append('(')
+                    .append(controllerName).append(" controller, HttpRequest request, PathParameters parameters) throws Exception {\n");
+            routeMethods.append(body);
+            routeMethods.append("    }\n");
+        }
+
+        /**
+         * Returns the format of the expression converting a string to the type, or {@code null} if the type is not supported.
+         */
+        private String getConversion(TypeMirror type) {
+            switch (type.getKind()) {
+                case BOOLEAN:
+                    return "Boolean.parseBoolean(%s)";
+                case BYTE:
+                    return "Byte.parseByte(%s)";
+                case SHORT:
+                    return "Short.parseShort(%s)";
+                case INT:
+                    return "Integer.parseInt(%s)";
+                case LONG:
+                    return "Long.parseLong(%s)";
+                case FLOAT:
+                    return "Float.parseFloat(%s)";
+                case DOUBLE:
+                    return "Double.parseDouble(%s)";
+                case DECLARED:
+                    break;
+                default:
+                    return null;
+            }
+
+            TypeElement element = (TypeElement) types.asElement(type);
+            if (element.getKind() == ElementKind.ENUM) {
+                return element.getQualifiedName() + ".valueOf(%s)";
+            }
+
+            switch (element.getQualifiedName().toString()) {
+                case "java.lang.String":
+                    return "%s";
+                case "java.lang.Boolean":
+                case "java.lang.Byte":
+                case "java.lang.Short":
+                case "java.lang.Integer":
+                case "java.lang.Long":
+                case "java.lang.Float":
+                case "java.lang.Double":
+                    return element.getQualifiedName() + ".valueOf(%s)";
+                default:
+                    return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.annotation.processor;
+
+import org.glavo.plumo.HttpHandler;
+import org.glavo.plumo.HttpHeaderField;
+import org.glavo.plumo.HttpRequest;
+import org.glavo.plumo.HttpResponse;
+import org.junit.jupiter.api.Test;
+
+import javax.tools.*;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class RouteProcessorTest {
+
+    private static final String CONTROLLER = String.join("\n",
+            "package com.example;",
+            "",
+            "import org.glavo.plumo.HttpRequest;",
+            "import org.glavo.plumo.HttpResponse;",
+            "import org.glavo.plumo.annotation.*;",
+            "",
+            "public class Controller {",
+            "    public enum Format { JSON, TEXT }",
+            "",
+            "    public static String last;",
+            "",
+            "    @Get(\"/users/{id}\")",
+            "    public String getUser(@PathParam(\"id\") long id,",
+            "                          @QueryParam(value = \"format\", defaultValue = \"TEXT\") Format format,",
+            "                          @QueryParam(\"page\") Integer page,",
+            "                          @Header(\"X-Trace\") String trace) {",
+            "        return last = \"user \" + id + \" \" + format + \" \" + page + \" \" + trace;",
+            "    }",
+            "",
+            "    @Get(\"/search\")",
+            "    public static HttpResponse search(@QueryParam(\"q\") String query, @QueryParam(\"limit\") int limit) {",
+            "        return HttpResponse.newTextResponse(last = query + \" \" + limit);",
+            "    }",
+            "",
+            "    @Delete(\"/users/{id}\")",
+            "    void deleteUser(@PathParam(\"id\") String id, HttpRequest request) {",
+            "        last = id + \" \" + request.getMethod();",
+            "    }",
+            "",
+            "    @Get(\"/files/{path...}\")",
+            "    @Post(\"/files/{path...}\")",
+            "    public String file(@PathParam(\"path\") String path) {",
+            "        return last = path;",
+            "    }",
+            "}");
+
+    private static final class Source extends SimpleJavaFileObject {
+        private final String code;
+
+        Source(String className, String code) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+
+    private static boolean compile(Path output, String className, String code, List<Diagnostic<? extends JavaFileObject>> diagnostics) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> collector = new DiagnosticCollector<>();
+        JavaCompiler.CompilationTask task = compiler.getTask(new StringWriter(), null, collector,
+                Arrays.asList("-d", output.toString(), "-classpath", System.getProperty("java.class.path")),
+                null, Collections.singletonList(new Source(className, code)));
+        task.setProcessors(Collections.singletonList(new RouteProcessor()));
+        boolean success = task.call();
+        diagnostics.addAll(collector.getDiagnostics());
+        return success;
+    }
+
+    private static HttpRequest request(HttpRequest.Method method, String uri, String trace) {
+        return (HttpRequest) Proxy.newProxyInstance(RouteProcessorTest.class.getClassLoader(), new Class<?>[]{HttpRequest.class}, (proxy, m, args) -> {
+            switch (m.getName()) {
+                case "getMethod":
+                    return method;
+                case "getRawURI":
+                    return uri;
+                case "getHeader":
+                    return args[0].equals(HttpHeaderField.of("x-trace")) ? trace : null;
+                default:
+                    throw new UnsupportedOperationException(m.getName());
+            }
+        });
+    }
+
+    private static int status(HttpResponse response) {
+        return response.getStatus().getStatusCode();
+    }
+
+    @Test
+    public void testGeneratedHandler() throws Exception {
+        Path output = Files.createTempDirectory("plumo-processor");
+        List<Diagnostic<? extends JavaFileObject>> diagnostics = new ArrayList<>();
+        assertTrue(compile(output, "com.example.Controller", CONTROLLER, diagnostics), diagnostics.toString());
+        assertTrue(Files.exists(output.resolve("com/example/Controller_Handler.class")));
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{output.toUri().toURL()}, RouteProcessorTest.class.getClassLoader())) {
+            Class<?> controllerClass = loader.loadClass("com.example.Controller");
+            Object controller = controllerClass.getConstructor().newInstance();
+            HttpHandler handler = (HttpHandler) loader.loadClass("com.example.Controller_Handler")
+                    .getConstructor(controllerClass).newInstance(controller);
+
+            Field last = controllerClass.getField("last");
+            assertEquals(200, status(handler.handle(request(HttpRequest.Method.GET, "/users/42", "abc"))));
+            assertEquals("user 42 TEXT null abc", last.get(null));
+            assertEquals(200, status(handler.handle(request(HttpRequest.Method.GET, "/users/42?format=JSON&page=3", null))));
+            assertEquals("user 42 JSON 3 null", last.get(null));
+            assertEquals(200, status(handler.handle(request(HttpRequest.Method.HEAD, "/users/7?other=1", null))));
+            assertEquals("user 7 TEXT null null", last.get(null));
+            assertEquals(200, status(handler.handle(request(HttpRequest.Method.GET, "/search?q=a+b%26c&limit=10", null))));
+            assertEquals("a b&c 10", last.get(null));
+            assertEquals(200, status(handler.handle(request(HttpRequest.Method.POST, "/files/a/b", null))));
+            assertEquals("a/b", last.get(null));
+            assertEquals(204, status(handler.handle(request(HttpRequest.Method.DELETE, "/users/a%20b", null))));
+            assertEquals("a b DELETE", last.get(null));
+
+            assertEquals(400, status(handler.handle(request(HttpRequest.Method.GET, "/users/x", null))));
+            assertEquals(400, status(handler.handle(request(HttpRequest.Method.GET, "/users/42?page=", null))));
+            assertEquals(400, status(handler.handle(request(HttpRequest.Method.GET, "/users/42?format=XML", null))));
+            assertEquals(400, status(handler.handle(request(HttpRequest.Method.GET, "/search?q=a", null))));
+            assertEquals(400, status(handler.handle(request(HttpRequest.Method.GET, "/search?limit=%zz", null))));
+            assertEquals(404, status(handler.handle(request(HttpRequest.Method.GET, "/posts", null))));
+        }
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        Path output = Files.createTempDirectory("plumo-processor");
+        List<Diagnostic<? extends JavaFileObject>> diagnostics = new ArrayList<>();
+        assertFalse(compile(output, "com.example.Invalid", String.join("\n",
+                "package com.example;",
+                "",
+                "import org.glavo.plumo.annotation.*;",
+                "",
+                "public class Invalid {",
+                "    @Get(\"/users/{id}\")",
+                "    public String getUser(@PathParam(\"name\") String name) { return name; }",
+                "",
+                "    @Get(\"/items\")",
+                "    public Object items(Object object) { return object; }",
+                "}"), diagnostics));
+
+        String messages = diagnostics.toString();
+        assertTrue(messages.contains("Template /users/{id} has no parameter 'name'"), messages);
+        assertTrue(messages.contains("Parameters must be annotated"), messages);
+        assertTrue(messages.contains("Route methods must return HttpResponse, String or void"), messages);
+    }
+
+    @Test
+    public void testParameterWithoutRoute() throws Exception {
+        Path output = Files.createTempDirectory("plumo-processor");
+        List<Diagnostic<? extends JavaFileObject>> diagnostics = new ArrayList<>();
+        assertFalse(compile(output, "com.example.Unrouted", String.join("\n",
+                "package com.example;",
+                "",
+                "import org.glavo.plumo.annotation.*;",
+                "",
+                "public class Unrouted {",
+                "    public String getUser(@PathParam(\"id\") String id, @QueryParam(\"q\") String query) { return id; }",
+                "",
+                "    public Unrouted(@Header(\"X-Trace\") String trace) { }",
+                "}"), diagnostics));
+
+        String messages = diagnostics.toString();
+        assertTrue(messages.contains("@PathParam is only allowed on parameters of methods annotated with"), messages);
+        assertTrue(messages.contains("@QueryParam is only allowed on parameters of methods annotated with"), messages);
+        assertTrue(messages.contains("@Header is only allowed on parameters of methods annotated with"), messages);
+        assertFalse(Files.exists(output.resolve("com/example/Unrouted_Handler.class")));
+    }
+
+    @Test
+    public void testTemplateParameters() {
+        assertEquals(Arrays.asList("id", "post"), RouteProcessor.getTemplateParameters("/users/{id}/posts/{post}"));
+        assertEquals(Arrays.asList("path"), RouteProcessor.getTemplateParameters("/static/{path...}"));
+        assertEquals(Arrays.asList("*"), RouteProcessor.getTemplateParameters("/files/*"));
+        assertEquals("\"a\\\"b\\n\\u00e9\"", RouteProcessor.quote("a\"b\n\u00e9"));
+    }
+}
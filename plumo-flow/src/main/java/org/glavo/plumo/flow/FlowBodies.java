@@ -0,0 +1,94 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.flow;
+
+import org.glavo.plumo.HttpDataDecoder;
+import org.glavo.plumo.HttpRequest;
+import org.glavo.plumo.HttpResponse;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+/**
+ * Adapters between HTTP bodies and {@link Flow} publishers.
+ * <p>
+ * The request body can only be read while the request is being handled.
+ * Handlers that consume it asynchronously should be {@link org.glavo.plumo.AsyncHttpHandler}s
+ * whose stage completes after the publisher has terminated.
+ */
+public final class FlowBodies {
+
+    static final int DEFAULT_BUFFER_SIZE = 8192;
+    static final int DEFAULT_PREFETCH = 16;
+
+    private FlowBodies() {
+    }
+
+    /**
+     * Returns a publisher of the request body, which reads from the connection only as the subscriber requests.
+     * Reads are performed on the thread calling {@link Flow.Subscription#request(long)}.
+     * <p>
+     * The publisher accepts a single subscriber.
+     */
+    public static Flow.Publisher<ByteBuffer> requestBody(HttpRequest request) {
+        return requestBody(request, Runnable::run, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns a publisher of the request body, which reads from the connection only as the subscriber requests.
+     * Reads are performed on {@code executor}, and each emitted buffer holds at most {@code bufferSize} bytes.
+     * <p>
+     * The publisher accepts a single subscriber.
+     */
+    public static Flow.Publisher<ByteBuffer> requestBody(HttpRequest request, Executor executor, int bufferSize) {
+        Objects.requireNonNull(request);
+        Objects.requireNonNull(executor);
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be positive");
+        }
+
+        return new RequestBodyPublisher(() -> request.getBody(HttpDataDecoder.BYTE_CHANNEL), executor, bufferSize);
+    }
+
+    /**
+     * Returns a body writer that writes the buffers of {@code publisher} as they arrive.
+     * <p>
+     * At most {@value #DEFAULT_PREFETCH} buffers are requested ahead of the connection,
+     * so a slow client slows down the publisher.
+     *
+     * @see HttpResponse#withBody(HttpResponse.BodyWriter)
+     */
+    public static HttpResponse.BodyWriter bodyWriter(Flow.Publisher<? extends ByteBuffer> publisher) {
+        return bodyWriter(publisher, DEFAULT_PREFETCH);
+    }
+
+    /**
+     * Returns a body writer that writes the buffers of {@code publisher} as they arrive,
+     * requesting at most {@code prefetch} buffers ahead of the connection.
+     *
+     * @see HttpResponse#withBody(HttpResponse.BodyWriter)
+     */
+    public static HttpResponse.BodyWriter bodyWriter(Flow.Publisher<? extends ByteBuffer> publisher, int prefetch) {
+        Objects.requireNonNull(publisher);
+        if (prefetch <= 0) {
+            throw new IllegalArgumentException("prefetch must be positive");
+        }
+
+        return out -> new PublisherBodyWriter(prefetch).writeTo(publisher, out);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.flow;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+
+/**
+ * Hands the buffers of a publisher over to the thread writing the response.
+ * Demand is only signaled after a buffer has been written, so the publisher never runs ahead of the connection.
+ */
+final class PublisherBodyWriter implements Flow.Subscriber<ByteBuffer> {
+
+    private static final Object COMPLETE = new Object();
+
+    private final int prefetch;
+
+    // ByteBuffer | Throwable | COMPLETE, never holds more than prefetch + 1 elements
+    private final BlockingQueue<Object> queue;
+
+    private volatile Flow.Subscription subscription;
+
+    PublisherBodyWriter(int prefetch) {
+        this.prefetch = prefetch;
+        this.queue = new ArrayBlockingQueue<>(prefetch + 1);
+    }
+
+    void writeTo(Flow.Publisher<? extends ByteBuffer> publisher, OutputStream out) throws IOException {
+        WritableByteChannel channel = (WritableByteChannel) out;
+
+        publisher.subscribe(this);
+        try {
+            while (true) {
+                Object item = queue.take();
+                if (item == COMPLETE) {
+                    return;
+                } else if (item instanceof Throwable) {
+                    Throwable e = (Throwable) item;
+                    throw e instanceof IOException ? (IOException) e : new IOException("The body publisher failed", e);
+                }
+
+                ByteBuffer buffer = (ByteBuffer) item;
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                subscription.request(1);
+            }
+        } catch (InterruptedException e) {
+            cancel();
+            throw new InterruptedIOException();
+        } catch (Throwable e) {
+            cancel();
+            throw e;
+        }
+    }
+
+    private void cancel() {
+        Flow.Subscription subscription = this.subscription;
+        if (subscription != null) {
+            subscription.cancel();
+        }
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        subscription.request(prefetch);
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        if (!queue.offer(item)) {
+            cancel();
+            queue.clear();
+            queue.offer(new IllegalStateException("The body publisher does not honor demand"));
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        queue.offer(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        queue.offer(COMPLETE);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.flow;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+final class RequestBodyPublisher implements Flow.Publisher<ByteBuffer> {
+
+    private static final Flow.Subscription EMPTY_SUBSCRIPTION = new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    };
+
+    private final Supplier<ReadableByteChannel> channelSupplier;
+    private final Executor executor;
+    private final int bufferSize;
+
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    RequestBodyPublisher(Supplier<ReadableByteChannel> channelSupplier, Executor executor, int bufferSize) {
+        this.channelSupplier = channelSupplier;
+        this.executor = executor;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(EMPTY_SUBSCRIPTION);
+            subscriber.onError(new IllegalStateException("The request body has already been subscribed"));
+            return;
+        }
+
+        ReadableByteChannel channel;
+        try {
+            channel = channelSupplier.get();
+        } catch (Throwable e) {
+            subscriber.onSubscribe(EMPTY_SUBSCRIPTION);
+            subscriber.onError(e);
+            return;
+        }
+
+        subscriber.onSubscribe(new BodySubscription(subscriber, channel));
+    }
+
+    private final class BodySubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final ReadableByteChannel channel;
+
+        private final AtomicLong demand = new AtomicLong();
+
+        // Number of pending drain requests, only the caller that raises it from zero drains
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private volatile boolean done = false;
+        private volatile Throwable pendingError;
+
+        BodySubscription(Flow.Subscriber<? super ByteBuffer> subscriber, ReadableByteChannel channel) {
+            this.subscriber = subscriber;
+            this.channel = channel;
+        }
+
+        @Override
+        public void request(long n) {
+            if (done) {
+                return;
+            }
+
+            if (n <= 0) {
+                pendingError = new IllegalArgumentException("Non-positive request: " + n);
+            } else {
+                demand.getAndAccumulate(n, (current, add) -> {
+                    long sum = current + add;
+                    return sum < 0 ? Long.MAX_VALUE : sum;
+                });
+            }
+
+            if (wip.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    done = true;
+                    subscriber.onError(e);
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            done = true;
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                while (!done) {
+                    Throwable error = pendingError;
+                    if (error != null) {
+                        done = true;
+                        subscriber.onError(error);
+                        return;
+                    }
+
+                    if (demand.get() == 0) {
+                        break;
+                    }
+
+                    ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+                    int n;
+                    try {
+                        n = channel.read(buffer);
+                    } catch (IOException e) {
+                        done = true;
+                        subscriber.onError(e);
+                        return;
+                    }
+
+                    if (n < 0) {
+                        done = true;
+                        subscriber.onComplete();
+                        return;
+                    }
+
+                    if (n > 0) {
+                        demand.decrementAndGet();
+                        buffer.flip();
+                        subscriber.onNext(buffer);
+                    }
+                }
+            } while ((missed = wip.addAndGet(-missed)) != 0);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.flow;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class FlowBodiesTest {
+
+    private static final class ChannelOutput extends ByteArrayOutputStream implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            while (src.hasRemaining()) {
+                write(src.get());
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+    }
+
+    // SubmissionPublisher drops items published before anyone subscribes
+    private static void awaitSubscriber(SubmissionPublisher<?> publisher) {
+        while (!publisher.hasSubscribers()) {
+            Thread.yield();
+        }
+    }
+
+    @Test
+    public void testRequestBody() {
+        byte[] data = new byte[10000];
+        new Random(0).nextBytes(data);
+
+        AtomicInteger reads = new AtomicInteger();
+        ReadableByteChannel input = Channels.newChannel(new ByteArrayInputStream(data));
+        ReadableByteChannel countingInput = new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                reads.incrementAndGet();
+                return input.read(dst);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return input.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                input.close();
+            }
+        };
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        AtomicInteger completed = new AtomicInteger();
+        Flow.Subscription[] subscription = new Flow.Subscription[1];
+
+        new RequestBodyPublisher(() -> countingInput, Runnable::run, 1000).subscribe(new Flow.Subscriber<ByteBuffer>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                result.write(item.array(), item.position(), item.remaining());
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                fail(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                completed.incrementAndGet();
+            }
+        });
+
+        assertEquals(0, reads.get());
+        subscription[0].request(2);
+        assertEquals(2, reads.get());
+        assertEquals(2000, result.size());
+
+        subscription[0].request(Long.MAX_VALUE);
+        assertEquals(1, completed.get());
+        assertArrayEquals(data, result.toByteArray());
+    }
+
+    @Test
+    public void testBodyWriter() throws IOException {
+        byte[] data = new byte[100000];
+        new Random(0).nextBytes(data);
+
+        ChannelOutput out = new ChannelOutput();
+        try (SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>()) {
+            new Thread(() -> {
+                awaitSubscriber(publisher);
+                for (int i = 0; i < data.length; i += 1000) {
+                    publisher.submit(ByteBuffer.wrap(data, i, 1000));
+                }
+                publisher.close();
+            }).start();
+
+            FlowBodies.bodyWriter(publisher, 2).writeTo(out);
+        }
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void testBodyWriterError() {
+        SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>();
+        new Thread(() -> {
+            awaitSubscriber(publisher);
+            publisher.submit(ByteBuffer.wrap(new byte[10]));
+            publisher.closeExceptionally(new IOException("boom"));
+        }).start();
+
+        IOException e = assertThrows(IOException.class, () -> FlowBodies.bodyWriter(publisher).writeTo(new ChannelOutput()));
+        assertEquals("boom", e.getMessage());
+    }
+}
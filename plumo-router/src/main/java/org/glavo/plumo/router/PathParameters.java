@@ -0,0 +1,136 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.router;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The path parameters of a matched route.
+ * <p>
+ * Parameters are kept as offsets into the path, and their values are only created when requested.
+ */
+public final class PathParameters {
+
+    private final List<String> names;
+    private final CharSequence path;
+    private final int[] captures;
+
+    /**
+     * @param captures the offsets filled by {@link Router#find}
+     */
+    public PathParameters(Route route, CharSequence path, int[] captures) {
+        this.names = route.getParameterNames();
+        this.path = Objects.requireNonNull(path);
+        this.captures = Objects.requireNonNull(captures);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public String getName(int index) {
+        return names.get(index);
+    }
+
+    public int getStart(int index) {
+        Objects.checkIndex(index, names.size());
+        return captures[2 * index];
+    }
+
+    public int getEnd(int index) {
+        Objects.checkIndex(index, names.size());
+        return captures[2 * index + 1];
+    }
+
+    /**
+     * Returns the value of the parameter as it appears in the path, without decoding.
+     */
+    public String get(int index) {
+        return path.subSequence(getStart(index), getEnd(index)).toString();
+    }
+
+    /**
+     * Returns the value of the parameter as it appears in the path, or {@code null} if there is no such parameter.
+     */
+    public String get(String name) {
+        int index = names.indexOf(name);
+        return index >= 0 ? get(index) : null;
+    }
+
+    /**
+     * Returns the value of the parameter with percent-encoded UTF-8 octets decoded.
+     *
+     * @throws IllegalArgumentException if the value contains an invalid escape sequence
+     */
+    public String getDecoded(int index) {
+        int start = getStart(index);
+        int end = getEnd(index);
+
+        int firstEscape = -1;
+        for (int i = start; i < end; i++) {
+            if (path.charAt(i) == '%') {
+                firstEscape = i;
+                break;
+            }
+        }
+        if (firstEscape < 0) {
+            return path.subSequence(start, end).toString();
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(end - start);
+        for (int i = start; i < end; i++) {
+            char ch = path.charAt(i);
+            if (ch == '%') {
+                int high = i + 2 < end ? Character.digit(path.charAt(i + 1), 16) : -1;
+                int low = high >= 0 ? Character.digit(path.charAt(i + 2), 16) : -1;
+                if (low < 0) {
+                    throw new IllegalArgumentException("Invalid escape sequence in " + path.subSequence(start, end));
+                }
+                buffer.write((high << 4) | low);
+                i += 2;
+            } else {
+                // Request URIs are decoded as ISO-8859-1, so each char is a single octet
+                buffer.write(ch);
+            }
+        }
+        return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the decoded value of the parameter, or {@code null} if there is no such parameter.
+     *
+     * @see #getDecoded(int)
+     */
+    public String getDecoded(String name) {
+        int index = names.indexOf(name);
+        return index >= 0 ? getDecoded(index) : null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("PathParameters{");
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(names.get(i)).append('=').append(path, getStart(i), getEnd(i));
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.router;
+
+import org.glavo.plumo.HttpRequest;
+
+import java.util.Arrays;
+
+/**
+ * A node of the radix tree of a {@link Router}.
+ * <p>
+ * A node is entered by matching its {@link #prefix}. Its static children are sorted by the first char of their prefixes,
+ * which are distinct, so at most one static child is tried for each position of the path.
+ * Parameter and wildcard children have empty prefixes.
+ */
+final class RadixNode {
+    private static final char[] NO_CHARS = new char[0];
+    private static final RadixNode[] NO_NODES = new RadixNode[0];
+
+    private static final int METHOD_COUNT = HttpRequest.Method.values().length;
+    private static final int GET = HttpRequest.Method.GET.ordinal();
+    private static final int HEAD = HttpRequest.Method.HEAD.ordinal();
+
+    /**
+     * Matches any method when passed to {@link #lookup}.
+     */
+    static final int ANY_METHOD = -1;
+
+    char[] prefix;
+
+    private char[] indices = NO_CHARS;
+    private RadixNode[] children = NO_NODES;
+
+    RadixNode parameter;
+    RadixNode wildcard;
+
+    // Indexed by the ordinal of the method
+    private RouteImpl[] routes;
+
+    RadixNode(char[] prefix) {
+        this.prefix = prefix;
+    }
+
+    RadixNode() {
+        this(NO_CHARS);
+    }
+
+    // Building
+
+    /**
+     * Returns the node reached by matching {@code text} from this node, creating or splitting nodes as needed.
+     */
+    RadixNode insertStatic(String text) {
+        RadixNode node = this;
+        int i = 0;
+        while (i < text.length()) {
+            int index = Arrays.binarySearch(node.indices, text.charAt(i));
+            if (index < 0) {
+                RadixNode child = new RadixNode(text.substring(i).toCharArray());
+                node.insertChild(-index - 1, child);
+                return child;
+            }
+
+            RadixNode child = node.children[index];
+            char[] childPrefix = child.prefix;
+            int common = 1;
+            while (common < childPrefix.length && i + common < text.length() && childPrefix[common] == text.charAt(i + common)) {
+                common++;
+            }
+
+            if (common < childPrefix.length) {
+                RadixNode middle = new RadixNode(Arrays.copyOf(childPrefix, common));
+                child.prefix = Arrays.copyOfRange(childPrefix, common, childPrefix.length);
+                middle.insertChild(0, child);
+                node.children[index] = middle;
+                child = middle;
+            }
+
+            node = child;
+            i += common;
+        }
+        return node;
+    }
+
+    private void insertChild(int index, RadixNode child) {
+        char[] newIndices = new char[indices.length + 1];
+        RadixNode[] newChildren = new RadixNode[children.length + 1];
+        System.arraycopy(indices, 0, newIndices, 0, index);
+        System.arraycopy(children, 0, newChildren, 0, index);
+        newIndices[index] = child.prefix[0];
+        newChildren[index] = child;
+        System.arraycopy(indices, index, newIndices, index + 1, indices.length - index);
+        System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+        this.indices = newIndices;
+        this.children = newChildren;
+    }
+
+    RadixNode getOrCreateParameter() {
+        if (parameter == null) {
+            parameter = new RadixNode();
+        }
+        return parameter;
+    }
+
+    RadixNode getOrCreateWildcard() {
+        if (wildcard == null) {
+            wildcard = new RadixNode();
+        }
+        return wildcard;
+    }
+
+    void setRoute(RouteImpl route) {
+        if (routes == null) {
+            routes = new RouteImpl[METHOD_COUNT];
+        }
+        routes[route.getMethod().ordinal()] = route;
+    }
+
+    // Matching
+
+    RouteImpl getRoute(int method) {
+        if (routes == null) {
+            return null;
+        }
+        RouteImpl route = routes[method];
+        return route == null && method == HEAD ? routes[GET] : route;
+    }
+
+    private boolean accepts(int method) {
+        return routes != null && (method == ANY_METHOD || getRoute(method) != null);
+    }
+
+    /**
+     * Finds the node with a route for the method that matches {@code path[pos, end)},
+     * and stores the offsets of the parameters from index {@code depth} on.
+     * <p>
+     * Static children are tried first, then the parameter, then the wildcard.
+     * Backtracking happens only when a more specific branch has no route for the rest of the path.
+     */
+    RadixNode lookup(CharSequence path, int pos, int end, int method, int[] captures, int depth) {
+        if (pos == end) {
+            if (accepts(method)) {
+                return this;
+            }
+        } else {
+            int index = Arrays.binarySearch(indices, path.charAt(pos));
+            if (index >= 0) {
+                RadixNode child = children[index];
+                char[] childPrefix = child.prefix;
+                if (end - pos >= childPrefix.length && regionMatches(path, pos, childPrefix)) {
+                    RadixNode result = child.lookup(path, pos + childPrefix.length, end, method, captures, depth);
+                    if (result != null) {
+                        return result;
+                    }
+                }
+            }
+
+            if (parameter != null && path.charAt(pos) != '/') {
+                int segmentEnd = pos + 1;
+                while (segmentEnd < end && path.charAt(segmentEnd) != '/') {
+                    segmentEnd++;
+                }
+
+                RadixNode result = parameter.lookup(path, segmentEnd, end, method, captures, depth + 1);
+                if (result != null) {
+                    captures[2 * depth] = pos;
+                    captures[2 * depth + 1] = segmentEnd;
+                    return result;
+                }
+            }
+        }
+
+        if (wildcard != null && wildcard.accepts(method)) {
+            captures[2 * depth] = pos;
+            captures[2 * depth + 1] = end;
+            return wildcard;
+        }
+        return null;
+    }
+
+    private static boolean regionMatches(CharSequence path, int pos, char[] prefix) {
+        // The first char has been matched by the index
+        for (int i = 1; i < prefix.length; i++) {
+            if (path.charAt(pos + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the value of the {@code Allow} header for the routes of this node.
+     */
+    String getAllowedMethods() {
+        StringBuilder builder = new StringBuilder();
+        for (HttpRequest.Method method : HttpRequest.Method.values()) {
+            if (getRoute(method.ordinal()) != null) {
+                if (builder.length() > 0) {
+                    builder.append(", ");
+                }
+                builder.append(method);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.router;
+
+import org.glavo.plumo.HttpRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+final class RouteImpl implements Route {
+
+    private final HttpRequest.Method method;
+    private final String template;
+    private final RouteHandler handler;
+
+    // Static text, Parameter or wildcard Parameter
+    final List<Object> tokens;
+    private final List<String> parameterNames;
+
+    // Shared by all requests if the route has no parameters
+    final PathParameters noParameters;
+
+    RouteImpl(HttpRequest.Method method, String template, RouteHandler handler) {
+        this.method = method;
+        this.template = template;
+        this.handler = handler;
+        this.tokens = parse(template);
+
+        ArrayList<String> names = new ArrayList<>();
+        for (Object token : tokens) {
+            if (token instanceof Parameter) {
+                names.add(((Parameter) token).name);
+            }
+        }
+        this.parameterNames = Collections.unmodifiableList(names);
+        this.noParameters = names.isEmpty() ? new PathParameters(this, "", new int[0]) : null;
+    }
+
+    static final class Parameter {
+        final String name;
+        final boolean wildcard;
+
+        Parameter(String name, boolean wildcard) {
+            this.name = name;
+            this.wildcard = wildcard;
+        }
+    }
+
+    private static List<Object> parse(String template) {
+        if (!template.startsWith("/")) {
+            throw new IllegalArgumentException("Template must start with '/': " + template);
+        }
+
+        ArrayList<Object> tokens = new ArrayList<>();
+        ArrayList<String> names = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+
+        int length = template.length();
+        int i = 0;
+        while (i < length) {
+            char ch = template.charAt(i);
+            if (ch == '{' || ch == '*') {
+                String name;
+                boolean wildcard;
+                int next;
+                if (ch == '*') {
+                    name = "*";
+                    wildcard = true;
+                    next = i + 1;
+                } else {
+                    int close = template.indexOf('}', i);
+                    if (close < 0) {
+                        throw new IllegalArgumentException("Unclosed parameter in template: " + template);
+                    }
+                    name = template.substring(i + 1, close);
+                    wildcard = name.endsWith("...");
+                    if (wildcard) {
+                        name = name.substring(0, name.length() - 3);
+                    }
+                    if (name.isEmpty() || name.indexOf('{') >= 0 || name.indexOf('/') >= 0) {
+                        throw new IllegalArgumentException("Invalid parameter name in template: " + template);
+                    }
+                    next = close + 1;
+                }
+
+                if (wildcard ? next != length : next != length && template.charAt(next) != '/') {
+                    throw new IllegalArgumentException(wildcard
+                            ? "Wildcard must be at the end of template: " + template
+                            : "Parameter must be followed by '/' or the end of template: " + template);
+                }
+                if (names.contains(name)) {
+                    throw new IllegalArgumentException("Duplicate parameter '" + name + "' in template: " + template);
+                }
+
+                if (text.length() > 0) {
+                    tokens.add(text.toString());
+                    text.setLength(0);
+                }
+                names.add(name);
+                tokens.add(new Parameter(name, wildcard));
+                i = next;
+            } else if (ch == '}') {
+                throw new IllegalArgumentException("Unexpected '}' in template: " + template);
+            } else {
+                text.append(ch);
+                i++;
+            }
+        }
+
+        if (text.length() > 0) {
+            tokens.add(text.toString());
+        }
+        return tokens;
+    }
+
+    /**
+     * Returns the template with parameter names removed, routes with the same shape conflict.
+     */
+    String getShape() {
+        StringBuilder builder = new StringBuilder();
+        for (Object token : tokens) {
+            if (token instanceof Parameter) {
+                builder.append(((Parameter) token).wildcard ? "{...}" : "{}");
+            } else {
+                builder.append((String) token);
+            }
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public HttpRequest.Method getMethod() {
+        return method;
+    }
+
+    @Override
+    public String getTemplate() {
+        return template;
+    }
+
+    @Override
+    public RouteHandler getHandler() {
+        return handler;
+    }
+
+    @Override
+    public List<String> getParameterNames() {
+        return parameterNames;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + template;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.router;
+
+import org.glavo.plumo.HttpHandler;
+import org.glavo.plumo.HttpRequest;
+
+/**
+ * A handler that dispatches requests to routes by method and path.
+ * <p>
+ * Path templates consist of static text and parameters:
+ * <ul>
+ *     <li>{@code {name}} matches a non-empty part of a segment, up to the next {@code '/'};</li>
+ *     <li>{@code {name...}} matches the rest of the path, including {@code '/'}, and may be empty;
+ *         it must be at the end of the template. {@code *} is a wildcard of this kind whose parameter is named {@code "*"}.</li>
+ * </ul>
+ * A parameter must be followed by {@code '/'} or by the end of the template, e.g. {@code /users/{id}/posts/{post}}.
+ * When several routes match a path, static text takes precedence over parameters, and parameters over wildcards.
+ * Paths are matched as they appear in the request URI, without decoding or normalization.
+ * <p>
+ * {@code HEAD} requests without a {@code HEAD} route are dispatched to the {@code GET} route.
+ * Requests whose path matches only routes for other methods are answered with {@code 405 Method Not Allowed},
+ * other requests that match no route are passed to the {@linkplain Builder#fallback(HttpHandler) fallback handler}.
+ */
+public interface Router extends HttpHandler {
+
+    static Builder newBuilder() {
+        return new RouterImpl.BuilderImpl();
+    }
+
+    /**
+     * Finds the route for the path {@code path[start, end)} without allocating.
+     * <p>
+     * On success, the start and end offsets of the {@code i}-th parameter of the route are stored
+     * in {@code captures[2 * i]} and {@code captures[2 * i + 1]}.
+     *
+     * @param captures an array of at least {@code 2 * }{@link #getMaxParameterCount()} elements
+     * @return the matched route, or {@code null} if no route matches
+     */
+    Route find(HttpRequest.Method method, CharSequence path, int start, int end, int[] captures);
+
+    /**
+     * Returns the maximum number of path parameters of the routes.
+     */
+    int getMaxParameterCount();
+
+    interface Builder {
+        /**
+         * Registers a route.
+         *
+         * @throws IllegalArgumentException if the template is invalid,
+         *                                  or conflicts with a route registered for the same method
+         */
+        Builder route(HttpRequest.Method method, String template, RouteHandler handler);
+
+        default Builder get(String template, RouteHandler handler) {
+            return route(HttpRequest.Method.GET, template, handler);
+        }
+
+        default Builder post(String template, RouteHandler handler) {
+            return route(HttpRequest.Method.POST, template, handler);
+        }
+
+        default Builder put(String template, RouteHandler handler) {
+            return route(HttpRequest.Method.PUT, template, handler);
+        }
+
+        default Builder delete(String template, RouteHandler handler) {
+            return route(HttpRequest.Method.DELETE, template, handler);
+        }
+
+        default Builder patch(String template, RouteHandler handler) {
+            return route(HttpRequest.Method.PATCH, template, handler);
+        }
+
+        /**
+         * Sets the handler for requests that match no route, the default answers {@code 404 Not Found}.
+         */
+        Builder fallback(HttpHandler handler);
+
+        Router build();
+    }
+}
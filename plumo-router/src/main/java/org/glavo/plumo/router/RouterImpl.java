@@ -0,0 +1,140 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.router;
+
+import org.glavo.plumo.HttpHandler;
+import org.glavo.plumo.HttpHeaderField;
+import org.glavo.plumo.HttpRequest;
+import org.glavo.plumo.HttpResponse;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+
+final class RouterImpl implements Router {
+
+    private static final int[] NO_CAPTURES = new int[0];
+
+    private final RadixNode root;
+    private final int routeCount;
+    private final int maxParameterCount;
+    private final HttpHandler fallback;
+
+    private RouterImpl(List<RouteImpl> routes, HttpHandler fallback) {
+        RadixNode root = new RadixNode();
+        int maxParameterCount = 0;
+        for (RouteImpl route : routes) {
+            RadixNode node = root;
+            for (Object token : route.tokens) {
+                if (token instanceof String) {
+                    node = node.insertStatic((String) token);
+                } else if (((RouteImpl.Parameter) token).wildcard) {
+                    node = node.getOrCreateWildcard();
+                } else {
+                    node = node.getOrCreateParameter();
+                }
+            }
+            node.setRoute(route);
+            maxParameterCount = Math.max(maxParameterCount, route.getParameterNames().size());
+        }
+
+        this.root = root;
+        this.routeCount = routes.size();
+        this.maxParameterCount = maxParameterCount;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public Route find(HttpRequest.Method method, CharSequence path, int start, int end, int[] captures) {
+        RadixNode node = root.lookup(path, start, end, method.ordinal(), captures, 0);
+        return node != null ? node.getRoute(method.ordinal()) : null;
+    }
+
+    @Override
+    public int getMaxParameterCount() {
+        return maxParameterCount;
+    }
+
+    @Override
+    public HttpResponse handle(HttpRequest request) throws Exception {
+        String uri = request.getRawURI();
+        int start = 0;
+        int end = uri.length();
+        if (!uri.startsWith("/")) {
+            // absolute-form
+            int scheme = uri.indexOf("://");
+            if (scheme >= 0) {
+                int pathStart = uri.indexOf('/', scheme + 3);
+                start = pathStart >= 0 ? pathStart : end;
+            }
+        }
+        int query = uri.indexOf('?', start);
+        if (query >= 0) {
+            end = query;
+        }
+
+        int[] captures = maxParameterCount > 0 ? new int[2 * maxParameterCount] : NO_CAPTURES;
+        RadixNode node = root.lookup(uri, start, end, request.getMethod().ordinal(), captures, 0);
+        if (node == null) {
+            RadixNode other = root.lookup(uri, start, end, RadixNode.ANY_METHOD, captures, 0);
+            if (other != null) {
+                return HttpResponse.newResponse(HttpResponse.Status.METHOD_NOT_ALLOWED)
+                        .withHeader(HttpHeaderField.ALLOW, other.getAllowedMethods());
+            }
+            return fallback.handle(request);
+        }
+
+        RouteImpl route = node.getRoute(request.getMethod().ordinal());
+        PathParameters parameters = route.noParameters != null ? route.noParameters : new PathParameters(route, uri, captures);
+        return route.getHandler().handle(request, parameters);
+    }
+
+    @Override
+    public String toString() {
+        return "Router[routes=" + routeCount + ", fallback=" + fallback + "]";
+    }
+
+    static final class BuilderImpl implements Router.Builder {
+        private final List<RouteImpl> routes = new ArrayList<>();
+        private final HashSet<String> shapes = new HashSet<>();
+        private HttpHandler fallback = request -> HttpResponse.newResponse(HttpResponse.Status.NOT_FOUND);
+
+        @Override
+        public Router.Builder route(HttpRequest.Method method, String template, RouteHandler handler) {
+            Objects.requireNonNull(method);
+            Objects.requireNonNull(handler);
+
+            RouteImpl route = new RouteImpl(method, template, handler);
+            if (!shapes.add(method + " " + route.getShape())) {
+                throw new IllegalArgumentException("Route " + route + " conflicts with an existing route");
+            }
+            routes.add(route);
+            return this;
+        }
+
+        @Override
+        public Router.Builder fallback(HttpHandler handler) {
+            this.fallback = Objects.requireNonNull(handler);
+            return this;
+        }
+
+        @Override
+        public Router build() {
+            return new RouterImpl(new ArrayList<>(routes), fallback);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.router;
+
+import org.glavo.plumo.HttpHeaderField;
+import org.glavo.plumo.HttpRequest;
+import org.glavo.plumo.HttpResponse;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class RouterTest {
+
+    private static final RouteHandler NOOP = (request, parameters) -> HttpResponse.newResponse();
+
+    private static String match(Router router, HttpRequest.Method method, String path) {
+        int[] captures = new int[2 * router.getMaxParameterCount()];
+        Route route = router.find(method, path, 0, path.length(), captures);
+        if (route == null) {
+            return null;
+        }
+        return route.getTemplate() + " " + new PathParameters(route, path, captures);
+    }
+
+    private static String match(Router router, String path) {
+        return match(router, HttpRequest.Method.GET, path);
+    }
+
+    @Test
+    public void testMatch() {
+        Router router = Router.newBuilder()
+                .get("/", NOOP)
+                .get("/users", NOOP)
+                .get("/users/new", NOOP)
+                .get("/users/{id}", NOOP)
+                .get("/users/{id}/posts/{post}", NOOP)
+                .get("/user-groups/{group}", NOOP)
+                .get("/static/{path...}", NOOP)
+                .get("/files/*", NOOP)
+                .get("/v{version}/status", NOOP)
+                .build();
+
+        assertEquals("/ PathParameters{}", match(router, "/"));
+        assertEquals("/users PathParameters{}", match(router, "/users"));
+        assertEquals("/users/new PathParameters{}", match(router, "/users/new"));
+        assertEquals("/users/{id} PathParameters{id=newest}", match(router, "/users/newest"));
+        assertEquals("/users/{id} PathParameters{id=42}", match(router, "/users/42"));
+        assertEquals("/users/{id}/posts/{post} PathParameters{id=42, post=7}", match(router, "/users/42/posts/7"));
+        assertEquals("/user-groups/{group} PathParameters{group=admin}", match(router, "/user-groups/admin"));
+        assertEquals("/static/{path...} PathParameters{path=css/site.css}", match(router, "/static/css/site.css"));
+        assertEquals("/static/{path...} PathParameters{path=}", match(router, "/static/"));
+        assertEquals("/files/* PathParameters{*=a/b}", match(router, "/files/a/b"));
+        assertEquals("/v{version}/status PathParameters{version=2}", match(router, "/v2/status"));
+
+        assertNull(match(router, ""));
+        assertNull(match(router, "/users/"));
+        assertNull(match(router, "/users/42/"));
+        assertNull(match(router, "/users/42/posts"));
+        assertNull(match(router, "/static"));
+        assertNull(match(router, "/v/status"));
+        assertNull(match(router, HttpRequest.Method.POST, "/users"));
+    }
+
+    @Test
+    public void testBacktracking() {
+        Router router = Router.newBuilder()
+                .get("/a/b/c", NOOP)
+                .get("/a/{x}/d", NOOP)
+                .get("/a/{path...}", NOOP)
+                .post("/a/b/{y}", NOOP)
+                .build();
+
+        assertEquals("/a/b/c PathParameters{}", match(router, "/a/b/c"));
+        assertEquals("/a/{x}/d PathParameters{x=b}", match(router, "/a/b/d"));
+        assertEquals("/a/{path...} PathParameters{path=b/e}", match(router, "/a/b/e"));
+        assertEquals("/a/b/{y} PathParameters{y=c}", match(router, HttpRequest.Method.POST, "/a/b/c"));
+        assertEquals("/a/b/c PathParameters{}", match(router, HttpRequest.Method.HEAD, "/a/b/c"));
+    }
+
+    @Test
+    public void testManyRoutes() {
+        Router.Builder builder = Router.newBuilder();
+        for (int i = 0; i < 2000; i++) {
+            builder.get("/api/resource" + i + "/{id}", NOOP);
+            builder.get("/api/resource" + i + "/{id}/items/{item}", NOOP);
+            builder.get("/page" + i + ".html", NOOP);
+        }
+        Router router = builder.build();
+
+        for (int i = 0; i < 2000; i += 37) {
+            assertEquals("/api/resource" + i + "/{id} PathParameters{id=x" + i + "}", match(router, "/api/resource" + i + "/x" + i));
+            assertEquals("/api/resource" + i + "/{id}/items/{item} PathParameters{id=1, item=2}", match(router, "/api/resource" + i + "/1/items/2"));
+            assertEquals("/page" + i + ".html PathParameters{}", match(router, "/page" + i + ".html"));
+        }
+        assertNull(match(router, "/api/resource2000/1"));
+        assertNull(match(router, "/page2000.html"));
+    }
+
+    @Test
+    public void testInvalidTemplates() {
+        for (String template : Arrays.asList("users", "/users/{id", "/users/{}", "/users/{id}.json",
+                "/files/{path...}/x", "/files/*/x", "/a/{x}/{x}", "/a}")) {
+            assertThrows(IllegalArgumentException.class, () -> Router.newBuilder().get(template, NOOP), template);
+        }
+
+        Router.Builder builder = Router.newBuilder().get("/users/{id}", NOOP);
+        assertThrows(IllegalArgumentException.class, () -> builder.get("/users/{name}", NOOP));
+        builder.post("/users/{name}", NOOP);
+    }
+
+    @Test
+    public void testDecode() {
+        Router router = Router.newBuilder().get("/files/{name}", NOOP).build();
+        String path = "/files/caf%C3%A9%20au%20lait";
+        int[] captures = new int[2];
+        PathParameters parameters = new PathParameters(router.find(HttpRequest.Method.GET, path, 0, path.length(), captures), path, captures);
+        assertEquals("caf%C3%A9%20au%20lait", parameters.get("name"));
+        assertEquals("caf\u00e9 au lait", parameters.getDecoded("name"));
+        assertNull(parameters.get("missing"));
+
+        String invalid = "/files/100%";
+        PathParameters invalidParameters = new PathParameters(router.find(HttpRequest.Method.GET, invalid, 0, invalid.length(), captures), invalid, captures);
+        assertThrows(IllegalArgumentException.class, () -> invalidParameters.getDecoded(0));
+    }
+
+    private static HttpRequest request(HttpRequest.Method method, String uri) {
+        return (HttpRequest) Proxy.newProxyInstance(RouterTest.class.getClassLoader(), new Class<?>[]{HttpRequest.class}, (proxy, m, args) -> {
+            switch (m.getName()) {
+                case "getMethod":
+                    return method;
+                case "getRawURI":
+                    return uri;
+                default:
+                    throw new UnsupportedOperationException(m.getName());
+            }
+        });
+    }
+
+    @Test
+    public void testHandle() throws Exception {
+        Router router = Router.newBuilder()
+                .get("/users/{id}", (request, parameters) -> HttpResponse.newTextResponse(parameters.get("id")))
+                .put("/users/{id}", NOOP)
+                .fallback(request -> HttpResponse.newResponse(HttpResponse.Status.BAD_REQUEST))
+                .build();
+
+        assertEquals(HttpResponse.Status.OK, router.handle(request(HttpRequest.Method.GET, "/users/42?x=/y")).getStatus());
+        assertEquals(HttpResponse.Status.OK, router.handle(request(HttpRequest.Method.GET, "http://localhost/users/42")).getStatus());
+        assertEquals(HttpResponse.Status.BAD_REQUEST, router.handle(request(HttpRequest.Method.GET, "/posts/42")).getStatus());
+
+        HttpResponse response = router.handle(request(HttpRequest.Method.DELETE, "/users/42"));
+        assertEquals(HttpResponse.Status.METHOD_NOT_ALLOWED, response.getStatus());
+        assertTrue(response.toString().contains(HttpHeaderField.ALLOW + ": GET, PUT, HEAD"), response.toString());
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A handler that produces the response asynchronously.
+ * <p>
+ * While the returned stage is pending, the session does not occupy a thread.
+ * When it completes, the response is sent on the server executor;
+ * if it completes exceptionally, the exception is mapped by {@link #handleRecoverableException}.
+ * <p>
+ * Requests dispatched to a {@link HttpLane} are handled with {@link #handle(HttpRequest)},
+ * which waits for the stage on the lane thread.
+ */
+@FunctionalInterface
+public interface AsyncHttpHandler extends HttpHandler {
+
+    /**
+     * Handles the request. Returning {@code null} or completing the stage with {@code null} closes the connection.
+     */
+    CompletionStage<HttpResponse> handleAsync(HttpRequest request) throws Exception;
+
+    @Override
+    default HttpResponse handle(HttpRequest request) throws Exception {
+        CompletionStage<HttpResponse> stage = handleAsync(request);
+        if (stage == null) {
+            return null;
+        }
+
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        stage.whenComplete((response, exception) -> {
+            if (exception != null) {
+                future.completeExceptionally(exception);
+            } else {
+                future.complete(response);
+            }
+        });
+
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw e;
+            }
+        }
+    }
+}
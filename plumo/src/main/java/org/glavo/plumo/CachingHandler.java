@@ -0,0 +1,74 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo;
+
+import org.glavo.plumo.internal.CachingHandlerImpl;
+
+/**
+ * A handler that caches the responses of another handler in memory.
+ * <p>
+ * Only {@code GET} responses are stored, and {@code HEAD} requests are answered from them as well.
+ * A response is stored if it has a {@code Cache-Control} header with a positive {@code s-maxage} or {@code max-age},
+ * has none of the {@code no-store}, {@code no-cache} and {@code private} directives, has no {@code Set-Cookie} header,
+ * and has a cacheable status and a {@link String}, {@link java.nio.ByteBuffer} or no body.
+ * Stored responses are {@linkplain HttpResponse#freeze() frozen} and keyed by the host, the URI
+ * and the values of the request headers named by their {@code Vary} header.
+ * As cache hits return the same frozen response, the compressed bodies, entity tags and
+ * {@code 304 Not Modified} responses are prepared once for all of them.
+ * <p>
+ * Requests with {@code Authorization} headers are not cached, and requests with {@code Cookie} headers are cached
+ * only if the responses vary by {@code Cookie}. Requests with {@code Cache-Control: no-store} bypass the cache,
+ * and requests with {@code Cache-Control: no-cache} or {@code max-age=0} are handled again and refresh the cache.
+ * <p>
+ * The cache is bounded by the total size of the stored responses, and decides which responses to keep
+ * by how often and how recently they have been requested (W-TinyLFU).
+ * Lookups do not block each other nor the handler.
+ */
+public interface CachingHandler extends HttpHandler {
+
+    static Builder newBuilder(HttpHandler handler) {
+        return new CachingHandlerImpl.BuilderImpl(handler);
+    }
+
+    /**
+     * Removes all responses from the cache.
+     */
+    void invalidateAll();
+
+    // Metrics
+
+    int getEntryCount();
+
+    /**
+     * Returns the estimated number of bytes occupied by the stored responses.
+     */
+    long getWeightedSize();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    long getEvictionCount();
+
+    interface Builder {
+        /**
+         * Sets the maximum estimated number of bytes occupied by the stored responses, the default is 64 MiB.
+         */
+        Builder maximumWeight(long bytes);
+
+        CachingHandler build();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo;
+
+import org.glavo.plumo.internal.CompressionPolicyImpl;
+
+import java.util.Objects;
+
+/**
+ * Decides whether and how response bodies are compressed.
+ * <p>
+ * The policy is consulted for each response that has a body and no {@code Content-Encoding} header.
+ *
+ * @see Plumo.Builder#compressionPolicy(CompressionPolicy)
+ */
+@FunctionalInterface
+public interface CompressionPolicy {
+
+    /**
+     * Returns a policy that never compresses responses.
+     */
+    static CompressionPolicy none() {
+        return (request, contentType, contentLength) -> null;
+    }
+
+    /**
+     * Returns the default policy, which is equivalent to {@code newBuilder().build()}.
+     */
+    static CompressionPolicy getDefault() {
+        return CompressionPolicyImpl.DEFAULT;
+    }
+
+    static Builder newBuilder() {
+        return new CompressionPolicyImpl.BuilderImpl();
+    }
+
+    /**
+     * Selects the encoding of a response body.
+     * <p>
+     * Returning {@code null} means that the response is not compressible, so its representation does not depend on
+     * the {@code Accept-Encoding} header of the request. Otherwise, {@code Vary: Accept-Encoding} is added to the response,
+     * even if {@link Selection#IDENTITY} is returned.
+     *
+     * @param contentType   the content type of the response, or {@code null}
+     * @param contentLength the length of the body before compression, or {@code -1} if unknown
+     */
+    Selection select(HttpRequest request, String contentType, long contentLength);
+
+    enum Encoding {
+        IDENTITY("identity"),
+        GZIP("gzip"),
+        DEFLATE("deflate"),
+        BROTLI("br");
+
+        private final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+
+        /**
+         * Returns the content coding token of this encoding.
+         */
+        public String getToken() {
+            return token;
+        }
+    }
+
+    final class Selection {
+        public static final Selection IDENTITY = new Selection(Encoding.IDENTITY, 0);
+
+        /**
+         * @param level the compression level from 1 (fastest) to 9 (best compression)
+         */
+        public static Selection of(Encoding encoding, int level) {
+            Objects.requireNonNull(encoding);
+            if (encoding == Encoding.IDENTITY) {
+                return IDENTITY;
+            }
+            if (level < 1 || level > 9) {
+                throw new IllegalArgumentException("Compression level must be between 1 and 9");
+            }
+            return new Selection(encoding, level);
+        }
+
+        private final Encoding encoding;
+        private final int level;
+
+        private Selection(Encoding encoding, int level) {
+            this.encoding = encoding;
+            this.level = level;
+        }
+
+        public Encoding getEncoding() {
+            return encoding;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        @Override
+        public String toString() {
+            return encoding == Encoding.IDENTITY ? "Selection[identity]" : "Selection[" + encoding.getToken() + ", level=" + level + "]";
+        }
+    }
+
+    interface Builder {
+        /**
+         * Sets the encodings the server may use, in order of preference. The default is gzip, then deflate.
+         * <p>
+         * Brotli is not used unless it is included here. It compresses text better than gzip,
+         * but takes several times longer at the same level.
+         * <p>
+         * The encoding with the highest quality value in the {@code Accept-Encoding} header of the request is selected,
+         * ties are broken by this order.
+         */
+        Builder encodings(Encoding... encodings);
+
+        /**
+         * Sets the compression level from 1 (fastest) to 9 (best compression).
+         * The default is set by the {@code org.glavo.plumo.gzipLevel} system property, or 6.
+         */
+        Builder level(int level);
+
+        /**
+         * Sets the minimum length of bodies to compress, the default is 256 bytes.
+         * Bodies of unknown length are always considered.
+         */
+        Builder minSize(long minSize);
+
+        /**
+         * Sets the media types to compress. A type may end with {@code /*}, or be <code>*&#47;*</code> to match all types.
+         * <p>
+         * The default includes {@code text/*}, JSON, XML, JavaScript and SVG types.
+         */
+        Builder compressibleTypes(String... types);
+
+        /**
+         * Sets the media types that are never compressed, which take precedence over the compressible types.
+         * <p>
+         * The default includes images, audio, video, fonts and archives that are already compressed.
+         */
+        Builder excludedTypes(String... types);
+
+        /**
+         * Sets whether to reduce the compression effort when responses are compressed faster than the processors can keep up.
+         * Enabled by default.
+         * <p>
+         * When more responses are being compressed than there are processors, the level drops to 1;
+         * when there are more than twice as many, responses are sent uncompressed.
+         */
+        Builder loadAdaptive(boolean loadAdaptive);
+
+        CompressionPolicy build();
+    }
+}
@@ -26,19 +26,32 @@ import java.util.Arrays;
 public final class HttpHeaderField {
 
     public static final HttpHeaderField ACCEPT_ENCODING = ofTrusted("accept-encoding");
+    public static final HttpHeaderField ACCEPT_RANGES = ofTrusted("accept-ranges");
     public static final HttpHeaderField ALLOW = ofTrusted("allow");
+    public static final HttpHeaderField AUTHORIZATION = ofTrusted("authorization");
+    public static final HttpHeaderField CACHE_CONTROL = ofTrusted("cache-control");
     public static final HttpHeaderField DATE = ofTrusted("date");
+    public static final HttpHeaderField ETAG = ofTrusted("etag");
     public static final HttpHeaderField CONNECTION = ofTrusted("connection");
     public static final HttpHeaderField CONTENT_ENCODING = ofTrusted("content-encoding");
     public static final HttpHeaderField CONTENT_LENGTH = ofTrusted("content-length");
+    public static final HttpHeaderField CONTENT_LOCATION = ofTrusted("content-location");
     public static final HttpHeaderField CONTENT_RANGE = ofTrusted("content-range");
     public static final HttpHeaderField CONTENT_TYPE = ofTrusted("content-type");
+    public static final HttpHeaderField COOKIE = ofTrusted("cookie");
+    public static final HttpHeaderField EXPIRES = ofTrusted("expires");
     public static final HttpHeaderField IF_MODIFIED_SINCE = ofTrusted("if-modified-since");
+    public static final HttpHeaderField IF_NONE_MATCH = ofTrusted("if-none-match");
+    public static final HttpHeaderField IF_RANGE = ofTrusted("if-range");
     public static final HttpHeaderField LAST_MODIFIED = ofTrusted("last-modified");
+    public static final HttpHeaderField LINK = ofTrusted("link");
     public static final HttpHeaderField LOCATION = ofTrusted("location");
     public static final HttpHeaderField HOST = ofTrusted("host");
     public static final HttpHeaderField RANGE = ofTrusted("range");
+    public static final HttpHeaderField RETRY_AFTER = ofTrusted("retry-after");
+    public static final HttpHeaderField SET_COOKIE = ofTrusted("set-cookie");
     public static final HttpHeaderField TRANSFER_ENCODING = ofTrusted("transfer-encoding");
+    public static final HttpHeaderField VARY = ofTrusted("vary");
 
     private static HttpHeaderField ofTrusted(String value) {
         return new HttpHeaderField(value.getBytes(StandardCharsets.ISO_8859_1), value);
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo;
+
+import org.glavo.plumo.internal.HttpLaneImpl;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A named lane with its own concurrency limit and executor.
+ * <p>
+ * After the request header has been parsed, the {@linkplain Selector selector} picks a lane for the request,
+ * and the handler is only invoked once the lane has a free slot.
+ * Waiting requests do not hold a session thread.
+ * Requests that are not assigned to any lane are handled directly on the session thread.
+ *
+ * @see Plumo.Builder#lane(HttpLane)
+ * @see Plumo.Builder#laneSelector(Selector)
+ */
+public interface HttpLane {
+
+    static Builder newBuilder(String name) {
+        return new HttpLaneImpl.BuilderImpl(name);
+    }
+
+    String getName();
+
+    int getMaxConcurrentRequests();
+
+    int getMaxQueuedRequests();
+
+    /**
+     * Returns the maximum rate at which responses of this lane are sent together, in bytes per second,
+     * or {@link Long#MAX_VALUE} if unlimited.
+     */
+    long getMaxBandwidth();
+
+    // Metrics
+
+    /**
+     * Returns the number of requests currently being handled in this lane.
+     */
+    int getActiveRequestCount();
+
+    /**
+     * Returns the number of requests waiting for a free slot in this lane.
+     */
+    int getQueuedRequestCount();
+
+    /**
+     * Returns the number of requests that have been handled in this lane.
+     */
+    long getCompletedRequestCount();
+
+    /**
+     * Returns the number of requests rejected with {@code 503 Service Unavailable} because the lane was full.
+     */
+    long getRejectedRequestCount();
+
+    interface Builder {
+        /**
+         * Sets the maximum number of requests handled concurrently in this lane. Unlimited by default.
+         */
+        Builder maxConcurrentRequests(int maxConcurrentRequests);
+
+        /**
+         * Sets the maximum number of requests waiting for a free slot.
+         * Further requests are rejected with {@code 503 Service Unavailable}. Unlimited by default.
+         */
+        Builder maxQueuedRequests(int maxQueuedRequests);
+
+        /**
+         * Limits the rate at which responses of this lane are sent together, in bytes per second. Unlimited by default.
+         */
+        Builder maxBandwidth(long bytesPerSecond);
+
+        /**
+         * Sets the executor on which handlers of this lane are invoked.
+         * By default, handlers are invoked on the session thread if the lane has a free slot,
+         * and on the server executor once a waiting request gets a slot.
+         */
+        Builder executor(Executor executor);
+
+        HttpLane build();
+    }
+
+    /**
+     * Classifies requests into lanes.
+     */
+    @FunctionalInterface
+    interface Selector {
+        /**
+         * Returns the name of the lane for the request, or {@code null} if the request does not belong to any lane.
+         */
+        String select(HttpRequest request);
+    }
+}
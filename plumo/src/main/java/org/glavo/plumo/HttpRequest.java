@@ -15,9 +15,13 @@
  */
 package org.glavo.plumo;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketAddress;
 import java.net.URI;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -81,6 +85,84 @@ public interface HttpRequest {
 
     long getBodySize();
 
+    /**
+     * Returns the {@code Content-Encoding} header of the request as it was received, or {@code null} if there is none.
+     * <p>
+     * When the {@code org.glavo.plumo.decompressRequestBody} system property is {@code true},
+     * gzip and deflate request bodies are decoded as they are read.
+     * The header of such a request is then removed from {@link #getHeaders()}, as it no longer describes the body,
+     * and is only available here.
+     */
+    String getOriginalContentEncoding();
+
+    /**
+     * Returns the context of this request, which tracks its deadline and cancellation.
+     */
+    Context getContext();
+
+    /**
+     * Sends an informational response ahead of the final response, such as {@link HttpResponse.Status#EARLY_HINTS}.
+     * The interim response is written and flushed immediately, so the handler can send it while still computing the final response.
+     * <p>
+     * Interim responses are not sent to HTTP/1.0 clients, which do not understand them.
+     *
+     * @return {@code true} if the interim response has been sent
+     * @throws IllegalArgumentException if the status is not informational, or is {@link HttpResponse.Status#SWITCH_PROTOCOL},
+     *                                  or if a header value contains CR, LF or NUL
+     * @throws IllegalStateException    if the final response has been started
+     */
+    boolean sendInterimResponse(HttpResponse.Status status, Map<HttpHeaderField, List<String>> headers) throws IOException;
+
+    /**
+     * Sends a {@code 103 Early Hints} response with a {@code Link} header for each of the links,
+     * e.g. {@code </style.css>; rel=preload; as=style}, so that the client can start fetching them before the final response.
+     *
+     * @see #sendInterimResponse(HttpResponse.Status, Map)
+     */
+    default boolean sendEarlyHints(String... links) throws IOException {
+        return sendInterimResponse(HttpResponse.Status.EARLY_HINTS, Collections.singletonMap(HttpHeaderField.LINK, Arrays.asList(links)));
+    }
+
+    /**
+     * The deadline and cancellation state of a request.
+     * <p>
+     * A request is cancelled when its deadline expires ({@link Plumo.Builder#requestTimeout(long)}),
+     * when the client closes the connection ({@link Plumo.Builder#detectClientDisconnect(boolean)}),
+     * or when the server is stopped forcibly.
+     * On cancellation, the thread running the handler is interrupted.
+     * Note that interrupting a thread blocked on connection I/O closes the connection.
+     */
+    interface Context {
+        /**
+         * Returns the deadline of the request, or {@code null} if it has no deadline.
+         */
+        Instant getDeadline();
+
+        boolean isCancelled();
+
+        /**
+         * Returns why the request was cancelled, or {@code null} if it has not been cancelled.
+         */
+        CancellationReason getCancellationReason();
+
+        /**
+         * Throws {@link java.util.concurrent.CancellationException} if the request has been cancelled.
+         */
+        void checkCancelled();
+
+        /**
+         * Registers a callback invoked when the request is cancelled.
+         * If the request has already been cancelled, the callback is invoked immediately.
+         */
+        void onCancel(Runnable callback);
+    }
+
+    enum CancellationReason {
+        TIMEOUT,
+        CLIENT_DISCONNECTED,
+        SERVER_STOPPED
+    }
+
     /**
      * HTTP Request methods.
      */
@@ -15,6 +15,7 @@
  */
 package org.glavo.plumo;
 
+import org.glavo.plumo.internal.BodySegment;
 import org.glavo.plumo.internal.HttpResponseImpl;
 import org.jetbrains.annotations.ApiStatus;
 
@@ -22,6 +23,7 @@ import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
 
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
@@ -125,6 +127,90 @@ public /*sealed*/ interface HttpResponse {
         return withBody(file.toPath());
     }
 
+    /**
+     * Sets a body that is generated while the response is being sent.
+     * The body is sent with chunked transfer encoding.
+     */
+    default HttpResponse withBody(BodyWriter writer) {
+        return withBody(writer, -1L);
+    }
+
+    /**
+     * Sets a body that is generated while the response is being sent.
+     * If {@code contentLength} is not {@code -1}, the writer must write exactly that many bytes.
+     */
+    HttpResponse withBody(BodyWriter writer, long contentLength);
+
+    /**
+     * Sets a body made of several segments, which are sent one after another without being concatenated.
+     * The content length is computed before sending.
+     */
+    default HttpResponse withBody(Segment... segments) {
+        return withBody(Arrays.asList(segments));
+    }
+
+    /**
+     * Sets a body made of several segments, which are sent one after another without being concatenated.
+     * The content length is computed before sending.
+     */
+    HttpResponse withBody(List<? extends Segment> segments);
+
+    /**
+     * A part of a composite body.
+     *
+     * @see #withBody(Segment...)
+     */
+    /*sealed*/ interface Segment {
+        static Segment of(byte[] data) {
+            return of(ByteBuffer.wrap(data));
+        }
+
+        static Segment of(byte[] data, int offset, int length) {
+            return of(ByteBuffer.wrap(data, offset, length));
+        }
+
+        /**
+         * Returns a segment holding the remaining bytes of {@code data}.
+         * The position of {@code data} is not changed when the body is sent.
+         */
+        static Segment of(ByteBuffer data) {
+            return new BodySegment.Memory(data);
+        }
+
+        static Segment ofFile(Path file) {
+            return new BodySegment.FileRegion(file, 0L, -1L);
+        }
+
+        /**
+         * Returns a segment holding {@code length} bytes of {@code file} starting at {@code offset}.
+         * If {@code length} is {@code -1}, the segment extends to the end of the file.
+         */
+        static Segment ofFile(Path file, long offset, long length) {
+            if (offset < 0) {
+                throw new IllegalArgumentException("offset must not be negative");
+            }
+            if (length < -1L) {
+                throw new IllegalArgumentException();
+            }
+            return new BodySegment.FileRegion(file, offset, length);
+        }
+    }
+
+    /**
+     * Writes the response body directly to the connection.
+     */
+    @FunctionalInterface
+    interface BodyWriter {
+        /**
+         * Writes the body to {@code out}.
+         * <p>
+         * The stream also implements {@link java.nio.channels.WritableByteChannel}.
+         * Writes go straight to the connection, so they block while the client is slow to read.
+         * Closing the stream ends the body but leaves the connection open.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
     // Getters
 
     Status getStatus();
@@ -134,7 +220,9 @@ public /*sealed*/ interface HttpResponse {
 
         private static final Status[] LOOKUP = new Status[500];
 
+        public static final Status CONTINUE = register(100, "Continue");
         public static final Status SWITCH_PROTOCOL = register(101, "Switching Protocols");
+        public static final Status EARLY_HINTS = register(103, "Early Hints");
 
         public static final Status OK = register(200, "OK");
         public static final Status CREATED = register(201, "Created");
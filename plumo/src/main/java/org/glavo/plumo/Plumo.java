@@ -22,6 +22,8 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
@@ -46,8 +48,85 @@ public interface Plumo {
 
         Builder handler(HttpHandler handler);
 
+        /**
+         * Sets the executor used to run HTTP sessions. The executor will not be shut down when the server stops.
+         *
+         * @see WorkerExecutor
+         */
+        default Builder executor(Executor executor) {
+            return executor(executor, false);
+        }
+
+        /**
+         * Sets the executor used to run HTTP sessions.
+         *
+         * @param shutdownOnStop whether the executor should be shut down when the server stops
+         * @see WorkerExecutor
+         */
+        Builder executor(Executor executor, boolean shutdownOnStop);
+
+        /**
+         * Registers a lane. Requests are assigned to lanes by the {@linkplain #laneSelector(HttpLane.Selector) lane selector}.
+         */
+        Builder lane(HttpLane lane);
+
+        Builder laneSelector(HttpLane.Selector selector);
+
+        /**
+         * Sets the limiter applied to all requests. Requests over the limit are answered with
+         * {@code 429 Too Many Requests} before the handler is invoked. Unlimited by default.
+         */
+        Builder rateLimiter(RateLimiter limiter);
+
         Builder socketTimeout(long timeout);
 
+        /**
+         * Sets the time budget of each request in milliseconds, zero means no limit.
+         * Requests that exceed it are cancelled, see {@link HttpRequest.Context}.
+         */
+        Builder requestTimeout(long timeout);
+
+        /**
+         * Sets whether to watch the connection for disconnection while a request without body is being handled.
+         * Requests whose client has gone away are cancelled, see {@link HttpRequest.Context}.
+         * <p>
+         * Watching the connection occupies an additional thread of the executor while the handler runs.
+         * If the connection is kept alive, that thread goes on to wait for the next request once the handler has completed,
+         * so no additional thread is held between requests.
+         */
+        Builder detectClientDisconnect(boolean detect);
+
+        /**
+         * Sets the bounds of the output buffer of each connection, the default is 1 KiB to 64 KiB.
+         * <p>
+         * Each connection starts with the minimum size, and its buffer grows when it repeatedly sends
+         * large responses and shrinks again when it sends small ones or stays idle.
+         * Buffers are held only while a response is being sent and are shared through a global pool,
+         * whose capacity is set by the {@code org.glavo.plumo.bufferPoolCapacity} system property.
+         * The pool hands out buffers of 1 KiB to 1 MiB in steps of a factor of 4, other sizes are rounded up to the next step.
+         */
+        Builder outputBufferSize(int minSize, int maxSize);
+
+        /**
+         * Limits the rate at which the server sends data over all connections together, in bytes per second.
+         * Unlimited by default.
+         * <p>
+         * The limit applies to every response, use {@link HttpLane.Builder#maxBandwidth(long)}
+         * to limit bulk transfers without slowing down other responses.
+         */
+        Builder maxBandwidth(long bytesPerSecond);
+
+        /**
+         * Limits the rate at which each connection sends data, in bytes per second. Unlimited by default.
+         */
+        Builder maxConnectionBandwidth(long bytesPerSecond);
+
+        /**
+         * Sets the policy that decides how response bodies are compressed,
+         * the default is {@link CompressionPolicy#getDefault()}. Use {@link CompressionPolicy#none()} to disable compression.
+         */
+        Builder compressionPolicy(CompressionPolicy policy);
+
         Builder sslContext(SSLContext sslContext);
 
         Builder enabledSSLProtocols(String[] protocols);
@@ -105,6 +184,30 @@ public interface Plumo {
 
     void stopAndWait();
 
+    /**
+     * Stops accepting new connections and closes idle connections immediately.
+     * Requests that are being processed may complete within the given timeout,
+     * their responses are sent with {@code Connection: close}.
+     * After the timeout, the remaining connections are closed forcibly.
+     * <p>
+     * This method does not wait for the server to terminate, use {@link #awaitTermination()} for that.
+     */
+    void stopGracefully(long timeout, TimeUnit unit);
+
+    default void stopGracefully(Duration timeout) {
+        stopGracefully(timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the number of in-flight requests that completed during a graceful shutdown.
+     */
+    long getDrainedRequestCount();
+
+    /**
+     * Returns the number of in-flight requests that were aborted because their connection was closed forcibly.
+     */
+    long getKilledRequestCount();
+
     void awaitTermination() throws InterruptedException;
 
     boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException;
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo;
+
+import org.glavo.plumo.internal.RateLimiterImpl;
+
+/**
+ * Limits the rate of requests from each client.
+ * <p>
+ * Each client has a budget of {@linkplain Builder#burst(int) burst} requests, which is refilled at the configured rate.
+ * Clients are identified by their address, or by a {@linkplain Builder#keyHeader(HttpHeaderField) header}
+ * set by a trusted reverse proxy. The state of a client is dropped as soon as its budget is full again.
+ *
+ * @see Plumo.Builder#rateLimiter(RateLimiter)
+ */
+public interface RateLimiter {
+
+    /**
+     * @param requestsPerSecond the rate at which the budget of each client is refilled
+     */
+    static Builder newBuilder(double requestsPerSecond) {
+        return new RateLimiterImpl.BuilderImpl(requestsPerSecond);
+    }
+
+    double getRequestsPerSecond();
+
+    int getBurst();
+
+    /**
+     * Takes one request from the budget of the client of the request.
+     *
+     * @return {@code true} if the request is within the limit
+     */
+    boolean tryAcquire(HttpRequest request);
+
+    // Metrics
+
+    /**
+     * Returns the number of clients being tracked.
+     */
+    int getTrackedClientCount();
+
+    /**
+     * Returns the number of requests that exceeded the limit.
+     */
+    long getRejectedRequestCount();
+
+    interface Builder {
+        /**
+         * Sets the number of requests a client can send at once. The default is the number of requests per second, at least one.
+         */
+        Builder burst(int burst);
+
+        /**
+         * Identifies clients by the last address in the given header, such as {@code X-Forwarded-For}.
+         * Requests without the header are identified by their remote address.
+         * <p>
+         * Only use this behind a reverse proxy that sets the header, otherwise clients can choose their own identity.
+         */
+        Builder keyHeader(HttpHeaderField field);
+
+        default Builder keyHeader(String field) {
+            return keyHeader(HttpHeaderField.of(field));
+        }
+
+        RateLimiter build();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo;
+
+import org.glavo.plumo.internal.SingleFlightHandlerImpl;
+
+/**
+ * A handler that coalesces concurrent identical {@code GET} and {@code HEAD} requests.
+ * <p>
+ * Requests are identical if they have the same method, {@code Host} header, URI and values of the {@linkplain Builder#varyHeaders vary headers}.
+ * While the handler is running for a request, identical requests wait for it and share its response,
+ * which is {@linkplain HttpResponse#freeze() frozen}. If the response cannot be sent more than once,
+ * for example because its body is an {@link java.io.InputStream}, or is meant for a single client
+ * because it has a {@code Set-Cookie} header or a {@code private} or {@code no-store} cache directive,
+ * the waiting requests are handled independently.
+ * Exceptions thrown by the handler are shared as well, unless the request has been cancelled.
+ * <p>
+ * Requests with a body, and requests with {@code Authorization} or {@code Cookie} headers that are not vary headers,
+ * are always handled independently.
+ */
+public interface SingleFlightHandler extends HttpHandler {
+
+    static Builder newBuilder(HttpHandler handler) {
+        return new SingleFlightHandlerImpl.BuilderImpl(handler);
+    }
+
+    // Metrics
+
+    /**
+     * Returns the number of requests being handled that other requests may join.
+     */
+    int getInFlightRequestCount();
+
+    /**
+     * Returns the number of requests that have been answered with the response of an identical request.
+     */
+    long getCoalescedRequestCount();
+
+    interface Builder {
+        /**
+         * Sets the request headers whose values must also match for requests to be coalesced, such as {@code Accept-Language}.
+         */
+        Builder varyHeaders(HttpHeaderField... fields);
+
+        /**
+         * Sets the maximum time in milliseconds a request waits for an identical request,
+         * after which it is handled independently. Zero means no limit, which is the default.
+         */
+        Builder timeout(long timeout);
+
+        SingleFlightHandler build();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo;
+
+import org.glavo.plumo.internal.WorkerExecutorImpl;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor that runs HTTP sessions, with a built-in scheduling strategy and metrics.
+ * <p>
+ * Each accepted connection occupies one task for its whole lifetime (including keep-alive),
+ * so strategies with a fixed number of platform threads also bound the number of connections served concurrently.
+ *
+ * @see Plumo.Builder#executor(Executor, boolean)
+ */
+public interface WorkerExecutor extends Executor {
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     *
+     * @throws UnsupportedOperationException if virtual threads are not available
+     */
+    static WorkerExecutor newVirtualThreadExecutor() {
+        return WorkerExecutorImpl.newVirtualThreadExecutor(0);
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task,
+     * mounted on a dedicated carrier pool with the given parallelism.
+     * <p>
+     * Custom carrier pools require {@code --add-opens java.base/java.lang=ALL-UNNAMED};
+     * otherwise the default virtual thread scheduler is used.
+     *
+     * @throws UnsupportedOperationException if virtual threads are not available
+     */
+    static WorkerExecutor newVirtualThreadExecutor(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        return WorkerExecutorImpl.newVirtualThreadExecutor(parallelism);
+    }
+
+    /**
+     * Creates an executor that runs each task on a cached platform thread, creating new threads as needed.
+     */
+    static WorkerExecutor newCachedThreadPool() {
+        return WorkerExecutorImpl.newCachedThreadPool();
+    }
+
+    /**
+     * Creates an executor backed by at most {@code maxThreads} platform threads.
+     * Up to {@code maxQueuedTasks} tasks wait for a free thread, further tasks are rejected
+     * and the corresponding connections are closed.
+     */
+    static WorkerExecutor newBoundedThreadPool(int maxThreads, int maxQueuedTasks) {
+        if (maxThreads <= 0) {
+            throw new IllegalArgumentException("maxThreads must be positive");
+        }
+        if (maxQueuedTasks < 0) {
+            throw new IllegalArgumentException("maxQueuedTasks must not be negative");
+        }
+        return WorkerExecutorImpl.newBoundedThreadPool(maxThreads, maxQueuedTasks);
+    }
+
+    /**
+     * Creates a work-stealing executor whose parallelism is the number of available processors.
+     */
+    static WorkerExecutor newWorkStealingPool() {
+        return newWorkStealingPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a work-stealing executor with the given parallelism.
+     */
+    static WorkerExecutor newWorkStealingPool(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        return WorkerExecutorImpl.newWorkStealingPool(parallelism);
+    }
+
+    // Metrics
+
+    /**
+     * Returns the name of the scheduling strategy.
+     */
+    String getStrategy();
+
+    /**
+     * Returns the number of tasks accepted by this executor.
+     */
+    long getSubmittedTaskCount();
+
+    /**
+     * Returns the number of tasks rejected by this executor.
+     */
+    long getRejectedTaskCount();
+
+    /**
+     * Returns the number of tasks that have completed.
+     */
+    long getCompletedTaskCount();
+
+    /**
+     * Returns the number of tasks that are currently running.
+     */
+    int getActiveTaskCount();
+
+    /**
+     * Returns an estimate of the number of tasks waiting for a thread.
+     */
+    int getQueuedTaskCount();
+
+    // Lifecycle
+
+    void shutdown();
+
+    /**
+     * Shuts down the executor, discards the tasks that have not started and interrupts the running tasks.
+     */
+    void shutdownNow();
+
+    boolean isShutdown();
+
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException;
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.glavo.plumo.HttpResponse;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Objects;
+
+public abstract class BodySegment implements HttpResponse.Segment {
+
+    private BodySegment() {
+    }
+
+    public static final class Memory extends BodySegment {
+        final ByteBuffer data;
+
+        public Memory(ByteBuffer data) {
+            this.data = data.duplicate();
+        }
+
+        @Override
+        public String toString() {
+            return "Segment[length=" + data.remaining() + "]";
+        }
+    }
+
+    public static final class FileRegion extends BodySegment {
+        final Path file;
+        final long offset;
+        final long length; // -1 means to the end of the file
+
+        public FileRegion(Path file, long offset, long length) {
+            this.file = Objects.requireNonNull(file);
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public String toString() {
+            return "Segment[file=" + file + ", offset=" + offset + ", length=" + (length < 0 ? "unknown" : length) + "]";
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import java.util.Arrays;
+
+/**
+ * The byte ranges of a {@code Range} header, resolved against the length of the representation (RFC 9110, section 14).
+ */
+final class ByteRanges {
+
+    /**
+     * Requests with more ranges are served in full, so that many small ranges cannot amplify the response with part headers.
+     */
+    static final int MAX_RANGES = 16;
+
+    static final ByteRanges UNSATISFIABLE = new ByteRanges(new long[0], new long[0], 0);
+
+    private final long[] starts;
+    private final long[] ends; // inclusive
+    private final int count;
+
+    private ByteRanges(long[] starts, long[] ends, int count) {
+        this.starts = starts;
+        this.ends = ends;
+        this.count = count;
+    }
+
+    /**
+     * Parses the header.
+     *
+     * @return {@code null} if the header should be ignored, {@link #UNSATISFIABLE} if no range overlaps the representation
+     */
+    static ByteRanges parse(String header, long length) {
+        int equals = header.indexOf('=');
+        if (equals < 0 || !header.substring(0, equals).trim().equalsIgnoreCase("bytes")) {
+            return null;
+        }
+
+        long[] starts = new long[4];
+        long[] ends = new long[4];
+        int count = 0;
+        int specs = 0;
+
+        int offset = equals + 1;
+        while (offset <= header.length()) {
+            int comma = header.indexOf(',', offset);
+            if (comma < 0) {
+                comma = header.length();
+            }
+            String spec = header.substring(offset, comma).trim();
+            offset = comma + 1;
+
+            if (spec.isEmpty()) {
+                continue;
+            }
+            if (++specs > MAX_RANGES) {
+                return null;
+            }
+
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+
+            long first = parseNumber(spec, 0, dash);
+            long last = parseNumber(spec, dash + 1, spec.length());
+
+            long start;
+            long end;
+            if (dash == 0) {
+                // Suffix range, the last N bytes
+                if (last < 0) {
+                    return null;
+                }
+                if (last == 0 || length == 0) {
+                    continue;
+                }
+                start = Math.max(0, length - last);
+                end = length - 1;
+            } else {
+                if (first < 0) {
+                    return null;
+                }
+                if (dash == spec.length() - 1) {
+                    end = length - 1;
+                } else if (last < 0 || last < first) {
+                    return null;
+                } else {
+                    end = Math.min(last, length - 1);
+                }
+                if (first >= length) {
+                    continue;
+                }
+                start = first;
+            }
+
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+
+        if (specs == 0) {
+            return null;
+        }
+        if (count == 0) {
+            return UNSATISFIABLE;
+        }
+        return new ByteRanges(starts, ends, coalesce(starts, ends, count));
+    }
+
+    /**
+     * Sorts the ranges and merges overlapping or adjacent ones (RFC 9110, section 14.2),
+     * so that the ranges served never add up to more than the representation.
+     *
+     * @return the number of remaining ranges
+     */
+    private static int coalesce(long[] starts, long[] ends, int count) {
+        // Insertion sort, there are at most MAX_RANGES ranges
+        for (int i = 1; i < count; i++) {
+            long start = starts[i];
+            long end = ends[i];
+            int j = i - 1;
+            while (j >= 0 && starts[j] > start) {
+                starts[j + 1] = starts[j];
+                ends[j + 1] = ends[j];
+                j--;
+            }
+            starts[j + 1] = start;
+            ends[j + 1] = end;
+        }
+
+        int merged = 0;
+        for (int i = 1; i < count; i++) {
+            if (starts[i] <= ends[merged] + 1) {
+                ends[merged] = Math.max(ends[merged], ends[i]);
+            } else {
+                merged++;
+                starts[merged] = starts[i];
+                ends[merged] = ends[i];
+            }
+        }
+        return merged + 1;
+    }
+
+    /**
+     * Parses a non-negative decimal number, returns -1 if it is empty, malformed or too large.
+     */
+    private static long parseNumber(String str, int from, int to) {
+        if (from == to || to - from > 18) {
+            return -1;
+        }
+
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            char ch = str.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+            value = value * 10 + (ch - '0');
+        }
+        return value;
+    }
+
+    int count() {
+        return count;
+    }
+
+    long start(int index) {
+        return starts[index];
+    }
+
+    long length(int index) {
+        return ends[index] - starts[index] + 1;
+    }
+
+    /**
+     * Returns the value of the {@code Content-Range} header for the range.
+     */
+    String contentRange(int index, long completeLength) {
+        return "bytes " + starts[index] + "-" + ends[index] + "/" + completeLength;
+    }
+}
@@ -0,0 +1,745 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.glavo.plumo.CachingHandler;
+import org.glavo.plumo.HttpHandler;
+import org.glavo.plumo.HttpHeaderField;
+import org.glavo.plumo.HttpRequest;
+import org.glavo.plumo.HttpResponse;
+import org.glavo.plumo.HttpSession;
+import org.glavo.plumo.internal.util.FrequencySketch;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The cache is a W-TinyLFU cache: new entries enter a small LRU window, and entries leaving the window
+ * are admitted to the main segmented LRU only if the frequency sketch estimates that they are requested
+ * more often than the entries they would evict.
+ * <p>
+ * Lookups only read the map and record the access into a lossy buffer.
+ * The buffers are drained into the eviction policy under a lock, by the writers or by the reader that fills them.
+ * <p>
+ * The request headers that the responses of a URI vary by are kept as long as one of its responses is stored,
+ * so the table of them never outgrows the cache.
+ */
+public final class CachingHandlerImpl implements CachingHandler {
+
+    private static final long DEFAULT_MAXIMUM_WEIGHT = 64L << 20;
+
+    // Estimated size of a node, a frozen response and its headers
+    private static final int ENTRY_OVERHEAD = 512;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final int READ_BUFFER_COUNT = Math.min(16, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1);
+    private static final int READ_BUFFER_SIZE = 64;
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+
+    private final HttpHandler handler;
+    private final long maximumWeight;
+
+    private final ConcurrentHashMap<String, Node> data = new ConcurrentHashMap<>();
+
+    // The request headers that responses vary by, keyed by the host and URI
+    private final ConcurrentHashMap<String, Variants> varies = new ConcurrentHashMap<>();
+
+    private final ReadBuffer[] readBuffers = new ReadBuffer[READ_BUFFER_COUNT];
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    // Guarded by evictionLock
+    private final FrequencySketch sketch = new FrequencySketch(64);
+    private final AccessOrderDeque window = new AccessOrderDeque();
+    private final AccessOrderDeque probation = new AccessOrderDeque();
+    private final AccessOrderDeque protectedDeque = new AccessOrderDeque();
+    private final long windowMaximum;
+    private final long protectedMaximum;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private CachingHandlerImpl(HttpHandler handler, long maximumWeight) {
+        this.handler = handler;
+        this.maximumWeight = maximumWeight;
+        this.windowMaximum = Math.max(1, maximumWeight / 100);
+        this.protectedMaximum = (maximumWeight - windowMaximum) / 5 * 4;
+
+        for (int i = 0; i < readBuffers.length; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+    }
+
+    // Requests
+
+    @Override
+    public HttpResponse handle(HttpRequest request) throws Exception {
+        HttpRequest.Method method = request.getMethod();
+        if ((method != HttpRequest.Method.GET && method != HttpRequest.Method.HEAD)
+            || request.getBodySize() != 0
+            || request.containsHeader(HttpHeaderField.AUTHORIZATION)) {
+            return handler.handle(request);
+        }
+
+        List<String> cacheControl = request.getHeaders(HttpHeaderField.CACHE_CONTROL);
+        if (findDirective(cacheControl, "no-store") != null) {
+            return handler.handle(request);
+        }
+
+        String primaryKey = getPrimaryKey(request);
+        if (findDirective(cacheControl, "no-cache") == null && !"0".equals(findDirective(cacheControl, "max-age"))) {
+            HttpResponse response = lookup(request, primaryKey);
+            if (response != null) {
+                hits.increment();
+                return response;
+            }
+        }
+
+        misses.increment();
+        HttpResponse response = handler.handle(request);
+        if (method == HttpRequest.Method.GET && response != null) {
+            response = store(request, primaryKey, (HttpResponseImpl) response);
+        }
+        return response;
+    }
+
+    private static String getPrimaryKey(HttpRequest request) {
+        String host = request.getHeader(HttpHeaderField.HOST);
+        String rawUri = request.getRawURI();
+        return host != null ? host + ' ' + rawUri : ' ' + rawUri;
+    }
+
+    private static String getKey(HttpRequest request, String primaryKey, HttpHeaderField[] vary) {
+        if (vary.length == 0) {
+            return primaryKey;
+        }
+
+        StringBuilder builder = new StringBuilder(primaryKey.length() + 64);
+        builder.append(primaryKey);
+        for (HttpHeaderField field : vary) {
+            // Header values never contain line breaks
+            builder.append('\n');
+            List<String> values = request.getHeaders(field);
+            if (values != null) {
+                for (String value : values) {
+                    builder.append(value).append('\r');
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns whether a response varying by the given headers can be shared with the request.
+     * Responses to requests with cookies may be personalized, so they are shared only if they vary by the cookies.
+     */
+    private static boolean isShareable(HttpRequest request, HttpHeaderField[] vary) {
+        if (!request.containsHeader(HttpHeaderField.COOKIE)) {
+            return true;
+        }
+
+        for (HttpHeaderField field : vary) {
+            if (field.equals(HttpHeaderField.COOKIE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private HttpResponse lookup(HttpRequest request, String primaryKey) {
+        Variants variants = varies.get(primaryKey);
+        if (variants == null || !isShareable(request, variants.vary)) {
+            return null;
+        }
+
+        Node node = data.get(getKey(request, primaryKey, variants.vary));
+        if (node == null) {
+            return null;
+        }
+
+        if (System.nanoTime() - node.expiresAt >= 0) {
+            evictionLock.lock();
+            try {
+                if (!node.removed) {
+                    removeNode(node);
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+            return null;
+        }
+
+        ReadBuffer buffer = readBuffers[(int) Thread.currentThread().getId() & (readBuffers.length - 1)];
+        if (buffer.offer(node) && evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+        return node.response;
+    }
+
+    private HttpResponse store(HttpRequest request, String primaryKey, HttpResponseImpl response) {
+        long maxAge = getMaxAge(response);
+        if (maxAge <= 0 || !isCacheable(response)) {
+            return response;
+        }
+
+        HttpHeaderField[] vary = getVary(response);
+        if (vary == null || !isShareable(request, vary)) {
+            return response;
+        }
+
+        String key = getKey(request, primaryKey, vary);
+        long weight = getBodyWeight(response.body) + key.length() * 2L + ENTRY_OVERHEAD;
+        if (weight > maximumWeight) {
+            return response;
+        }
+
+        response = (HttpResponseImpl) response.freeze();
+        Node node = new Node(key, response, (int) Math.min(weight, Integer.MAX_VALUE),
+                System.nanoTime() + Math.min(maxAge, Long.MAX_VALUE / 4_000_000_000L) * 1_000_000_000L);
+
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+
+            Variants variants = varies.get(primaryKey);
+            if (variants == null || !Arrays.equals(variants.vary, vary)) {
+                if (variants != null) {
+                    // The responses stored under the old vary headers can no longer be found
+                    while (!variants.nodes.isEmpty()) {
+                        removeNode(variants.nodes.get(variants.nodes.size() - 1));
+                    }
+                }
+                variants = new Variants(primaryKey, vary);
+                varies.put(primaryKey, variants);
+            }
+            node.variants = variants;
+            variants.nodes.add(node);
+
+            Node old = data.put(key, node);
+            if (old != null && !old.removed) {
+                removeNode(old);
+            }
+
+            sketch.ensureCapacity(data.size());
+            sketch.increment(key.hashCode());
+            node.queue = WINDOW;
+            window.addLast(node);
+            evictEntries();
+        } finally {
+            evictionLock.unlock();
+        }
+        return response;
+    }
+
+    // Cache-Control
+
+    /**
+     * Returns the value of the directive, an empty string if the directive has no value, or {@code null} if it is absent.
+     */
+    static String findDirective(List<String> values, String name) {
+        if (values == null) {
+            return null;
+        }
+
+        for (String value : values) {
+            int start = 0;
+            int length = value.length();
+            while (start < length) {
+                int end = value.indexOf(',', start);
+                if (end < 0) {
+                    end = length;
+                }
+
+                int nameEnd = value.indexOf('=', start);
+                if (nameEnd < 0 || nameEnd > end) {
+                    nameEnd = end;
+                }
+
+                if (value.substring(start, nameEnd).trim().equalsIgnoreCase(name)) {
+                    if (nameEnd == end) {
+                        return "";
+                    }
+
+                    String result = value.substring(nameEnd + 1, end).trim();
+                    if (result.length() >= 2 && result.charAt(0) == '"' && result.charAt(result.length() - 1) == '"') {
+                        result = result.substring(1, result.length() - 1);
+                    }
+                    return result;
+                }
+
+                start = end + 1;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of seconds the response can be stored, or -1 if it must not be stored.
+     */
+    static long getMaxAge(HttpResponseImpl response) {
+        List<String> cacheControl = response.headers.get(HttpHeaderField.CACHE_CONTROL);
+        if (cacheControl == null
+            || findDirective(cacheControl, "no-store") != null
+            || findDirective(cacheControl, "no-cache") != null
+            || findDirective(cacheControl, "private") != null) {
+            return -1;
+        }
+
+        String maxAge = findDirective(cacheControl, "s-maxage");
+        if (maxAge == null) {
+            maxAge = findDirective(cacheControl, "max-age");
+            if (maxAge == null) {
+                return -1;
+            }
+        }
+
+        try {
+            return Long.parseLong(maxAge);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isCacheable(HttpResponseImpl response) {
+        switch (response.status.getStatusCode()) {
+            case 200:
+            case 203:
+            case 204:
+            case 300:
+            case 301:
+            case 308:
+            case 404:
+            case 405:
+            case 410:
+            case 414:
+            case 501:
+                break;
+            default:
+                return false;
+        }
+
+        Object body = response.body;
+        return (body == null || body instanceof String || body instanceof ByteBuffer) && !isPersonalized(response);
+    }
+
+    /**
+     * Returns whether the response is meant for a single client, so it must not be given to other requests.
+     */
+    static boolean isPersonalized(HttpResponseImpl response) {
+        if (response.headers.containsKey(HttpHeaderField.SET_COOKIE)) {
+            return true;
+        }
+
+        List<String> cacheControl = response.headers.get(HttpHeaderField.CACHE_CONTROL);
+        return findDirective(cacheControl, "private") != null || findDirective(cacheControl, "no-store") != null;
+    }
+
+    /**
+     * Returns the request headers named by the {@code Vary} header of the response, or {@code null} if it varies by anything.
+     */
+    static HttpHeaderField[] getVary(HttpResponseImpl response) {
+        List<String> values = response.headers.get(HttpHeaderField.VARY);
+        if (values == null) {
+            return new HttpHeaderField[0];
+        }
+
+        ArrayList<HttpHeaderField> fields = new ArrayList<>();
+        for (String value : values) {
+            for (String name : value.split(",")) {
+                name = name.trim();
+                if (name.isEmpty()) {
+                    continue;
+                }
+                if (name.equals("*")) {
+                    return null;
+                }
+
+                HttpHeaderField field;
+                try {
+                    field = HttpHeaderField.of(name);
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+                if (!fields.contains(field)) {
+                    fields.add(field);
+                }
+            }
+        }
+        return fields.toArray(new HttpHeaderField[0]);
+    }
+
+    private static long getBodyWeight(Object body) {
+        if (body instanceof String) {
+            return ((String) body).length() * 2L;
+        } else if (body instanceof ByteBuffer) {
+            return ((ByteBuffer) body).remaining();
+        } else {
+            return 0L;
+        }
+    }
+
+    // Eviction policy, guarded by evictionLock
+
+    private void drainReadBuffers() {
+        for (ReadBuffer buffer : readBuffers) {
+            buffer.drain(this);
+        }
+    }
+
+    private void onAccess(Node node) {
+        if (node.removed) {
+            return;
+        }
+
+        sketch.increment(node.key.hashCode());
+        if (node.queue == WINDOW) {
+            window.moveToLast(node);
+        } else if (node.queue == PROBATION) {
+            probation.remove(node);
+            node.queue = PROTECTED;
+            protectedDeque.addLast(node);
+
+            // Demote the least recently used protected entries
+            while (protectedDeque.weight > protectedMaximum) {
+                Node demoted = protectedDeque.first;
+                if (demoted == node) {
+                    break;
+                }
+                protectedDeque.remove(demoted);
+                demoted.queue = PROBATION;
+                probation.addLast(demoted);
+            }
+        } else {
+            protectedDeque.moveToLast(node);
+        }
+    }
+
+    private long weightedSize() {
+        return window.weight + probation.weight + protectedDeque.weight;
+    }
+
+    private void evictEntries() {
+        while (window.weight > windowMaximum) {
+            Node candidate = window.first;
+            window.remove(candidate);
+            candidate.queue = -1;
+
+            while (weightedSize() + candidate.weight > maximumWeight) {
+                Node victim = probation.first != null ? probation.first : protectedDeque.first;
+                if (victim == null) {
+                    break;
+                }
+
+                if (admit(candidate, victim)) {
+                    evict(victim);
+                } else {
+                    evict(candidate);
+                    candidate = null;
+                    break;
+                }
+            }
+
+            if (candidate != null) {
+                candidate.queue = PROBATION;
+                probation.addLast(candidate);
+            }
+        }
+
+        while (weightedSize() > maximumWeight) {
+            Node victim = probation.first != null ? probation.first
+                    : protectedDeque.first != null ? protectedDeque.first
+                    : window.first;
+            evict(victim);
+        }
+    }
+
+    private boolean admit(Node candidate, Node victim) {
+        int candidateFrequency = sketch.frequency(candidate.key.hashCode());
+        int victimFrequency = sketch.frequency(victim.key.hashCode());
+        if (candidateFrequency > victimFrequency) {
+            return true;
+        }
+
+        // A warm candidate is admitted occasionally, so that an attacker cannot keep a victim in the cache
+        // by making its key collide with popular keys in the sketch
+        return candidateFrequency > 5 && (ThreadLocalRandom.current().nextInt() & 127) == 0;
+    }
+
+    private void evict(Node node) {
+        removeNode(node);
+        evictions.increment();
+    }
+
+    private void removeNode(Node node) {
+        data.remove(node.key, node);
+        node.removed = true;
+
+        Variants variants = node.variants;
+        variants.nodes.remove(node);
+        if (variants.nodes.isEmpty()) {
+            varies.remove(variants.primaryKey, variants);
+        }
+
+        // The candidate of evictEntries() is not linked to any queue
+        switch (node.queue) {
+            case WINDOW:
+                window.remove(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                break;
+            case PROTECTED:
+                protectedDeque.remove(node);
+                break;
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            for (AccessOrderDeque deque : new AccessOrderDeque[]{window, probation, protectedDeque}) {
+                while (deque.first != null) {
+                    removeNode(deque.first);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    // Metrics
+
+    @Override
+    public int getEntryCount() {
+        return data.size();
+    }
+
+    @Override
+    public long getWeightedSize() {
+        evictionLock.lock();
+        try {
+            return weightedSize();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public HttpResponse handleRecoverableException(HttpSession session, HttpRequest request, Throwable exception) {
+        return handler.handleRecoverableException(session, request, exception);
+    }
+
+    @Override
+    public void handleUnrecoverableException(HttpSession session, HttpRequest request, Throwable exception) {
+        handler.handleUnrecoverableException(session, request, exception);
+    }
+
+    @Override
+    public void safeClose(Closeable closeable) {
+        handler.safeClose(closeable);
+    }
+
+    @Override
+    public String toString() {
+        return "CachingHandler[handler=" + handler
+               + ", maximum-weight=" + maximumWeight
+               + ", entries=" + getEntryCount()
+               + ", hits=" + getHitCount()
+               + ", misses=" + getMissCount()
+               + ", evictions=" + getEvictionCount()
+               + "]";
+    }
+
+    private static final class Node {
+        final String key;
+        final HttpResponseImpl response;
+        final int weight;
+        final long expiresAt;
+
+        // Guarded by evictionLock
+        Variants variants;
+        int queue = -1;
+        boolean removed;
+        Node prev;
+        Node next;
+
+        Node(String key, HttpResponseImpl response, int weight, long expiresAt) {
+            this.key = key;
+            this.response = response;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * The request headers that the responses of a URI vary by, and the responses stored for it.
+     */
+    private static final class Variants {
+        final String primaryKey;
+        final HttpHeaderField[] vary;
+
+        // Guarded by evictionLock
+        final ArrayList<Node> nodes = new ArrayList<>(1);
+
+        Variants(String primaryKey, HttpHeaderField[] vary) {
+            this.primaryKey = primaryKey;
+            this.vary = vary;
+        }
+    }
+
+    private static final class AccessOrderDeque {
+        Node first;
+        Node last;
+        long weight;
+
+        void addLast(Node node) {
+            node.prev = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+            weight += node.weight;
+        }
+
+        void remove(Node node) {
+            if (node.prev == null) {
+                first = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToLast(Node node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    /**
+     * A buffer of accessed nodes that drops accesses when it is full or contended.
+     */
+    private static final class ReadBuffer {
+        private final AtomicReferenceArray<Node> buffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        private final AtomicLong writeCounter = new AtomicLong();
+
+        // Written only while holding evictionLock
+        private volatile long readCounter;
+
+        /**
+         * Returns whether the buffer should be drained.
+         */
+        boolean offer(Node node) {
+            long tail = writeCounter.get();
+            long size = tail - readCounter;
+            if (size >= READ_BUFFER_SIZE) {
+                return true;
+            }
+
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                buffer.lazySet((int) tail & (READ_BUFFER_SIZE - 1), node);
+                return size + 1 >= READ_BUFFER_DRAIN_THRESHOLD;
+            }
+            return false;
+        }
+
+        void drain(CachingHandlerImpl cache) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            for (; head < tail; head++) {
+                int index = (int) head & (READ_BUFFER_SIZE - 1);
+                Node node = buffer.get(index);
+                if (node == null) {
+                    // Not published yet
+                    break;
+                }
+                buffer.lazySet(index, null);
+                cache.onAccess(node);
+            }
+            readCounter = head;
+        }
+    }
+
+    public static final class BuilderImpl implements CachingHandler.Builder {
+        private final HttpHandler handler;
+        private long maximumWeight = DEFAULT_MAXIMUM_WEIGHT;
+
+        public BuilderImpl(HttpHandler handler) {
+            this.handler = Objects.requireNonNull(handler);
+        }
+
+        @Override
+        public CachingHandler.Builder maximumWeight(long bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Maximum weight must be positive");
+            }
+            this.maximumWeight = bytes;
+            return this;
+        }
+
+        @Override
+        public CachingHandler build() {
+            return new CachingHandlerImpl(handler, maximumWeight);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.glavo.plumo.internal.util.OutputWrapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A composite body prepared for sending, with the files of its segments opened.
+ */
+final class CompositeBody implements Closeable {
+
+    // ByteBuffer | FileChannel
+    private final Object[] parts;
+    private final long[] offsets;
+    private final long[] lengths;
+    private final FileChannel[] channels;
+
+    final long length;
+
+    private CompositeBody(Object[] parts, long[] offsets, long[] lengths, FileChannel[] channels, long length) {
+        this.parts = parts;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.channels = channels;
+        this.length = length;
+    }
+
+    static CompositeBody open(BodySegment[] segments) throws IOException {
+        int n = segments.length;
+        Object[] parts = new Object[n];
+        long[] offsets = new long[n];
+        long[] lengths = new long[n];
+        FileChannel[] channels = new FileChannel[n];
+
+        long length = 0L;
+        try {
+            for (int i = 0; i < n; i++) {
+                BodySegment segment = segments[i];
+                if (segment instanceof BodySegment.Memory) {
+                    ByteBuffer data = ((BodySegment.Memory) segment).data.duplicate();
+                    parts[i] = data;
+                    lengths[i] = data.remaining();
+                } else {
+                    BodySegment.FileRegion region = (BodySegment.FileRegion) segment;
+                    FileChannel channel = FileChannel.open(region.file, StandardOpenOption.READ);
+                    channels[i] = channel;
+
+                    long size = channel.size();
+                    long regionLength = region.length >= 0 ? region.length : size - region.offset;
+                    if (region.offset > size || regionLength > size - region.offset) {
+                        throw new IOException("Segment exceeds the size of " + region.file + " (" + size + " bytes)");
+                    }
+
+                    parts[i] = channel;
+                    offsets[i] = region.offset;
+                    lengths[i] = regionLength;
+                }
+                length += lengths[i];
+            }
+        } catch (Throwable e) {
+            closeAll(channels, e);
+            throw e;
+        }
+
+        return new CompositeBody(parts, offsets, lengths, channels, length);
+    }
+
+    /**
+     * Writes all segments, using gathering writes for runs of memory segments and {@code transferTo} for files.
+     */
+    void writeTo(OutputWrapper out) throws IOException {
+        int i = 0;
+        while (i < parts.length) {
+            if (parts[i] instanceof ByteBuffer) {
+                int end = i + 1;
+                while (end < parts.length && parts[end] instanceof ByteBuffer) {
+                    end++;
+                }
+
+                ByteBuffer[] buffers = new ByteBuffer[end - i];
+                for (int j = 0; j < buffers.length; j++) {
+                    buffers[j] = (ByteBuffer) parts[i + j];
+                }
+                out.write(buffers);
+                i = end;
+            } else {
+                out.transferFrom((FileChannel) parts[i], offsets[i], lengths[i]);
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Writes all segments sequentially, used when the body is encoded on the fly.
+     */
+    void writeTo(WritableByteChannel out) throws IOException {
+        ByteBuffer transferBuffer = null;
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i] instanceof ByteBuffer) {
+                ByteBuffer data = (ByteBuffer) parts[i];
+                while (data.hasRemaining()) {
+                    out.write(data);
+                }
+            } else {
+                if (transferBuffer == null) {
+                    transferBuffer = ByteBuffer.allocate(8192);
+                }
+
+                FileChannel channel = (FileChannel) parts[i];
+                long position = offsets[i];
+                long remaining = lengths[i];
+                while (remaining > 0) {
+                    transferBuffer.clear();
+                    if (remaining < transferBuffer.capacity()) {
+                        transferBuffer.limit((int) remaining);
+                    }
+
+                    int n = channel.read(transferBuffer, position);
+                    if (n < 0) {
+                        throw new IOException("Unexpected end of file");
+                    }
+
+                    transferBuffer.flip();
+                    while (transferBuffer.hasRemaining()) {
+                        out.write(transferBuffer);
+                    }
+                    position += n;
+                    remaining -= n;
+                }
+            }
+        }
+    }
+
+    private static Throwable closeAll(FileChannel[] channels, Throwable exception) {
+        for (FileChannel channel : channels) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (Throwable e) {
+                    if (exception == null) {
+                        exception = e;
+                    } else {
+                        exception.addSuppressed(e);
+                    }
+                }
+            }
+        }
+        return exception;
+    }
+
+    @Override
+    public void close() throws IOException {
+        Throwable exception = closeAll(channels, null);
+        if (exception instanceof IOException) {
+            throw (IOException) exception;
+        } else if (exception instanceof RuntimeException) {
+            throw (RuntimeException) exception;
+        } else if (exception != null) {
+            throw (Error) exception;
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.glavo.plumo.CompressionPolicy;
+import org.glavo.plumo.HttpHeaderField;
+import org.glavo.plumo.HttpRequest;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class CompressionPolicyImpl implements CompressionPolicy {
+
+    private static final String[] DEFAULT_COMPRESSIBLE_TYPES = {
+            "text/*",
+            "application/json",
+            "application/*+json",
+            "application/javascript",
+            "application/ecmascript",
+            "application/xml",
+            "application/*+xml",
+            "application/x-www-form-urlencoded",
+            "application/wasm",
+            "image/svg+xml",
+            "image/x-icon",
+            "image/bmp",
+    };
+
+    private static final String[] DEFAULT_EXCLUDED_TYPES = {
+            "image/png",
+            "image/jpeg",
+            "image/gif",
+            "image/webp",
+            "image/avif",
+            "audio/*",
+            "video/*",
+            "font/woff",
+            "font/woff2",
+            "application/zip",
+            "application/gzip",
+            "application/x-gzip",
+            "application/zstd",
+            "application/x-bzip2",
+            "application/x-xz",
+            "application/x-7z-compressed",
+            "application/x-rar-compressed",
+            "application/pdf",
+            "application/octet-stream",
+    };
+
+    public static final CompressionPolicyImpl DEFAULT = new BuilderImpl().build();
+
+    // Load tracking
+
+    private static final AtomicInteger activeCompressions = new AtomicInteger();
+
+    /**
+     * Called by the session around the compression of a response body.
+     */
+    static void compressionStarted() {
+        activeCompressions.incrementAndGet();
+    }
+
+    static void compressionFinished() {
+        activeCompressions.decrementAndGet();
+    }
+
+    private final CompressionPolicy.Encoding[] encodings;
+    private final int level;
+    private final long minSize;
+    private final String[] compressibleTypes;
+    private final String[] excludedTypes;
+    private final boolean loadAdaptive;
+
+    private final CompressionPolicy.Selection[] selections;
+    private final CompressionPolicy.Selection[] fastSelections;
+
+    private CompressionPolicyImpl(CompressionPolicy.Encoding[] encodings, int level, long minSize,
+                                  String[] compressibleTypes, String[] excludedTypes, boolean loadAdaptive) {
+        this.encodings = encodings;
+        this.level = level;
+        this.minSize = minSize;
+        this.compressibleTypes = compressibleTypes;
+        this.excludedTypes = excludedTypes;
+        this.loadAdaptive = loadAdaptive;
+
+        this.selections = new CompressionPolicy.Selection[encodings.length];
+        this.fastSelections = new CompressionPolicy.Selection[encodings.length];
+        for (int i = 0; i < encodings.length; i++) {
+            selections[i] = CompressionPolicy.Selection.of(encodings[i], level);
+            fastSelections[i] = CompressionPolicy.Selection.of(encodings[i], 1);
+        }
+    }
+
+    @Override
+    public CompressionPolicy.Selection select(HttpRequest request, String contentType, long contentLength) {
+        return select(request.getHeader(HttpHeaderField.ACCEPT_ENCODING), contentType, contentLength);
+    }
+
+    CompressionPolicy.Selection select(String acceptEncoding, String contentType, long contentLength) {
+        if (encodings.length == 0 || contentType == null || (contentLength >= 0 && contentLength < minSize)) {
+            return null;
+        }
+
+        String mimeType = mimeType(contentType);
+        if (matches(excludedTypes, mimeType) || !matches(compressibleTypes, mimeType)) {
+            return null;
+        }
+
+        if (acceptEncoding == null) {
+            return CompressionPolicy.Selection.IDENTITY;
+        }
+
+        int index = selectEncoding(acceptEncoding, encodings);
+        if (index < 0) {
+            return CompressionPolicy.Selection.IDENTITY;
+        }
+
+        if (loadAdaptive) {
+            int active = activeCompressions.get();
+            int processors = Runtime.getRuntime().availableProcessors();
+            if (active >= processors * 2) {
+                return CompressionPolicy.Selection.IDENTITY;
+            } else if (active >= processors) {
+                return fastSelections[index];
+            }
+        }
+
+        return selections[index];
+    }
+
+    private static String mimeType(String contentType) {
+        int end = contentType.indexOf(';');
+        String type = (end >= 0 ? contentType.substring(0, end) : contentType).trim();
+        return type.toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean matches(String[] patterns, String mimeType) {
+        for (String pattern : patterns) {
+            if (pattern.equals("*/*") || pattern.equals(mimeType)) {
+                return true;
+            }
+
+            int star = pattern.indexOf('*');
+            if (star >= 0) {
+                // "type/*" or "type/*+suffix"
+                String prefix = pattern.substring(0, star);
+                String suffix = pattern.substring(star + 1);
+                if (mimeType.length() >= prefix.length() + suffix.length()
+                        && mimeType.startsWith(prefix) && mimeType.endsWith(suffix)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the index of the acceptable encoding with the highest quality value, or -1 if none is acceptable.
+     */
+    static int selectEncoding(String acceptEncoding, CompressionPolicy.Encoding[] encodings) {
+        int[] qualities = new int[encodings.length];
+        Arrays.fill(qualities, -1);
+        int wildcard = -1;
+
+        int length = acceptEncoding.length();
+        int start = 0;
+        while (start < length) {
+            int end = acceptEncoding.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+
+            int semicolon = acceptEncoding.indexOf(';', start);
+            int tokenEnd = semicolon >= 0 && semicolon < end ? semicolon : end;
+            String coding = acceptEncoding.substring(start, tokenEnd).trim();
+            int quality = tokenEnd < end ? parseQuality(acceptEncoding, tokenEnd + 1, end) : 1000;
+
+            if (!coding.isEmpty() && quality >= 0) {
+                if (coding.equals("*")) {
+                    wildcard = quality;
+                } else {
+                    if (coding.equalsIgnoreCase("x-gzip")) {
+                        coding = "gzip";
+                    }
+                    for (int i = 0; i < encodings.length; i++) {
+                        if (encodings[i].getToken().equalsIgnoreCase(coding)) {
+                            qualities[i] = quality;
+                        }
+                    }
+                }
+            }
+
+            start = end + 1;
+        }
+
+        int selected = -1;
+        int selectedQuality = 0;
+        for (int i = 0; i < encodings.length; i++) {
+            int quality = qualities[i] >= 0 ? qualities[i] : wildcard;
+            if (quality > selectedQuality) {
+                selected = i;
+                selectedQuality = quality;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Parses the parameters of a coding and returns its quality value in thousandths, or -1 if it is malformed.
+     */
+    private static int parseQuality(String value, int start, int end) {
+        int quality = 1000;
+        while (start < end) {
+            int paramEnd = value.indexOf(';', start);
+            if (paramEnd < 0 || paramEnd > end) {
+                paramEnd = end;
+            }
+
+            String param = value.substring(start, paramEnd).trim();
+            if (param.length() >= 2 && (param.charAt(0) == 'q' || param.charAt(0) == 'Q') && param.charAt(1) == '=') {
+                quality = parseQValue(param.substring(2).trim());
+                if (quality < 0) {
+                    return -1;
+                }
+            }
+            start = paramEnd + 1;
+        }
+        return quality;
+    }
+
+    // qvalue = ( "0" [ "." 0*3DIGIT ] ) / ( "1" [ "." 0*3("0") ] )
+    private static int parseQValue(String value) {
+        int length = value.length();
+        if (length == 0 || length > 5) {
+            return -1;
+        }
+
+        char first = value.charAt(0);
+        if (first != '0' && first != '1') {
+            return -1;
+        }
+
+        int result = (first - '0') * 1000;
+        if (length > 1) {
+            if (value.charAt(1) != '.') {
+                return -1;
+            }
+
+            int scale = 100;
+            for (int i = 2; i < length; i++, scale /= 10) {
+                char ch = value.charAt(i);
+                if (ch < '0' || ch > '9') {
+                    return -1;
+                }
+                result += (ch - '0') * scale;
+            }
+        }
+        return result <= 1000 ? result : -1;
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionPolicy[encodings=" + Arrays.toString(encodings)
+               + ", level=" + level
+               + ", min-size=" + minSize
+               + ", compressible-types=" + Arrays.toString(compressibleTypes)
+               + ", excluded-types=" + Arrays.toString(excludedTypes)
+               + ", load-adaptive=" + loadAdaptive + "]";
+    }
+
+    public static final class BuilderImpl implements CompressionPolicy.Builder {
+        private CompressionPolicy.Encoding[] encodings = {
+                CompressionPolicy.Encoding.GZIP, CompressionPolicy.Encoding.DEFLATE
+        };
+        private int level = Constants.GZIP_LEVEL;
+        private long minSize = 256;
+        private String[] compressibleTypes = DEFAULT_COMPRESSIBLE_TYPES;
+        private String[] excludedTypes = DEFAULT_EXCLUDED_TYPES;
+        private boolean loadAdaptive = true;
+
+        private static String[] normalizeTypes(String[] types) {
+            String[] result = new String[types.length];
+            for (int i = 0; i < types.length; i++) {
+                result[i] = Objects.requireNonNull(types[i]).trim().toLowerCase(Locale.ROOT);
+            }
+            return result;
+        }
+
+        @Override
+        public CompressionPolicy.Builder encodings(CompressionPolicy.Encoding... encodings) {
+            CompressionPolicy.Encoding[] result = Arrays.stream(encodings)
+                    .map(Objects::requireNonNull)
+                    .filter(encoding -> encoding != CompressionPolicy.Encoding.IDENTITY)
+                    .distinct()
+                    .toArray(CompressionPolicy.Encoding[]::new);
+            this.encodings = result;
+            return this;
+        }
+
+        @Override
+        public CompressionPolicy.Builder level(int level) {
+            if (level < 1 || level > 9) {
+                throw new IllegalArgumentException("Compression level must be between 1 and 9");
+            }
+            this.level = level;
+            return this;
+        }
+
+        @Override
+        public CompressionPolicy.Builder minSize(long minSize) {
+            if (minSize < 0) {
+                throw new IllegalArgumentException("minSize must not be negative");
+            }
+            this.minSize = minSize;
+            return this;
+        }
+
+        @Override
+        public CompressionPolicy.Builder compressibleTypes(String... types) {
+            this.compressibleTypes = normalizeTypes(types);
+            return this;
+        }
+
+        @Override
+        public CompressionPolicy.Builder excludedTypes(String... types) {
+            this.excludedTypes = normalizeTypes(types);
+            return this;
+        }
+
+        @Override
+        public CompressionPolicy.Builder loadAdaptive(boolean loadAdaptive) {
+            this.loadAdaptive = loadAdaptive;
+            return this;
+        }
+
+        @Override
+        public CompressionPolicyImpl build() {
+            return new CompressionPolicyImpl(encodings, level, minSize, compressibleTypes, excludedTypes, loadAdaptive);
+        }
+    }
+}
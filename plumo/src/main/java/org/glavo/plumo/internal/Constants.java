@@ -50,6 +50,15 @@ public final class Constants {
     public static final Boolean USE_VIRTUAL_THREAD = getBoolean(PROPERTY_PREFIX + "useVirtualThread", null);
     public static final String HEADER_ENCODING = System.getProperty(PROPERTY_PREFIX + "httpHeaderEncoding");
     public static final String LOGGER_LEVEL = System.getProperty(PROPERTY_PREFIX + "defaultLogger.level");
+    public static final int MAX_CHUNK_SIZE = Integer.getInteger(PROPERTY_PREFIX + "maxChunkSize", 16384);
+    public static final long BUFFER_POOL_CAPACITY = Long.getLong(PROPERTY_PREFIX + "bufferPoolCapacity", 32L * 1024 * 1024);
+    public static final int DEFLATER_POOL_SIZE = Integer.getInteger(PROPERTY_PREFIX + "deflaterPoolSize", Runtime.getRuntime().availableProcessors() * 4);
+    public static final int MAX_DEFLATERS = Integer.getInteger(PROPERTY_PREFIX + "maxDeflaters", Runtime.getRuntime().availableProcessors() * 32);
+    public static final int GZIP_LEVEL = Integer.getInteger(PROPERTY_PREFIX + "gzipLevel", 6);
+    public static final long PARALLEL_GZIP_THRESHOLD = Long.getLong(PROPERTY_PREFIX + "parallelGZipThreshold", 1024L * 1024);
+    public static final int PARALLEL_GZIP_BLOCK_SIZE = Integer.getInteger(PROPERTY_PREFIX + "parallelGZipBlockSize", 128 * 1024);
+    public static final boolean DECOMPRESS_REQUEST_BODY = getBoolean(PROPERTY_PREFIX + "decompressRequestBody", false);
+    public static final long MAX_DECOMPRESSED_REQUEST_BODY_SIZE = Long.getLong(PROPERTY_PREFIX + "maxDecompressedRequestBodySize", 64L * 1024 * 1024);
 
     static {
         if (LINE_BUFFER_LENGTH < 0) {
@@ -57,6 +66,34 @@ public final class Constants {
         } else if (LINE_BUFFER_LENGTH < 80) {
             throw new Error("line buffer length is too small");
         }
+
+        if (MAX_CHUNK_SIZE <= 0) {
+            throw new Error("max chunk size must be positive");
+        }
+
+        if (BUFFER_POOL_CAPACITY < 0) {
+            throw new Error("buffer pool capacity cannot be negative");
+        }
+
+        if (DEFLATER_POOL_SIZE < 0) {
+            throw new Error("deflater pool size cannot be negative");
+        }
+
+        if (MAX_DEFLATERS <= 0) {
+            throw new Error("max deflaters must be positive");
+        }
+
+        if (GZIP_LEVEL < 1 || GZIP_LEVEL > 9) {
+            throw new Error("gzip level must be between 1 and 9");
+        }
+
+        if (PARALLEL_GZIP_BLOCK_SIZE < 32 * 1024) {
+            throw new Error("parallel gzip block size must be at least 32 KiB");
+        }
+
+        if (MAX_DECOMPRESSED_REQUEST_BODY_SIZE <= 0) {
+            throw new Error("max decompressed request body size must be positive");
+        }
     }
 
     private Constants() {
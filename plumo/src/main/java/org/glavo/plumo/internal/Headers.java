@@ -111,6 +111,21 @@ public final class Headers extends AbstractMap<HttpHeaderField, List<String>> {
         }
     }
 
+    /**
+     * Checks that the header value cannot break the framing of the message, returns the value.
+     *
+     * @throws IllegalArgumentException if the value contains CR, LF or NUL
+     */
+    public static String checkValue(String value) {
+        for (int i = 0, len = value.length(); i < len; i++) { // implicit null check
+            char ch = value.charAt(i);
+            if (ch == '\r' || ch == '\n' || ch == '\0') {
+                throw new IllegalArgumentException("Invalid header value: " + value);
+            }
+        }
+        return value;
+    }
+
     public static List<String> mapValue(Object value) {
         if (value instanceof String) {
             return Collections.singletonList((String) value);
@@ -161,6 +176,34 @@ public final class Headers extends AbstractMap<HttpHeaderField, List<String>> {
         }
     }
 
+    public void removeDirect(HttpHeaderField field) {
+        if (size == 0) {
+            return;
+        }
+
+        int idx = probe(this.keys, field);
+        if (idx < 0) {
+            return;
+        }
+
+        keys[idx] = null;
+        values[idx] = null;
+        size--;
+
+        // Reinsert the rest of the cluster, probing must not stop at the removed slot
+        final int cap = keys.length;
+        for (int i = idx + 1 == cap ? 0 : idx + 1; keys[i] != null; i = i + 1 == cap ? 0 : i + 1) {
+            HttpHeaderField key = keys[i];
+            Object value = values[i];
+            keys[i] = null;
+            values[i] = null;
+
+            int newIdx = -(probe(this.keys, key) + 1);
+            keys[newIdx] = key;
+            values[newIdx] = value;
+        }
+    }
+
     public String getFirst(HttpHeaderField field) {
         if (size == 0) {
             return null;
@@ -205,6 +248,13 @@ public final class Headers extends AbstractMap<HttpHeaderField, List<String>> {
     }
 
     public void writeHeadersTo(OutputWrapper out) throws IOException {
+        writeHeadersTo(out, null);
+    }
+
+    /**
+     * Writes all headers except {@code excluded}.
+     */
+    public void writeHeadersTo(OutputWrapper out, HttpHeaderField excluded) throws IOException {
         final HttpHeaderField[] keys = this.keys;
         final Object[] values = this.values;
 
@@ -214,7 +264,7 @@ public final class Headers extends AbstractMap<HttpHeaderField, List<String>> {
 
         for (int i = 0; i < keys.length; i++) {
             HttpHeaderField key = keys[i];
-            if (key != null) {
+            if (key != null && !key.equals(excluded)) {
                 Object value = values[i];
 
                 if (value instanceof String) {
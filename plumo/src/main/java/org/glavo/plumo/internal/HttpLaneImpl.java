@@ -0,0 +1,311 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.glavo.plumo.HttpHandler;
+import org.glavo.plumo.HttpLane;
+import org.glavo.plumo.HttpResponse;
+import org.glavo.plumo.internal.util.TokenBucket;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+public final class HttpLaneImpl implements HttpLane {
+
+    private final String name;
+    private final int maxConcurrentRequests;
+    private final int maxQueuedRequests;
+    private final long maxBandwidth;
+    private final Executor executor;
+
+    final TokenBucket bandwidthLimit;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Guarded by lock
+    private int running = 0;
+    private final ArrayDeque<Task> waiting = new ArrayDeque<>();
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private HttpLaneImpl(String name, int maxConcurrentRequests, int maxQueuedRequests, long maxBandwidth, Executor executor) {
+        this.name = name;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.maxQueuedRequests = maxQueuedRequests;
+        this.maxBandwidth = maxBandwidth;
+        this.executor = executor;
+        this.bandwidthLimit = maxBandwidth == Long.MAX_VALUE ? null : new TokenBucket(maxBandwidth);
+    }
+
+    private HttpResponseException reject() {
+        rejected.increment();
+        return new HttpResponseException(HttpResponse.Status.SERVICE_UNAVAILABLE, "SERVICE UNAVAILABLE: Lane " + name + " is busy.");
+    }
+
+    /**
+     * A request holding or waiting for a slot of this lane.
+     */
+    private final class Task implements Runnable {
+        final HttpHandler handler;
+        final HttpRequestImpl request;
+        final Executor fallbackExecutor;
+        final CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+
+        Task(HttpHandler handler, HttpRequestImpl request, Executor fallbackExecutor) {
+            this.handler = handler;
+            this.request = request;
+            this.fallbackExecutor = fallbackExecutor;
+        }
+
+        /**
+         * Invokes the handler on the thread that has been given the slot, the slot is released before the future completes.
+         */
+        @Override
+        public void run() {
+            if (future.isDone()) {
+                // Cancelled while waiting for the slot
+                finish();
+                return;
+            }
+
+            RequestContextImpl context = request.context;
+            if (context != null) {
+                context.enter();
+            }
+
+            HttpResponse response = null;
+            Throwable exception = null;
+            try {
+                response = handler.handle(request);
+            } catch (Throwable e) {
+                exception = e;
+            } finally {
+                if (context != null) {
+                    context.detach();
+                }
+                completed.increment();
+                finish();
+            }
+
+            if (exception == null) {
+                future.complete(response);
+            } else {
+                future.completeExceptionally(exception);
+            }
+        }
+    }
+
+    /**
+     * Handles the request once the lane has a free slot. The calling thread never waits for the slot:
+     * if the lane has no executor and a slot is free, the handler is invoked directly,
+     * otherwise it is invoked on the lane executor, or on {@code fallbackExecutor} when a waiting request gets a slot.
+     *
+     * @throws HttpResponseException if the lane is full
+     */
+    CompletableFuture<HttpResponse> submit(HttpHandler handler, HttpRequestImpl request, Executor fallbackExecutor) throws HttpResponseException {
+        Task task = new Task(handler, request, fallbackExecutor);
+
+        // The handler may run on another thread as soon as the task is visible
+        RequestContextImpl context = request.context;
+        if (context != null) {
+            context.detach();
+        }
+
+        boolean acquired;
+        lock.lock();
+        try {
+            acquired = running < maxConcurrentRequests;
+            if (acquired) {
+                running++;
+                active.incrementAndGet();
+            } else if (waiting.size() < maxQueuedRequests) {
+                waiting.add(task);
+                queued.incrementAndGet();
+            } else {
+                throw reject();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (!acquired) {
+            if (context != null) {
+                context.onCancel(() -> cancel(task));
+            }
+        } else if (executor == null) {
+            task.run();
+        } else {
+            dispatch(task, executor);
+        }
+        return task.future;
+    }
+
+    private void dispatch(Task task, Executor executor) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            finish();
+            task.future.completeExceptionally(reject());
+        }
+    }
+
+    private void cancel(Task task) {
+        boolean removed;
+        lock.lock();
+        try {
+            removed = waiting.remove(task);
+            if (removed) {
+                queued.decrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (removed) {
+            task.future.cancel(false);
+        }
+    }
+
+    /**
+     * Passes the slot of a finished task to the next waiting request, or releases it.
+     */
+    private void finish() {
+        Task next;
+        lock.lock();
+        try {
+            next = waiting.poll();
+            if (next == null) {
+                running--;
+                active.decrementAndGet();
+            } else {
+                queued.decrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (next != null) {
+            dispatch(next, executor != null ? executor : next.fallbackExecutor);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    @Override
+    public int getMaxQueuedRequests() {
+        return maxQueuedRequests;
+    }
+
+    @Override
+    public long getMaxBandwidth() {
+        return maxBandwidth;
+    }
+
+    @Override
+    public int getActiveRequestCount() {
+        return active.get();
+    }
+
+    @Override
+    public int getQueuedRequestCount() {
+        return queued.get();
+    }
+
+    @Override
+    public long getCompletedRequestCount() {
+        return completed.sum();
+    }
+
+    @Override
+    public long getRejectedRequestCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "HttpLane[name=" + name
+               + ", active=" + getActiveRequestCount()
+               + ", queued=" + getQueuedRequestCount()
+               + ", completed=" + getCompletedRequestCount()
+               + ", rejected=" + getRejectedRequestCount()
+               + "]";
+    }
+
+    public static final class BuilderImpl implements HttpLane.Builder {
+        private final String name;
+        private int maxConcurrentRequests = Integer.MAX_VALUE;
+        private int maxQueuedRequests = Integer.MAX_VALUE;
+        private long maxBandwidth = Long.MAX_VALUE;
+        private Executor executor;
+
+        public BuilderImpl(String name) {
+            this.name = Objects.requireNonNull(name);
+        }
+
+        @Override
+        public HttpLane.Builder maxConcurrentRequests(int maxConcurrentRequests) {
+            if (maxConcurrentRequests <= 0) {
+                throw new IllegalArgumentException("maxConcurrentRequests must be positive");
+            }
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            return this;
+        }
+
+        @Override
+        public HttpLane.Builder maxQueuedRequests(int maxQueuedRequests) {
+            if (maxQueuedRequests < 0) {
+                throw new IllegalArgumentException("maxQueuedRequests must not be negative");
+            }
+            this.maxQueuedRequests = maxQueuedRequests;
+            return this;
+        }
+
+        @Override
+        public HttpLane.Builder maxBandwidth(long bytesPerSecond) {
+            if (bytesPerSecond <= 0) {
+                throw new IllegalArgumentException("maxBandwidth must be positive");
+            }
+            this.maxBandwidth = bytesPerSecond;
+            return this;
+        }
+
+        @Override
+        public HttpLane.Builder executor(Executor executor) {
+            this.executor = Objects.requireNonNull(executor);
+            return this;
+        }
+
+        @Override
+        public HttpLane build() {
+            return new HttpLaneImpl(name, maxConcurrentRequests, maxQueuedRequests, maxBandwidth, executor);
+        }
+    }
+}
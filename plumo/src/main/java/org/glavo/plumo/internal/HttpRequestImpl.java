@@ -18,6 +18,7 @@ package org.glavo.plumo.internal;
 import org.glavo.plumo.HttpDataDecoder;
 import org.glavo.plumo.HttpHeaderField;
 import org.glavo.plumo.HttpRequest;
+import org.glavo.plumo.HttpResponse;
 import org.glavo.plumo.internal.util.InputWrapper;
 
 import java.io.IOException;
@@ -38,6 +39,14 @@ public final class HttpRequestImpl implements HttpRequest {
     String httpVersion;
     InputWrapper body;
     long bodySize;
+    String originalContentEncoding;
+
+    // Initialize in HttpSessionImpl
+    RequestContextImpl context;
+    HttpSessionImpl session;
+
+    // Guarded by this
+    private boolean responseStarted = false;
 
     public HttpRequestImpl(SocketAddress remoteAddress, SocketAddress localAddress) {
         this.remoteAddress = remoteAddress;
@@ -97,6 +106,53 @@ public final class HttpRequestImpl implements HttpRequest {
         return bodySize;
     }
 
+    @Override
+    public String getOriginalContentEncoding() {
+        return originalContentEncoding != null ? originalContentEncoding : headers.getFirst(HttpHeaderField.CONTENT_ENCODING);
+    }
+
+    @Override
+    public Context getContext() {
+        if (context == null) {
+            context = new RequestContextImpl(0L);
+        }
+        return context;
+    }
+
+    @Override
+    public boolean sendInterimResponse(HttpResponse.Status status, Map<HttpHeaderField, List<String>> headers) throws IOException {
+        int statusCode = status.getStatusCode(); // implicit null check
+        if (statusCode < 100 || statusCode >= 200 || statusCode == 101) {
+            throw new IllegalArgumentException("Not an interim status: " + status);
+        }
+        for (Map.Entry<HttpHeaderField, List<String>> entry : headers.entrySet()) {
+            Objects.requireNonNull(entry.getKey());
+            for (String value : entry.getValue()) {
+                Headers.checkValue(value);
+            }
+        }
+
+        synchronized (this) {
+            if (responseStarted) {
+                throw new IllegalStateException("The final response has been started");
+            }
+
+            if (session == null || !"1.1".equals(httpVersion)) {
+                return false;
+            }
+
+            session.sendInterimResponse(status, headers);
+            return true;
+        }
+    }
+
+    /**
+     * Called before the final response is sent, interim responses cannot be sent after this.
+     */
+    synchronized void startResponse() {
+        responseStarted = true;
+    }
+
     @Override
     public URI getURI() {
         return uri;
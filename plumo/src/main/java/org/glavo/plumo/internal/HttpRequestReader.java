@@ -31,6 +31,9 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import static org.glavo.plumo.internal.Constants.LINE_BUFFER_LENGTH;
 
@@ -44,6 +47,9 @@ public final class HttpRequestReader implements Closeable {
 
     boolean closed = false;
 
+    // See Constants.DECOMPRESS_REQUEST_BODY
+    boolean decompressRequestBody = Constants.DECOMPRESS_REQUEST_BODY;
+
     public HttpRequestReader(InputStream inputStream) {
         this.inputStream = inputStream;
         this.inputChannel = null;
@@ -190,6 +196,22 @@ public final class HttpRequestReader implements Closeable {
         }
     }
 
+    /**
+     * Returns whether all buffered bytes have been consumed.
+     */
+    boolean isBufferEmpty() {
+        return !lineBuffer.hasRemaining();
+    }
+
+    /**
+     * Reads ahead into the empty buffer, used to detect that the peer has closed the connection.
+     * The bytes read are kept for the next request.
+     */
+    int readAhead() throws IOException {
+        lineBuffer.position(0).limit(0);
+        return readMore();
+    }
+
     private int readMore() throws IOException {
         if (lineBuffer.limit() == LINE_BUFFER_LENGTH) {
             if (lineBuffer.position() == 0) {
@@ -392,6 +414,21 @@ public final class HttpRequestReader implements Closeable {
                 request.body = null;
             } else if (len > 0) {
                 request.body = new BoundedInput(this, len);
+
+                String contentEncoding = request.headers.getFirst(HttpHeaderField.CONTENT_ENCODING);
+                if (contentEncoding != null && decompressRequestBody) {
+                    String coding = contentEncoding.trim();
+                    boolean gzip = coding.equalsIgnoreCase("gzip") || coding.equalsIgnoreCase("x-gzip");
+                    if (gzip || coding.equalsIgnoreCase("deflate")) {
+                        // The decoded length is unknown until the body has been read
+                        request.body = new InflaterInput(this, request.body, gzip, Constants.MAX_DECOMPRESSED_REQUEST_BODY_SIZE);
+                        request.bodySize = -1;
+
+                        // The handler sees the decoded body, the header is kept in getOriginalContentEncoding
+                        request.originalContentEncoding = contentEncoding;
+                        request.headers.removeDirect(HttpHeaderField.CONTENT_ENCODING);
+                    }
+                }
             } else {
                 throw new HttpResponseException(HttpResponse.Status.INTERNAL_ERROR, "TODO");
             }
@@ -640,6 +677,252 @@ public final class HttpRequestReader implements Closeable {
         }
     }
 
+    /**
+     * Decodes a request body with {@code Content-Encoding: gzip} or {@code deflate} while it is read.
+     * <p>
+     * Malformed data is reported as 400 Bad Request, and a body that decodes to more than {@code maxSize} bytes
+     * as 413 Payload Too Large, before the excess is produced.
+     */
+    static final class InflaterInput extends AbstractInputWrapper {
+        private static final int INPUT_BUFFER_SIZE = 8192;
+
+        private final InputWrapper source;
+        private final boolean gzip;
+        private final long maxSize;
+
+        private final byte[] inputBuffer = new byte[INPUT_BUFFER_SIZE];
+        private int inputPosition;
+        private int inputLimit;
+
+        private Inflater inflater;
+        private CRC32 crc32;
+        private boolean inMember = false;
+        private long memberSize;
+        private long totalSize;
+        private boolean eof = false;
+
+        private byte[] singleByte;
+
+        InflaterInput(HttpRequestReader reader, InputWrapper source, boolean gzip, long maxSize) {
+            super(reader);
+            this.source = source;
+            this.gzip = gzip;
+            this.maxSize = maxSize;
+        }
+
+        private static HttpResponseException malformed() {
+            return new HttpResponseException(HttpResponse.Status.BAD_REQUEST, "BAD REQUEST: Malformed compressed request body.");
+        }
+
+        private boolean fill() throws IOException {
+            if (inputPosition < inputLimit) {
+                return true;
+            }
+
+            int n = source.read(inputBuffer, 0, inputBuffer.length);
+            if (n <= 0) {
+                return false;
+            }
+            inputPosition = 0;
+            inputLimit = n;
+            return true;
+        }
+
+        private int readUnsignedByte() throws IOException {
+            if (!fill()) {
+                throw malformed();
+            }
+            return inputBuffer[inputPosition++] & 0xff;
+        }
+
+        private int readUnsignedShort() throws IOException {
+            return readUnsignedByte() | (readUnsignedByte() << 8);
+        }
+
+        private long readUnsignedInt() throws IOException {
+            return (readUnsignedShort() | ((long) readUnsignedShort() << 16)) & 0xffffffffL;
+        }
+
+        /**
+         * Reads the header of the next gzip member, or the zlib header. Returns {@code false} at the end of the body.
+         */
+        private boolean beginMember() throws IOException {
+            if (gzip) {
+                // Concatenated gzip members decode to the concatenation of their contents
+                if (!fill()) {
+                    if (inflater == null) {
+                        throw malformed();
+                    }
+                    return false;
+                }
+
+                if (readUnsignedByte() != 0x1f || readUnsignedByte() != 0x8b || readUnsignedByte() != 8) {
+                    throw malformed();
+                }
+                int flags = readUnsignedByte();
+                for (int i = 0; i < 6; i++) {
+                    readUnsignedByte(); // MTIME, XFL, OS
+                }
+                if ((flags & 4) != 0) { // FEXTRA
+                    for (int i = readUnsignedShort(); i > 0; i--) {
+                        readUnsignedByte();
+                    }
+                }
+                if ((flags & 8) != 0) { // FNAME
+                    while (readUnsignedByte() != 0) {
+                    }
+                }
+                if ((flags & 16) != 0) { // FCOMMENT
+                    while (readUnsignedByte() != 0) {
+                    }
+                }
+                if ((flags & 2) != 0) { // FHCRC
+                    readUnsignedShort();
+                }
+
+                if (inflater == null) {
+                    inflater = new Inflater(true);
+                    crc32 = new CRC32();
+                } else {
+                    inflater.reset();
+                    crc32.reset();
+                }
+            } else {
+                if (inflater != null) {
+                    return false;
+                }
+
+                // Some clients send raw deflate data instead of the zlib format
+                if (!fill()) {
+                    throw malformed();
+                }
+                if (inputLimit - inputPosition < 2) {
+                    inputBuffer[0] = inputBuffer[inputPosition];
+                    inputPosition = 0;
+                    int n = source.read(inputBuffer, 1, inputBuffer.length - 1);
+                    if (n <= 0) {
+                        throw malformed();
+                    }
+                    inputLimit = 1 + n;
+                }
+                int cmf = inputBuffer[inputPosition] & 0xff;
+                int flg = inputBuffer[inputPosition + 1] & 0xff;
+                boolean zlib = (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+                inflater = new Inflater(!zlib);
+            }
+
+            inMember = true;
+            memberSize = 0;
+            return true;
+        }
+
+        private void endMember() throws IOException {
+            inputPosition = inputLimit - inflater.getRemaining();
+            inMember = false;
+
+            if (gzip) {
+                long crc = readUnsignedInt();
+                long size = readUnsignedInt();
+                if (crc != crc32.getValue() || size != (memberSize & 0xffffffffL)) {
+                    throw malformed();
+                }
+            } else {
+                eof = true;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (singleByte == null) {
+                singleByte = new byte[1];
+            }
+            int n = read(singleByte, 0, 1);
+            return n == 1 ? singleByte[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+
+            if (len == 0) {
+                return 0;
+            }
+
+            while (!eof) {
+                if (!inMember) {
+                    if (!beginMember()) {
+                        eof = true;
+                        break;
+                    }
+                }
+
+                // One byte over the limit is enough to tell that the body is too large
+                int maxRead = (int) Math.min(len, maxSize - totalSize + 1);
+
+                int n;
+                try {
+                    n = inflater.inflate(b, off, maxRead);
+                } catch (DataFormatException e) {
+                    throw malformed();
+                }
+
+                if (n > 0) {
+                    totalSize += n;
+                    if (totalSize > maxSize) {
+                        throw new HttpResponseException(HttpResponse.Status.PAYLOAD_TOO_LARGE,
+                                "PAYLOAD TOO LARGE: Decompressed request body exceeds " + maxSize + " bytes.");
+                    }
+
+                    memberSize += n;
+                    if (crc32 != null) {
+                        crc32.update(b, off, n);
+                    }
+                    return n;
+                }
+
+                if (inflater.finished()) {
+                    endMember();
+                } else if (inflater.needsDictionary()) {
+                    throw malformed();
+                } else if (inflater.needsInput()) {
+                    if (!fill()) {
+                        throw malformed();
+                    }
+                    inflater.setInput(inputBuffer, inputPosition, inputLimit - inputPosition);
+                    inputPosition = inputLimit;
+                }
+            }
+
+            return -1;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (dst.hasArray()) {
+                int n = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+                if (n > 0) {
+                    dst.position(dst.position() + n);
+                }
+                return n;
+            }
+
+            byte[] array = new byte[Math.min(dst.remaining(), INPUT_BUFFER_SIZE)];
+            int n = read(array, 0, array.length);
+            if (n > 0) {
+                dst.put(array, 0, n);
+            }
+            return n;
+        }
+
+        @Override
+        protected void closeImpl() throws IOException {
+            if (inflater != null) {
+                inflater.end();
+            }
+            source.close();
+        }
+    }
+
     static final class RawFormDataInput extends AbstractInputWrapper {
 
         private final byte[] endBoundary;
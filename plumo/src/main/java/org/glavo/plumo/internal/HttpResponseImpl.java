@@ -15,13 +15,19 @@
  */
 package org.glavo.plumo.internal;
 
+import org.glavo.plumo.CompressionPolicy;
 import org.glavo.plumo.HttpHandler;
 import org.glavo.plumo.HttpHeaderField;
 import org.glavo.plumo.HttpResponse;
+import org.glavo.plumo.internal.util.Compression;
+import org.glavo.plumo.internal.util.OutputWrapper;
+import org.glavo.plumo.internal.util.XXHash64;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Path;
@@ -33,7 +39,7 @@ public final class HttpResponseImpl implements HttpResponse {
 
     public Status status;
 
-    // InputStream | ReadableByteChannel | String | ByteBuffer | Path
+    // InputStream | ReadableByteChannel | String | ByteBuffer | Path | BodyWriter | BodySegment[]
     public Object body;
     public long contentLength;
     private boolean closed = false;
@@ -41,6 +47,15 @@ public final class HttpResponseImpl implements HttpResponse {
     private boolean frozen;
     private boolean headerIsAlias;
 
+    // Encoded variants of the body of a frozen response, indexed by the ordinal of the encoding
+    private volatile EncodedBody[] encodedBodies;
+
+    // Generated entity tags of the variants of a frozen response, indexed by the ordinal of the encoding
+    private volatile String[] entityTags;
+
+    // Heads of the 304 responses of a frozen response, see getNotModifiedHead
+    private volatile byte[][] notModifiedHeads;
+
     public HttpResponseImpl() {
         this.frozen = false;
         this.headerIsAlias = false;
@@ -78,11 +93,192 @@ public final class HttpResponseImpl implements HttpResponse {
         assert isReusable();
 
         HttpResponseImpl response = new HttpResponseImpl(this.headers);
+        response.status = this.status;
         response.body = this.body;
         response.contentLength = this.contentLength;
         return response;
     }
 
+    boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Returns whether the response can be sent any number of times, including concurrently.
+     */
+    boolean isShareable() {
+        return body == null || body instanceof String || body instanceof ByteBuffer
+               || body instanceof Path || body instanceof BodySegment[]
+               || frozen && body instanceof BodyWriter;
+    }
+
+    private static final class EncodedBody {
+        final int level;
+        final byte[] data;
+
+        EncodedBody(int level, byte[] data) {
+            this.level = level;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Returns the body encoded with the given encoding, which is computed on first use and retained.
+     * Only valid for frozen responses whose body is in memory.
+     * <p>
+     * A retained variant is reused for requests at the same or a lower level. A variant encoded at a lower level,
+     * such as the fast level chosen under load, is replaced when a higher level is requested,
+     * so that it does not stay for the life of the response.
+     */
+    byte[] getEncodedBody(CompressionPolicy.Encoding encoding, int level, ByteBuffer data) {
+        assert frozen;
+
+        EncodedBody[] encodedBodies = this.encodedBodies;
+        EncodedBody encoded = encodedBodies != null ? encodedBodies[encoding.ordinal()] : null;
+        if (encoded != null && encoded.level >= level) {
+            return encoded.data;
+        }
+
+        synchronized (this) {
+            encodedBodies = this.encodedBodies;
+            if (encodedBodies == null) {
+                encodedBodies = new EncodedBody[CompressionPolicy.Encoding.values().length];
+            } else {
+                encoded = encodedBodies[encoding.ordinal()];
+                if (encoded != null && encoded.level >= level) {
+                    return encoded.data;
+                }
+                encodedBodies = encodedBodies.clone();
+            }
+
+            encoded = new EncodedBody(level, Compression.encode(data, encoding, level));
+            encodedBodies[encoding.ordinal()] = encoded;
+            this.encodedBodies = encodedBodies;
+            return encoded.data;
+        }
+    }
+
+    /**
+     * Returns the entity tag of the body encoded with the given encoding, which is computed on first use and retained.
+     * Only valid for frozen responses whose body is in memory.
+     * <p>
+     * The tag of the identity body is strong. The tags of encoded variants are weak,
+     * since a variant is re-encoded when a higher level is requested and its bytes change.
+     */
+    String getEntityTag(CompressionPolicy.Encoding encoding, ByteBuffer data) {
+        assert frozen;
+
+        String[] entityTags = this.entityTags;
+        String entityTag = entityTags != null ? entityTags[encoding.ordinal()] : null;
+        if (entityTag != null) {
+            return entityTag;
+        }
+
+        synchronized (this) {
+            entityTags = this.entityTags;
+            if (entityTags == null) {
+                entityTags = new String[CompressionPolicy.Encoding.values().length];
+            } else {
+                entityTag = entityTags[encoding.ordinal()];
+                if (entityTag != null) {
+                    return entityTag;
+                }
+                entityTags = entityTags.clone();
+            }
+
+            String identity = entityTags[CompressionPolicy.Encoding.IDENTITY.ordinal()];
+            if (identity == null) {
+                String hash = Long.toHexString(XXHash64.hash(data, 0));
+                StringBuilder builder = new StringBuilder(18).append('"');
+                for (int i = hash.length(); i < 16; i++) {
+                    builder.append('0');
+                }
+                identity = builder.append(hash).append('"').toString();
+                entityTags[CompressionPolicy.Encoding.IDENTITY.ordinal()] = identity;
+            }
+
+            // The encoded variants are different representations, so they need their own tags
+            entityTag = encoding == CompressionPolicy.Encoding.IDENTITY
+                    ? identity
+                    : "W/" + identity.substring(0, identity.length() - 1) + '-' + encoding.getToken() + '"';
+            entityTags[encoding.ordinal()] = entityTag;
+            this.entityTags = entityTags;
+            return entityTag;
+        }
+    }
+
+    private static final HttpHeaderField[] NOT_MODIFIED_HEADERS = {
+            HttpHeaderField.CACHE_CONTROL,
+            HttpHeaderField.CONNECTION,
+            HttpHeaderField.CONTENT_LOCATION,
+            HttpHeaderField.ETAG,
+            HttpHeaderField.EXPIRES,
+            HttpHeaderField.VARY
+    };
+
+    /**
+     * Returns the status line and headers of the 304 response for the given variant of a frozen response,
+     * which are encoded on first use and retained. The {@code Date} header and the empty line are not included.
+     *
+     * @param generatedEntityTag the generated entity tag of the variant, or {@code null} if the response has an {@code ETag} header
+     */
+    byte[] getNotModifiedHead(CompressionPolicy.Encoding encoding, boolean varyAcceptEncoding, String generatedEntityTag) {
+        assert frozen;
+
+        int index = encoding.ordinal() * 2 + (varyAcceptEncoding ? 1 : 0);
+
+        byte[][] notModifiedHeads = this.notModifiedHeads;
+        byte[] head = notModifiedHeads != null ? notModifiedHeads[index] : null;
+        if (head != null) {
+            return head;
+        }
+
+        synchronized (this) {
+            notModifiedHeads = this.notModifiedHeads;
+            if (notModifiedHeads == null) {
+                notModifiedHeads = new byte[CompressionPolicy.Encoding.values().length * 2][];
+            } else {
+                head = notModifiedHeads[index];
+                if (head != null) {
+                    return head;
+                }
+                notModifiedHeads = notModifiedHeads.clone();
+            }
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+            try {
+                OutputWrapper out = new OutputWrapper(buffer, 256);
+                out.write(HttpSessionImpl.HTTP_VERSION);
+                out.writeStatus(Status.NOT_MODIFIED);
+                out.writeCRLF();
+
+                // Only the headers a cache needs to update the stored response are sent with 304
+                for (HttpHeaderField field : NOT_MODIFIED_HEADERS) {
+                    List<String> values = headers.get(field);
+                    if (values != null) {
+                        for (String value : values) {
+                            out.writeHttpHeader(field, value);
+                        }
+                    }
+                }
+                if (generatedEntityTag != null) {
+                    out.writeHttpHeader(HttpHeaderField.ETAG, generatedEntityTag);
+                }
+                if (varyAcceptEncoding) {
+                    out.writeHttpHeader(HttpHeaderField.VARY, "Accept-Encoding");
+                }
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            head = buffer.toByteArray();
+            notModifiedHeads[index] = head;
+            this.notModifiedHeads = notModifiedHeads;
+            return head;
+        }
+    }
+
     private HttpResponseImpl ensureHeaderUnaliased() {
         if (headerIsAlias) {
             this.headers = headers.clone();
@@ -113,7 +309,7 @@ public final class HttpResponseImpl implements HttpResponse {
 
     @Override
     public HttpResponse withHeader(HttpHeaderField field, String value) {
-        Objects.requireNonNull(value);
+        Headers.checkValue(value);
 
         HttpResponseImpl response = copyIfFrozen().ensureHeaderUnaliased();
         response.headers.putDirect(field, value);
@@ -129,11 +325,11 @@ public final class HttpResponseImpl implements HttpResponse {
         if (size == 0) {
             response.headers.putDirect(field, null);
         } else if (size == 1) {
-            response.headers.putDirect(field, values.get(0));
+            response.headers.putDirect(field, Headers.checkValue(values.get(0)));
         } else {
             ArrayList<String> clone = new ArrayList<>(size);
             for (String value : values) {
-                clone.add(Objects.requireNonNull(value));
+                clone.add(Headers.checkValue(value));
             }
             if (clone.size() != size) {
                 throw new ConcurrentModificationException();
@@ -146,7 +342,7 @@ public final class HttpResponseImpl implements HttpResponse {
 
     @Override
     public HttpResponse addHeader(HttpHeaderField field, String value) {
-        Objects.requireNonNull(value);
+        Headers.checkValue(value);
 
         HttpResponseImpl response = copyIfFrozen().ensureHeaderUnaliased();
         response.headers.addDirect(field, value);
@@ -206,6 +402,32 @@ public final class HttpResponseImpl implements HttpResponse {
         return response;
     }
 
+    @Override
+    public HttpResponse withBody(List<? extends Segment> segments) {
+        BodySegment[] array = new BodySegment[segments.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = (BodySegment) Objects.requireNonNull(segments.get(i));
+        }
+
+        HttpResponseImpl response = copyIfFrozen();
+        response.body = array;
+        response.contentLength = -1L;
+        return response;
+    }
+
+    @Override
+    public HttpResponse withBody(BodyWriter writer, long contentLength) {
+        Objects.requireNonNull(writer);
+
+        if (contentLength < -1L) {
+            throw new IllegalArgumentException();
+        }
+
+        HttpResponseImpl response = copyIfFrozen();
+        response.body = writer;
+        response.contentLength = contentLength;
+        return response;
+    }
 
     @Override
     public HttpResponse withBody(Path file) {
@@ -264,6 +486,15 @@ public final class HttpResponseImpl implements HttpResponse {
             }
         } else if (body instanceof Path) {
             builder.append("<file body, path=").append(body).append('>');
+        } else if (body instanceof BodySegment[]) {
+            builder.append("<composite body, segments=").append(((BodySegment[]) body).length).append('>');
+        } else if (body instanceof BodyWriter) {
+            builder.append("<generated body, ");
+            if (contentLength < 0) {
+                builder.append("unknown length>");
+            } else {
+                builder.append("length=").append(contentLength).append('>');
+            }
         } else {
             assert body == null;
             builder.append("<empty body>");
@@ -16,8 +16,11 @@
 package org.glavo.plumo.internal;
 
 import org.glavo.plumo.*;
+import org.glavo.plumo.internal.util.BodyOutputStream;
 import org.glavo.plumo.internal.util.OutputWrapper;
+import org.glavo.plumo.internal.util.ParallelGZip;
 import org.glavo.plumo.internal.util.ParameterParser;
+import org.glavo.plumo.internal.util.TokenBucket;
 import org.glavo.plumo.internal.util.Utils;
 
 import java.io.*;
@@ -26,13 +29,20 @@ import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.DateTimeException;
 import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class HttpSessionImpl implements HttpSession, Runnable, Closeable {
 
@@ -47,6 +57,14 @@ public final class HttpSessionImpl implements HttpSession, Runnable, Closeable {
     // Use in HttpServerImpl
     volatile HttpSessionImpl prev, next;
 
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_BUSY = 1;
+    private static final int STATE_CLOSING = 2;
+
+    private final AtomicInteger state = new AtomicInteger(STATE_IDLE);
+
+    private volatile RequestContextImpl currentContext;
+
     private Object userData;
 
     public HttpSessionImpl(PlumoImpl server, Closeable acceptSocket,
@@ -58,15 +76,33 @@ public final class HttpSessionImpl implements HttpSession, Runnable, Closeable {
         this.requestReader = requestReader;
         this.output = output;
         this.socket = acceptSocket;
+
+        output.setBandwidthLimits(server.bandwidthLimit,
+                server.maxConnectionBandwidth != Long.MAX_VALUE ? new TokenBucket(server.maxConnectionBandwidth) : null);
     }
 
     @Override
     public void run() {
+        serve(null);
+    }
+
+    /**
+     * Serves requests until the session ends or an asynchronous handler suspends it.
+     *
+     * @param resumed the exchange whose asynchronous handler has completed, or {@code null}
+     */
+    private void serve(Exchange resumed) {
         HttpHandler handler = server.handler;
+        HttpRequestImpl request = null;
+        boolean suspended = false;
         try {
-            while (isOpen()) {
-                HttpRequestImpl request = null;
-                try {
+            Exchange exchange = resumed;
+            while (true) {
+                if (exchange == null) {
+                    if (!isOpen()) {
+                        return;
+                    }
+
                     request = new HttpRequestImpl(remoteAddress, localAddress);
                     try {
                         requestReader.readHeader(request);
@@ -74,45 +110,314 @@ public final class HttpSessionImpl implements HttpSession, Runnable, Closeable {
                         return;
                     }
 
-                    HttpResponseImpl r = null;
-                    try {
-                        try {
-                            r = (HttpResponseImpl) handler.handle(request);
-                            if (r == null) {
+                    if (!state.compareAndSet(STATE_IDLE, STATE_BUSY)) {
+                        // Closed by the server
+                        return;
+                    }
+
+                    if (server.rateLimiter != null) {
+                        long delay = server.rateLimiter.acquire(request);
+                        if (delay > 0) {
+                            boolean keepAlive = sendTooManyRequests(request, delay);
+                            if (!state.compareAndSet(STATE_BUSY, STATE_IDLE) || !keepAlive || server.isDraining()) {
                                 return;
                             }
-                        } catch (Throwable e) {
-                            r = (HttpResponseImpl) handler.handleRecoverableException(this, request, e);
-                        }
-
-                        if (!r.isAvailable()) {
-                            r.close(handler);
-                            throw new IOException("The response has been sent before");
+                            continue;
                         }
+                    }
 
-                        String connection = request.headers.getFirst(HttpHeaderField.CONNECTION);
-                        boolean keepAlive = "1.1".equals(request.getHttpVersion()) && (connection == null || !connection.equals("close"));
+                    exchange = new Exchange(request);
+                    if (exchange.invoke()) {
+                        suspended = true;
+                        return;
+                    }
+                } else {
+                    request = exchange.request;
+                }
 
-                        send(request, r, output, keepAlive);
+                boolean keepAlive = exchange.complete();
+                DisconnectMonitor monitor = exchange.monitor;
+                exchange = null;
 
-                        if (!keepAlive || "close".equals(r.headers.getFirst(HttpHeaderField.CONNECTION))) {
-                            return;
-                        }
-                    } finally {
-                        if (r != null) {
-                            r.close(handler);
-                        }
-                        request.finish();
+                if (!keepAlive || state.get() != STATE_IDLE || server.isDraining() && state.compareAndSet(STATE_IDLE, STATE_CLOSING)) {
+                    // The read ahead is stopped by closing the connection
+                    if (monitor != null) {
+                        monitor.cancel();
                     }
-                } catch (SocketTimeoutException e) {
                     return;
-                } catch (Exception e) {
-                    handler.handleUnrecoverableException(this, request, e);
+                }
+
+                if (monitor != null && monitor.handOff()) {
+                    // The read ahead goes on to serve the next request
+                    suspended = true;
                     return;
                 }
             }
+        } catch (SocketTimeoutException e) {
+            // Connection idle for too long
+        } catch (Exception e) {
+            if (state.get() != STATE_CLOSING) {
+                handler.handleUnrecoverableException(this, request, e);
+            }
         } finally {
-            server.close(this);
+            if (!suspended) {
+                server.close(this);
+            }
+        }
+    }
+
+    /**
+     * A request being handled on this session.
+     */
+    private final class Exchange {
+        final HttpRequestImpl request;
+        final RequestContextImpl context;
+        final DisconnectMonitor monitor;
+
+        HttpLaneImpl lane;
+        HttpResponse response;
+        Throwable exception;
+
+        Exchange(HttpRequestImpl request) {
+            this.request = request;
+            this.context = new RequestContextImpl(server.requestTimeout);
+            request.context = context;
+            request.session = HttpSessionImpl.this;
+            currentContext = context;
+
+            if (server.detectClientDisconnect && request.body == null && requestReader.isBufferEmpty()) {
+                monitor = new DisconnectMonitor(context);
+                monitor.start();
+            } else {
+                monitor = null;
+            }
+        }
+
+        /**
+         * Invokes the handler.
+         *
+         * @return {@code true} if the handler completes asynchronously, in which case the session is resumed on completion
+         */
+        boolean invoke() {
+            HttpHandler handler = server.handler;
+            context.enter();
+            try {
+                lane = server.selectLane(request);
+                if (lane != null) {
+                    return await(lane.submit(handler, request, server.executor));
+                } else if (handler instanceof AsyncHttpHandler) {
+                    CompletionStage<HttpResponse> stage = ((AsyncHttpHandler) handler).handleAsync(request);
+                    if (stage != null) {
+                        return await(stage);
+                    }
+                } else {
+                    response = handler.handle(request);
+                }
+            } catch (Throwable e) {
+                exception = e;
+            }
+            return false;
+        }
+
+        private boolean await(CompletionStage<HttpResponse> stage) {
+            CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+            stage.whenComplete((r, e) -> {
+                boolean completed = e != null ? future.completeExceptionally(e) : future.complete(r);
+                if (!completed && r != null) {
+                    // The request has been cancelled, so the response is never sent
+                    ((HttpResponseImpl) r).close(server.handler);
+                }
+            });
+
+            if (future.isDone()) {
+                takeResult(future);
+                return false;
+            }
+
+            context.detach();
+            context.onCancel(() -> future.cancel(false));
+            future.whenComplete((r, e) -> {
+                takeResult(future);
+                try {
+                    server.executor.execute(() -> serve(this));
+                } catch (RejectedExecutionException ignored) {
+                    // The server is stopping, finish the exchange here so that its resources are released
+                    serve(this);
+                }
+            });
+            return true;
+        }
+
+        private void takeResult(CompletableFuture<HttpResponse> future) {
+            try {
+                response = future.join();
+            } catch (CompletionException e) {
+                exception = e.getCause() != null ? e.getCause() : e;
+            } catch (CancellationException e) {
+                exception = e;
+            }
+        }
+
+        /**
+         * Sends the response and releases the resources of the request.
+         *
+         * @return {@code true} if the connection can be kept alive
+         */
+        boolean complete() throws IOException {
+            HttpHandler handler = server.handler;
+            // Only requests whose handler finished after the shutdown began count as drained
+            boolean drained = server.isDraining();
+            context.exit();
+            request.startResponse();
+
+            HttpResponseImpl r = (HttpResponseImpl) response;
+            try {
+                HttpRequest.CancellationReason reason = context.getCancellationReason();
+                if (exception != null) {
+                    Throwable e = exception;
+                    if (reason == HttpRequest.CancellationReason.TIMEOUT && e instanceof Exception) {
+                        e = new HttpResponseException(HttpResponse.Status.SERVICE_UNAVAILABLE, "SERVICE UNAVAILABLE: Request timed out.", (Exception) e);
+                    } else if (reason != null) {
+                        // Nobody is waiting for the response
+                        return false;
+                    }
+                    r = (HttpResponseImpl) handler.handleRecoverableException(HttpSessionImpl.this, request, e);
+                } else if (r == null) {
+                    return false;
+                }
+
+                if (reason != null && reason != HttpRequest.CancellationReason.TIMEOUT) {
+                    return false;
+                }
+
+                if (!r.isAvailable()) {
+                    r.close(handler);
+                    throw new IOException("The response has been sent before");
+                }
+
+                String connection = request.headers.getFirst(HttpHeaderField.CONNECTION);
+                boolean keepAlive = "1.1".equals(request.getHttpVersion()) && (connection == null || !connection.equals("close"))
+                                    && !server.isDraining();
+
+                output.setResponseBandwidthLimit(lane != null ? lane.bandwidthLimit : null);
+                send(request, r, output, keepAlive);
+
+                return keepAlive && !"close".equals(r.headers.getFirst(HttpHeaderField.CONNECTION));
+            } finally {
+                if (r != null) {
+                    r.close(handler);
+                }
+                request.finish();
+                currentContext = null;
+
+                // Fails if the session has been closed forcibly
+                if (state.compareAndSet(STATE_BUSY, STATE_IDLE) && drained) {
+                    server.drainedRequests.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes this session if it is waiting for the next request.
+     */
+    void closeIfIdle() {
+        if (state.compareAndSet(STATE_IDLE, STATE_CLOSING)) {
+            close();
+        }
+    }
+
+    /**
+     * Closes this session regardless of its state.
+     *
+     * @return {@code true} if a request was being processed
+     */
+    boolean forceClose() {
+        int oldState = state.getAndSet(STATE_CLOSING);
+        RequestContextImpl context = currentContext;
+        if (context != null) {
+            context.cancel(HttpRequest.CancellationReason.SERVER_STOPPED);
+        }
+        close();
+        return oldState == STATE_BUSY;
+    }
+
+    /**
+     * Reads ahead on the connection while a request without body is being handled,
+     * and cancels the request if the client closes the connection.
+     * <p>
+     * If the handler completes while the read ahead is still waiting, the session hands the connection over to it
+     * instead of waiting for it, so that the read ahead goes on to serve the next request
+     * and the connection never holds more than one thread once the handler has completed.
+     */
+    private final class DisconnectMonitor implements Runnable {
+        private static final int PENDING = 0;
+        private static final int RUNNING = 1;
+        private static final int CANCELLED = 2;
+        private static final int FINISHED = 3;
+        private static final int HANDED_OFF = 4;
+
+        private final RequestContextImpl context;
+        private final AtomicInteger monitorState = new AtomicInteger(PENDING);
+
+        DisconnectMonitor(RequestContextImpl context) {
+            this.context = context;
+        }
+
+        void start() {
+            try {
+                server.executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                monitorState.set(CANCELLED);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!monitorState.compareAndSet(PENDING, RUNNING)) {
+                return;
+            }
+
+            boolean failed = false;
+            try {
+                if (requestReader.readAhead() < 0) {
+                    context.cancel(HttpRequest.CancellationReason.CLIENT_DISCONNECTED);
+                }
+            } catch (SocketTimeoutException e) {
+                failed = true;
+            } catch (IOException e) {
+                failed = true;
+                context.cancel(HttpRequest.CancellationReason.CLIENT_DISCONNECTED);
+            }
+
+            if (!monitorState.compareAndSet(RUNNING, FINISHED)) {
+                // The session has handed the connection over
+                if (failed) {
+                    server.close(HttpSessionImpl.this);
+                } else {
+                    serve(null);
+                }
+            }
+        }
+
+        /**
+         * Prevents the read ahead from starting if it has not started yet.
+         */
+        void cancel() {
+            monitorState.compareAndSet(PENDING, CANCELLED);
+        }
+
+        /**
+         * Called when the connection is kept alive after the handler has completed.
+         *
+         * @return {@code true} if the read ahead is still waiting and takes over the connection,
+         * {@code false} if the session can read the next request from the buffer itself
+         */
+        boolean handOff() {
+            if (monitorState.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            return monitorState.compareAndSet(RUNNING, HANDED_OFF);
         }
     }
 
@@ -131,7 +436,58 @@ public final class HttpSessionImpl implements HttpSession, Runnable, Closeable {
                 : ((SocketChannel) socket).isOpen();
     }
 
-    private static final byte[] HTTP_VERSION = "HTTP/1.1 ".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] HTTP_VERSION = "HTTP/1.1 ".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] TOO_MANY_REQUESTS_HEAD =
+            "HTTP/1.1 429 Too Many Requests\r\ncontent-length: 0\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Rejects a request over the rate limit without invoking the handler.
+     *
+     * @return {@code true} if the connection can be kept alive
+     */
+    private boolean sendTooManyRequests(HttpRequestImpl request, long delayNanos) throws IOException {
+        // Draining the body of an abusive client is not worth it
+        String connection = request.headers.getFirst(HttpHeaderField.CONNECTION);
+        boolean keepAlive = request.body == null && "1.1".equals(request.getHttpVersion())
+                            && (connection == null || !connection.equals("close"));
+
+        output.acquireBuffer();
+        try {
+            output.write(TOO_MANY_REQUESTS_HEAD);
+            output.writeHttpHeader(HttpHeaderField.DATE, Constants.HTTP_TIME_FORMATTER.format(Instant.now()));
+            output.writeHttpHeader(HttpHeaderField.RETRY_AFTER, Long.toString((delayNanos + 999_999_999L) / 1_000_000_000L));
+            if (!keepAlive) {
+                output.writeHttpHeader(HttpHeaderField.CONNECTION, "close");
+            }
+            output.writeCRLF();
+            output.flush();
+        } finally {
+            output.releaseBuffer();
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Sends an informational response, the caller guarantees that the final response has not been started.
+     */
+    void sendInterimResponse(HttpResponse.Status status, Map<HttpHeaderField, List<String>> headers) throws IOException {
+        output.acquireBuffer();
+        try {
+            output.write(HTTP_VERSION);
+            output.writeStatus(status);
+            output.writeCRLF();
+            for (Map.Entry<HttpHeaderField, List<String>> entry : headers.entrySet()) {
+                for (String value : entry.getValue()) {
+                    output.writeHttpHeader(entry.getKey(), value);
+                }
+            }
+            output.writeCRLF();
+            output.flush();
+        } finally {
+            output.releaseBuffer();
+        }
+    }
 
     /**
      * Sends given response to the socket.
@@ -141,24 +497,19 @@ public final class HttpSessionImpl implements HttpSession, Runnable, Closeable {
             throw new Error("sendResponse(): Status can't be null.");
         }
 
-        out.write(HTTP_VERSION);
-        out.writeStatus(response.status);
-        out.writeCRLF();
-
-        if (request == null || !request.headers.containsKey(HttpHeaderField.DATE)) {
-            out.writeHttpHeader(HttpHeaderField.DATE, Constants.HTTP_TIME_FORMATTER.format(Instant.now()));
-        }
-
-        response.headers.writeHeadersTo(out);
-
-        if (!keepAlive && !response.headers.containsKey(HttpHeaderField.CONNECTION)) {
-            out.writeHttpHeader(HttpHeaderField.CONNECTION, "close");
+        out.acquireBuffer();
+        try {
+            writeResponse(request, response, out, keepAlive);
+        } finally {
+            out.releaseBuffer();
         }
+    }
 
+    private void writeResponse(HttpRequestImpl request, HttpResponseImpl response, OutputWrapper out, boolean keepAlive) throws IOException {
         String contentType = response.headers.getFirst(HttpHeaderField.CONTENT_TYPE);
 
         long inputLength;
-        Object preprocessedData; // ReadableByteChannel | byte[] | ByteBuffer
+        Object preprocessedData; // ReadableByteChannel | byte[] | ByteBuffer | BodyWriter | CompositeBody
 
         Closeable needToClose = null;
         try {
@@ -180,6 +531,13 @@ public final class HttpSessionImpl implements HttpSession, Runnable, Closeable {
                 byte[] ba = ((String) body).getBytes(ParameterParser.getEncoding(contentType));
                 preprocessedData = ByteBuffer.wrap(ba);
                 inputLength = ba.length;
+            } else if (body instanceof BodySegment[]) {
+                CompositeBody composite = CompositeBody.open((BodySegment[]) body);
+                preprocessedData = needToClose = composite;
+                inputLength = composite.length;
+            } else if (body instanceof HttpResponse.BodyWriter) {
+                preprocessedData = body;
+                inputLength = response.contentLength;
             } else if (body instanceof Path) {
                 SeekableByteChannel channel = Files.newByteChannel((Path) body);
                 preprocessedData = needToClose = channel;
@@ -194,53 +552,141 @@ public final class HttpSessionImpl implements HttpSession, Runnable, Closeable {
                 throw new InternalError("unexpected type: " + body.getClass());
             }
 
-            boolean autoGZip;
-            if (response.headers.containsKey(HttpHeaderField.CONTENT_ENCODING)) {
-                autoGZip = false;
-            } else {
-                String acceptEncoding = request != null ? request.headers.getFirst(HttpHeaderField.ACCEPT_ENCODING) : null;
-                if (acceptEncoding == null || !acceptEncoding.contains("gzip")) {
-                    autoGZip = false;
-                } else if (contentType == null || inputLength < 16) {
-                    autoGZip = false;
-                } else {
-                    autoGZip = contentType.startsWith("text/") || contentType.startsWith("application/json");
+            // Bodies that can be read from any position support byte ranges
+            boolean seekable = response.status.getStatusCode() == 200
+                    && (preprocessedData instanceof ByteBuffer || preprocessedData instanceof SeekableByteChannel)
+                    && !response.headers.containsKey(HttpHeaderField.CONTENT_RANGE)
+                    && !response.headers.containsKey(HttpHeaderField.CONTENT_LENGTH);
+
+            HttpRequest.Method method = request != null ? request.method : null;
+
+            // Frozen responses with a body in memory never change, so they get a strong entity tag of the body,
+            // encoded variants get a weak one, see HttpResponseImpl.getEntityTag
+            String entityTag = response.headers.getFirst(HttpHeaderField.ETAG);
+            boolean generatedEntityTag = false;
+            if (entityTag == null && response.isFrozen() && preprocessedData instanceof ByteBuffer
+                    && response.status.getStatusCode() == 200) {
+                entityTag = response.getEntityTag(CompressionPolicy.Encoding.IDENTITY, (ByteBuffer) preprocessedData);
+                generatedEntityTag = true;
+            }
+
+            ByteRanges ranges = null;
+            if (seekable && method == HttpRequest.Method.GET) {
+                String range = request.headers.getFirst(HttpHeaderField.RANGE);
+                if (range != null) {
+                    String ifRange = request.headers.getFirst(HttpHeaderField.IF_RANGE);
+                    if (ifRange == null || ifRangeMatches(ifRange, response, entityTag)) {
+                        ranges = ByteRanges.parse(range, inputLength);
+                    }
                 }
             }
 
-            if (autoGZip) {
-                out.writeHttpHeader(HttpHeaderField.CONTENT_ENCODING, "gzip");
+            CompressionPolicy.Selection selection = null;
+            if (ranges == null && request != null && body != null && inputLength != 0
+                    && !response.headers.containsKey(HttpHeaderField.CONTENT_ENCODING)) {
+                selection = server.compressionPolicy.select(request, contentType, inputLength);
+            }
+
+            CompressionPolicy.Encoding encoding = selection != null ? selection.getEncoding() : CompressionPolicy.Encoding.IDENTITY;
+            boolean varyAcceptEncoding = selection != null && !varyContains(response, "accept-encoding");
+
+            if (generatedEntityTag && encoding != CompressionPolicy.Encoding.IDENTITY) {
+                entityTag = response.getEntityTag(encoding, (ByteBuffer) preprocessedData);
+            }
+
+            if (response.isFrozen() && response.status.getStatusCode() == 200
+                    && (method == HttpRequest.Method.GET || method == HttpRequest.Method.HEAD)) {
+                if (isNotModified(request, response, entityTag)) {
+                    out.write(response.getNotModifiedHead(encoding, varyAcceptEncoding, generatedEntityTag ? entityTag : null));
+                    if (!request.headers.containsKey(HttpHeaderField.DATE)) {
+                        out.writeHttpHeader(HttpHeaderField.DATE, Constants.HTTP_TIME_FORMATTER.format(Instant.now()));
+                    }
+                    if (!keepAlive && !response.headers.containsKey(HttpHeaderField.CONNECTION)) {
+                        out.writeHttpHeader(HttpHeaderField.CONNECTION, "close");
+                    }
+                    out.writeCRLF();
+                    out.flush();
+                    return;
+                }
+            }
+
+            HttpResponse.Status status = ranges == null ? response.status
+                    : ranges == ByteRanges.UNSATISFIABLE ? HttpResponse.Status.RANGE_NOT_SATISFIABLE
+                    : HttpResponse.Status.PARTIAL_CONTENT;
+
+            out.write(HTTP_VERSION);
+            out.writeStatus(status);
+            out.writeCRLF();
+
+            if (request == null || !request.headers.containsKey(HttpHeaderField.DATE)) {
+                out.writeHttpHeader(HttpHeaderField.DATE, Constants.HTTP_TIME_FORMATTER.format(Instant.now()));
+            }
+
+            if (ranges != null && ranges.count() != 1) {
+                // The parts carry the content type
+                response.headers.writeHeadersTo(out, HttpHeaderField.CONTENT_TYPE);
+            } else {
+                response.headers.writeHeadersTo(out);
+            }
+
+            if (generatedEntityTag) {
+                out.writeHttpHeader(HttpHeaderField.ETAG, entityTag);
+            }
+
+            if (!keepAlive && !response.headers.containsKey(HttpHeaderField.CONNECTION)) {
+                out.writeHttpHeader(HttpHeaderField.CONNECTION, "close");
+            }
+
+            if (ranges != null) {
+                writeRanges(ranges, preprocessedData, contentType, inputLength);
+                out.flush();
+                return;
+            }
+
+            if (varyAcceptEncoding) {
+                out.writeHttpHeader(HttpHeaderField.VARY, "Accept-Encoding");
+            }
+
+            CompressionPolicy.Selection compression = encoding != CompressionPolicy.Encoding.IDENTITY ? selection : null;
+
+            if (seekable && compression == null && !response.headers.containsKey(HttpHeaderField.ACCEPT_RANGES)) {
+                out.writeHttpHeader(HttpHeaderField.ACCEPT_RANGES, "bytes");
+            }
+
+            if (compression != null) {
+                out.writeHttpHeader(HttpHeaderField.CONTENT_ENCODING, compression.getEncoding().getToken());
+
+                // Frozen responses with a body in memory are compressed once and sent with the exact length
+                if (response.isFrozen() && preprocessedData instanceof ByteBuffer) {
+                    byte[] encoded = response.getEncodedBody(compression.getEncoding(), compression.getLevel(), (ByteBuffer) preprocessedData);
+                    preprocessedData = ByteBuffer.wrap(encoded);
+                    inputLength = encoded.length;
+                    compression = null;
+                }
             }
 
-            long outputLength = autoGZip ? -1 : inputLength;
+            long outputLength = compression != null ? -1 : inputLength;
 
             if (outputLength >= 0 && !response.headers.containsKey(HttpHeaderField.CONTENT_LENGTH)) {
                 out.writeHttpHeader(HttpHeaderField.CONTENT_LENGTH, Long.toString(outputLength));
             }
 
             boolean chunkedTransfer = outputLength < 0;
-            HttpRequest.Method method = request != null ? request.method : null;
 
             if (method != HttpRequest.Method.HEAD && chunkedTransfer) {
                 out.writeHttpHeader(HttpHeaderField.TRANSFER_ENCODING, "chunked");
             }
             out.writeCRLF();
             if (method != HttpRequest.Method.HEAD && outputLength != 0) {
-                if (preprocessedData instanceof ReadableByteChannel) {
-                    ReadableByteChannel input = (ReadableByteChannel) preprocessedData;
-
-                    if (autoGZip) {
-                        output.transferGZipFrom(input);
-                    } else if (chunkedTransfer) {
-                        output.transferChunkedFrom(input);
-                    } else {
-                        output.transferFrom(input);
+                if (compression != null) {
+                    CompressionPolicyImpl.compressionStarted();
+                }
+                try {
+                    writeBody(preprocessedData, compression, inputLength, outputLength);
+                } finally {
+                    if (compression != null) {
+                        CompressionPolicyImpl.compressionFinished();
                     }
-                } else if (autoGZip) {
-                    ByteBuffer data = (ByteBuffer) preprocessedData;
-                    output.transferGZipFrom(data);
-                } else {
-                    Utils.writeFully(out, (ByteBuffer) preprocessedData);
                 }
             }
             out.flush();
@@ -249,6 +695,214 @@ public final class HttpSessionImpl implements HttpSession, Runnable, Closeable {
         }
     }
 
+    /**
+     * Evaluates the {@code If-Range} header, which requires a strong match of the entity tag or the modification date.
+     */
+    private static boolean ifRangeMatches(String ifRange, HttpResponseImpl response, String entityTag) {
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("W/")) {
+            return false;
+        }
+
+        String validator = ifRange.startsWith("\"") ? entityTag : response.headers.getFirst(HttpHeaderField.LAST_MODIFIED);
+        return validator != null && validator.trim().equals(ifRange);
+    }
+
+    /**
+     * Evaluates {@code If-None-Match}, or {@code If-Modified-Since} if the request has no {@code If-None-Match}.
+     */
+    private static boolean isNotModified(HttpRequestImpl request, HttpResponseImpl response, String entityTag) {
+        String ifNoneMatch = request.headers.getFirst(HttpHeaderField.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return entityTag != null && ifNoneMatchMatches(ifNoneMatch, entityTag);
+        }
+
+        String ifModifiedSince = request.headers.getFirst(HttpHeaderField.IF_MODIFIED_SINCE);
+        String lastModified = ifModifiedSince != null ? response.headers.getFirst(HttpHeaderField.LAST_MODIFIED) : null;
+        if (lastModified == null) {
+            return false;
+        }
+
+        try {
+            Instant modified = Instant.from(Constants.HTTP_TIME_FORMATTER.parse(lastModified.trim()));
+            return !modified.isAfter(Instant.from(Constants.HTTP_TIME_FORMATTER.parse(ifModifiedSince.trim())));
+        } catch (DateTimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Evaluates the {@code If-None-Match} header, which uses the weak comparison of entity tags.
+     */
+    static boolean ifNoneMatchMatches(String ifNoneMatch, String entityTag) {
+        entityTag = entityTag.trim();
+        if (entityTag.startsWith("W/")) {
+            entityTag = entityTag.substring(2);
+        }
+
+        int length = ifNoneMatch.length();
+        int i = 0;
+        while (i < length) {
+            char ch = ifNoneMatch.charAt(i);
+            if (ch == '*') {
+                return true;
+            } else if (ch == '"') {
+                // Entity tags may contain commas, so the list is split by the quotes
+                int end = ifNoneMatch.indexOf('"', i + 1);
+                if (end < 0) {
+                    return false;
+                }
+
+                if (end + 1 - i == entityTag.length() && ifNoneMatch.startsWith(entityTag, i)) {
+                    return true;
+                }
+                i = end + 1;
+            } else {
+                i++;
+            }
+        }
+        return false;
+    }
+
+    private void writeRanges(ByteRanges ranges, Object data, String contentType, long completeLength) throws IOException {
+        if (ranges == ByteRanges.UNSATISFIABLE) {
+            output.writeHttpHeader(HttpHeaderField.CONTENT_RANGE, "bytes */" + completeLength);
+            output.writeHttpHeader(HttpHeaderField.CONTENT_LENGTH, "0");
+            output.writeCRLF();
+            return;
+        }
+
+        if (ranges.count() == 1) {
+            output.writeHttpHeader(HttpHeaderField.CONTENT_RANGE, ranges.contentRange(0, completeLength));
+            output.writeHttpHeader(HttpHeaderField.CONTENT_LENGTH, Long.toString(ranges.length(0)));
+            output.writeCRLF();
+            writeRegion(data, ranges.start(0), ranges.length(0));
+            return;
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String boundary = Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+
+        byte[][] partHeaders = new byte[ranges.count()][];
+        long contentLength = 0;
+        for (int i = 0; i < ranges.count(); i++) {
+            StringBuilder builder = new StringBuilder(128);
+            if (i > 0) {
+                builder.append("\r\n");
+            }
+            builder.append("--").append(boundary).append("\r\n");
+            if (contentType != null) {
+                builder.append("content-type: ").append(contentType).append("\r\n");
+            }
+            builder.append("content-range: ").append(ranges.contentRange(i, completeLength)).append("\r\n\r\n");
+
+            partHeaders[i] = builder.toString().getBytes(StandardCharsets.ISO_8859_1);
+            contentLength += partHeaders[i].length + ranges.length(i);
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        contentLength += end.length;
+
+        output.writeHttpHeader(HttpHeaderField.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+        output.writeHttpHeader(HttpHeaderField.CONTENT_LENGTH, Long.toString(contentLength));
+        output.writeCRLF();
+
+        for (int i = 0; i < ranges.count(); i++) {
+            output.write(partHeaders[i]);
+            writeRegion(data, ranges.start(i), ranges.length(i));
+        }
+        output.write(end);
+    }
+
+    /**
+     * Writes a region of a seekable body, files are sent with {@code transferTo} without reading the bytes before it.
+     */
+    private void writeRegion(Object data, long position, long count) throws IOException {
+        if (data instanceof ByteBuffer) {
+            ByteBuffer region = ((ByteBuffer) data).duplicate();
+            int start = region.position() + (int) position;
+            region.limit(start + (int) count).position(start);
+            Utils.writeFully(output, region);
+        } else if (data instanceof FileChannel) {
+            output.transferFrom((FileChannel) data, position, count);
+        } else {
+            SeekableByteChannel channel = (SeekableByteChannel) data;
+            channel.position(position);
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 8192));
+            while (count > 0) {
+                buffer.clear();
+                if (count < buffer.capacity()) {
+                    buffer.limit((int) count);
+                }
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException();
+                }
+                buffer.flip();
+                count -= buffer.remaining();
+                Utils.writeFully(output, buffer);
+            }
+        }
+    }
+
+    private static boolean varyContains(HttpResponseImpl response, String field) {
+        List<String> values = response.headers.get(HttpHeaderField.VARY);
+        if (values != null) {
+            for (String value : values) {
+                for (String item : value.split(",")) {
+                    String name = item.trim();
+                    if (name.equals("*") || name.equalsIgnoreCase(field)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private void writeBody(Object preprocessedData, CompressionPolicy.Selection compression,
+                           long inputLength, long outputLength) throws IOException {
+        if (preprocessedData instanceof HttpResponse.BodyWriter) {
+            BodyOutputStream bodyOutput = compression != null ? BodyOutputStream.newCompressedChunked(output, compression.getEncoding(), compression.getLevel())
+                    : outputLength < 0 ? BodyOutputStream.newChunked(output)
+                    : BodyOutputStream.newFixedLength(output, outputLength);
+
+            ((HttpResponse.BodyWriter) preprocessedData).writeTo(bodyOutput);
+            bodyOutput.close();
+        } else if (preprocessedData instanceof CompositeBody) {
+            CompositeBody composite = (CompositeBody) preprocessedData;
+            if (compression != null) {
+                BodyOutputStream bodyOutput = BodyOutputStream.newCompressedChunked(output, compression.getEncoding(), compression.getLevel());
+                composite.writeTo((WritableByteChannel) bodyOutput);
+                bodyOutput.close();
+            } else {
+                composite.writeTo(output);
+            }
+        } else if (preprocessedData instanceof ReadableByteChannel) {
+            ReadableByteChannel input = (ReadableByteChannel) preprocessedData;
+
+            if (compression != null) {
+                if (compression.getEncoding() == CompressionPolicy.Encoding.GZIP && ParallelGZip.isApplicable(inputLength)) {
+                    ParallelGZip.transfer(output, input, compression.getLevel(), server.compressionExecutor);
+                } else {
+                    output.transferCompressedFrom(input, compression.getEncoding(), compression.getLevel());
+                }
+            } else if (outputLength < 0) {
+                output.transferChunkedFrom(input);
+            } else {
+                output.transferFrom(input);
+            }
+        } else if (compression != null) {
+            ByteBuffer data = (ByteBuffer) preprocessedData;
+            if (compression.getEncoding() == CompressionPolicy.Encoding.GZIP && ParallelGZip.isApplicable(inputLength)) {
+                ParallelGZip.transfer(output, data, compression.getLevel(), server.compressionExecutor);
+            } else {
+                output.transferCompressedFrom(data, compression.getEncoding(), compression.getLevel());
+            }
+        } else {
+            Utils.writeFully(output, (ByteBuffer) preprocessedData);
+        }
+    }
+
     @Override
     public Object getUserData() {
         return userData;
@@ -15,8 +15,12 @@
  */
 package org.glavo.plumo.internal;
 
+import org.glavo.plumo.CompressionPolicy;
 import org.glavo.plumo.HttpHandler;
+import org.glavo.plumo.HttpLane;
 import org.glavo.plumo.Plumo;
+import org.glavo.plumo.RateLimiter;
+import org.glavo.plumo.WorkerExecutor;
 import org.glavo.plumo.internal.util.UnixDomainSocketUtils;
 import org.glavo.plumo.internal.util.VirtualThreadUtils;
 
@@ -25,10 +29,10 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicLong;
 
 public final class PlumoBuilderImpl implements Plumo.Builder {
 
@@ -41,7 +45,17 @@ public final class PlumoBuilderImpl implements Plumo.Builder {
     private String[] sslProtocols;
     private String protocol;
     private HttpHandler handler;
+    private final Map<String, HttpLaneImpl> lanes = new HashMap<>();
+    private HttpLane.Selector laneSelector;
+    private RateLimiterImpl rateLimiter;
     private int timeout = 0;
+    private long requestTimeout = 0L;
+    private boolean detectClientDisconnect = false;
+    private int minOutputBufferSize = 1024;
+    private int maxOutputBufferSize = 64 * 1024;
+    private long maxBandwidth = Long.MAX_VALUE;
+    private long maxConnectionBandwidth = Long.MAX_VALUE;
+    private CompressionPolicy compressionPolicy = CompressionPolicy.getDefault();
 
     @Override
     public Plumo.Builder bind(InetSocketAddress address) {
@@ -69,6 +83,42 @@ public final class PlumoBuilderImpl implements Plumo.Builder {
         return this;
     }
 
+    @Override
+    public Plumo.Builder executor(Executor executor, boolean shutdownOnStop) {
+        Objects.requireNonNull(executor);
+        this.executor = executor;
+        this.shutdownExecutor = shutdownOnStop;
+        return this;
+    }
+
+    @Override
+    public Plumo.Builder lane(HttpLane lane) {
+        Objects.requireNonNull(lane);
+        if (!(lane instanceof HttpLaneImpl)) {
+            throw new IllegalArgumentException("Lanes must be created by HttpLane.newBuilder: " + lane);
+        }
+        if (lanes.putIfAbsent(lane.getName(), (HttpLaneImpl) lane) != null) {
+            throw new IllegalArgumentException("Duplicate lane: " + lane.getName());
+        }
+        return this;
+    }
+
+    @Override
+    public Plumo.Builder laneSelector(HttpLane.Selector selector) {
+        this.laneSelector = selector;
+        return this;
+    }
+
+    @Override
+    public Plumo.Builder rateLimiter(RateLimiter limiter) {
+        Objects.requireNonNull(limiter);
+        if (!(limiter instanceof RateLimiterImpl)) {
+            throw new IllegalArgumentException("Rate limiters must be created by RateLimiter.newBuilder: " + limiter);
+        }
+        this.rateLimiter = (RateLimiterImpl) limiter;
+        return this;
+    }
+
     @Override
     public Plumo.Builder socketTimeout(long timeout) {
         if (timeout < 0) {
@@ -82,6 +132,62 @@ public final class PlumoBuilderImpl implements Plumo.Builder {
         return this;
     }
 
+    @Override
+    public Plumo.Builder requestTimeout(long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Request timeout must not be negative");
+        }
+
+        this.requestTimeout = timeout;
+        return this;
+    }
+
+    @Override
+    public Plumo.Builder detectClientDisconnect(boolean detect) {
+        this.detectClientDisconnect = detect;
+        return this;
+    }
+
+    @Override
+    public Plumo.Builder outputBufferSize(int minSize, int maxSize) {
+        if (minSize < 256) {
+            throw new IllegalArgumentException("Output buffer size must be at least 256 bytes");
+        }
+        if (maxSize < minSize) {
+            throw new IllegalArgumentException("Maximum output buffer size must not be less than the minimum size");
+        }
+
+        this.minOutputBufferSize = minSize;
+        this.maxOutputBufferSize = maxSize;
+        return this;
+    }
+
+    @Override
+    public Plumo.Builder maxBandwidth(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Bandwidth must be positive");
+        }
+
+        this.maxBandwidth = bytesPerSecond;
+        return this;
+    }
+
+    @Override
+    public Plumo.Builder maxConnectionBandwidth(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Bandwidth must be positive");
+        }
+
+        this.maxConnectionBandwidth = bytesPerSecond;
+        return this;
+    }
+
+    @Override
+    public Plumo.Builder compressionPolicy(CompressionPolicy policy) {
+        this.compressionPolicy = Objects.requireNonNull(policy);
+        return this;
+    }
+
     @Override
     public Plumo.Builder sslContext(SSLContext sslContext) {
         Objects.requireNonNull(sslContext);
@@ -113,31 +219,23 @@ public final class PlumoBuilderImpl implements Plumo.Builder {
         }
 
         Executor executor = this.executor;
-        boolean shutdownExecutor = false;
+        boolean shutdownExecutor = this.shutdownExecutor;
         if (executor == null) {
-            final AtomicLong requestCount = new AtomicLong();
-
             if (Constants.USE_VIRTUAL_THREAD == Boolean.TRUE || (Constants.USE_VIRTUAL_THREAD == null && VirtualThreadUtils.isSupported())) {
-                VirtualThreadUtils.checkAvailable();
-                executor = command -> {
-                    Thread t = VirtualThreadUtils.newVirtualThread(command);
-                    t.setName("plumo-worker-" + requestCount.getAndIncrement());
-                    t.start();
-                };
+                executor = WorkerExecutor.newVirtualThreadExecutor();
+                shutdownExecutor = false;
             } else {
+                executor = WorkerExecutor.newCachedThreadPool();
                 shutdownExecutor = true;
-                executor = Executors.newCachedThreadPool(r -> {
-                    Thread t = new Thread(r, "plumo-worker-" + requestCount.getAndIncrement());
-                    t.setDaemon(true);
-                    return t;
-                });
             }
         }
 
         return new PlumoImpl(address, unixDomainSocketPath, deleteUnixDomainSocketFileIfExists,
                 executor, shutdownExecutor,
                 sslContext, sslProtocols,
-                timeout,
-                handler);
+                timeout, requestTimeout, detectClientDisconnect,
+                minOutputBufferSize, maxOutputBufferSize, maxBandwidth, maxConnectionBandwidth, compressionPolicy,
+                handler,
+                laneSelector != null ? new HashMap<>(lanes) : null, laneSelector, rateLimiter);
     }
 }
@@ -15,9 +15,13 @@
  */
 package org.glavo.plumo.internal;
 
+import org.glavo.plumo.CompressionPolicy;
 import org.glavo.plumo.HttpHandler;
+import org.glavo.plumo.HttpLane;
 import org.glavo.plumo.Plumo;
+import org.glavo.plumo.WorkerExecutor;
 import org.glavo.plumo.internal.util.OutputWrapper;
+import org.glavo.plumo.internal.util.TokenBucket;
 import org.glavo.plumo.internal.util.UnixDomainSocketUtils;
 import org.glavo.plumo.internal.util.Utils;
 
@@ -33,27 +37,46 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 public final class PlumoImpl implements Plumo {
 
     private final ReentrantLock lock = new ReentrantLock();
+    private final Condition allSessionsClosed = lock.newCondition();
     private final CountDownLatch latch = new CountDownLatch(1);
 
     private final SocketAddress address;
     private final Path unixDomainSocketPath;
     private final boolean deleteUnixDomainSocketFileIfExists;
-    private final Executor executor;
+    final Executor executor;
     private final boolean shutdownExecutor;
     private final SSLContext sslContext;
     private final String[] sslProtocols;
     private final int timeout;
+    final long requestTimeout;
+    final boolean detectClientDisconnect;
+    private final int minOutputBufferSize;
+    private final int maxOutputBufferSize;
+    final TokenBucket bandwidthLimit;
+    final long maxConnectionBandwidth;
+    final CompressionPolicy compressionPolicy;
+
+    // Runs the blocks of parallel gzip, so that they never occupy the common pool or the session executor
+    final WorkerExecutor compressionExecutor;
+
     final HttpHandler handler;
+    private final Map<String, HttpLaneImpl> lanes;
+    private final HttpLane.Selector laneSelector;
+    final RateLimiterImpl rateLimiter;
     private final String protocol;
 
     private volatile Thread shutdownHook;
@@ -70,7 +93,16 @@ public final class PlumoImpl implements Plumo {
 
     private volatile int status = STATUS_INIT;
 
-    public PlumoImpl(SocketAddress address, Path unixDomainSocketPath, boolean deleteUnixDomainSocketFileIfExists, Executor executor, boolean shutdownExecutor, SSLContext sslContext, String[] sslProtocols, int timeout, HttpHandler handler) {
+    // Graceful shutdown
+    private volatile boolean draining = false;
+    private long drainDeadline;
+    final LongAdder drainedRequests = new LongAdder();
+    private final LongAdder killedRequests = new LongAdder();
+
+    public PlumoImpl(SocketAddress address, Path unixDomainSocketPath, boolean deleteUnixDomainSocketFileIfExists, Executor executor, boolean shutdownExecutor, SSLContext sslContext, String[] sslProtocols, int timeout, long requestTimeout, boolean detectClientDisconnect,
+                     int minOutputBufferSize, int maxOutputBufferSize, long maxBandwidth, long maxConnectionBandwidth,
+                     CompressionPolicy compressionPolicy, HttpHandler handler,
+                     Map<String, HttpLaneImpl> lanes, HttpLane.Selector laneSelector, RateLimiterImpl rateLimiter) {
         this.address = address;
         this.unixDomainSocketPath = unixDomainSocketPath;
         this.deleteUnixDomainSocketFileIfExists = deleteUnixDomainSocketFileIfExists;
@@ -79,13 +111,42 @@ public final class PlumoImpl implements Plumo {
         this.sslContext = sslContext;
         this.sslProtocols = sslProtocols;
         this.timeout = timeout;
+        this.requestTimeout = requestTimeout;
+        this.detectClientDisconnect = detectClientDisconnect;
+        this.minOutputBufferSize = minOutputBufferSize;
+        this.maxOutputBufferSize = maxOutputBufferSize;
+        this.bandwidthLimit = maxBandwidth != Long.MAX_VALUE ? new TokenBucket(maxBandwidth) : null;
+        this.maxConnectionBandwidth = maxConnectionBandwidth;
+        this.compressionPolicy = compressionPolicy;
+        this.compressionExecutor = WorkerExecutorImpl.newBoundedThreadPool(
+                Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors() * 16);
         this.handler = handler;
+        this.lanes = lanes;
+        this.laneSelector = laneSelector;
+        this.rateLimiter = rateLimiter;
 
         this.protocol = sslContext == null ? "http" : "https";
     }
 
     private volatile Closeable serverSocketOrChannel;
 
+    HttpLaneImpl selectLane(HttpRequestImpl request) {
+        if (laneSelector == null) {
+            return null;
+        }
+
+        String name = laneSelector.select(request);
+        if (name == null) {
+            return null;
+        }
+
+        HttpLaneImpl lane = lanes.get(name);
+        if (lane == null) {
+            throw new IllegalStateException("Unknown lane: " + name);
+        }
+        return lane;
+    }
+
     @Override
     public boolean isRunning() {
         int status = this.status;
@@ -128,6 +189,73 @@ public final class PlumoImpl implements Plumo {
         }
     }
 
+    @Override
+    public void stopGracefully(long timeout, TimeUnit unit) {
+        lock.lock();
+        try {
+            int status = this.status;
+
+            if (status == STATUS_INIT) {
+                this.status = STATUS_FINISH;
+            } else if (status == STATUS_RUNNING) {
+                this.status = STATUS_TERMINATING;
+                this.drainDeadline = System.nanoTime() + unit.toNanos(timeout);
+                this.draining = true;
+                handler.safeClose(serverSocketOrChannel);
+
+                // Busy sessions will send 'Connection: close' and exit after the current response
+                HttpSessionImpl session = firstSession;
+                while (session != null) {
+                    session.closeIfIdle();
+                    session = session.next;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isDraining() {
+        return draining;
+    }
+
+    @Override
+    public long getDrainedRequestCount() {
+        return drainedRequests.sum();
+    }
+
+    @Override
+    public long getKilledRequestCount() {
+        return killedRequests.sum();
+    }
+
+    private void awaitDrain() {
+        boolean interrupted = false;
+
+        lock.lock();
+        try {
+            while (firstSession != null) {
+                long remaining = drainDeadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+
+                try {
+                    allSessionsClosed.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
     public void stopAndWait() {
         stop();
@@ -285,7 +413,7 @@ public final class PlumoImpl implements Plumo {
                         if (!exec(new HttpSessionImpl(this, socket,
                                 socket.getRemoteSocketAddress(), socket.getLocalSocketAddress(),
                                 new HttpRequestReader(socket.getInputStream()),
-                                new OutputWrapper(socket.getOutputStream(), 1024)))) {
+                                new OutputWrapper(socket.getOutputStream(), minOutputBufferSize, maxOutputBufferSize)))) {
                             break;
                         }
                     } catch (IOException e) {
@@ -301,7 +429,7 @@ public final class PlumoImpl implements Plumo {
                         if (!exec(new HttpSessionImpl(this, socketChannel,
                                 socketChannel.getRemoteAddress(), socketChannel.getLocalAddress(),
                                 new HttpRequestReader(socketChannel),
-                                new OutputWrapper(socketChannel, 1024)))) {
+                                new OutputWrapper(socketChannel, minOutputBufferSize, maxOutputBufferSize)))) {
                             break;
                         }
                     } catch (IOException e) {
@@ -310,32 +438,36 @@ public final class PlumoImpl implements Plumo {
                 } while (serverSocketChannel.isOpen());
             }
         } finally {
+            if (draining) {
+                awaitDrain();
+            }
             finish();
         }
     }
 
     private void finish() {
+        boolean shutdownExecutor = false;
+
         lock.lock();
         try {
             if (status == STATUS_FINISH) {
                 return;
             }
             status = STATUS_FINISH;
+            shutdownExecutor = this.shutdownExecutor;
 
             HttpSessionImpl session = firstSession;
 
             while (session != null) {
-                session.close();
+                if (session.forceClose()) {
+                    killedRequests.increment();
+                }
                 session = session.next;
             }
 
             firstSession = null;
             lastSession = null;
 
-            if (shutdownExecutor) {
-                Utils.shutdown(executor);
-            }
-
             handler.safeClose(this.serverSocketOrChannel);
 
             if (unixDomainSocketPath != null) {
@@ -351,10 +483,19 @@ public final class PlumoImpl implements Plumo {
                 Runtime.getRuntime().removeShutdownHook(hook);
             }
         } finally {
+            lock.unlock();
+
+            // Sessions need the lock to unregister themselves, so wait for them outside of it
+            if (shutdownExecutor) {
+                Utils.shutdown(executor);
+            }
+
+            // Queued blocks still run, as the sessions compressing them wait for their results
+            compressionExecutor.shutdown();
+
             if (latch.getCount() > 0) {
                 latch.countDown();
             }
-            lock.unlock();
         }
     }
 
@@ -362,6 +503,7 @@ public final class PlumoImpl implements Plumo {
         lock.lock();
         try {
             if (status != STATUS_RUNNING) {
+                session.close();
                 return false;
             }
 
@@ -379,7 +521,12 @@ public final class PlumoImpl implements Plumo {
             lock.unlock();
         }
 
-        executor.execute(session);
+        try {
+            executor.execute(session);
+        } catch (RejectedExecutionException e) {
+            DefaultLogger.log(DefaultLogger.Level.WARNING, "The executor rejected the connection from " + session.remoteAddress, e);
+            close(session);
+        }
         return true;
     }
 
@@ -402,6 +549,10 @@ public final class PlumoImpl implements Plumo {
                 next.prev = prev;
                 session.next = null;
             }
+
+            if (firstSession == null) {
+                allSessionsClosed.signalAll();
+            }
         } finally {
             lock.unlock();
         }
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.glavo.plumo.HttpHeaderField;
+import org.glavo.plumo.HttpRequest;
+import org.glavo.plumo.RateLimiter;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A rate limiter based on the generic cell rate algorithm (GCRA).
+ * <p>
+ * The state of a client is the theoretical arrival time of its next request, updated with a single CAS.
+ * A client whose theoretical arrival time has passed has a full budget, which is the same as having no state,
+ * so such clients are dropped from the table by a periodic sweep without changing any decision.
+ * <p>
+ * The sweep runs on the request threads, each request examines at most {@link #SWEEP_BATCH_SIZE} clients,
+ * so a pass over a large table is spread over many requests instead of stalling one of them.
+ */
+public final class RateLimiterImpl implements RateLimiter {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long SWEEP_INTERVAL_NANOS = NANOS_PER_SECOND;
+    static final int SWEEP_BATCH_SIZE = 32;
+
+    private static final long EVICTED = Long.MIN_VALUE;
+
+    private static final class Client {
+        private static final AtomicLongFieldUpdater<Client> TAT = AtomicLongFieldUpdater.newUpdater(Client.class, "tat");
+
+        // The theoretical arrival time, or EVICTED once the client is being removed from the table
+        volatile long tat;
+
+        Client(long tat) {
+            this.tat = tat;
+        }
+    }
+
+    private final double requestsPerSecond;
+    private final int burst;
+    private final HttpHeaderField keyHeader;
+
+    private final long emissionInterval;
+    private final long tolerance;
+
+    private final ConcurrentHashMap<Object, Client> clients = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep;
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private Iterator<Client> sweepIterator; // Guarded by sweeping, null between passes
+    private final LongAdder rejected = new LongAdder();
+
+    private RateLimiterImpl(double requestsPerSecond, int burst, HttpHeaderField keyHeader) {
+        this.requestsPerSecond = requestsPerSecond;
+        this.burst = burst;
+        this.keyHeader = keyHeader;
+
+        this.emissionInterval = Math.max(1L, (long) (NANOS_PER_SECOND / requestsPerSecond));
+        this.tolerance = emissionInterval > Long.MAX_VALUE / 4 / burst ? Long.MAX_VALUE / 4 : emissionInterval * burst;
+        this.nextSweep = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL_NANOS);
+    }
+
+    private Object getKey(HttpRequest request) {
+        if (keyHeader != null) {
+            String value = request.getHeader(keyHeader);
+            if (value != null) {
+                // The last address is the one added by the nearest proxy
+                String key = value.substring(value.lastIndexOf(',') + 1).trim();
+                if (!key.isEmpty()) {
+                    return key;
+                }
+            }
+        }
+        return request.getRemoteInetAddress();
+    }
+
+    /**
+     * Takes one request from the budget of the client of the request.
+     *
+     * @return zero if the request is within the limit, otherwise the time in nanoseconds until it would be
+     */
+    long acquire(HttpRequest request) {
+        Object key = getKey(request);
+        long now = System.nanoTime();
+
+        if (now - nextSweep.get() >= 0) {
+            sweep(now);
+        }
+
+        while (true) {
+            Client client = clients.get(key);
+            if (client == null) {
+                client = clients.putIfAbsent(key, new Client(now + emissionInterval));
+                if (client == null) {
+                    return 0L;
+                }
+            }
+
+            long tat = client.tat;
+            if (tat == EVICTED) {
+                // Help the sweeper, then start over with a new state
+                clients.remove(key, client);
+                continue;
+            }
+
+            long next = (tat - now > 0 ? tat : now) + emissionInterval;
+            long excess = next - now - tolerance;
+            if (excess > 0) {
+                rejected.increment();
+                return excess;
+            }
+
+            if (Client.TAT.compareAndSet(client, tat, next)) {
+                return 0L;
+            }
+        }
+    }
+
+    /**
+     * Examines the next batch of clients of the current pass, a new pass starts every {@link #SWEEP_INTERVAL_NANOS}.
+     */
+    private void sweep(long now) {
+        if (!sweeping.compareAndSet(false, true)) {
+            // Another thread is sweeping
+            return;
+        }
+
+        try {
+            if (now - nextSweep.get() < 0) {
+                // The pass has just been finished by another thread
+                return;
+            }
+
+            Iterator<Client> it = sweepIterator;
+            if (it == null) {
+                it = clients.values().iterator();
+            }
+
+            for (int i = 0; i < SWEEP_BATCH_SIZE; i++) {
+                if (!it.hasNext()) {
+                    sweepIterator = null;
+                    nextSweep.set(now + SWEEP_INTERVAL_NANOS);
+                    return;
+                }
+
+                Client client = it.next();
+                long tat = client.tat;
+                if (tat != EVICTED && tat - now <= 0 && Client.TAT.compareAndSet(client, tat, EVICTED)) {
+                    it.remove();
+                }
+            }
+            sweepIterator = it;
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    @Override
+    public boolean tryAcquire(HttpRequest request) {
+        return acquire(request) == 0L;
+    }
+
+    @Override
+    public double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    @Override
+    public int getBurst() {
+        return burst;
+    }
+
+    @Override
+    public int getTrackedClientCount() {
+        return clients.size();
+    }
+
+    @Override
+    public long getRejectedRequestCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimiter[requests-per-second=" + requestsPerSecond
+               + ", burst=" + burst
+               + ", tracked-clients=" + getTrackedClientCount()
+               + ", rejected=" + getRejectedRequestCount()
+               + "]";
+    }
+
+    public static final class BuilderImpl implements RateLimiter.Builder {
+        private final double requestsPerSecond;
+        private int burst;
+        private HttpHeaderField keyHeader;
+
+        public BuilderImpl(double requestsPerSecond) {
+            if (!(requestsPerSecond > 0) || Double.isInfinite(requestsPerSecond)) {
+                throw new IllegalArgumentException("requestsPerSecond must be positive");
+            }
+            this.requestsPerSecond = requestsPerSecond;
+            this.burst = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.ceil(requestsPerSecond)));
+        }
+
+        @Override
+        public RateLimiter.Builder burst(int burst) {
+            if (burst <= 0) {
+                throw new IllegalArgumentException("burst must be positive");
+            }
+            this.burst = burst;
+            return this;
+        }
+
+        @Override
+        public RateLimiter.Builder keyHeader(HttpHeaderField field) {
+            this.keyHeader = Objects.requireNonNull(field);
+            return this;
+        }
+
+        @Override
+        public RateLimiter build() {
+            return new RateLimiterImpl(requestsPerSecond, burst, keyHeader);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.glavo.plumo.HttpRequest;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
+
+final class RequestContextImpl implements HttpRequest.Context {
+
+    private static final class TimeoutScheduler {
+        static final ScheduledThreadPoolExecutor SCHEDULER;
+
+        static {
+            SCHEDULER = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "plumo-request-timeout");
+                t.setDaemon(true);
+                return t;
+            });
+            SCHEDULER.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    private final Instant deadline;
+
+    private volatile HttpRequest.CancellationReason reason;
+    private List<Runnable> callbacks;
+
+    // Guarded by this
+    private Thread worker;
+    private boolean interruptSent = false;
+    private boolean finished = false;
+    private ScheduledFuture<?> timeoutTask;
+
+    RequestContextImpl(long timeoutMillis) {
+        if (timeoutMillis > 0) {
+            this.deadline = Instant.now().plusMillis(timeoutMillis);
+            this.timeoutTask = TimeoutScheduler.SCHEDULER.schedule(
+                    () -> cancel(HttpRequest.CancellationReason.TIMEOUT), timeoutMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.deadline = null;
+        }
+    }
+
+    /**
+     * Binds the current thread as the thread running the handler, which is interrupted on cancellation.
+     */
+    synchronized void enter() {
+        worker = Thread.currentThread();
+        if (reason != null) {
+            interruptWorker();
+        }
+    }
+
+    // Guarded by this
+    private void interruptWorker() {
+        worker.interrupt();
+        interruptSent = true;
+    }
+
+    /**
+     * Clears the interrupt status of the current thread if it was set by cancellation, called after unbinding the thread.
+     * Interrupts from other sources, such as executor shutdown, are preserved.
+     */
+    private void clearInterrupt() {
+        boolean clear;
+        synchronized (this) {
+            clear = interruptSent;
+            interruptSent = false;
+        }
+
+        if (clear) {
+            //noinspection ResultOfMethodCallIgnored
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Unbinds the current thread while the handler completes asynchronously.
+     * Does nothing if another thread has been bound since.
+     */
+    void detach() {
+        synchronized (this) {
+            if (worker != Thread.currentThread()) {
+                return;
+            }
+            worker = null;
+        }
+
+        clearInterrupt();
+    }
+
+    /**
+     * Marks the handler as finished. Cancellation has no effect after this.
+     */
+    void exit() {
+        synchronized (this) {
+            finished = true;
+            worker = null;
+            if (timeoutTask != null) {
+                timeoutTask.cancel(false);
+                timeoutTask = null;
+            }
+        }
+
+        clearInterrupt();
+    }
+
+    boolean cancel(HttpRequest.CancellationReason reason) {
+        List<Runnable> callbacks;
+        synchronized (this) {
+            if (finished || this.reason != null) {
+                return false;
+            }
+
+            this.reason = reason;
+            if (worker != null) {
+                interruptWorker();
+            }
+
+            callbacks = this.callbacks;
+            this.callbacks = null;
+        }
+
+        if (callbacks != null) {
+            for (Runnable callback : callbacks) {
+                runCallback(callback);
+            }
+        }
+        return true;
+    }
+
+    private static void runCallback(Runnable callback) {
+        try {
+            callback.run();
+        } catch (Throwable e) {
+            DefaultLogger.log(DefaultLogger.Level.WARNING, "Cancellation callback threw an exception", e);
+        }
+    }
+
+    @Override
+    public Instant getDeadline() {
+        return deadline;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return reason != null;
+    }
+
+    @Override
+    public HttpRequest.CancellationReason getCancellationReason() {
+        return reason;
+    }
+
+    @Override
+    public void checkCancelled() {
+        HttpRequest.CancellationReason reason = this.reason;
+        if (reason != null) {
+            throw new CancellationException("Request cancelled: " + reason);
+        }
+    }
+
+    @Override
+    public void onCancel(Runnable callback) {
+        Objects.requireNonNull(callback);
+        synchronized (this) {
+            if (reason == null) {
+                if (callbacks == null) {
+                    callbacks = new ArrayList<>(2);
+                }
+                callbacks.add(callback);
+                return;
+            }
+        }
+        runCallback(callback);
+    }
+
+    @Override
+    public String toString() {
+        return "HttpRequest.Context[deadline=" + deadline + ", cancellation-reason=" + reason + "]";
+    }
+}
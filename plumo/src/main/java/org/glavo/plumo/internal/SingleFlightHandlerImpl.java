@@ -0,0 +1,226 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.glavo.plumo.HttpHandler;
+import org.glavo.plumo.HttpHeaderField;
+import org.glavo.plumo.HttpRequest;
+import org.glavo.plumo.HttpResponse;
+import org.glavo.plumo.HttpSession;
+import org.glavo.plumo.SingleFlightHandler;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class SingleFlightHandlerImpl implements SingleFlightHandler {
+
+    private final HttpHandler handler;
+    private final HttpHeaderField[] varyHeaders;
+    private final long timeout;
+
+    // Completed with the shared response, or with null if the waiting requests must be handled independently
+    private final ConcurrentHashMap<String, CompletableFuture<HttpResponse>> flights = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    private SingleFlightHandlerImpl(HttpHandler handler, HttpHeaderField[] varyHeaders, long timeout) {
+        this.handler = handler;
+        this.varyHeaders = varyHeaders;
+        this.timeout = timeout;
+    }
+
+    private boolean isVaryHeader(HttpHeaderField field) {
+        for (HttpHeaderField varyHeader : varyHeaders) {
+            if (varyHeader.equals(field)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isCoalescible(HttpRequest request) {
+        HttpRequest.Method method = request.getMethod();
+        return (method == HttpRequest.Method.GET || method == HttpRequest.Method.HEAD)
+               && request.getBodySize() == 0
+               // Responses for different users must not be mixed up
+               && (!request.containsHeader(HttpHeaderField.AUTHORIZATION) || isVaryHeader(HttpHeaderField.AUTHORIZATION))
+               && (!request.containsHeader(HttpHeaderField.COOKIE) || isVaryHeader(HttpHeaderField.COOKIE));
+    }
+
+    private String getKey(HttpRequest request) {
+        // Virtual hosts may answer the same URI differently
+        String host = request.getHeader(HttpHeaderField.HOST);
+        String rawUri = request.getRawURI();
+        if (varyHeaders.length == 0) {
+            String key = host != null ? host + ' ' + rawUri : ' ' + rawUri;
+            return request.getMethod() == HttpRequest.Method.GET ? key : "HEAD " + key;
+        }
+
+        StringBuilder builder = new StringBuilder(rawUri.length() + 64);
+        builder.append(request.getMethod()).append(' ');
+        if (host != null) {
+            builder.append(host);
+        }
+        builder.append(' ').append(rawUri);
+        for (HttpHeaderField field : varyHeaders) {
+            // Header values never contain line breaks
+            builder.append('\n');
+            List<String> values = request.getHeaders(field);
+            if (values != null) {
+                for (String value : values) {
+                    builder.append(value).append('\r');
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public HttpResponse handle(HttpRequest request) throws Exception {
+        if (!isCoalescible(request)) {
+            return handler.handle(request);
+        }
+
+        String key = getKey(request);
+        CompletableFuture<HttpResponse> flight = new CompletableFuture<>();
+        CompletableFuture<HttpResponse> existing = flights.putIfAbsent(key, flight);
+        if (existing == null) {
+            return lead(request, key, flight);
+        }
+
+        HttpResponse response = await(existing);
+        if (response != null) {
+            coalesced.increment();
+            return response;
+        }
+        return handler.handle(request);
+    }
+
+    private HttpResponse lead(HttpRequest request, String key, CompletableFuture<HttpResponse> flight) throws Exception {
+        HttpResponse response;
+        try {
+            response = handler.handle(request);
+        } catch (Throwable e) {
+            flights.remove(key, flight);
+            if (e instanceof InterruptedException || e instanceof CancellationException || request.getContext().isCancelled()) {
+                // The failure is specific to this request
+                flight.complete(null);
+            } else {
+                flight.completeExceptionally(e);
+            }
+            throw e;
+        }
+
+        // Requests arriving from now on start a new flight
+        flights.remove(key, flight);
+        if (response != null && ((HttpResponseImpl) response).isShareable()
+            && !CachingHandlerImpl.isPersonalized((HttpResponseImpl) response)) {
+            response = response.freeze();
+            flight.complete(response);
+        } else {
+            flight.complete(null);
+        }
+        return response;
+    }
+
+    private HttpResponse await(CompletableFuture<HttpResponse> flight) throws Exception {
+        try {
+            return timeout > 0 ? flight.get(timeout, TimeUnit.MILLISECONDS) : flight.get();
+        } catch (TimeoutException e) {
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public int getInFlightRequestCount() {
+        return flights.size();
+    }
+
+    @Override
+    public long getCoalescedRequestCount() {
+        return coalesced.sum();
+    }
+
+    @Override
+    public HttpResponse handleRecoverableException(HttpSession session, HttpRequest request, Throwable exception) {
+        return handler.handleRecoverableException(session, request, exception);
+    }
+
+    @Override
+    public void handleUnrecoverableException(HttpSession session, HttpRequest request, Throwable exception) {
+        handler.handleUnrecoverableException(session, request, exception);
+    }
+
+    @Override
+    public void safeClose(Closeable closeable) {
+        handler.safeClose(closeable);
+    }
+
+    @Override
+    public String toString() {
+        return "SingleFlightHandler[handler=" + handler
+               + ", vary-headers=" + Arrays.toString(varyHeaders)
+               + ", in-flight=" + getInFlightRequestCount()
+               + ", coalesced=" + getCoalescedRequestCount()
+               + "]";
+    }
+
+    public static final class BuilderImpl implements SingleFlightHandler.Builder {
+        private final HttpHandler handler;
+        private HttpHeaderField[] varyHeaders = new HttpHeaderField[0];
+        private long timeout = 0L;
+
+        public BuilderImpl(HttpHandler handler) {
+            this.handler = Objects.requireNonNull(handler);
+        }
+
+        @Override
+        public SingleFlightHandler.Builder varyHeaders(HttpHeaderField... fields) {
+            HttpHeaderField[] varyHeaders = fields.clone();
+            for (HttpHeaderField field : varyHeaders) {
+                Objects.requireNonNull(field);
+            }
+            this.varyHeaders = varyHeaders;
+            return this;
+        }
+
+        @Override
+        public SingleFlightHandler.Builder timeout(long timeout) {
+            if (timeout < 0) {
+                throw new IllegalArgumentException("Timeout must not be negative");
+            }
+            this.timeout = timeout;
+            return this;
+        }
+
+        @Override
+        public SingleFlightHandler build() {
+            return new SingleFlightHandlerImpl(handler, varyHeaders, timeout);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.glavo.plumo.WorkerExecutor;
+import org.glavo.plumo.internal.util.VirtualThreadUtils;
+
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public abstract class WorkerExecutorImpl implements WorkerExecutor {
+
+    private static final AtomicLong workerCount = new AtomicLong();
+
+    private static String nextWorkerName() {
+        return "plumo-worker-" + workerCount.getAndIncrement();
+    }
+
+    public static WorkerExecutor newVirtualThreadExecutor(int parallelism) {
+        VirtualThreadUtils.checkAvailable();
+
+        ForkJoinPool scheduler = null;
+        ThreadFactory factory = null;
+        if (parallelism > 0 && VirtualThreadUtils.isCustomSchedulerSupported()) {
+            scheduler = new ForkJoinPool(parallelism, pool -> {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("plumo-carrier-" + t.getPoolIndex());
+                t.setDaemon(true);
+                return t;
+            }, null, true);
+            factory = VirtualThreadUtils.newVirtualThreadFactory(scheduler);
+            if (factory == null) {
+                scheduler.shutdown();
+                scheduler = null;
+            }
+        }
+
+        if (parallelism > 0 && scheduler == null) {
+            DefaultLogger.log(DefaultLogger.Level.INFO,
+                    "Custom virtual thread schedulers are not available, falling back to the default scheduler");
+        }
+
+        return new VirtualThreads(scheduler, factory);
+    }
+
+    public static WorkerExecutor newCachedThreadPool() {
+        return new ThreadPool("cached-thread-pool", new ThreadPoolExecutor(
+                0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), WorkerExecutorImpl::newPlatformThread));
+    }
+
+    public static WorkerExecutor newBoundedThreadPool(int maxThreads, int maxQueuedTasks) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                maxThreads, maxThreads, 60L, TimeUnit.SECONDS,
+                maxQueuedTasks == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(maxQueuedTasks),
+                WorkerExecutorImpl::newPlatformThread);
+        executor.allowCoreThreadTimeOut(true);
+        return new ThreadPool("bounded-thread-pool", executor);
+    }
+
+    public static WorkerExecutor newWorkStealingPool(int parallelism) {
+        return new WorkStealingPool(new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            t.setName(nextWorkerName());
+            t.setDaemon(true);
+            return t;
+        }, null, true));
+    }
+
+    private static Thread newPlatformThread(Runnable r) {
+        Thread t = new Thread(r, nextWorkerName());
+        t.setDaemon(true);
+        return t;
+    }
+
+    private final String strategy;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    final AtomicInteger active = new AtomicInteger();
+
+    // Threads running tasks, interrupted by shutdownNow
+    private final Set<Thread> workers = ConcurrentHashMap.newKeySet();
+
+    WorkerExecutorImpl(String strategy) {
+        this.strategy = strategy;
+    }
+
+    protected abstract void executeImpl(Runnable task);
+
+    @Override
+    public final void execute(Runnable command) {
+        Objects.requireNonNull(command);
+
+        if (isShutdown()) {
+            rejected.increment();
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+
+        submitted.increment();
+        try {
+            executeImpl(() -> {
+                Thread worker = Thread.currentThread();
+                workers.add(worker);
+                active.incrementAndGet();
+                try {
+                    command.run();
+                } finally {
+                    workers.remove(worker);
+                    completed.increment();
+                    if (active.decrementAndGet() == 0) {
+                        onIdle();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            submitted.decrement();
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    void onIdle() {
+    }
+
+    @Override
+    public void shutdownNow() {
+        shutdown();
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    @Override
+    public String getStrategy() {
+        return strategy;
+    }
+
+    @Override
+    public long getSubmittedTaskCount() {
+        return submitted.sum();
+    }
+
+    @Override
+    public long getRejectedTaskCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getCompletedTaskCount() {
+        return completed.sum();
+    }
+
+    @Override
+    public int getActiveTaskCount() {
+        return active.get();
+    }
+
+    @Override
+    public String toString() {
+        return "WorkerExecutor[strategy=" + strategy
+               + ", submitted=" + getSubmittedTaskCount()
+               + ", rejected=" + getRejectedTaskCount()
+               + ", completed=" + getCompletedTaskCount()
+               + ", active=" + getActiveTaskCount()
+               + ", queued=" + getQueuedTaskCount()
+               + "]";
+    }
+
+    private static final class VirtualThreads extends WorkerExecutorImpl {
+        private final ForkJoinPool scheduler;
+        private final ThreadFactory factory;
+
+        private volatile boolean shutdown = false;
+
+        VirtualThreads(ForkJoinPool scheduler, ThreadFactory factory) {
+            super(scheduler == null ? "virtual-threads" : "virtual-threads(parallelism=" + scheduler.getParallelism() + ")");
+            this.scheduler = scheduler;
+            this.factory = factory;
+        }
+
+        @Override
+        protected void executeImpl(Runnable task) {
+            Thread t = factory != null ? factory.newThread(task) : VirtualThreadUtils.newVirtualThread(task);
+            t.setName(nextWorkerName());
+            t.start();
+        }
+
+        @Override
+        public int getQueuedTaskCount() {
+            return scheduler != null ? scheduler.getQueuedSubmissionCount() : 0;
+        }
+
+        @Override
+        synchronized void onIdle() {
+            notifyAll();
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (this) {
+                while (active.get() > 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
+
+            // No virtual thread is mounted on the carrier pool anymore
+            if (scheduler != null) {
+                scheduler.shutdown();
+                return scheduler.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            return true;
+        }
+    }
+
+    private static class ServiceBacked extends WorkerExecutorImpl {
+        protected final ExecutorService service;
+
+        ServiceBacked(String strategy, ExecutorService service) {
+            super(strategy);
+            this.service = service;
+        }
+
+        @Override
+        protected void executeImpl(Runnable task) {
+            service.execute(task);
+        }
+
+        @Override
+        public int getQueuedTaskCount() {
+            return 0;
+        }
+
+        @Override
+        public void shutdown() {
+            service.shutdown();
+        }
+
+        @Override
+        public void shutdownNow() {
+            service.shutdownNow();
+            super.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return service.isShutdown();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return service.awaitTermination(timeout, unit);
+        }
+    }
+
+    private static final class ThreadPool extends ServiceBacked {
+        ThreadPool(String strategy, ThreadPoolExecutor service) {
+            super(strategy, service);
+        }
+
+        @Override
+        public int getQueuedTaskCount() {
+            return ((ThreadPoolExecutor) service).getQueue().size();
+        }
+    }
+
+    private static final class WorkStealingPool extends ServiceBacked {
+        WorkStealingPool(ForkJoinPool service) {
+            super("work-stealing-pool(parallelism=" + service.getParallelism() + ")", service);
+        }
+
+        @Override
+        public int getQueuedTaskCount() {
+            ForkJoinPool pool = (ForkJoinPool) service;
+            return (int) Math.min(Integer.MAX_VALUE, pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount());
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal.util;
+
+import org.glavo.plumo.CompressionPolicy;
+import org.glavo.plumo.internal.Constants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The stream passed to {@link org.glavo.plumo.HttpResponse.BodyWriter}, which frames the body on the connection.
+ * Closing it ends the body, not the connection.
+ */
+public abstract class BodyOutputStream extends OutputStream implements WritableByteChannel {
+
+    public static BodyOutputStream newChunked(OutputWrapper out) throws IOException {
+        return new Chunked(out);
+    }
+
+    public static BodyOutputStream newFixedLength(OutputWrapper out, long contentLength) {
+        return new FixedLength(out, contentLength);
+    }
+
+    public static BodyOutputStream newGZipChunked(OutputWrapper out) throws IOException {
+        return new Compressed(out, CompressionPolicy.Encoding.GZIP, Constants.GZIP_LEVEL);
+    }
+
+    public static BodyOutputStream newCompressedChunked(OutputWrapper out, CompressionPolicy.Encoding encoding, int level) throws IOException {
+        return new Compressed(out, encoding, level);
+    }
+
+    protected boolean closed = false;
+
+    protected final void ensureOpen() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int len = src.remaining();
+        if (src.hasArray()) {
+            write(src.array(), src.arrayOffset() + src.position(), len);
+            src.position(src.limit());
+        } else {
+            byte[] array = new byte[Math.min(len, 8192)];
+            while (src.hasRemaining()) {
+                int n = Math.min(src.remaining(), array.length);
+                src.get(array, 0, n);
+                write(array, 0, n);
+            }
+        }
+        return len;
+    }
+
+    private static final class FixedLength extends BodyOutputStream {
+        private final OutputWrapper out;
+        private long remaining;
+
+        FixedLength(OutputWrapper out, long contentLength) {
+            this.out = out;
+            this.remaining = contentLength;
+        }
+
+        private void consume(long n) throws IOException {
+            ensureOpen();
+            if (n > remaining) {
+                throw new IOException("Body exceeds the declared content length");
+            }
+            remaining -= n;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            consume(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            consume(len);
+            out.write(b, off, len);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            consume(src.remaining());
+            return out.write(src);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            ensureOpen();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            if (remaining > 0) {
+                throw new IOException("Body is shorter than the declared content length, missing " + remaining + " bytes");
+            }
+        }
+    }
+
+    private static final class Chunked extends BodyOutputStream {
+        private final OutputWrapper out;
+
+        Chunked(OutputWrapper out) throws IOException {
+            this.out = out;
+            out.beginChunk();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureOpen();
+            out.writeChunked(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            out.writeChunked(b, off, len);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            ensureOpen();
+            int len = src.remaining();
+            out.writeChunked(src);
+            return len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            ensureOpen();
+            out.endChunk();
+            out.flush();
+            out.beginChunk();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            out.finishChunked();
+        }
+    }
+
+    private static final class Compressed extends BodyOutputStream {
+        private static final int STAGING_SIZE = 512;
+
+        private final OutputWrapper out;
+
+        // Single bytes are staged here, so that each of them does not go through the compressor on its own
+        private byte[] staging;
+        private int staged = 0;
+
+        Compressed(OutputWrapper out, CompressionPolicy.Encoding encoding, int level) throws IOException {
+            this.out = out;
+            out.beginCompressed(encoding, level);
+        }
+
+        private void drainStaging() throws IOException {
+            if (staged > 0) {
+                int n = staged;
+                staged = 0;
+                out.writeCompressed(staging, 0, n);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureOpen();
+            if (staging == null) {
+                staging = new byte[STAGING_SIZE];
+            } else if (staged == STAGING_SIZE) {
+                drainStaging();
+            }
+            staging[staged++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            drainStaging();
+            out.writeCompressed(b, off, len);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            ensureOpen();
+            drainStaging();
+            int len = src.remaining();
+            out.writeCompressed(src);
+            return len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            ensureOpen();
+            drainStaging();
+            out.flushCompressed();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            drainStaging();
+            // Also ends the chunked body
+            out.finishCompressed();
+        }
+    }
+}
@@ -0,0 +1,917 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A Brotli (RFC 7932) encoder.
+ * <p>
+ * The input is split into meta-blocks of up to 64 KiB. Each meta-block is compressed with LZ77 over hash chains
+ * and one prefix code for each category of symbols, without block splitting, context modeling or the static dictionary.
+ * Meta-blocks that do not compress are stored uncompressed.
+ * <p>
+ * All qualities use a 64 KiB window. Each quality searches at least as hard as the one below it:
+ * longer hash chains, longer matches before the search stops early, and lazy matching from quality 5.
+ * <p>
+ * The server only uses qualities 1 to 9, the levels of {@link org.glavo.plumo.CompressionPolicy}.
+ * Qualities 10 and 11 search even longer chains and are only available to direct callers.
+ */
+public final class BrotliEncoder {
+
+    public static final int MIN_QUALITY = 1;
+    public static final int MAX_QUALITY = 11;
+
+    private static final int META_BLOCK_SIZE = 1 << 16;
+    private static final int WINDOW_BITS = 16;
+    private static final int WINDOW_SIZE = 1 << WINDOW_BITS;
+    private static final int MAX_DISTANCE = WINDOW_SIZE - 16;
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_BITS = 15;
+
+    private static final int NUM_LITERAL_SYMBOLS = 256;
+    private static final int NUM_COMMAND_SYMBOLS = 704;
+    private static final int NUM_DISTANCE_SYMBOLS = 64; // NPOSTFIX = 0, NDIRECT = 0
+
+    private static final int[] INSERT_BASE = {
+            0, 1, 2, 3, 4, 5, 6, 8, 10, 14, 18, 26, 34, 50, 66, 98, 130, 194, 322, 578, 1090, 2114, 6210, 22594
+    };
+    private static final int[] INSERT_EXTRA = {
+            0, 0, 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 7, 8, 9, 10, 12, 14, 24
+    };
+    private static final int[] COPY_BASE = {
+            2, 3, 4, 5, 6, 7, 8, 9, 10, 12, 14, 18, 22, 30, 38, 54, 70, 102, 134, 198, 326, 582, 1094, 2118
+    };
+    private static final int[] COPY_EXTRA = {
+            0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 7, 8, 9, 10, 24
+    };
+
+    // Base of the insert-and-copy code for the high bits of the insert code (rows) and copy code (columns)
+    private static final int[][] COMMAND_BASE = {
+            {128, 192, 384},
+            {256, 320, 512},
+            {448, 576, 640}
+    };
+
+    private static final int[] CODE_LENGTH_ORDER = {1, 2, 3, 4, 0, 5, 17, 6, 16, 7, 8, 9, 10, 11, 12, 13, 14, 15};
+    private static final int[] CODE_LENGTH_CODE_SYMBOLS = {0, 7, 3, 2, 1, 15};
+    private static final int[] CODE_LENGTH_CODE_LENGTHS = {2, 4, 3, 2, 2, 4};
+
+    private static final int REPEAT_PREVIOUS_CODE_LENGTH = 16;
+    private static final int REPEAT_ZERO_CODE_LENGTH = 17;
+
+    /**
+     * Compresses the remaining bytes of {@code data} into a complete Brotli stream.
+     * The position of {@code data} is not changed.
+     */
+    public static byte[] compress(ByteBuffer data, int quality) {
+        BrotliEncoder encoder = new BrotliEncoder(quality, data.remaining());
+        encoder.write(data.duplicate());
+        encoder.finish();
+        return Arrays.copyOf(encoder.output, encoder.outputLength);
+    }
+
+    private final int maxChain;
+    private final int niceLength;
+    private final boolean lazyMatching;
+
+    // buffer[0, position) is history, buffer[position, end) is pending input
+    private byte[] buffer;
+    private int position;
+    private int end;
+
+    private int[] head;
+    private int[] prev;
+
+    private int lastDistance = 4;
+
+    // Output
+    private byte[] output = new byte[1024];
+    private int outputLength;
+    private long bitBuffer;
+    private int bitCount;
+
+    private boolean finished = false;
+
+    public BrotliEncoder(int quality) {
+        this(quality, -1);
+    }
+
+    /**
+     * @param sizeHint the expected length of the input, or -1 if unknown
+     */
+    private BrotliEncoder(int quality, long sizeHint) {
+        if (quality < MIN_QUALITY || quality > MAX_QUALITY) {
+            throw new IllegalArgumentException("Quality must be between " + MIN_QUALITY + " and " + MAX_QUALITY);
+        }
+
+        this.maxChain = quality <= 4 ? 1 << quality : 8 << (quality - 4);
+        this.niceLength = quality >= 10 ? 1024 : 32 << (quality / 3);
+        this.lazyMatching = quality >= 5;
+
+        int initialSize = 2 * WINDOW_SIZE;
+        if (sizeHint >= 0 && sizeHint < initialSize) {
+            initialSize = Math.max((int) sizeHint, 64);
+        } else if (sizeHint < 0) {
+            initialSize = Math.min(initialSize, META_BLOCK_SIZE);
+        }
+        this.buffer = new byte[initialSize];
+
+        // Stream header, WBITS = 16
+        writeBits(1, 0);
+    }
+
+    // Output
+
+    /**
+     * Returns the array holding the compressed bytes produced so far, see {@link #getOutputLength()}.
+     */
+    public byte[] getOutput() {
+        return output;
+    }
+
+    public int getOutputLength() {
+        return outputLength;
+    }
+
+    /**
+     * Discards the compressed bytes that have been consumed.
+     */
+    public void clearOutput() {
+        outputLength = 0;
+    }
+
+    private void ensureOutputCapacity(int n) {
+        if (outputLength + n > output.length) {
+            output = Arrays.copyOf(output, Math.max(output.length * 2, outputLength + n));
+        }
+    }
+
+    private void writeBits(int n, long value) {
+        bitBuffer |= value << bitCount;
+        bitCount += n;
+        if (bitCount >= 32) {
+            ensureOutputCapacity(4);
+            output[outputLength++] = (byte) bitBuffer;
+            output[outputLength++] = (byte) (bitBuffer >>> 8);
+            output[outputLength++] = (byte) (bitBuffer >>> 16);
+            output[outputLength++] = (byte) (bitBuffer >>> 24);
+            bitBuffer >>>= 32;
+            bitCount -= 32;
+        }
+    }
+
+    private void alignToByte() {
+        if ((bitCount & 7) != 0) {
+            writeBits(8 - (bitCount & 7), 0);
+        }
+        ensureOutputCapacity(4);
+        while (bitCount > 0) {
+            output[outputLength++] = (byte) bitBuffer;
+            bitBuffer >>>= 8;
+            bitCount -= 8;
+        }
+    }
+
+    // Input
+
+    public void write(byte[] src, int off, int len) {
+        write(ByteBuffer.wrap(src, off, len));
+    }
+
+    public void write(ByteBuffer src) {
+        if (finished) {
+            throw new IllegalStateException("Encoder has been finished");
+        }
+
+        while (src.hasRemaining()) {
+            if (end == buffer.length) {
+                makeRoom();
+            }
+
+            int n = Math.min(src.remaining(), Math.min(buffer.length - end, META_BLOCK_SIZE - (end - position)));
+            src.get(buffer, end, n);
+            end += n;
+
+            if (end - position == META_BLOCK_SIZE) {
+                encodeMetaBlock();
+            }
+        }
+    }
+
+    private void makeRoom() {
+        if (buffer.length < 2 * WINDOW_SIZE) {
+            buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, 2 * WINDOW_SIZE));
+            return;
+        }
+
+        // Slide the window, keeping the distance between positions and their hash chain slots
+        int shift = WINDOW_SIZE;
+        System.arraycopy(buffer, shift, buffer, 0, end - shift);
+        position -= shift;
+        end -= shift;
+
+        if (head != null) {
+            for (int i = 0; i < head.length; i++) {
+                head[i] = head[i] >= shift ? head[i] - shift : -1;
+            }
+            for (int i = 0; i < prev.length; i++) {
+                prev[i] = prev[i] >= shift ? prev[i] - shift : -1;
+            }
+        }
+    }
+
+    /**
+     * Compresses the pending input and aligns the output to a byte boundary,
+     * so that a decoder can decompress everything written so far.
+     */
+    public void flush() {
+        if (end > position) {
+            encodeMetaBlock();
+        }
+
+        // Empty metadata meta-block: ISLAST = 0, MNIBBLES = 0 (11), reserved bit, MSKIPBYTES = 0
+        writeBits(6, 6);
+        alignToByte();
+    }
+
+    /**
+     * Compresses the pending input and ends the stream.
+     */
+    public void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        if (end > position) {
+            encodeMetaBlock();
+        }
+
+        // ISLAST = 1, ISLASTEMPTY = 1
+        writeBits(2, 3);
+        alignToByte();
+    }
+
+    // LZ77
+
+    private int hash(int i) {
+        int value = (buffer[i] & 0xff) | (buffer[i + 1] & 0xff) << 8 | (buffer[i + 2] & 0xff) << 16 | (buffer[i + 3] & 0xff) << 24;
+        return (value * 0x1E35A7BD) >>> (32 - HASH_BITS);
+    }
+
+    private void insertHash(int i) {
+        int h = hash(i);
+        prev[i & (WINDOW_SIZE - 1)] = head[h];
+        head[h] = i;
+    }
+
+    private int matchLength(int candidate, int i, int limit) {
+        int length = 0;
+        while (length < limit && buffer[candidate + length] == buffer[i + length]) {
+            length++;
+        }
+        return length;
+    }
+
+    // Scores approximate the bits saved by a match: a literal costs about 5.4 bits, a distance about 1.6 * log2(distance)
+    private static final int LITERAL_SCORE = 135;
+    private static final int DISTANCE_BITS_PENALTY = 40;
+    private static final int LAST_DISTANCE_BONUS = 450;
+    // A match must save more than a literal to be worth a command
+    private static final int MIN_MATCH_SCORE = LITERAL_SCORE;
+
+    private static int matchScore(int length, int distance) {
+        return LITERAL_SCORE * length - DISTANCE_BITS_PENALTY * (31 - Integer.numberOfLeadingZeros(distance));
+    }
+
+    // Results of findMatch
+    private int matchDistance;
+    private int matchScore;
+
+    /**
+     * Finds the best match for position i, whose length is returned, the distance and score are stored in
+     * matchDistance and matchScore.
+     */
+    private int findMatch(int i, int limit) {
+        int bestLength = 0;
+        int bestDistance = 0;
+        int bestScore = MIN_MATCH_SCORE;
+
+        // The last distance is cheap to encode, try it first
+        if (lastDistance <= i && lastDistance <= MAX_DISTANCE) {
+            int length = matchLength(i - lastDistance, i, limit);
+            if (length >= MIN_MATCH) {
+                bestLength = length;
+                bestDistance = lastDistance;
+                bestScore = LITERAL_SCORE * length + LAST_DISTANCE_BONUS;
+            }
+        }
+
+        int candidate = head[hash(i)];
+        int chain = maxChain;
+        int lengthToBeat = Math.max(bestLength, MIN_MATCH - 1);
+        while (candidate >= 0 && i - candidate <= MAX_DISTANCE && chain-- > 0 && lengthToBeat < limit) {
+            if (buffer[candidate + lengthToBeat] == buffer[i + lengthToBeat]) {
+                int length = matchLength(candidate, i, limit);
+                if (length > lengthToBeat) {
+                    int score = matchScore(length, i - candidate);
+                    if (score > bestScore) {
+                        bestLength = length;
+                        bestDistance = i - candidate;
+                        bestScore = score;
+                        lengthToBeat = length;
+                        if (length >= niceLength) {
+                            break;
+                        }
+                    }
+                }
+            }
+
+            int next = prev[candidate & (WINDOW_SIZE - 1)];
+            if (next >= candidate) {
+                break;
+            }
+            candidate = next;
+        }
+
+        matchDistance = bestDistance;
+        matchScore = bestScore;
+        return bestLength;
+    }
+
+    // Commands of the current meta-block
+    private int commandCount;
+    private int[] insertLengths = new int[256];
+    private int[] copyLengths = new int[256];
+    private int[] distances = new int[256]; // 0 if the command has no copy
+
+    private void addCommand(int insertLength, int copyLength, int distance) {
+        if (commandCount == insertLengths.length) {
+            insertLengths = Arrays.copyOf(insertLengths, commandCount * 2);
+            copyLengths = Arrays.copyOf(copyLengths, commandCount * 2);
+            distances = Arrays.copyOf(distances, commandCount * 2);
+        }
+        insertLengths[commandCount] = insertLength;
+        copyLengths[commandCount] = copyLength;
+        distances[commandCount] = distance;
+        commandCount++;
+    }
+
+    private void findCommands(int from, int to) {
+        if (head == null) {
+            head = new int[1 << HASH_BITS];
+            Arrays.fill(head, -1);
+            prev = new int[WINDOW_SIZE];
+        }
+
+        commandCount = 0;
+        int literalStart = from;
+        int i = from;
+        int hashEnd = to - MIN_MATCH; // positions whose 4 bytes are all in this meta-block
+
+        while (i <= hashEnd) {
+            int length = findMatch(i, to - i);
+            if (length >= MIN_MATCH && lazyMatching && length < niceLength && i + 1 <= hashEnd) {
+                int distance = matchDistance;
+                int score = matchScore;
+                insertHash(i);
+                int nextLength = findMatch(i + 1, to - i - 1);
+                if (nextLength >= MIN_MATCH && matchScore > score + LITERAL_SCORE) {
+                    // Emit a literal and take the longer match
+                    i++;
+                    length = nextLength;
+                } else {
+                    matchDistance = distance;
+                    // i is already hashed
+                    addMatch(literalStart, i, length, true);
+                    i += length;
+                    literalStart = i;
+                    continue;
+                }
+            }
+
+            if (length >= MIN_MATCH) {
+                addMatch(literalStart, i, length, false);
+                i += length;
+                literalStart = i;
+            } else {
+                insertHash(i);
+                i++;
+            }
+        }
+
+        if (literalStart < to) {
+            addCommand(to - literalStart, 0, 0);
+        }
+    }
+
+    private void addMatch(int literalStart, int i, int length, boolean hashed) {
+        int distance = matchDistance;
+        addCommand(i - literalStart, length, distance);
+
+        int hashEnd = Math.min(i + length, end - MIN_MATCH + 1);
+        for (int j = hashed ? i + 1 : i; j < hashEnd; j++) {
+            insertHash(j);
+        }
+    }
+
+    // Meta-block
+
+    private static int insertCode(int length) {
+        int code = INSERT_BASE.length - 1;
+        while (INSERT_BASE[code] > length) {
+            code--;
+        }
+        return code;
+    }
+
+    private static int copyCode(int length) {
+        int code = COPY_BASE.length - 1;
+        while (COPY_BASE[code] > length) {
+            code--;
+        }
+        return code;
+    }
+
+    private static int commandSymbol(int insertCode, int copyCode, boolean useLastDistance) {
+        int bits64 = (copyCode & 7) | ((insertCode & 7) << 3);
+        if (useLastDistance && insertCode < 8 && copyCode < 16) {
+            return copyCode < 8 ? bits64 : bits64 | 64;
+        }
+        return COMMAND_BASE[insertCode >> 3][copyCode >> 3] | bits64;
+    }
+
+    private void encodeMetaBlock() {
+        int from = position;
+        int to = end;
+        int length = to - from;
+
+        // Save the state to fall back to an uncompressed meta-block
+        int savedOutputLength = outputLength;
+        long savedBitBuffer = bitBuffer;
+        int savedBitCount = bitCount;
+        int savedLastDistance = lastDistance;
+
+        findCommands(from, to);
+        writeCompressedMetaBlock(from, length);
+
+        long compressedBits = (long) (outputLength - savedOutputLength) * 8 + bitCount - savedBitCount;
+        if (compressedBits > (long) (length + 8) * 8) {
+            outputLength = savedOutputLength;
+            bitBuffer = savedBitBuffer;
+            bitCount = savedBitCount;
+            lastDistance = savedLastDistance;
+
+            writeMetaBlockHeader(length, true);
+            alignToByte();
+            ensureOutputCapacity(length);
+            System.arraycopy(buffer, from, output, outputLength, length);
+            outputLength += length;
+        }
+
+        position = to;
+    }
+
+    private void writeMetaBlockHeader(int length, boolean uncompressed) {
+        writeBits(1, 0); // ISLAST
+        int lg = length == 1 ? 1 : 32 - Integer.numberOfLeadingZeros(length - 1);
+        int nibbles = (lg < 16 ? 16 : (lg + 3)) / 4;
+        writeBits(2, nibbles - 4);
+        writeBits(nibbles * 4, length - 1);
+        writeBits(1, uncompressed ? 1 : 0);
+    }
+
+    private void writeCompressedMetaBlock(int from, int length) {
+        int[] literalHistogram = new int[NUM_LITERAL_SYMBOLS];
+        int[] commandHistogram = new int[NUM_COMMAND_SYMBOLS];
+        int[] distanceHistogram = new int[NUM_DISTANCE_SYMBOLS];
+
+        // Compute the symbols
+        int[] commandSymbols = new int[commandCount];
+        int[] distanceSymbols = new int[commandCount]; // -1 if no distance is written
+        int[] distanceExtra = new int[commandCount];
+
+        int last = lastDistance;
+        int p = from;
+        for (int c = 0; c < commandCount; c++) {
+            int insertLength = insertLengths[c];
+            int copyLength = copyLengths[c];
+            int distance = distances[c];
+
+            for (int j = 0; j < insertLength; j++) {
+                literalHistogram[buffer[p + j] & 0xff]++;
+            }
+            p += insertLength + copyLength;
+
+            int insertCode = insertCode(insertLength);
+            int copyCode = copyCode(copyLength == 0 ? 2 : copyLength);
+
+            distanceSymbols[c] = -1;
+            int symbol;
+            if (copyLength == 0) {
+                // Trailing literals, the meta-block ends before the copy
+                symbol = commandSymbol(insertCode, copyCode, true);
+            } else if (distance == last) {
+                symbol = commandSymbol(insertCode, copyCode, true);
+                if (symbol >= 128) {
+                    distanceSymbols[c] = 0;
+                }
+            } else {
+                symbol = commandSymbol(insertCode, copyCode, false);
+
+                int value = distance + 3;
+                int bucket = 31 - Integer.numberOfLeadingZeros(value);
+                int extraBits = bucket - 1;
+                int prefix = (value >>> extraBits) & 1;
+                distanceSymbols[c] = 16 + 2 * (extraBits - 1) + prefix;
+                distanceExtra[c] = value & ((1 << extraBits) - 1);
+                last = distance;
+            }
+
+            commandSymbols[c] = symbol;
+            commandHistogram[symbol]++;
+            if (distanceSymbols[c] >= 0) {
+                distanceHistogram[distanceSymbols[c]]++;
+            }
+        }
+        lastDistance = last;
+
+        writeMetaBlockHeader(length, false);
+        writeBits(1, 0); // NBLTYPESL = 1
+        writeBits(1, 0); // NBLTYPESI = 1
+        writeBits(1, 0); // NBLTYPESD = 1
+        writeBits(2, 0); // NPOSTFIX
+        writeBits(4, 0); // NDIRECT
+        writeBits(2, 0); // Context mode
+        writeBits(1, 0); // NTREESL = 1
+        writeBits(1, 0); // NTREESD = 1
+
+        byte[] literalDepths = new byte[NUM_LITERAL_SYMBOLS];
+        short[] literalCodes = new short[NUM_LITERAL_SYMBOLS];
+        storePrefixCode(literalHistogram, NUM_LITERAL_SYMBOLS, 8, literalDepths, literalCodes);
+
+        byte[] commandDepths = new byte[NUM_COMMAND_SYMBOLS];
+        short[] commandCodes = new short[NUM_COMMAND_SYMBOLS];
+        storePrefixCode(commandHistogram, NUM_COMMAND_SYMBOLS, 10, commandDepths, commandCodes);
+
+        byte[] distanceDepths = new byte[NUM_DISTANCE_SYMBOLS];
+        short[] distanceCodes = new short[NUM_DISTANCE_SYMBOLS];
+        storePrefixCode(distanceHistogram, NUM_DISTANCE_SYMBOLS, 6, distanceDepths, distanceCodes);
+
+        p = from;
+        for (int c = 0; c < commandCount; c++) {
+            int insertLength = insertLengths[c];
+            int copyLength = copyLengths[c];
+
+            int symbol = commandSymbols[c];
+            writeBits(commandDepths[symbol], commandCodes[symbol] & 0xffff);
+
+            int insertCode = insertCode(insertLength);
+            int copyCode = copyCode(copyLength == 0 ? 2 : copyLength);
+            writeBits(INSERT_EXTRA[insertCode], insertLength - INSERT_BASE[insertCode]);
+            writeBits(COPY_EXTRA[copyCode], (copyLength == 0 ? 2 : copyLength) - COPY_BASE[copyCode]);
+
+            for (int j = 0; j < insertLength; j++) {
+                int literal = buffer[p + j] & 0xff;
+                writeBits(literalDepths[literal], literalCodes[literal] & 0xffff);
+            }
+            p += insertLength + copyLength;
+
+            int distanceSymbol = distanceSymbols[c];
+            if (distanceSymbol >= 0) {
+                writeBits(distanceDepths[distanceSymbol], distanceCodes[distanceSymbol] & 0xffff);
+                if (distanceSymbol >= 16) {
+                    writeBits(1 + ((distanceSymbol - 16) >> 1), distanceExtra[c]);
+                }
+            }
+        }
+    }
+
+    // Prefix codes
+
+    /**
+     * Builds a prefix code for the histogram, stores its description and fills in the depths and codes of the symbols.
+     */
+    private void storePrefixCode(int[] histogram, int alphabetSize, int alphabetBits, byte[] depths, short[] codes) {
+        int[] symbols = new int[4];
+        int count = 0;
+        for (int i = 0; i < alphabetSize; i++) {
+            if (histogram[i] > 0) {
+                if (count < 4) {
+                    symbols[count] = i;
+                }
+                count++;
+            }
+        }
+
+        if (count <= 4) {
+            // Simple prefix code
+            if (count == 0) {
+                // Unused category, any single symbol will do
+                count = 1;
+            } else if (count > 1) {
+                createDepths(histogram, alphabetSize, 15, depths);
+            }
+
+            // Sort the symbols by depth
+            for (int i = 1; i < count; i++) {
+                for (int j = i; j > 0 && depths[symbols[j]] < depths[symbols[j - 1]]; j--) {
+                    int t = symbols[j];
+                    symbols[j] = symbols[j - 1];
+                    symbols[j - 1] = t;
+                }
+            }
+
+            writeBits(2, 1); // HSKIP = 1, simple prefix code
+            writeBits(2, count - 1);
+            for (int i = 0; i < count; i++) {
+                writeBits(alphabetBits, symbols[i]);
+            }
+            if (count == 4) {
+                writeBits(1, depths[symbols[0]] == 1 ? 1 : 0);
+            }
+        } else {
+            createDepths(histogram, alphabetSize, 15, depths);
+            storeComplexPrefixCode(depths, alphabetSize);
+        }
+
+        convertDepthsToCodes(depths, alphabetSize, codes);
+    }
+
+    private void storeComplexPrefixCode(byte[] depths, int alphabetSize) {
+        byte[] tree = new byte[alphabetSize];
+        byte[] extraBits = new byte[alphabetSize];
+        int treeSize = encodeCodeLengths(depths, alphabetSize, tree, extraBits);
+
+        int[] histogram = new int[18];
+        for (int i = 0; i < treeSize; i++) {
+            histogram[tree[i]]++;
+        }
+
+        int numCodes = 0;
+        int code = 0;
+        for (int i = 0; i < 18; i++) {
+            if (histogram[i] > 0) {
+                if (numCodes == 0) {
+                    code = i;
+                }
+                numCodes++;
+            }
+        }
+
+        byte[] codeLengthDepths = new byte[18];
+        if (numCodes == 1) {
+            codeLengthDepths[code] = 1;
+        } else {
+            createDepths(histogram, 18, 5, codeLengthDepths);
+        }
+
+        // Code length code lengths
+        int codesToStore = 18;
+        if (numCodes > 1) {
+            while (codesToStore > 0 && codeLengthDepths[CODE_LENGTH_ORDER[codesToStore - 1]] == 0) {
+                codesToStore--;
+            }
+        }
+        int skip = 0;
+        if (codeLengthDepths[CODE_LENGTH_ORDER[0]] == 0 && codeLengthDepths[CODE_LENGTH_ORDER[1]] == 0) {
+            skip = codeLengthDepths[CODE_LENGTH_ORDER[2]] == 0 ? 3 : 2;
+        }
+        writeBits(2, skip);
+        for (int i = skip; i < codesToStore; i++) {
+            int length = codeLengthDepths[CODE_LENGTH_ORDER[i]];
+            writeBits(CODE_LENGTH_CODE_LENGTHS[length], CODE_LENGTH_CODE_SYMBOLS[length]);
+        }
+
+        if (numCodes == 1) {
+            // A single code length symbol is encoded with zero bits
+            codeLengthDepths[code] = 0;
+        }
+
+        short[] codeLengthCodes = new short[18];
+        convertDepthsToCodes(codeLengthDepths, 18, codeLengthCodes);
+
+        for (int i = 0; i < treeSize; i++) {
+            int symbol = tree[i];
+            writeBits(codeLengthDepths[symbol], codeLengthCodes[symbol] & 0xffff);
+            if (symbol == REPEAT_PREVIOUS_CODE_LENGTH) {
+                writeBits(2, extraBits[i]);
+            } else if (symbol == REPEAT_ZERO_CODE_LENGTH) {
+                writeBits(3, extraBits[i]);
+            }
+        }
+    }
+
+    /**
+     * Run-length encodes the code lengths with the code length alphabet, returns the number of symbols.
+     */
+    private static int encodeCodeLengths(byte[] depths, int length, byte[] tree, byte[] extraBits) {
+        // Trailing zeros are implied
+        while (length > 0 && depths[length - 1] == 0) {
+            length--;
+        }
+
+        int size = 0;
+        int previous = 8;
+        for (int i = 0; i < length; ) {
+            int value = depths[i];
+            int repetitions = 1;
+            for (int k = i + 1; k < length && depths[k] == value; k++) {
+                repetitions++;
+            }
+
+            if (value == 0) {
+                size = encodeZeroRepetitions(repetitions, tree, extraBits, size);
+            } else {
+                size = encodeRepetitions(previous, value, repetitions, tree, extraBits, size);
+                previous = value;
+            }
+            i += repetitions;
+        }
+        return size;
+    }
+
+    private static int encodeRepetitions(int previous, int value, int repetitions, byte[] tree, byte[] extraBits, int size) {
+        if (previous != value) {
+            tree[size] = (byte) value;
+            extraBits[size++] = 0;
+            repetitions--;
+        }
+        if (repetitions == 7) {
+            tree[size] = (byte) value;
+            extraBits[size++] = 0;
+            repetitions--;
+        }
+        if (repetitions < 3) {
+            for (int i = 0; i < repetitions; i++) {
+                tree[size] = (byte) value;
+                extraBits[size++] = 0;
+            }
+        } else {
+            // Consecutive repeat codes multiply the count by 4
+            int start = size;
+            repetitions -= 3;
+            while (true) {
+                tree[size] = REPEAT_PREVIOUS_CODE_LENGTH;
+                extraBits[size++] = (byte) (repetitions & 3);
+                repetitions >>= 2;
+                if (repetitions == 0) {
+                    break;
+                }
+                repetitions--;
+            }
+            reverse(tree, start, size);
+            reverse(extraBits, start, size);
+        }
+        return size;
+    }
+
+    private static int encodeZeroRepetitions(int repetitions, byte[] tree, byte[] extraBits, int size) {
+        if (repetitions == 11) {
+            tree[size] = 0;
+            extraBits[size++] = 0;
+            repetitions--;
+        }
+        if (repetitions < 3) {
+            for (int i = 0; i < repetitions; i++) {
+                tree[size] = 0;
+                extraBits[size++] = 0;
+            }
+        } else {
+            // Consecutive repeat codes multiply the count by 8
+            int start = size;
+            repetitions -= 3;
+            while (true) {
+                tree[size] = REPEAT_ZERO_CODE_LENGTH;
+                extraBits[size++] = (byte) (repetitions & 7);
+                repetitions >>= 3;
+                if (repetitions == 0) {
+                    break;
+                }
+                repetitions--;
+            }
+            reverse(tree, start, size);
+            reverse(extraBits, start, size);
+        }
+        return size;
+    }
+
+    private static void reverse(byte[] array, int from, int to) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            byte t = array[i];
+            array[i] = array[j];
+            array[j] = t;
+        }
+    }
+
+    /**
+     * Computes Huffman code lengths limited to {@code limit} bits, for a histogram with at least two used symbols.
+     */
+    static void createDepths(int[] histogram, int alphabetSize, int limit, byte[] depths) {
+        int leafCount = 0;
+        for (int i = 0; i < alphabetSize; i++) {
+            if (histogram[i] > 0) {
+                leafCount++;
+            }
+        }
+
+        long[] leaves = new long[leafCount];
+        long[] weights = new long[2 * leafCount];
+        int[] parents = new int[2 * leafCount];
+        int[] nodeDepths = new int[2 * leafCount];
+
+        // Raising the minimum count flattens the tree until it fits in the limit
+        for (long minCount = 1; ; minCount *= 2) {
+            int n = 0;
+            for (int i = 0; i < alphabetSize; i++) {
+                if (histogram[i] > 0) {
+                    leaves[n++] = (Math.max(histogram[i], minCount) << 16) | i;
+                }
+            }
+            Arrays.sort(leaves);
+
+            for (int i = 0; i < leafCount; i++) {
+                weights[i] = leaves[i] >>> 16;
+            }
+
+            // Two queue Huffman construction, internal nodes are created in ascending order of weight
+            int leaf = 0;
+            int internal = leafCount;
+            for (int next = leafCount; next < 2 * leafCount - 1; next++) {
+                int a;
+                if (leaf < leafCount && (internal >= next || weights[leaf] <= weights[internal])) {
+                    a = leaf++;
+                } else {
+                    a = internal++;
+                }
+                int b;
+                if (leaf < leafCount && (internal >= next || weights[leaf] <= weights[internal])) {
+                    b = leaf++;
+                } else {
+                    b = internal++;
+                }
+                weights[next] = weights[a] + weights[b];
+                parents[a] = next;
+                parents[b] = next;
+            }
+
+            int root = 2 * leafCount - 2;
+            nodeDepths[root] = 0;
+            int maxDepth = 0;
+            for (int i = root - 1; i >= 0; i--) {
+                nodeDepths[i] = nodeDepths[parents[i]] + 1;
+                if (i < leafCount) {
+                    maxDepth = Math.max(maxDepth, nodeDepths[i]);
+                }
+            }
+
+            if (maxDepth <= limit) {
+                Arrays.fill(depths, 0, alphabetSize, (byte) 0);
+                for (int i = 0; i < leafCount; i++) {
+                    depths[(int) (leaves[i] & 0xffff)] = (byte) nodeDepths[i];
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Assigns canonical codes to the depths, bit reversed because codes are packed starting with their first bit.
+     */
+    static void convertDepthsToCodes(byte[] depths, int alphabetSize, short[] codes) {
+        int[] lengthCounts = new int[16];
+        for (int i = 0; i < alphabetSize; i++) {
+            lengthCounts[depths[i]]++;
+        }
+        lengthCounts[0] = 0;
+
+        int[] nextCode = new int[16];
+        int code = 0;
+        for (int bits = 1; bits < 16; bits++) {
+            code = (code + lengthCounts[bits - 1]) << 1;
+            nextCode[bits] = code;
+        }
+
+        for (int i = 0; i < alphabetSize; i++) {
+            int depth = depths[i];
+            if (depth > 0) {
+                codes[i] = (short) (Integer.reverse(nextCode[depth]++) >>> (32 - depth));
+            }
+        }
+    }
+}
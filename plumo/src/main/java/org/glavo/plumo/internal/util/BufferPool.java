@@ -0,0 +1,120 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal.util;
+
+import org.glavo.plumo.internal.Constants;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A global pool of output buffers, organized in size classes that grow by a factor of 4 from 1 KiB.
+ * Requested sizes are rounded up to the next size class.
+ * Larger buffers are not pooled, and are always allocated on the heap.
+ */
+public final class BufferPool {
+
+    public static final int MIN_CLASS_SIZE = 1024;
+    public static final int MAX_CLASS_SIZE = 1024 * 1024;
+
+    private static final int CLASS_COUNT = 6; // 1K, 4K, 16K, 64K, 256K, 1M
+
+    public static final BufferPool DIRECT = new BufferPool(true, Constants.BUFFER_POOL_CAPACITY);
+    public static final BufferPool HEAP = new BufferPool(false, Constants.BUFFER_POOL_CAPACITY);
+
+    private static int classIndex(int size) {
+        for (int i = 0, classSize = MIN_CLASS_SIZE; i < CLASS_COUNT; i++, classSize <<= 2) {
+            if (size == classSize) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static final class SizeClass {
+        final int size;
+        final int limit;
+        final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger count = new AtomicInteger();
+
+        SizeClass(int size, int limit) {
+            this.size = size;
+            this.limit = limit;
+        }
+    }
+
+    private final boolean direct;
+    private final SizeClass[] classes = new SizeClass[CLASS_COUNT];
+
+    private BufferPool(boolean direct, long capacity) {
+        this.direct = direct;
+        for (int i = 0, classSize = MIN_CLASS_SIZE; i < CLASS_COUNT; i++, classSize <<= 2) {
+            // Split the capacity evenly between the classes
+            classes[i] = new SizeClass(classSize, (int) Math.min(Integer.MAX_VALUE, capacity / CLASS_COUNT / classSize));
+        }
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Returns a buffer of at least the given size, its capacity is rounded up to the next size class.
+     */
+    public ByteBuffer acquire(int size) {
+        if (size > MAX_CLASS_SIZE) {
+            // Allocating direct buffers is expensive, so buffers outside the size classes are allocated on the heap
+            return ByteBuffer.allocate(size);
+        }
+
+        for (SizeClass sizeClass : classes) {
+            if (size <= sizeClass.size) {
+                ByteBuffer buffer = sizeClass.queue.poll();
+                if (buffer != null) {
+                    sizeClass.count.decrementAndGet();
+                    return buffer;
+                }
+                return direct ? ByteBuffer.allocateDirect(sizeClass.size) : ByteBuffer.allocate(sizeClass.size);
+            }
+        }
+        throw new AssertionError();
+    }
+
+    public void release(ByteBuffer buffer) {
+        int index = classIndex(buffer.capacity());
+        if (index < 0 || buffer.isDirect() != direct) {
+            return;
+        }
+
+        SizeClass sizeClass = classes[index];
+        if (sizeClass.count.incrementAndGet() > sizeClass.limit) {
+            sizeClass.count.decrementAndGet();
+            return;
+        }
+
+        buffer.clear();
+        sizeClass.queue.offer(buffer);
+    }
+
+    /**
+     * Returns the number of idle buffers of the given size held by this pool.
+     */
+    public int getPooledCount(int size) {
+        int index = classIndex(size);
+        return index >= 0 ? classes[index].count.get() : 0;
+    }
+}
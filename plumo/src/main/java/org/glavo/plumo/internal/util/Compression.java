@@ -0,0 +1,123 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal.util;
+
+import org.glavo.plumo.CompressionPolicy;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses whole bodies in memory.
+ */
+public final class Compression {
+
+    /**
+     * Returns the body encoded with the given encoding, including the header and trailer of the format.
+     * The position of {@code data} is not changed.
+     */
+    public static byte[] encode(ByteBuffer data, CompressionPolicy.Encoding encoding, int level) {
+        switch (encoding) {
+            case GZIP:
+            case DEFLATE:
+                return deflate(data, encoding == CompressionPolicy.Encoding.DEFLATE, level);
+            case BROTLI:
+                return BrotliEncoder.compress(data, level);
+            default:
+                throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+        }
+    }
+
+    private static byte[] deflate(ByteBuffer data, boolean zlib, int level) {
+        byte[] input;
+        int inputOffset;
+        int inputLength = data.remaining();
+        if (data.hasArray()) {
+            input = data.array();
+            inputOffset = data.arrayOffset() + data.position();
+        } else {
+            input = new byte[inputLength];
+            data.duplicate().get(input);
+            inputOffset = 0;
+        }
+
+        byte[] output = new byte[inputLength + (inputLength >>> 8) + 64];
+        int length;
+        int checksum;
+        if (zlib) {
+            output[0] = 0x78;
+            output[1] = ZLIB_LEVEL_FLAGS[level];
+            length = 2;
+
+            Adler32 adler32 = new Adler32();
+            adler32.update(input, inputOffset, inputLength);
+            checksum = (int) adler32.getValue();
+        } else {
+            System.arraycopy(GZIP_HEADER, 0, output, 0, GZIP_HEADER.length);
+            length = GZIP_HEADER.length;
+
+            CRC32 crc32 = new CRC32();
+            crc32.update(input, inputOffset, inputLength);
+            checksum = (int) crc32.getValue();
+        }
+
+        Deflater deflater = DeflaterPool.acquire(level);
+        try {
+            deflater.setInput(input, inputOffset, inputLength);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (length == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                length += deflater.deflate(output, length, output.length - length);
+            }
+        } finally {
+            DeflaterPool.release(deflater, level);
+        }
+
+        output = Arrays.copyOf(output, length + 8);
+        if (zlib) {
+            output[length++] = (byte) (checksum >>> 24);
+            output[length++] = (byte) (checksum >>> 16);
+            output[length++] = (byte) (checksum >>> 8);
+            output[length++] = (byte) checksum;
+            output = Arrays.copyOf(output, length);
+        } else {
+            output[length++] = (byte) checksum;
+            output[length++] = (byte) (checksum >>> 8);
+            output[length++] = (byte) (checksum >>> 16);
+            output[length++] = (byte) (checksum >>> 24);
+            output[length++] = (byte) inputLength;
+            output[length++] = (byte) (inputLength >>> 8);
+            output[length++] = (byte) (inputLength >>> 16);
+            output[length] = (byte) (inputLength >>> 24);
+        }
+        return output;
+    }
+
+    static final byte[] GZIP_HEADER = new byte[]{0x1f, (byte) 0x8b, 0x08, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    // The second byte of the zlib header, FLEVEL and FCHECK for each level
+    static final byte[] ZLIB_LEVEL_FLAGS = {
+            0x01, 0x01, 0x5e, 0x5e, 0x5e, 0x5e, (byte) 0x9c, (byte) 0xda, (byte) 0xda, (byte) 0xda
+    };
+
+    private Compression() {
+    }
+}
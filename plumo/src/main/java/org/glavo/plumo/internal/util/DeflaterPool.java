@@ -0,0 +1,131 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal.util;
+
+import org.glavo.plumo.internal.Constants;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * A global pool of raw {@link Deflater}s, so that native compression state is held only while a body is being compressed.
+ * At most {@code org.glavo.plumo.deflaterPoolSize} idle deflaters are kept, the others are ended when released.
+ * At most {@code org.glavo.plumo.maxDeflaters} pooled deflaters are in use at the same time.
+ * Beyond that, compressions never wait, as a holder keeps its deflater for as long as a slow client takes to read the body.
+ * They get a deflater of their own instead, which is ended as soon as it is released.
+ * <p>
+ * Deflaters are pooled by compression level, because changing the level of a deflater
+ * does not take effect until the next call to {@code deflate}, after a preset dictionary would have been applied.
+ */
+public final class DeflaterPool {
+
+    private static final List<ConcurrentLinkedQueue<Deflater>> queues = new ArrayList<>(Deflater.BEST_COMPRESSION + 1);
+    private static final AtomicInteger count = new AtomicInteger();
+    private static final Semaphore permits = new Semaphore(Constants.MAX_DEFLATERS);
+
+    static {
+        for (int i = 0; i <= Deflater.BEST_COMPRESSION; i++) {
+            queues.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    /**
+     * A deflater created because {@code org.glavo.plumo.maxDeflaters} pooled deflaters are in use.
+     */
+    private static final class UnpooledDeflater extends Deflater {
+        UnpooledDeflater(int level) {
+            super(level, true);
+        }
+    }
+
+    /**
+     * Takes a deflater with the given level, never waits.
+     * If {@code org.glavo.plumo.maxDeflaters} pooled deflaters are in use, the deflater is not pooled.
+     * The deflater must be returned with {@link #release(Deflater, int)}.
+     */
+    public static Deflater acquire(int level) {
+        Deflater deflater = tryAcquire(level);
+        return deflater != null ? deflater : new UnpooledDeflater(level);
+    }
+
+    /**
+     * Takes a pooled deflater with the given level,
+     * or returns {@code null} if {@code org.glavo.plumo.maxDeflaters} pooled deflaters are in use.
+     * The deflater must be returned with {@link #release(Deflater, int)}.
+     */
+    public static Deflater tryAcquire(int level) {
+        if (!permits.tryAcquire()) {
+            return null;
+        }
+
+        Deflater deflater = queues.get(level).poll();
+        if (deflater != null) {
+            count.decrementAndGet();
+            return deflater;
+        }
+
+        try {
+            return new Deflater(level, true);
+        } catch (Throwable e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a deflater acquired with the given level to the pool.
+     */
+    public static void release(Deflater deflater, int level) {
+        if (deflater instanceof UnpooledDeflater) {
+            deflater.end();
+            return;
+        }
+
+        try {
+            if (count.incrementAndGet() > Constants.DEFLATER_POOL_SIZE) {
+                count.decrementAndGet();
+                deflater.end();
+                return;
+            }
+
+            deflater.reset();
+            queues.get(level).offer(deflater);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Returns the number of pooled deflaters currently in use.
+     */
+    public static int getActiveCount() {
+        return Constants.MAX_DEFLATERS - permits.availablePermits();
+    }
+
+    /**
+     * Returns the number of idle deflaters held by the pool.
+     */
+    public static int getPooledCount() {
+        return count.get();
+    }
+
+    private DeflaterPool() {
+    }
+}
@@ -1,19 +1,22 @@
 package org.glavo.plumo.internal.util;
 
+import org.glavo.plumo.CompressionPolicy;
 import org.glavo.plumo.HttpHeaderField;
 import org.glavo.plumo.HttpResponse;
 import org.glavo.plumo.internal.Constants;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.nio.charset.StandardCharsets;
+import java.util.zip.Adler32;
 import java.util.zip.CRC32;
 import java.util.zip.Deflater;
 
@@ -23,19 +26,193 @@ public final class OutputWrapper extends OutputStream implements WritableByteCha
     private final WritableByteChannel outputChannel;
 
     // assert outputChannel != null || (outputStream != null && buffer.hasArray())
-    private final ByteBuffer buffer;
-    private boolean closed = false;
+    private ByteBuffer buffer;
+    private volatile boolean closed = false;
+
+    // Adaptive buffer sizing, pool == null means the buffer has a fixed size
+    private final BufferPool pool;
+    private final int minBufferSize;
+    private final int maxBufferSize;
+    private int preferredBufferSize;
+    private long written;
+    private int largeStreak;
+    private int smallStreak;
+    private long releaseTime;
+
+    // Bandwidth limits, throttleChunkSize == 0 means unlimited
+    private TokenBucket serverBandwidth;
+    private TokenBucket connectionBandwidth;
+    private TokenBucket responseBandwidth;
+    private int throttleChunkSize;
 
     public OutputWrapper(OutputStream outputStream, int bufferSize) {
         this.outputStream = outputStream;
         this.outputChannel = null;
         this.buffer = ByteBuffer.allocate(bufferSize);
+        this.pool = null;
+        this.minBufferSize = this.maxBufferSize = this.preferredBufferSize = bufferSize;
     }
 
     public OutputWrapper(WritableByteChannel outputChannel, int bufferSize) {
         this.outputStream = null;
         this.outputChannel = outputChannel;
         this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.pool = null;
+        this.minBufferSize = this.maxBufferSize = this.preferredBufferSize = bufferSize;
+    }
+
+    /**
+     * Creates an output whose buffer is taken from the pool for each response,
+     * and whose size adapts to the amount of data sent, between {@code minBufferSize} and {@code maxBufferSize}.
+     */
+    public OutputWrapper(OutputStream outputStream, int minBufferSize, int maxBufferSize) {
+        this.outputStream = outputStream;
+        this.outputChannel = null;
+        this.pool = BufferPool.HEAP;
+        this.minBufferSize = this.preferredBufferSize = minBufferSize;
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    /**
+     * @see #OutputWrapper(OutputStream, int, int)
+     */
+    public OutputWrapper(WritableByteChannel outputChannel, int minBufferSize, int maxBufferSize) {
+        this.outputStream = null;
+        this.outputChannel = outputChannel;
+        this.pool = BufferPool.DIRECT;
+        this.minBufferSize = this.preferredBufferSize = minBufferSize;
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    // Adaptive buffer sizing
+
+    // A response counts as large if it sends more than LARGE_FACTOR times the buffer size,
+    // and as small if it sends less than the buffer size divided by SMALL_DIVISOR
+    private static final int LARGE_FACTOR = 4;
+    private static final int SMALL_DIVISOR = 4;
+    private static final int GROW_STREAK = 2;
+    private static final int SHRINK_STREAK = 8;
+    private static final long IDLE_RESET_NANOS = 30_000_000_000L;
+
+    public int getBufferCapacity() {
+        return buffer != null ? buffer.capacity() : 0;
+    }
+
+    /**
+     * Takes a buffer from the pool before a response is written.
+     */
+    public void acquireBuffer() {
+        if (pool == null || buffer != null) {
+            return;
+        }
+
+        // Connections that have been idle for a long time start over
+        if (releaseTime != 0L && System.nanoTime() - releaseTime > IDLE_RESET_NANOS) {
+            preferredBufferSize = minBufferSize;
+            largeStreak = 0;
+            smallStreak = 0;
+        }
+
+        buffer = pool.acquire(preferredBufferSize);
+        written = 0L;
+    }
+
+    /**
+     * Returns the buffer to the pool after a response has been flushed,
+     * and adjusts the size of the next buffer according to the amount of data sent.
+     */
+    public void releaseBuffer() {
+        releaseCompressor();
+
+        if (pool == null || buffer == null) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+        if (written > (long) capacity * LARGE_FACTOR) {
+            smallStreak = 0;
+            if (++largeStreak >= GROW_STREAK && capacity < maxBufferSize) {
+                preferredBufferSize = (int) Math.min(maxBufferSize, (long) capacity * 4);
+                largeStreak = 0;
+            }
+        } else if (written < capacity / SMALL_DIVISOR) {
+            largeStreak = 0;
+            if (++smallStreak >= SHRINK_STREAK && capacity > minBufferSize) {
+                preferredBufferSize = Math.max(minBufferSize, capacity / 4);
+                smallStreak = 0;
+            }
+        } else {
+            largeStreak = 0;
+            smallStreak = 0;
+        }
+
+        ByteBuffer buffer = this.buffer;
+        this.buffer = null;
+        this.releaseTime = System.nanoTime();
+        // A buffer that may still be flushed by a concurrent close is never handed to another connection
+        if (buffer.position() == 0 && !closed) {
+            pool.release(buffer);
+        }
+    }
+
+    // Bandwidth limits
+
+    private static final int MAX_THROTTLE_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Sets the bandwidth limits shared by all connections and of this connection, {@code null} means unlimited.
+     */
+    public void setBandwidthLimits(TokenBucket server, TokenBucket connection) {
+        this.serverBandwidth = server;
+        this.connectionBandwidth = connection;
+        updateThrottleChunkSize();
+    }
+
+    /**
+     * Sets the bandwidth limit of the response being sent, {@code null} means unlimited.
+     */
+    public void setResponseBandwidthLimit(TokenBucket response) {
+        if (this.responseBandwidth != response) {
+            this.responseBandwidth = response;
+            updateThrottleChunkSize();
+        }
+    }
+
+    private void updateThrottleChunkSize() {
+        if (serverBandwidth == null && connectionBandwidth == null && responseBandwidth == null) {
+            this.throttleChunkSize = 0;
+            return;
+        }
+
+        int chunkSize = MAX_THROTTLE_CHUNK_SIZE;
+        if (serverBandwidth != null) {
+            chunkSize = Math.min(chunkSize, serverBandwidth.getBurstSize());
+        }
+        if (connectionBandwidth != null) {
+            chunkSize = Math.min(chunkSize, connectionBandwidth.getBurstSize());
+        }
+        if (responseBandwidth != null) {
+            chunkSize = Math.min(chunkSize, responseBandwidth.getBurstSize());
+        }
+        this.throttleChunkSize = chunkSize;
+    }
+
+    /**
+     * Takes tokens for at most {@code count} bytes and returns the number of bytes that may be written.
+     * Throttled writes go through the buffer, so only {@link #flushBuffer()} and {@link #transferFrom(FileChannel, long, long)} call this.
+     */
+    private int throttle(long count) throws IOException {
+        int n = (int) Math.min(count, throttleChunkSize);
+        if (responseBandwidth != null) {
+            responseBandwidth.acquire(n);
+        }
+        if (connectionBandwidth != null) {
+            connectionBandwidth.acquire(n);
+        }
+        if (serverBandwidth != null) {
+            serverBandwidth.acquire(n);
+        }
+        return n;
     }
 
     @Override
@@ -72,15 +249,36 @@ public final class OutputWrapper extends OutputStream implements WritableByteCha
             }
         }
 
-        if (deflateContext != null) {
-            deflateContext.close();
+        // A pooled output may be closed by another thread while a response is being written,
+        // its buffer and deflater are then released by the writer in releaseBuffer()
+        if (pool == null) {
+            releaseCompressor();
         }
     }
 
     private void flushBuffer() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+
         int position = buffer.position();
         if (position > 0) {
-            if (outputChannel != null) {
+            written += position;
+            if (throttleChunkSize > 0) {
+                int offset = 0;
+                while (offset < position) {
+                    int n = throttle(position - offset);
+                    if (outputChannel != null) {
+                        buffer.limit(offset + n).position(offset);
+                        do {
+                            outputChannel.write(buffer);
+                        } while (buffer.hasRemaining());
+                    } else {
+                        outputStream.write(buffer.array(), offset, n);
+                    }
+                    offset += n;
+                }
+            } else if (outputChannel != null) {
                 buffer.flip();
 
                 int count = 0;
@@ -121,10 +319,23 @@ public final class OutputWrapper extends OutputStream implements WritableByteCha
             return;
         }
 
+        if (throttleChunkSize > 0) {
+            while (len > 0) {
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(src, off, n);
+                off += n;
+                len -= n;
+                if (!buffer.hasRemaining()) {
+                    flushBuffer();
+                }
+            }
+            return;
+        }
+
         int srcRem = len;
 
         if (buffer.position() > 0) {
-            buffer.put(src, off, off + bufRem);
+            buffer.put(src, off, bufRem);
 
             flushBuffer();
 
@@ -140,6 +351,7 @@ public final class OutputWrapper extends OutputStream implements WritableByteCha
             return;
         }
 
+        written += srcRem;
         if (outputChannel != null) {
             ByteBuffer srcBuffer = ByteBuffer.wrap(src, off, srcRem);
             int count = 0;
@@ -164,6 +376,19 @@ public final class OutputWrapper extends OutputStream implements WritableByteCha
             return srcLen;
         }
 
+        if (throttleChunkSize > 0) {
+            while (src.hasRemaining()) {
+                int oldLimit = src.limit();
+                src.limit(src.position() + Math.min(src.remaining(), buffer.remaining()));
+                buffer.put(src);
+                src.limit(oldLimit);
+                if (!buffer.hasRemaining()) {
+                    flushBuffer();
+                }
+            }
+            return srcLen;
+        }
+
         int srcRem = srcLen;
 
         if (buffer.position() > 0) {
@@ -185,8 +410,9 @@ public final class OutputWrapper extends OutputStream implements WritableByteCha
         }
 
         if (outputChannel != null) {
-            int count = 0;
+            written += srcRem;
 
+            int count = 0;
             do {
                 count += outputChannel.write(src);
             } while (count < srcRem);
@@ -194,7 +420,9 @@ public final class OutputWrapper extends OutputStream implements WritableByteCha
             return srcLen;
         } else {
             if (src.hasArray()) {
+                written += srcRem;
                 outputStream.write(src.array(), src.arrayOffset() + src.position(), srcRem);
+                src.position(src.limit());
             } else {
                 // assert buffer.position() == 0;
 
@@ -203,6 +431,7 @@ public final class OutputWrapper extends OutputStream implements WritableByteCha
                 while (srcRem >= bufferSize) {
                     src.get(array);
                     outputStream.write(array);
+                    written += bufferSize;
                     srcRem -= bufferSize;
                 }
 
@@ -213,6 +442,103 @@ public final class OutputWrapper extends OutputStream implements WritableByteCha
         return srcLen;
     }
 
+    /**
+     * Writes all buffers, with a single gathering write when the underlying channel supports it.
+     */
+    public void write(ByteBuffer[] srcs) throws IOException {
+        long total = 0L;
+        for (ByteBuffer src : srcs) {
+            total += src.remaining();
+        }
+
+        if (total <= buffer.remaining()) {
+            for (ByteBuffer src : srcs) {
+                buffer.put(src);
+            }
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            return;
+        }
+
+        if (outputChannel instanceof GatheringByteChannel && throttleChunkSize == 0) {
+            // Send the buffered bytes (usually the response head) in the same write
+            ByteBuffer[] buffers = srcs;
+            if (buffer.position() > 0) {
+                buffer.flip();
+                total += buffer.remaining();
+                buffers = new ByteBuffer[srcs.length + 1];
+                buffers[0] = buffer;
+                System.arraycopy(srcs, 0, buffers, 1, srcs.length);
+            }
+
+            written += total;
+
+            GatheringByteChannel channel = (GatheringByteChannel) outputChannel;
+            int offset = 0;
+            while (total > 0) {
+                total -= channel.write(buffers, offset, buffers.length - offset);
+                while (offset < buffers.length && !buffers[offset].hasRemaining()) {
+                    offset++;
+                }
+            }
+            buffer.clear();
+        } else {
+            for (ByteBuffer src : srcs) {
+                write(src);
+            }
+        }
+    }
+
+    /**
+     * Writes {@code count} bytes of {@code input} starting at {@code position},
+     * using {@link FileChannel#transferTo} when writing to a channel.
+     */
+    public void transferFrom(FileChannel input, long position, long count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+
+        flushBuffer();
+
+        if (outputChannel != null) {
+            while (count > 0) {
+                long chunk = throttleChunkSize > 0 ? throttle(count) : count;
+                while (chunk > 0) {
+                    long n = input.transferTo(position, chunk, outputChannel);
+                    if (n <= 0) {
+                        if (position >= input.size()) {
+                            throw new EOFException();
+                        }
+                        continue;
+                    }
+                    written += n;
+                    position += n;
+                    count -= n;
+                    chunk -= n;
+                }
+            }
+        } else {
+            byte[] array = buffer.array();
+            int maxChunk = throttleChunkSize > 0 ? Math.min(buffer.capacity(), throttleChunkSize) : buffer.capacity();
+            while (count > 0) {
+                buffer.limit((int) Math.min(maxChunk, count));
+                int n = input.read(buffer, position);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                if (throttleChunkSize > 0) {
+                    throttle(n);
+                }
+                outputStream.write(array, 0, n);
+                written += n;
+                buffer.clear();
+                position += n;
+                count -= n;
+            }
+        }
+    }
+
     public void writeASCII(String string) throws IOException {
         writeASCII(string, 0, string.length());
     }
@@ -251,178 +577,480 @@ public final class OutputWrapper extends OutputStream implements WritableByteCha
         }
     }
 
+    // Chunked transfer encoding
+
     private static final byte[] CHUNKED_FINISH = {'0', '\r', '\n', '\r', '\n'};
+    private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
 
-    public void transferChunkedFrom(ReadableByteChannel input) throws IOException {
-        flushBuffer();
+    // The size of chunks framed in the buffer is written with a fixed number of digits (leading zeros are allowed),
+    // so the header can be reserved before the payload and patched afterwards
+    private static final int CHUNK_SIZE_DIGITS = hexLength(Constants.MAX_CHUNK_SIZE);
+    private static final int CHUNK_HEADER_LENGTH = CHUNK_SIZE_DIGITS + 2;
 
-        int read;
-        while ((read = input.read(buffer)) > 0) {
-            if (outputChannel != null) {
-                Utils.writeFully(outputChannel, ByteBuffer.wrap(Integer.toHexString(read).getBytes(StandardCharsets.ISO_8859_1)));
-                Utils.writeFully(outputChannel, ByteBuffer.wrap(Constants.CRLF));
-                flushBuffer();
-                Utils.writeFully(outputChannel, ByteBuffer.wrap(Constants.CRLF));
-            } else {
-                outputStream.write(Integer.toHexString(read).getBytes(StandardCharsets.ISO_8859_1));
-                outputStream.write(Constants.CRLF);
-                flushBuffer();
-                outputStream.write(Constants.CRLF);
+    private static int hexLength(int value) {
+        return Math.max(1, (Integer.SIZE - Integer.numberOfLeadingZeros(value) + 3) / 4);
+    }
+
+    // Position of the header of the chunk being framed in the buffer, or -1
+    private int chunkStart = -1;
+
+    /**
+     * Starts a chunk in the buffer. Subsequent {@link #writeChunked} calls append to it.
+     */
+    public void beginChunk() throws IOException {
+        // Room for the header, at least one byte of payload and the trailing CRLF
+        if (buffer.remaining() < CHUNK_HEADER_LENGTH + 3) {
+            flushBuffer();
+        }
+        chunkStart = buffer.position();
+        buffer.position(chunkStart + CHUNK_HEADER_LENGTH);
+    }
+
+    /**
+     * Returns how many more payload bytes fit in the current chunk.
+     */
+    private int chunkCapacity() {
+        int payload = buffer.position() - chunkStart - CHUNK_HEADER_LENGTH;
+        return Math.min(buffer.remaining() - 2, Constants.MAX_CHUNK_SIZE - payload);
+    }
+
+    /**
+     * Completes the current chunk by patching its size. An empty chunk is dropped.
+     */
+    public void endChunk() {
+        int payload = buffer.position() - chunkStart - CHUNK_HEADER_LENGTH;
+        if (payload == 0) {
+            buffer.position(chunkStart);
+        } else {
+            for (int i = CHUNK_SIZE_DIGITS - 1; i >= 0; i--) {
+                buffer.put(chunkStart + i, HEX_DIGITS[payload & 0xf]);
+                payload >>>= 4;
             }
+            buffer.put(chunkStart + CHUNK_SIZE_DIGITS, (byte) '\r');
+            buffer.put(chunkStart + CHUNK_SIZE_DIGITS + 1, (byte) '\n');
+            buffer.put((byte) '\r');
+            buffer.put((byte) '\n');
         }
-        write(CHUNKED_FINISH);
+        chunkStart = -1;
     }
 
-    private static final byte[] GZIP_HEADER = new byte[]{0x1f, (byte) 0x8b, 0x08, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private void nextChunk() throws IOException {
+        endChunk();
+        flushBuffer();
+        beginChunk();
+    }
 
-    private DeflateContext deflateContext;
+    private void writeChunkHeader(int length) throws IOException {
+        int digits = hexLength(length);
+        if (buffer.remaining() < digits + 2) {
+            flushBuffer();
+        }
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            buffer.put(HEX_DIGITS[(length >>> shift) & 0xf]);
+        }
+        writeCRLF();
+    }
 
-    private void initDeflateContext() {
-        if (deflateContext == null) {
-            deflateContext = new DeflateContext();
-        } else {
-            deflateContext.reset();
+    public void writeChunked(int b) throws IOException {
+        if (chunkCapacity() == 0) {
+            nextChunk();
         }
+        buffer.put((byte) b);
     }
 
-    private void writeChunk(byte[] array, int offset, int length) throws IOException {
-        write(Integer.toHexString(length).getBytes(StandardCharsets.ISO_8859_1));
-        write(Constants.CRLF);
-        write(array, offset, length);
-        write(Constants.CRLF);
+    /**
+     * Appends to the current chunk, starting new chunks as the buffer fills up.
+     * Data larger than the buffer is sent as a chunk of its own without being copied.
+     */
+    public void writeChunked(byte[] src, int off, int len) throws IOException {
+        if (len >= buffer.capacity()) {
+            endChunk();
+            writeChunkHeader(len);
+            write(src, off, len);
+            writeCRLF();
+            beginChunk();
+            return;
+        }
+
+        while (len > 0) {
+            int n = Math.min(len, chunkCapacity());
+            if (n == 0) {
+                nextChunk();
+                continue;
+            }
+            buffer.put(src, off, n);
+            off += n;
+            len -= n;
+        }
     }
 
-    public void transferGZipFrom(ReadableByteChannel input) throws IOException {
-        initDeflateContext();
-
-        Deflater deflater = deflateContext.deflater;
-        CRC32 crc32 = deflateContext.crc32;
-        ByteBuffer gzipReadBuffer = deflateContext.gzipReadBuffer;
-        byte[] gzipWriteBuffer = deflateContext.gzipWriteBuffer;
-
-        writeChunk(GZIP_HEADER, 0, GZIP_HEADER.length);
-        while (input.read(gzipReadBuffer) > 0) {
-            gzipReadBuffer.flip();
-
-            deflater.setInput(gzipReadBuffer.array(), 0, gzipReadBuffer.limit());
-            crc32.update(gzipReadBuffer.array(), 0, gzipReadBuffer.limit());
-            while (!deflater.needsInput()) {
-                int len = deflater.deflate(gzipWriteBuffer, 0, gzipWriteBuffer.length);
-                if (len > 0) {
-                    writeChunk(gzipWriteBuffer, 0, len);
-                }
+    /**
+     * @see #writeChunked(byte[], int, int)
+     */
+    public void writeChunked(ByteBuffer src) throws IOException {
+        int len = src.remaining();
+        if (len >= buffer.capacity()) {
+            endChunk();
+            writeChunkHeader(len);
+            write(src);
+            writeCRLF();
+            beginChunk();
+            return;
+        }
+
+        while (src.hasRemaining()) {
+            int n = Math.min(src.remaining(), chunkCapacity());
+            if (n == 0) {
+                nextChunk();
+                continue;
             }
 
-            gzipReadBuffer.clear();
+            int oldLimit = src.limit();
+            src.limit(src.position() + n);
+            buffer.put(src);
+            src.limit(oldLimit);
         }
+    }
 
-        deflater.finish();
-        while (!deflater.finished()) {
-            int len = deflater.deflate(gzipWriteBuffer, 0, gzipWriteBuffer.length);
-            if (len > 0) {
-                writeChunk(gzipWriteBuffer, 0, len);
+    /**
+     * Completes the current chunk and writes the last chunk.
+     */
+    public void finishChunked() throws IOException {
+        endChunk();
+        write(CHUNKED_FINISH);
+    }
+
+    public void transferChunkedFrom(ReadableByteChannel input) throws IOException {
+        beginChunk();
+        while (true) {
+            int capacity = chunkCapacity();
+            if (capacity == 0) {
+                nextChunk();
+                continue;
+            }
+
+            // Read the payload in place
+            int oldLimit = buffer.limit();
+            buffer.limit(buffer.position() + capacity);
+            int read;
+            try {
+                read = input.read(buffer);
+            } finally {
+                buffer.limit(oldLimit);
+            }
+
+            if (read <= 0) {
+                break;
+            }
+
+            if (read < capacity) {
+                // The input may block, send what we have so far
+                nextChunk();
             }
         }
+        finishChunked();
+    }
 
-        write('8');
-        write(Constants.CRLF);
-        gzipReadBuffer.putInt(0, (int) crc32.getValue());
-        gzipReadBuffer.putInt(4, deflater.getTotalIn());
-        write(gzipReadBuffer.array(), 0, 8);
-        write(Constants.CRLF);
+    // Compression (gzip and deflate)
 
-        write(CHUNKED_FINISH);
+    private static final int DEFLATE_INPUT_BUFFER_SIZE = 64 * 1024;
+
+    private static final MethodHandle deflaterSetInput;
+    private static final MethodHandle deflaterDeflate;
+
+    static {
+        MethodHandle setInput = null;
+        MethodHandle deflate = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            setInput = lookup.findVirtual(Deflater.class, "setInput", MethodType.methodType(void.class, ByteBuffer.class));
+            deflate = lookup.findVirtual(Deflater.class, "deflate", MethodType.methodType(int.class, ByteBuffer.class, int.class));
+        } catch (Throwable ignored) {
+        }
+
+        deflaterSetInput = setInput;
+        deflaterDeflate = deflate;
     }
 
-    public void transferGZipFrom(ByteBuffer buffer) throws IOException {
-        if (!buffer.hasArray() && DeflateContext.deflaterSetInput == null) {
-            transferGZipFrom(InputWrapper.wrap(buffer));
+    // State of the compressed body being written, the deflater is taken from the pool and returned at the end of the body
+    private Deflater deflater;
+    private BrotliEncoder brotliEncoder;
+    private int deflaterLevel;
+    private boolean zlibFormat;
+    private CRC32 crc32;
+    private Adler32 adler32;
+    private byte[] deflateScratch;
+
+    /**
+     * Starts a compressed body, which is framed in chunks.
+     *
+     * @param encoding {@link CompressionPolicy.Encoding#BROTLI}, {@link CompressionPolicy.Encoding#GZIP}
+     *                 or {@link CompressionPolicy.Encoding#DEFLATE} (the zlib format)
+     */
+    public void beginCompressed(CompressionPolicy.Encoding encoding, int level) throws IOException {
+        releaseCompressor();
+
+        if (encoding == CompressionPolicy.Encoding.BROTLI) {
+            brotliEncoder = new BrotliEncoder(level);
+            beginChunk();
             return;
         }
 
-        initDeflateContext();
+        deflater = DeflaterPool.acquire(level);
+        deflaterLevel = level;
+        switch (encoding) {
+            case GZIP:
+                zlibFormat = false;
+                if (crc32 == null) {
+                    crc32 = new CRC32();
+                } else {
+                    crc32.reset();
+                }
+                writeGZipHeader();
+                break;
+            case DEFLATE:
+                zlibFormat = true;
+                if (adler32 == null) {
+                    adler32 = new Adler32();
+                } else {
+                    adler32.reset();
+                }
+                beginChunk();
+                writeChunked((byte) 0x78);
+                writeChunked(Compression.ZLIB_LEVEL_FLAGS[level]);
+                break;
+            default:
+                releaseCompressor();
+                throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+        }
+    }
 
-        Deflater deflater = deflateContext.deflater;
-        CRC32 crc32 = deflateContext.crc32;
-        ByteBuffer gzipReadBuffer = deflateContext.gzipReadBuffer;
-        byte[] gzipWriteBuffer = deflateContext.gzipWriteBuffer;
+    private void updateChecksum(byte[] src, int off, int len) {
+        if (zlibFormat) {
+            adler32.update(src, off, len);
+        } else {
+            crc32.update(src, off, len);
+        }
+    }
 
-        writeChunk(GZIP_HEADER, 0, GZIP_HEADER.length);
+    void writeGZipHeader() throws IOException {
+        beginChunk();
+        writeChunked(Compression.GZIP_HEADER, 0, Compression.GZIP_HEADER.length);
+    }
 
-        int oldPosition = buffer.position();
-        crc32.update(buffer);
-        buffer.position(oldPosition);
+    /**
+     * Writes the gzip trailer and completes the chunked body.
+     */
+    void writeGZipTrailer(int crc, long size) throws IOException {
+        int isize = (int) size;
+        writeChunked(new byte[]{
+                (byte) crc, (byte) (crc >>> 8), (byte) (crc >>> 16), (byte) (crc >>> 24),
+                (byte) isize, (byte) (isize >>> 8), (byte) (isize >>> 16), (byte) (isize >>> 24)
+        }, 0, 8);
+        finishChunked();
+    }
 
-        if (buffer.hasArray()) {
-            deflater.setInput(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    public void writeCompressed(byte[] src, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+
+        if (brotliEncoder != null) {
+            brotliEncoder.write(src, off, len);
+            drainBrotliEncoder();
+            return;
+        }
+
+        updateChecksum(src, off, len);
+        deflater.setInput(src, off, len);
+        do {
+            deflateChunked(Deflater.NO_FLUSH);
+        } while (!deflater.needsInput());
+    }
+
+    public void writeCompressed(ByteBuffer src) throws IOException {
+        if (brotliEncoder != null) {
+            brotliEncoder.write(src);
+            drainBrotliEncoder();
+            return;
+        }
+
+        if (src.hasArray()) {
+            writeCompressed(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+            return;
+        }
+
+        if (deflaterSetInput == null) {
+            byte[] array = new byte[Math.min(src.remaining(), 8192)];
+            while (src.hasRemaining()) {
+                int n = Math.min(src.remaining(), array.length);
+                src.get(array, 0, n);
+                writeCompressed(array, 0, n);
+            }
+            return;
+        }
+
+        if (!src.hasRemaining()) {
+            return;
+        }
+
+        int oldPosition = src.position();
+        if (zlibFormat) {
+            adler32.update(src);
         } else {
-            DeflateContext.setInput(deflater, buffer);
+            crc32.update(src);
         }
+        src.position(oldPosition);
 
-        deflater.finish();
+        try {
+            deflaterSetInput.invokeExact(deflater, src);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
 
-        while (!deflater.finished()) {
-            int len = deflater.deflate(gzipWriteBuffer, 0, gzipWriteBuffer.length);
-            if (len > 0) {
-                writeChunk(gzipWriteBuffer, 0, len);
+        do {
+            deflateChunked(Deflater.NO_FLUSH);
+        } while (!deflater.needsInput());
+        src.position(src.limit());
+    }
+
+    /**
+     * Sends the data compressed so far, so the client can decompress it without waiting for the rest of the body.
+     */
+    public void flushCompressed() throws IOException {
+        if (brotliEncoder != null) {
+            brotliEncoder.flush();
+            drainBrotliEncoder();
+        } else {
+            while (deflateChunked(Deflater.SYNC_FLUSH)) {
+                // The output filled the chunk, there may be more pending
             }
         }
+        endChunk();
+        flush();
+        beginChunk();
+    }
 
-        write('8');
-        write(Constants.CRLF);
-        gzipReadBuffer.putInt(0, (int) crc32.getValue());
-        gzipReadBuffer.putInt(4, deflater.getTotalIn());
-        write(gzipReadBuffer.array(), 0, 8);
-        write(Constants.CRLF);
+    /**
+     * Completes the compressed body and the chunked body, and returns the deflater to the pool.
+     */
+    public void finishCompressed() throws IOException {
+        if (brotliEncoder != null) {
+            brotliEncoder.finish();
+            drainBrotliEncoder();
+            finishChunked();
+            releaseCompressor();
+            return;
+        }
 
-        write(CHUNKED_FINISH);
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflateChunked(Deflater.NO_FLUSH);
+        }
+
+        if (zlibFormat) {
+            int adler = (int) adler32.getValue();
+            writeChunked(new byte[]{(byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler}, 0, 4);
+            finishChunked();
+        } else {
+            writeGZipTrailer((int) crc32.getValue(), deflater.getBytesRead());
+        }
+        releaseCompressor();
     }
 
-    private static final class DeflateContext {
-        private static final MethodHandle deflaterSetInput;
+    /**
+     * Returns the deflater of an unfinished compressed body to the pool.
+     */
+    private void releaseCompressor() {
+        brotliEncoder = null;
 
-        static {
-            MethodHandle handle = null;
-            try {
-                handle = MethodHandles.publicLookup().findVirtual(Deflater.class, "setInput", MethodType.methodType(void.class, ByteBuffer.class));
-            } catch (Throwable ignored) {
-            }
+        Deflater deflater = this.deflater;
+        if (deflater != null) {
+            this.deflater = null;
+            DeflaterPool.release(deflater, deflaterLevel);
+        }
+    }
 
-            deflaterSetInput = handle;
+    private void drainBrotliEncoder() throws IOException {
+        int length = brotliEncoder.getOutputLength();
+        if (length > 0) {
+            writeChunked(brotliEncoder.getOutput(), 0, length);
+            brotliEncoder.clearOutput();
         }
+    }
 
-        private static void setInput(Deflater deflater, ByteBuffer buffer) {
-            assert DeflateContext.deflaterSetInput != null;
+    /**
+     * Deflates into the free space of the current chunk.
+     *
+     * @return whether the output filled the space given to the deflater
+     */
+    private boolean deflateChunked(int flush) throws IOException {
+        int capacity = chunkCapacity();
+        if (capacity == 0) {
+            nextChunk();
+            capacity = chunkCapacity();
+        }
 
+        int position = buffer.position();
+        if (buffer.hasArray()) {
+            int n = deflater.deflate(buffer.array(), buffer.arrayOffset() + position, capacity, flush);
+            buffer.position(position + n);
+            return n == capacity;
+        } else if (deflaterDeflate != null) {
+            int oldLimit = buffer.limit();
+            buffer.limit(position + capacity);
             try {
-                DeflateContext.deflaterSetInput.invokeExact(deflater, buffer);
+                // Advances the position of the buffer
+                int n = (int) deflaterDeflate.invokeExact(deflater, buffer, flush);
+                return n == capacity;
             } catch (RuntimeException | Error e) {
                 throw e;
             } catch (Throwable e) {
-                throw new RuntimeException(e);
+                throw new AssertionError(e);
+            } finally {
+                buffer.limit(oldLimit);
+            }
+        } else {
+            if (deflateScratch == null) {
+                deflateScratch = new byte[8192];
             }
-        }
-
-        private final Deflater deflater;
-        private final CRC32 crc32;
-        private final ByteBuffer gzipReadBuffer;
-        private final byte[] gzipWriteBuffer;
 
-        DeflateContext() {
-            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
-            crc32 = new CRC32();
-            gzipReadBuffer = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
-            gzipWriteBuffer = new byte[512];
+            int len = Math.min(capacity, deflateScratch.length);
+            int n = deflater.deflate(deflateScratch, 0, len, flush);
+            buffer.put(deflateScratch, 0, n);
+            return n == len;
         }
+    }
 
-        void reset() {
-            deflater.reset();
-            gzipReadBuffer.clear();
-            crc32.reset();
+    public void transferCompressedFrom(ReadableByteChannel input, CompressionPolicy.Encoding encoding, int level) throws IOException {
+        ByteBuffer inputBuffer = BufferPool.HEAP.acquire(DEFLATE_INPUT_BUFFER_SIZE);
+        try {
+            beginCompressed(encoding, level);
+            while (input.read(inputBuffer) > 0) {
+                inputBuffer.flip();
+                writeCompressed(inputBuffer);
+                inputBuffer.clear();
+            }
+            finishCompressed();
+        } finally {
+            BufferPool.HEAP.release(inputBuffer);
         }
+    }
 
-        void close() {
-            deflater.end();
-        }
+    public void transferCompressedFrom(ByteBuffer buffer, CompressionPolicy.Encoding encoding, int level) throws IOException {
+        beginCompressed(encoding, level);
+        writeCompressed(buffer);
+        finishCompressed();
+    }
+
+    public void transferGZipFrom(ReadableByteChannel input) throws IOException {
+        transferCompressedFrom(input, CompressionPolicy.Encoding.GZIP, Constants.GZIP_LEVEL);
+    }
+
+    public void transferGZipFrom(ByteBuffer buffer) throws IOException {
+        transferCompressedFrom(buffer, CompressionPolicy.Encoding.GZIP, Constants.GZIP_LEVEL);
     }
 }
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal.util;
+
+import org.glavo.plumo.CompressionPolicy;
+import org.glavo.plumo.internal.Constants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses large bodies into a single gzip member, in blocks that are deflated concurrently on an executor owned by the server.
+ * <p>
+ * Each block is primed with the last 32 KiB of the previous block as dictionary and ends with a sync flush,
+ * so the concatenated blocks form one valid deflate stream. The CRC32 of the body is combined from the CRCs of the blocks.
+ * <p>
+ * The deflaters of a body are reserved from the {@link DeflaterPool} before it starts, one per block in flight,
+ * so block tasks never wait for a deflater. If fewer than two can be reserved, the body is compressed sequentially.
+ * Blocks rejected by the executor are compressed by the calling thread.
+ */
+public final class ParallelGZip {
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * Returns whether a body of the given length should be compressed in parallel.
+     * Bodies of unknown length ({@code -1}) are not.
+     */
+    public static boolean isApplicable(long length) {
+        return Constants.PARALLEL_GZIP_THRESHOLD >= 0
+                && length >= Constants.PARALLEL_GZIP_THRESHOLD
+                && length > Constants.PARALLEL_GZIP_BLOCK_SIZE
+                && Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    private static int maxPendingBlocks() {
+        return Runtime.getRuntime().availableProcessors() * 2;
+    }
+
+    /**
+     * Reserves a deflater for each block in flight, returns {@code null} if fewer than two are free.
+     */
+    private static Deflater[] reserveDeflaters(int level) {
+        Deflater[] deflaters = new Deflater[maxPendingBlocks()];
+        int count = 0;
+        while (count < deflaters.length) {
+            Deflater deflater = DeflaterPool.tryAcquire(level);
+            if (deflater == null) {
+                break;
+            }
+            deflaters[count++] = deflater;
+        }
+
+        if (count < 2) {
+            for (int i = 0; i < count; i++) {
+                DeflaterPool.release(deflaters[i], level);
+            }
+            return null;
+        }
+        return Arrays.copyOf(deflaters, count);
+    }
+
+    public static void transfer(OutputWrapper out, ByteBuffer data, int level, Executor executor) throws IOException {
+        Deflater[] deflaters = reserveDeflaters(level);
+        if (deflaters == null) {
+            out.transferCompressedFrom(data, CompressionPolicy.Encoding.GZIP, level);
+            return;
+        }
+
+        Emitter emitter = new Emitter(out, level, executor, deflaters);
+        try {
+            out.writeGZipHeader();
+            int blockSize = Constants.PARALLEL_GZIP_BLOCK_SIZE;
+            int start = data.position();
+            int end = data.limit();
+            for (int offset = start; offset < end; offset += blockSize) {
+                int blockEnd = (int) Math.min((long) offset + blockSize, end);
+                ByteBuffer dictionary = offset > start ? slice(data, Math.max(start, offset - DICTIONARY_SIZE), offset) : null;
+                emitter.submit(slice(data, offset, blockEnd), dictionary, blockEnd == end);
+            }
+            emitter.finish();
+        } finally {
+            emitter.release();
+        }
+    }
+
+    public static void transfer(OutputWrapper out, ReadableByteChannel input, int level, Executor executor) throws IOException {
+        Deflater[] deflaters = reserveDeflaters(level);
+        if (deflaters == null) {
+            out.transferCompressedFrom(input, CompressionPolicy.Encoding.GZIP, level);
+            return;
+        }
+
+        Emitter emitter = new Emitter(out, level, executor, deflaters);
+        try {
+            out.writeGZipHeader();
+            int blockSize = Constants.PARALLEL_GZIP_BLOCK_SIZE;
+            ByteBuffer previous = null;
+            ByteBuffer block = readBlock(input, blockSize);
+            while (block != null) {
+                // A short block is the last one
+                ByteBuffer next = block.limit() == blockSize ? readBlock(input, blockSize) : null;
+                ByteBuffer dictionary = previous != null ? slice(previous, Math.max(0, previous.limit() - DICTIONARY_SIZE), previous.limit()) : null;
+                emitter.submit(block, dictionary, next == null);
+
+                previous = block;
+                block = next;
+            }
+            emitter.finish();
+        } finally {
+            emitter.release();
+        }
+    }
+
+    /**
+     * Reads until the block is full or the end of input, returns {@code null} if there is nothing left.
+     */
+    private static ByteBuffer readBlock(ReadableByteChannel input, int blockSize) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        while (block.hasRemaining()) {
+            if (input.read(block) < 0) {
+                break;
+            }
+        }
+        block.flip();
+        return block.hasRemaining() ? block : null;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        return slice.slice();
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.array().length == buffer.limit()) {
+            return buffer.array();
+        }
+        byte[] array = new byte[buffer.remaining()];
+        buffer.duplicate().get(array);
+        return array;
+    }
+
+    private static final class Block {
+        final byte[] data;
+        final int length;
+        final int crc;
+        final int inputLength;
+
+        Block(byte[] data, int length, int crc, int inputLength) {
+            this.data = data;
+            this.length = length;
+            this.crc = crc;
+            this.inputLength = inputLength;
+        }
+    }
+
+    private static Block compress(ByteBuffer input, ByteBuffer dictionary, boolean last, Deflater deflater) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(input.duplicate());
+
+        byte[] inputArray;
+        int inputOffset;
+        if (input.hasArray()) {
+            inputArray = input.array();
+            inputOffset = input.arrayOffset() + input.position();
+        } else {
+            inputArray = toArray(input);
+            inputOffset = 0;
+        }
+        int inputLength = input.remaining();
+
+        if (dictionary != null) {
+            if (dictionary.hasArray()) {
+                deflater.setDictionary(dictionary.array(), dictionary.arrayOffset() + dictionary.position(), dictionary.remaining());
+            } else {
+                byte[] array = toArray(dictionary);
+                deflater.setDictionary(array, 0, array.length);
+            }
+        }
+
+        deflater.setInput(inputArray, inputOffset, inputLength);
+        if (last) {
+            deflater.finish();
+        }
+
+        byte[] output = new byte[inputLength + (inputLength >>> 8) + 64];
+        int length = 0;
+        while (true) {
+            if (length == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+
+            int space = output.length - length;
+            int n = deflater.deflate(output, length, space, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            length += n;
+
+            if (last ? deflater.finished() : n < space) {
+                break;
+            }
+        }
+
+        return new Block(output, length, (int) crc32.getValue(), inputLength);
+    }
+
+    /**
+     * Writes the compressed blocks in order, while limiting the number of blocks in flight.
+     */
+    private static final class Emitter {
+        private final OutputWrapper out;
+        private final int level;
+        private final Executor executor;
+        private final Deflater[] deflaters;
+        private final ArrayDeque<CompletableFuture<Block>> pending = new ArrayDeque<>();
+
+        // A block task returns its deflater before completing, so a deflater is free for each block that is not pending
+        private final ConcurrentLinkedQueue<Deflater> idleDeflaters = new ConcurrentLinkedQueue<>();
+
+        private boolean lastSubmitted = false;
+        private int crc = 0;
+        private long size = 0L;
+
+        Emitter(OutputWrapper out, int level, Executor executor, Deflater[] deflaters) {
+            this.out = out;
+            this.level = level;
+            this.executor = executor;
+            this.deflaters = deflaters;
+            idleDeflaters.addAll(Arrays.asList(deflaters));
+        }
+
+        void submit(ByteBuffer input, ByteBuffer dictionary, boolean last) throws IOException {
+            if (pending.size() >= deflaters.length) {
+                emit(pending.poll());
+            }
+
+            CompletableFuture<Block> future = new CompletableFuture<>();
+            Runnable task = () -> {
+                Deflater deflater = idleDeflaters.poll();
+                Block block = null;
+                Throwable exception = null;
+                try {
+                    block = compress(input, dictionary, last, deflater);
+                } catch (Throwable e) {
+                    exception = e;
+                } finally {
+                    deflater.reset();
+                    idleDeflaters.offer(deflater);
+                }
+
+                if (exception == null) {
+                    future.complete(block);
+                } else {
+                    future.completeExceptionally(exception);
+                }
+            };
+
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // The executor is saturated or shut down
+                task.run();
+            }
+            pending.add(future);
+            lastSubmitted = last;
+        }
+
+        private void emit(CompletableFuture<Block> future) throws IOException {
+            Block block;
+            try {
+                block = future.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    throw e;
+                }
+            }
+
+            out.writeChunked(block.data, 0, block.length);
+            crc = crc32Combine(crc, block.crc, block.inputLength);
+            size += block.inputLength;
+        }
+
+        void finish() throws IOException {
+            if (!lastSubmitted) {
+                // Empty input, the deflate stream still needs a final block
+                submit(ByteBuffer.allocate(0), null, true);
+            }
+
+            CompletableFuture<Block> future;
+            while ((future = pending.poll()) != null) {
+                emit(future);
+            }
+            out.writeGZipTrailer(crc, size);
+        }
+
+        /**
+         * Waits for the blocks in flight, then returns the deflaters to the pool.
+         */
+        void release() {
+            CompletableFuture<Block> future;
+            while ((future = pending.poll()) != null) {
+                try {
+                    future.join();
+                } catch (Throwable ignored) {
+                }
+            }
+
+            for (Deflater deflater : deflaters) {
+                DeflaterPool.release(deflater, level);
+            }
+        }
+    }
+
+    // CRC32 combination, see crc32_combine in zlib
+
+    private static int gf2MatrixTimes(int[] mat, int vec) {
+        int sum = 0;
+        for (int i = 0; vec != 0; i++, vec >>>= 1) {
+            if ((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(int[] square, int[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+        }
+    }
+
+    /**
+     * Returns the CRC32 of the concatenation of two sequences, given their CRCs and the length of the second.
+     */
+    static int crc32Combine(int crc1, int crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+
+        int[] even = new int[32];
+        int[] odd = new int[32];
+
+        // Operator for one zero bit
+        odd[0] = 0xedb88320;
+        for (int n = 1, row = 1; n < 32; n++, row <<= 1) {
+            odd[n] = row;
+        }
+
+        gf2MatrixSquare(even, odd); // two zero bits
+        gf2MatrixSquare(odd, even); // four zero bits
+
+        // Apply length2 zero bytes to crc1
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            length2 >>>= 1;
+            if (length2 == 0) {
+                break;
+            }
+
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            length2 >>>= 1;
+        } while (length2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private ParallelGZip() {
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal.util;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A token bucket holding one token per byte, which can be shared by any number of threads.
+ * <p>
+ * The state is a single theoretical arrival time, so taking tokens is a single CAS.
+ * A thread that takes more tokens than available reserves them anyway and parks until they are due,
+ * so waiting threads are served in the order of their reservations.
+ */
+public final class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    // The bucket holds 1/16 second worth of tokens, within these bounds
+    private static final int MIN_BURST_SIZE = 16 * 1024;
+    private static final int MAX_BURST_SIZE = 1024 * 1024;
+
+    private final long bytesPerSecond;
+    private final int burstSize;
+    private final long burstNanos;
+
+    // The time at which the bucket would be full again
+    private final AtomicLong theoreticalArrivalTime;
+
+    public TokenBucket(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("bytesPerSecond must be positive");
+        }
+
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstSize = (int) Math.max(MIN_BURST_SIZE, Math.min(MAX_BURST_SIZE, bytesPerSecond / 16));
+        this.burstNanos = nanosFor(burstSize);
+        this.theoreticalArrivalTime = new AtomicLong(System.nanoTime());
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Returns the maximum number of tokens that can be taken at once.
+     */
+    public int getBurstSize() {
+        return burstSize;
+    }
+
+    private long nanosFor(long tokens) {
+        return tokens * NANOS_PER_SECOND / bytesPerSecond;
+    }
+
+    /**
+     * Takes {@code n} tokens, parking the current thread until they are available.
+     *
+     * @param n the number of tokens, which must not exceed the {@linkplain #getBurstSize() burst size}
+     */
+    public void acquire(int n) throws InterruptedIOException {
+        assert n >= 0 && n <= burstSize;
+
+        long cost = nanosFor(n);
+        long due;
+        while (true) {
+            long now = System.nanoTime();
+            long tat = theoreticalArrivalTime.get();
+            long next = (tat - now > 0 ? tat : now) + cost;
+            if (theoreticalArrivalTime.compareAndSet(tat, next)) {
+                due = next - burstNanos;
+                break;
+            }
+        }
+
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, wait);
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TokenBucket[bytesPerSecond=" + bytesPerSecond + ", burstSize=" + burstSize + "]";
+    }
+}
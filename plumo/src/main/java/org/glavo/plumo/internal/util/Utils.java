@@ -15,6 +15,8 @@
  */
 package org.glavo.plumo.internal.util;
 
+import org.glavo.plumo.WorkerExecutor;
+
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -79,6 +81,21 @@ public final class Utils {
     }
 
     public static void shutdown(Executor executor) {
+        if (executor instanceof WorkerExecutor) {
+            WorkerExecutor we = (WorkerExecutor) executor;
+            we.shutdown();
+
+            boolean terminated = false;
+            while (!terminated) {
+                try {
+                    terminated = we.awaitTermination(1L, TimeUnit.DAYS);
+                } catch (InterruptedException e) {
+                    we.shutdownNow();
+                }
+            }
+            return;
+        }
+
         if (!(executor instanceof ExecutorService)) {
             return;
         }
@@ -18,15 +18,24 @@ package org.glavo.plumo.internal.util;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
 
 public final class VirtualThreadUtils {
     private static final MethodHandle newThread;
 
+    // ThreadBuilders.VirtualThreadBuilder(Executor), only accessible with --add-opens java.base/java.lang=ALL-UNNAMED
+    private static final Constructor<?> newBuilderWithScheduler;
+    private static final MethodHandle unstarted;
+
     public static final boolean NEED_ENABLE_PREVIEW;
 
     static {
         boolean needEnablePreview = false;
         MethodHandle newThreadHandle = null;
+        MethodHandle unstartedHandle = null;
+        Constructor<?> newBuilderWithSchedulerConstructor = null;
 
         try {
             Class<?> vtBuilder = Class.forName("java.lang.Thread$Builder$OfVirtual");
@@ -34,8 +43,16 @@ public final class VirtualThreadUtils {
             MethodHandles.Lookup lookup = MethodHandles.publicLookup();
             Object factory = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(vtBuilder)).invoke();
 
-            newThreadHandle = lookup.findVirtual(vtBuilder, "unstarted", MethodType.methodType(Thread.class, Runnable.class))
-                    .bindTo(factory);
+            unstartedHandle = lookup.findVirtual(vtBuilder, "unstarted", MethodType.methodType(Thread.class, Runnable.class));
+            newThreadHandle = unstartedHandle.bindTo(factory);
+
+            try {
+                Constructor<?> constructor = Class.forName("java.lang.ThreadBuilders$VirtualThreadBuilder")
+                        .getDeclaredConstructor(Executor.class);
+                constructor.setAccessible(true);
+                newBuilderWithSchedulerConstructor = constructor;
+            } catch (Throwable ignored) {
+            }
         } catch (UnsupportedOperationException ignored) {
             needEnablePreview = true;
         } catch (Throwable ignored) {
@@ -43,6 +60,8 @@ public final class VirtualThreadUtils {
 
         NEED_ENABLE_PREVIEW = needEnablePreview;
         newThread = newThreadHandle;
+        unstarted = unstartedHandle;
+        newBuilderWithScheduler = newBuilderWithSchedulerConstructor;
     }
 
     public static void checkAvailable() {
@@ -65,6 +84,35 @@ public final class VirtualThreadUtils {
         }
     }
 
+    public static boolean isCustomSchedulerSupported() {
+        return newBuilderWithScheduler != null;
+    }
+
+    /**
+     * Returns a factory that creates unstarted virtual threads mounted on the given scheduler,
+     * or {@code null} if the runtime does not allow custom schedulers.
+     */
+    public static ThreadFactory newVirtualThreadFactory(Executor scheduler) {
+        if (newBuilderWithScheduler == null) {
+            return null;
+        }
+
+        MethodHandle handle;
+        try {
+            handle = unstarted.bindTo(newBuilderWithScheduler.newInstance(scheduler));
+        } catch (Throwable e) {
+            return null;
+        }
+
+        return command -> {
+            try {
+                return (Thread) handle.invokeExact(command);
+            } catch (Throwable e) {
+                throw new InternalError(e);
+            }
+        };
+    }
+
     private VirtualThreadUtils() {
     }
 }
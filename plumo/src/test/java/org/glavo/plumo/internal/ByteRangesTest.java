@@ -0,0 +1,91 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class ByteRangesTest {
+
+    private static void assertRanges(String header, long length, long... expected) {
+        ByteRanges ranges = ByteRanges.parse(header, length);
+        assertNotNull(ranges);
+        assertEquals(expected.length / 2, ranges.count());
+        for (int i = 0; i < ranges.count(); i++) {
+            assertEquals(expected[i * 2], ranges.start(i));
+            assertEquals(expected[i * 2 + 1], ranges.length(i));
+        }
+    }
+
+    @Test
+    public void testParse() {
+        assertRanges("bytes=0-99", 1000, 0, 100);
+        assertRanges("bytes=500-", 1000, 500, 500);
+        assertRanges("bytes=-100", 1000, 900, 100);
+        assertRanges("Bytes = 0-0, -1", 1000, 0, 1, 999, 1);
+        assertRanges("bytes=0-1, , 10-19", 1000, 0, 2, 10, 10);
+
+        // The last position is limited to the length
+        assertRanges("bytes=900-2000", 1000, 900, 100);
+        assertRanges("bytes=-2000", 1000, 0, 1000);
+
+        // Unsatisfiable ranges are dropped
+        assertRanges("bytes=0-9, 1000-1009", 1000, 0, 10);
+
+        assertEquals("bytes 10-19/1000", ByteRanges.parse("bytes=10-19", 1000).contentRange(0, 1000));
+    }
+
+    @Test
+    public void testCoalesce() {
+        assertRanges("bytes=20-29, 0-9", 1000, 0, 10, 20, 10);
+        assertRanges("bytes=0-9, 5-14", 1000, 0, 15);
+        assertRanges("bytes=0-9, 10-19", 1000, 0, 20);
+        assertRanges("bytes=0-99, 10-19", 1000, 0, 100);
+        assertRanges("bytes=-100, 0-9, 950-", 1000, 0, 10, 900, 100);
+
+        // Repeated ranges cannot make the response larger than the representation
+        StringBuilder builder = new StringBuilder("bytes=0-");
+        for (int i = 1; i < ByteRanges.MAX_RANGES; i++) {
+            builder.append(",0-");
+        }
+        assertRanges(builder.toString(), 1000, 0, 1000);
+    }
+
+    @Test
+    public void testUnsatisfiable() {
+        assertSame(ByteRanges.UNSATISFIABLE, ByteRanges.parse("bytes=1000-", 1000));
+        assertSame(ByteRanges.UNSATISFIABLE, ByteRanges.parse("bytes=1000-1999, -0", 1000));
+        assertSame(ByteRanges.UNSATISFIABLE, ByteRanges.parse("bytes=0-", 0));
+    }
+
+    @Test
+    public void testIgnored() {
+        assertNull(ByteRanges.parse("items=0-1", 1000));
+        assertNull(ByteRanges.parse("bytes=", 1000));
+        assertNull(ByteRanges.parse("bytes=10", 1000));
+        assertNull(ByteRanges.parse("bytes=-", 1000));
+        assertNull(ByteRanges.parse("bytes=20-10", 1000));
+        assertNull(ByteRanges.parse("bytes=+1-2", 1000));
+        assertNull(ByteRanges.parse("bytes=0-99999999999999999999", 1000));
+
+        StringBuilder builder = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= ByteRanges.MAX_RANGES; i++) {
+            builder.append(',').append(i).append('-').append(i);
+        }
+        assertNull(ByteRanges.parse(builder.toString(), 1000));
+    }
+}
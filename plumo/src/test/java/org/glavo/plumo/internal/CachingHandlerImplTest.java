@@ -0,0 +1,260 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.glavo.plumo.CachingHandler;
+import org.glavo.plumo.HttpHeaderField;
+import org.glavo.plumo.HttpRequest;
+import org.glavo.plumo.HttpResponse;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class CachingHandlerImplTest {
+
+    private static HttpRequestImpl request(String uri) {
+        HttpRequestImpl request = new HttpRequestImpl(new InetSocketAddress("127.0.0.1", 12345), new InetSocketAddress("127.0.0.1", 80));
+        request.method = HttpRequest.Method.GET;
+        request.rawUri = uri;
+        request.httpVersion = "1.1";
+        request.headers.putDirect(HttpHeaderField.HOST, "localhost");
+        return request;
+    }
+
+    private static final class CountingHandler implements org.glavo.plumo.HttpHandler {
+        final AtomicInteger invocations = new AtomicInteger();
+        final Function<HttpRequest, HttpResponse> response;
+
+        CountingHandler(Function<HttpRequest, HttpResponse> response) {
+            this.response = response;
+        }
+
+        @Override
+        public HttpResponse handle(HttpRequest request) {
+            invocations.incrementAndGet();
+            return response.apply(request);
+        }
+    }
+
+    private static HttpResponse cacheable(String body) {
+        return HttpResponse.newResponse()
+                .withHeader(HttpHeaderField.CACHE_CONTROL, "public, max-age=60")
+                .withBody(body);
+    }
+
+    @Test
+    public void testHit() throws Exception {
+        CountingHandler delegate = new CountingHandler(request -> cacheable(request.getRawURI()));
+        CachingHandler handler = CachingHandler.newBuilder(delegate).build();
+
+        HttpResponse first = handler.handle(request("/a"));
+        HttpResponse second = handler.handle(request("/a"));
+        assertSame(first, second);
+        assertTrue(((HttpResponseImpl) first).isFrozen());
+        assertEquals("/a", ((HttpResponseImpl) second).body);
+
+        HttpRequestImpl head = request("/a");
+        head.method = HttpRequest.Method.HEAD;
+        assertSame(first, handler.handle(head));
+
+        handler.handle(request("/b"));
+        assertEquals(2, delegate.invocations.get());
+        assertEquals(2, handler.getEntryCount());
+        assertEquals(2, handler.getHitCount());
+        assertEquals(2, handler.getMissCount());
+
+        handler.invalidateAll();
+        assertEquals(0, handler.getEntryCount());
+        assertEquals(0, handler.getWeightedSize());
+        handler.handle(request("/a"));
+        assertEquals(3, delegate.invocations.get());
+    }
+
+    @Test
+    public void testUncacheable() throws Exception {
+        for (HttpResponse template : Arrays.asList(
+                HttpResponse.newResponse().withBody("no cache-control"),
+                HttpResponse.newResponse().withHeader(HttpHeaderField.CACHE_CONTROL, "private, max-age=60").withBody(""),
+                HttpResponse.newResponse().withHeader(HttpHeaderField.CACHE_CONTROL, "no-store").withBody(""),
+                HttpResponse.newResponse().withHeader(HttpHeaderField.CACHE_CONTROL, "max-age=0").withBody(""),
+                cacheable("").withHeader(HttpHeaderField.SET_COOKIE, "id=1"),
+                cacheable("").withHeader(HttpHeaderField.VARY, "*"),
+                cacheable("").withStatus(HttpResponse.Status.INTERNAL_ERROR))) {
+            CountingHandler delegate = new CountingHandler(request -> template);
+            CachingHandler handler = CachingHandler.newBuilder(delegate).build();
+            handler.handle(request("/"));
+            handler.handle(request("/"));
+            assertEquals(2, delegate.invocations.get(), template.toString());
+            assertEquals(0, handler.getEntryCount());
+        }
+
+        // Requests that must not be answered from the cache
+        CountingHandler delegate = new CountingHandler(request -> cacheable(""));
+        CachingHandler handler = CachingHandler.newBuilder(delegate).build();
+        handler.handle(request("/"));
+
+        HttpRequestImpl authorized = request("/");
+        authorized.headers.putDirect(HttpHeaderField.AUTHORIZATION, "Basic dXNlcjpwYXNz");
+        handler.handle(authorized);
+        HttpRequestImpl noStore = request("/");
+        noStore.headers.putDirect(HttpHeaderField.CACHE_CONTROL, "no-store");
+        handler.handle(noStore);
+        HttpRequestImpl post = request("/");
+        post.method = HttpRequest.Method.POST;
+        handler.handle(post);
+        assertEquals(4, delegate.invocations.get());
+
+        handler.handle(request("/"));
+        assertEquals(4, delegate.invocations.get());
+    }
+
+    @Test
+    public void testRevalidate() throws Exception {
+        AtomicInteger version = new AtomicInteger();
+        CountingHandler delegate = new CountingHandler(request -> cacheable("v" + version.incrementAndGet()));
+        CachingHandler handler = CachingHandler.newBuilder(delegate).build();
+
+        assertEquals("v1", ((HttpResponseImpl) handler.handle(request("/"))).body);
+        HttpRequestImpl noCache = request("/");
+        noCache.headers.putDirect(HttpHeaderField.CACHE_CONTROL, "no-cache");
+        assertEquals("v2", ((HttpResponseImpl) handler.handle(noCache)).body);
+        assertEquals("v2", ((HttpResponseImpl) handler.handle(request("/"))).body);
+        assertEquals(1, handler.getEntryCount());
+    }
+
+    @Test
+    public void testVary() throws Exception {
+        HttpHeaderField acceptLanguage = HttpHeaderField.of("accept-language");
+        CountingHandler delegate = new CountingHandler(request -> cacheable(String.valueOf(request.getHeader(acceptLanguage)))
+                .withHeader(HttpHeaderField.VARY, "Accept-Language"));
+        CachingHandler handler = CachingHandler.newBuilder(delegate).build();
+
+        HttpRequestImpl en = request("/");
+        en.headers.putDirect(acceptLanguage, "en");
+        HttpRequestImpl fr = request("/");
+        fr.headers.putDirect(acceptLanguage, "fr");
+
+        assertEquals("en", ((HttpResponseImpl) handler.handle(en)).body);
+        assertEquals("fr", ((HttpResponseImpl) handler.handle(fr)).body);
+        assertEquals("en", ((HttpResponseImpl) handler.handle(en)).body);
+        assertEquals("null", ((HttpResponseImpl) handler.handle(request("/"))).body);
+        assertEquals(3, delegate.invocations.get());
+        assertEquals(3, handler.getEntryCount());
+    }
+
+    @Test
+    public void testCookie() throws Exception {
+        CountingHandler delegate = new CountingHandler(request -> cacheable(String.valueOf(request.getHeader(HttpHeaderField.COOKIE))));
+        CachingHandler handler = CachingHandler.newBuilder(delegate).build();
+        handler.handle(request("/"));
+
+        // Responses that do not vary by Cookie are neither served to nor stored for requests with cookies
+        HttpRequestImpl withCookie = request("/");
+        withCookie.headers.putDirect(HttpHeaderField.COOKIE, "id=1");
+        assertEquals("id=1", ((HttpResponseImpl) handler.handle(withCookie)).body);
+        assertEquals("id=1", ((HttpResponseImpl) handler.handle(withCookie)).body);
+        assertEquals("null", ((HttpResponseImpl) handler.handle(request("/"))).body);
+        assertEquals(3, delegate.invocations.get());
+        assertEquals(1, handler.getEntryCount());
+
+        CountingHandler varying = new CountingHandler(request -> cacheable(String.valueOf(request.getHeader(HttpHeaderField.COOKIE)))
+                .withHeader(HttpHeaderField.VARY, "Cookie"));
+        handler = CachingHandler.newBuilder(varying).build();
+
+        HttpRequestImpl other = request("/");
+        other.headers.putDirect(HttpHeaderField.COOKIE, "id=2");
+        assertEquals("id=1", ((HttpResponseImpl) handler.handle(withCookie)).body);
+        assertEquals("id=2", ((HttpResponseImpl) handler.handle(other)).body);
+        assertEquals("id=1", ((HttpResponseImpl) handler.handle(withCookie)).body);
+        assertEquals(2, varying.invocations.get());
+        assertEquals(2, handler.getEntryCount());
+    }
+
+    @Test
+    public void testVaryChange() throws Exception {
+        HttpHeaderField acceptLanguage = HttpHeaderField.of("accept-language");
+        AtomicInteger version = new AtomicInteger();
+        CountingHandler delegate = new CountingHandler(request -> version.get() == 0
+                ? cacheable("v0").withHeader(HttpHeaderField.VARY, "Accept-Language")
+                : cacheable("v" + version.get()));
+        CachingHandler handler = CachingHandler.newBuilder(delegate).build();
+
+        for (String language : new String[]{"en", "fr", "de"}) {
+            HttpRequestImpl request = request("/");
+            request.headers.putDirect(acceptLanguage, language);
+            handler.handle(request);
+        }
+        assertEquals(3, handler.getEntryCount());
+
+        // Responses stored under the old vary headers can no longer be found, so they are evicted
+        version.set(1);
+        HttpRequestImpl refresh = request("/");
+        refresh.headers.putDirect(HttpHeaderField.CACHE_CONTROL, "no-cache");
+        assertEquals("v1", ((HttpResponseImpl) handler.handle(refresh)).body);
+        assertEquals(1, handler.getEntryCount());
+        assertEquals("v1", ((HttpResponseImpl) handler.handle(request("/"))).body);
+        assertEquals(4, delegate.invocations.get());
+
+        handler.invalidateAll();
+        assertEquals(0, handler.getEntryCount());
+        assertEquals(0, handler.getWeightedSize());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+        String body = new String(chars);
+
+        CountingHandler delegate = new CountingHandler(request -> cacheable(body));
+        CachingHandler handler = CachingHandler.newBuilder(delegate).maximumWeight(100 * 1024).build();
+
+        // Make a set of entries popular
+        for (int round = 0; round < 8; round++) {
+            for (int i = 0; i < 20; i++) {
+                handler.handle(request("/hot/" + i));
+            }
+        }
+        int invocations = delegate.invocations.get();
+        assertEquals(20, invocations);
+
+        // Scan many entries that are requested only once
+        for (int i = 0; i < 1000; i++) {
+            handler.handle(request("/cold/" + i));
+        }
+        assertTrue(handler.getWeightedSize() <= 100 * 1024);
+        assertTrue(handler.getEvictionCount() > 0);
+
+        for (int i = 0; i < 20; i++) {
+            handler.handle(request("/hot/" + i));
+        }
+        assertEquals(invocations + 1000, delegate.invocations.get(), "Popular entries should survive the scan");
+    }
+
+    @Test
+    public void testFindDirective() {
+        assertEquals("60", CachingHandlerImpl.findDirective(Arrays.asList("public, max-age=60"), "max-age"));
+        assertEquals("60", CachingHandlerImpl.findDirective(Arrays.asList("public", "MAX-AGE=\"60\""), "max-age"));
+        assertEquals("", CachingHandlerImpl.findDirective(Arrays.asList("no-cache"), "no-cache"));
+        assertNull(CachingHandlerImpl.findDirective(Arrays.asList("s-maxage=10"), "max-age"));
+        assertNull(CachingHandlerImpl.findDirective(null, "max-age"));
+    }
+}
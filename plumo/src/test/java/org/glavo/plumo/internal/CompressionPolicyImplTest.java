@@ -0,0 +1,110 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.glavo.plumo.CompressionPolicy;
+import org.junit.jupiter.api.Test;
+
+import static org.glavo.plumo.CompressionPolicy.Encoding.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class CompressionPolicyImplTest {
+
+    private static final CompressionPolicy.Encoding[] ENCODINGS = {GZIP, DEFLATE};
+
+    private static CompressionPolicy.Encoding select(String acceptEncoding) {
+        int index = CompressionPolicyImpl.selectEncoding(acceptEncoding, ENCODINGS);
+        return index >= 0 ? ENCODINGS[index] : null;
+    }
+
+    @Test
+    public void testSelectEncoding() {
+        assertEquals(GZIP, select("gzip"));
+        assertEquals(GZIP, select("gzip, deflate, br"));
+        assertEquals(GZIP, select("deflate, gzip"));
+        assertEquals(GZIP, select("x-gzip"));
+        assertEquals(GZIP, select("GZIP;Q=0.5"));
+        assertEquals(DEFLATE, select("deflate"));
+        assertEquals(DEFLATE, select("gzip;q=0.5, deflate"));
+        assertEquals(DEFLATE, select("gzip ; q=0.5 , deflate;q=0.8"));
+        assertEquals(DEFLATE, select("gzip;q=0, *"));
+        assertEquals(GZIP, select("*"));
+        assertEquals(GZIP, select("*;q=0.1, deflate;q=0.01"));
+
+        assertNull(select(""));
+        assertNull(select("identity"));
+        assertNull(select("br"));
+        assertNull(select("gzip;q=0"));
+        assertNull(select("gzip;q=0.000, deflate;q=0"));
+        assertNull(select("*;q=0"));
+
+        // Malformed quality values are ignored
+        assertNull(select("gzip;q=2"));
+        assertNull(select("gzip;q=0.1234"));
+        assertEquals(DEFLATE, select("gzip;q=abc, deflate"));
+    }
+
+    @Test
+    public void testSelect() {
+        CompressionPolicyImpl policy = CompressionPolicyImpl.DEFAULT;
+
+        CompressionPolicy.Selection selection = policy.select("gzip", "text/html; charset=utf-8", 1000);
+        assertNotNull(selection);
+        assertEquals(GZIP, selection.getEncoding());
+
+        assertEquals(GZIP, policy.select("gzip", "application/json", -1).getEncoding());
+        assertEquals(GZIP, policy.select("gzip", "application/vnd.api+json", 1000).getEncoding());
+        assertEquals(GZIP, policy.select("gzip", "Image/SVG+XML", 1000).getEncoding());
+        assertEquals(DEFLATE, policy.select("deflate", "text/plain", 1000).getEncoding());
+        assertEquals(GZIP, policy.select("gzip, deflate, br", "text/plain", 1000).getEncoding());
+        assertEquals(GZIP, policy.select("br, gzip;q=0.5", "text/plain", 1000).getEncoding());
+
+        // Brotli is opt-in
+        assertSame(CompressionPolicy.Selection.IDENTITY, policy.select("br", "text/plain", 1000));
+        CompressionPolicyImpl brotli = (CompressionPolicyImpl) CompressionPolicy.newBuilder().encodings(BROTLI, GZIP).build();
+        assertEquals(BROTLI, brotli.select("gzip, deflate, br", "text/plain", 1000).getEncoding());
+        assertEquals(GZIP, brotli.select("br;q=0.5, gzip", "text/plain", 1000).getEncoding());
+
+        // Compressible, but not accepted
+        assertSame(CompressionPolicy.Selection.IDENTITY, policy.select((String) null, "text/plain", 1000));
+        assertSame(CompressionPolicy.Selection.IDENTITY, policy.select("compress", "text/plain", 1000));
+
+        // Not compressible
+        assertNull(policy.select("gzip", "text/plain", 10));
+        assertNull(policy.select("gzip", null, 1000));
+        assertNull(policy.select("gzip", "image/png", 1000));
+        assertNull(policy.select("gzip", "application/octet-stream", 1000));
+    }
+
+    @Test
+    public void testBuilder() {
+        CompressionPolicyImpl policy = (CompressionPolicyImpl) CompressionPolicy.newBuilder()
+                .encodings(DEFLATE, GZIP)
+                .level(9)
+                .minSize(0)
+                .compressibleTypes("*/*")
+                .excludedTypes("video/*")
+                .build();
+
+        CompressionPolicy.Selection selection = policy.select("gzip, deflate", "application/octet-stream", 1);
+        assertEquals(DEFLATE, selection.getEncoding());
+        assertEquals(9, selection.getLevel());
+        assertNull(policy.select("gzip", "video/mp4", 1000));
+
+        assertThrows(IllegalArgumentException.class, () -> CompressionPolicy.newBuilder().level(0));
+        assertThrows(IllegalArgumentException.class, () -> CompressionPolicy.newBuilder().minSize(-1));
+    }
+}
@@ -77,4 +77,42 @@ public final class HeadersTest {
             testPutHeader(offset, fragmentSize);
         }
     }
+
+    private static void testRemoveHeader(int offset, int length) {
+        Headers multiStringMap = new Headers();
+        for (int i = offset; i < offset + length; i++) {
+            multiStringMap.putDirect(RANDOM_HEADERS.get(i), String.valueOf(i));
+        }
+
+        // Remove every other header, the rest must stay reachable
+        for (int i = offset; i < offset + length; i += 2) {
+            multiStringMap.removeDirect(RANDOM_HEADERS.get(i));
+        }
+        multiStringMap.removeDirect(RANDOM_HEADERS.get(offset));
+
+        assertEquals(length / 2, multiStringMap.size());
+        for (int i = offset; i < offset + length; i++) {
+            HttpHeaderField field = RANDOM_HEADERS.get(i);
+            if ((i - offset) % 2 == 0) {
+                assertFalse(multiStringMap.containsKey(field), "header: " + field);
+                assertNull(multiStringMap.getFirst(field));
+            } else {
+                assertEquals(String.valueOf(i), multiStringMap.getFirst(field), "header: " + field);
+            }
+        }
+
+        multiStringMap.putDirect(RANDOM_HEADERS.get(offset), "foo");
+        assertEquals("foo", multiStringMap.getFirst(RANDOM_HEADERS.get(offset)));
+        assertEquals(length / 2 + 1, multiStringMap.size());
+    }
+
+    @Test
+    public void testRemoveHeader() {
+        new Headers().removeDirect(HttpHeaderField.CONTENT_ENCODING);
+
+        testRemoveHeader(0, 2000);
+        for (int offset = 0; offset < 1000; offset += 10) {
+            testRemoveHeader(offset, 10);
+        }
+    }
 }
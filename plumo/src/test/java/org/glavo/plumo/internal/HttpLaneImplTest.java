@@ -0,0 +1,277 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.glavo.plumo.HttpHandler;
+import org.glavo.plumo.HttpLane;
+import org.glavo.plumo.HttpRequest;
+import org.glavo.plumo.HttpResponse;
+import org.glavo.plumo.Plumo;
+import org.glavo.plumo.WorkerExecutor;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class HttpLaneImplTest {
+
+    private static HttpRequestImpl request() {
+        return new HttpRequestImpl(new InetSocketAddress("127.0.0.1", 12345), new InetSocketAddress("127.0.0.1", 80));
+    }
+
+    private static void await(BooleanSupplier condition, Object message) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out: " + message);
+            Thread.sleep(1);
+        }
+    }
+
+    private static HttpResponse get(CompletableFuture<HttpResponse> future) throws Exception {
+        try {
+            return future.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        HttpLaneImpl lane = (HttpLaneImpl) HttpLane.newBuilder("test").maxConcurrentRequests(1).build();
+        CountDownLatch handling = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        HttpHandler blocking = request -> {
+            handling.countDown();
+            release.await();
+            return HttpResponse.newTextResponse("first");
+        };
+
+        ExecutorService threads = Executors.newCachedThreadPool();
+        try {
+            Future<HttpResponse> first = threads.submit(() -> get(lane.submit(blocking, request(), threads)));
+            assertTrue(handling.await(10, TimeUnit.SECONDS));
+            assertEquals(1, lane.getActiveRequestCount());
+
+            // The caller is not parked while the request waits for a slot
+            Thread caller = Thread.currentThread();
+            CompletableFuture<HttpResponse> second = lane.submit(request -> {
+                assertNotSame(caller, Thread.currentThread());
+                return HttpResponse.newTextResponse("second");
+            }, request(), threads);
+            assertEquals(1, lane.getQueuedRequestCount());
+            assertFalse(second.isDone());
+
+            release.countDown();
+            assertNotNull(first.get(10, TimeUnit.SECONDS));
+            assertNotNull(get(second));
+        } finally {
+            release.countDown();
+            threads.shutdownNow();
+        }
+
+        await(() -> lane.getActiveRequestCount() == 0, lane);
+        assertEquals(0, lane.getQueuedRequestCount());
+        assertEquals(2, lane.getCompletedRequestCount());
+        assertEquals(0, lane.getRejectedRequestCount());
+    }
+
+    @Test
+    public void testQueueLimit() throws Exception {
+        HttpLaneImpl lane = (HttpLaneImpl) HttpLane.newBuilder("test").maxConcurrentRequests(1).maxQueuedRequests(0).build();
+        CountDownLatch handling = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService threads = Executors.newCachedThreadPool();
+        try {
+            Future<HttpResponse> first = threads.submit(() -> get(lane.submit(request -> {
+                handling.countDown();
+                release.await();
+                return HttpResponse.newTextResponse("first");
+            }, request(), threads)));
+            assertTrue(handling.await(10, TimeUnit.SECONDS));
+
+            HttpResponseException e = assertThrows(HttpResponseException.class,
+                    () -> lane.submit(request -> fail("Rejected requests must not be handled"), request(), threads));
+            assertEquals(HttpResponse.Status.SERVICE_UNAVAILABLE, e.getResponse().getStatus());
+            assertEquals(1, lane.getRejectedRequestCount());
+            assertEquals(0, lane.getCompletedRequestCount());
+
+            release.countDown();
+            first.get(10, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            threads.shutdownNow();
+        }
+
+        assertEquals(0, lane.getActiveRequestCount());
+        assertEquals(1, lane.getCompletedRequestCount());
+        assertEquals(1, lane.getRejectedRequestCount());
+    }
+
+    @Test
+    public void testCancelWaiting() throws Exception {
+        HttpLaneImpl lane = (HttpLaneImpl) HttpLane.newBuilder("test").maxConcurrentRequests(1).build();
+        CountDownLatch handling = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService threads = Executors.newCachedThreadPool();
+        try {
+            Future<HttpResponse> first = threads.submit(() -> get(lane.submit(request -> {
+                handling.countDown();
+                release.await();
+                return HttpResponse.newTextResponse("first");
+            }, request(), threads)));
+            assertTrue(handling.await(10, TimeUnit.SECONDS));
+
+            HttpRequestImpl request = request();
+            request.context = new RequestContextImpl(0L);
+            CompletableFuture<HttpResponse> second = lane.submit(r -> fail("Cancelled requests must not be handled"), request, threads);
+            assertEquals(1, lane.getQueuedRequestCount());
+
+            request.context.cancel(HttpRequest.CancellationReason.CLIENT_DISCONNECTED);
+            assertTrue(second.isCancelled());
+            assertEquals(0, lane.getQueuedRequestCount());
+
+            release.countDown();
+            first.get(10, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            threads.shutdownNow();
+        }
+
+        assertEquals(0, lane.getActiveRequestCount());
+        assertEquals(1, lane.getCompletedRequestCount());
+    }
+
+    @Test
+    public void testSlotHeldUntilHandlerReturns() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        HttpLaneImpl lane = (HttpLaneImpl) HttpLane.newBuilder("test").maxConcurrentRequests(1).maxQueuedRequests(0).executor(executor).build();
+        CountDownLatch handling = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            CompletableFuture<HttpResponse> first = lane.submit(request -> {
+                handling.countDown();
+                release.await();
+                return HttpResponse.newTextResponse("first");
+            }, request(), executor);
+            assertTrue(handling.await(10, TimeUnit.SECONDS));
+
+            // Abandoning the result does not free the slot while the handler is still running
+            first.cancel(true);
+            assertEquals(1, lane.getActiveRequestCount());
+            assertThrows(HttpResponseException.class,
+                    () -> lane.submit(request -> fail("Rejected requests must not be handled"), request(), executor));
+
+            release.countDown();
+            await(() -> lane.getActiveRequestCount() == 0, lane);
+            assertNotNull(get(lane.submit(request -> HttpResponse.newTextResponse("next"), request(), executor)));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testExecutor() throws Exception {
+        WorkerExecutor executor = WorkerExecutor.newBoundedThreadPool(1, 1);
+        HttpLaneImpl lane = (HttpLaneImpl) HttpLane.newBuilder("test").executor(executor).build();
+        try {
+            Thread caller = Thread.currentThread();
+            HttpResponse response = get(lane.submit(request -> {
+                assertNotSame(caller, Thread.currentThread());
+                return HttpResponse.newTextResponse("done");
+            }, request(), null));
+            assertNotNull(response);
+            assertEquals(1, lane.getCompletedRequestCount());
+
+            // The result of a task is available before its thread is free again, so the next task may have to wait
+            assertThrows(IllegalStateException.class, () -> get(lane.submit(request -> {
+                throw new IllegalStateException();
+            }, request(), null)));
+            assertEquals(2, lane.getCompletedRequestCount());
+
+            executor.shutdown();
+            HttpResponseException e = assertThrows(HttpResponseException.class,
+                    () -> get(lane.submit(request -> fail("Rejected requests must not be handled"), request(), null)));
+            assertEquals(HttpResponse.Status.SERVICE_UNAVAILABLE, e.getResponse().getStatus());
+            assertEquals(2, lane.getCompletedRequestCount());
+            assertEquals(1, lane.getRejectedRequestCount());
+            assertEquals(0, lane.getActiveRequestCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBuilder() {
+        assertThrows(IllegalArgumentException.class, () -> HttpLane.newBuilder("test").maxConcurrentRequests(0));
+        assertThrows(IllegalArgumentException.class, () -> HttpLane.newBuilder("test").maxQueuedRequests(-1));
+
+        HttpLane lane = HttpLane.newBuilder("test").build();
+        HttpLane other = new HttpLane() {
+            @Override
+            public String getName() {
+                return "other";
+            }
+
+            @Override
+            public int getMaxConcurrentRequests() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            public int getMaxQueuedRequests() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            public long getMaxBandwidth() {
+                return Long.MAX_VALUE;
+            }
+
+            @Override
+            public int getActiveRequestCount() {
+                return 0;
+            }
+
+            @Override
+            public int getQueuedRequestCount() {
+                return 0;
+            }
+
+            @Override
+            public long getCompletedRequestCount() {
+                return 0;
+            }
+
+            @Override
+            public long getRejectedRequestCount() {
+                return 0;
+            }
+        };
+
+        Plumo.Builder builder = Plumo.newBuilder().lane(lane);
+        assertThrows(IllegalArgumentException.class, () -> builder.lane(HttpLane.newBuilder("test").build()));
+        assertThrows(IllegalArgumentException.class, () -> builder.lane(other));
+    }
+}
@@ -15,10 +15,16 @@
  */
 package org.glavo.plumo.internal;
 
+import org.glavo.plumo.HttpHeaderField;
+import org.glavo.plumo.HttpResponse;
+import org.glavo.plumo.internal.util.InputWrapper;
 import org.junit.jupiter.api.DynamicTest;
 import org.junit.jupiter.api.TestFactory;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.util.ArrayList;
@@ -27,6 +33,9 @@ import java.util.List;
 import java.util.Random;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -125,4 +134,116 @@ public final class HttpRequestReaderTest {
                             return tests.stream();
                         }));
     }
+
+    private static byte[] compress(byte[] data, String encoding) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        switch (encoding) {
+            case "gzip":
+                try (GZIPOutputStream out = new GZIPOutputStream(output)) {
+                    out.write(data);
+                }
+                break;
+            case "deflate":
+                try (DeflaterOutputStream out = new DeflaterOutputStream(output)) {
+                    out.write(data);
+                }
+                break;
+            case "raw-deflate":
+                try (DeflaterOutputStream out = new DeflaterOutputStream(output, new Deflater(Deflater.DEFAULT_COMPRESSION, true))) {
+                    out.write(data);
+                }
+                break;
+            default:
+                throw new AssertionError(encoding);
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] readAll(InputWrapper input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int n;
+        while ((n = input.read(buffer, 0, buffer.length)) > 0) {
+            output.write(buffer, 0, n);
+        }
+        return output.toByteArray();
+    }
+
+    private static int readStatus(InputWrapper input) {
+        HttpResponseException exception = assertThrows(HttpResponseException.class, () -> readAll(input));
+        return exception.getResponse().getStatus().getStatusCode();
+    }
+
+    @TestFactory
+    public Stream<DynamicTest> testInflaterInput() throws IOException {
+        byte[] data = new byte[100000];
+        Random random = new Random(0);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(8));
+        }
+
+        List<DynamicTest> tests = new ArrayList<>();
+        for (String encoding : new String[]{"gzip", "deflate", "raw-deflate"}) {
+            byte[] compressed = compress(data, encoding);
+            boolean gzip = encoding.equals("gzip");
+
+            tests.addAll(createTest("InflaterInput (" + encoding + ")", compressed, reader -> {
+                HttpRequestReader.InflaterInput input = new HttpRequestReader.InflaterInput(
+                        reader, new HttpRequestReader.BoundedInput(reader, compressed.length), gzip, data.length);
+                assertArrayEquals(data, readAll(input));
+                assertEquals(-1, input.read());
+            }));
+
+            tests.addAll(createTest("InflaterInput (" + encoding + ", too large)", compressed, reader -> {
+                HttpRequestReader.InflaterInput input = new HttpRequestReader.InflaterInput(
+                        reader, new HttpRequestReader.BoundedInput(reader, compressed.length), gzip, data.length - 1);
+                assertEquals(HttpResponse.Status.PAYLOAD_TOO_LARGE.getStatusCode(), readStatus(input));
+            }));
+
+            tests.addAll(createTest("InflaterInput (" + encoding + ", truncated)", compressed, reader -> {
+                HttpRequestReader.InflaterInput input = new HttpRequestReader.InflaterInput(
+                        reader, new HttpRequestReader.BoundedInput(reader, compressed.length - 5), gzip, data.length);
+                assertEquals(HttpResponse.Status.BAD_REQUEST.getStatusCode(), readStatus(input));
+            }));
+        }
+
+        // Concatenated gzip members
+        byte[] first = compress(Arrays.copyOf(data, 1000), "gzip");
+        byte[] second = compress(Arrays.copyOfRange(data, 1000, data.length), "gzip");
+        byte[] members = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, members, first.length, second.length);
+        tests.addAll(createTest("InflaterInput (gzip members)", members, reader -> {
+            HttpRequestReader.InflaterInput input = new HttpRequestReader.InflaterInput(
+                    reader, new HttpRequestReader.BoundedInput(reader, members.length), true, data.length);
+            assertArrayEquals(data, readAll(input));
+        }));
+
+        byte[] body = compress(data, "gzip");
+        byte[] header = ("POST /upload HTTP/1.1\r\nContent-Encoding: gzip\r\nContent-Length: " + body.length + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] request = Arrays.copyOf(header, header.length + body.length);
+        System.arraycopy(body, 0, request, header.length, body.length);
+        tests.addAll(createTest("readHeader (Content-Encoding: gzip)", request, reader -> {
+            reader.decompressRequestBody = true;
+            HttpRequestImpl httpRequest = new HttpRequestImpl(null, null);
+            reader.readHeader(httpRequest);
+            assertFalse(httpRequest.containsHeader(HttpHeaderField.CONTENT_ENCODING));
+            assertEquals("gzip", httpRequest.getOriginalContentEncoding());
+            assertEquals(-1, httpRequest.getBodySize());
+            assertArrayEquals(data, readAll(httpRequest.body));
+        }));
+
+        // Decoding is opt-in
+        tests.addAll(createTest("readHeader (Content-Encoding: gzip, not decoded)", request, reader -> {
+            assertFalse(reader.decompressRequestBody);
+            HttpRequestImpl httpRequest = new HttpRequestImpl(null, null);
+            reader.readHeader(httpRequest);
+            assertEquals("gzip", httpRequest.getHeader(HttpHeaderField.CONTENT_ENCODING));
+            assertEquals("gzip", httpRequest.getOriginalContentEncoding());
+            assertEquals(body.length, httpRequest.getBodySize());
+            assertArrayEquals(body, readAll(httpRequest.body));
+        }));
+
+        return tests.stream();
+    }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.glavo.plumo.CompressionPolicy;
+import org.glavo.plumo.HttpHeaderField;
+import org.glavo.plumo.HttpResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class HttpResponseImplTest {
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = input.read(buffer)) > 0) {
+                output.write(buffer, 0, n);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    @Test
+    public void testEncodedBodyLevel() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            builder.append("line ").append(i % 97).append(' ').append(i * 31 % 1013).append('\n');
+        }
+        byte[] body = builder.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer data = ByteBuffer.wrap(body);
+
+        HttpResponseImpl response = (HttpResponseImpl) HttpResponse.newTextResponse("").freeze();
+
+        // The fast level chosen under load is retained until a higher level is requested
+        byte[] fast = response.getEncodedBody(CompressionPolicy.Encoding.GZIP, 1, data);
+        assertSame(fast, response.getEncodedBody(CompressionPolicy.Encoding.GZIP, 1, data));
+
+        byte[] nominal = response.getEncodedBody(CompressionPolicy.Encoding.GZIP, 6, data);
+        assertNotSame(fast, nominal);
+        assertSame(nominal, response.getEncodedBody(CompressionPolicy.Encoding.GZIP, 6, data));
+
+        // A variant at a higher level is reused for lower levels
+        assertSame(nominal, response.getEncodedBody(CompressionPolicy.Encoding.GZIP, 1, data));
+
+        assertArrayEquals(body, gunzip(fast));
+        assertArrayEquals(body, gunzip(nominal));
+        assertEquals(0, data.position());
+    }
+
+    @Test
+    public void testEntityTag() {
+        ByteBuffer data = ByteBuffer.wrap("entity".getBytes(StandardCharsets.UTF_8));
+        HttpResponseImpl response = (HttpResponseImpl) HttpResponse.newTextResponse("").freeze();
+
+        String identity = response.getEntityTag(CompressionPolicy.Encoding.IDENTITY, data);
+        assertTrue(identity.startsWith("\""), identity);
+
+        // Encoded variants may be re-encoded at another level, so their tags are weak
+        String gzip = response.getEntityTag(CompressionPolicy.Encoding.GZIP, data);
+        assertEquals("W/" + identity.substring(0, identity.length() - 1) + "-gzip\"", gzip);
+        assertSame(gzip, response.getEntityTag(CompressionPolicy.Encoding.GZIP, data));
+        assertNotEquals(gzip, response.getEntityTag(CompressionPolicy.Encoding.BROTLI, data));
+
+        // If-None-Match uses the weak comparison
+        assertTrue(HttpSessionImpl.ifNoneMatchMatches(gzip, gzip));
+        assertTrue(HttpSessionImpl.ifNoneMatchMatches(gzip.substring(2), gzip));
+        assertFalse(HttpSessionImpl.ifNoneMatchMatches(identity, gzip));
+        assertEquals(0, data.position());
+    }
+
+    @Test
+    public void testHeaderValue() {
+        HttpResponse response = HttpResponse.newTextResponse("");
+        assertThrows(IllegalArgumentException.class, () -> response.withHeader("X-Test", "a\r\nSet-Cookie: a=b"));
+        assertThrows(IllegalArgumentException.class, () -> response.withHeader("X-Test", "a\nb"));
+        assertThrows(IllegalArgumentException.class, () -> response.withHeader("X-Test", Arrays.asList("a", "b\r")));
+        assertThrows(IllegalArgumentException.class, () -> response.addHeader("X-Test", "a\0"));
+        assertThrows(NullPointerException.class, () -> response.withHeader("X-Test", (String) null));
+
+        assertEquals("a\tb", ((HttpResponseImpl) response.withHeader("X-Test", "a\tb")).headers.getFirst(HttpHeaderField.of("X-Test")));
+    }
+}
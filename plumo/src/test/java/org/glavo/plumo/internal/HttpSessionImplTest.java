@@ -0,0 +1,537 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.glavo.plumo.AsyncHttpHandler;
+import org.glavo.plumo.HttpHeaderField;
+import org.glavo.plumo.HttpRequest;
+import org.glavo.plumo.HttpResponse;
+import org.glavo.plumo.Plumo;
+import org.glavo.plumo.WorkerExecutor;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class HttpSessionImplTest {
+
+    private static Socket connect(Plumo server) throws IOException {
+        Socket socket = new Socket("127.0.0.1", server.getPort());
+        socket.setSoTimeout(10_000);
+        return socket;
+    }
+
+    private static void send(Socket socket, String request) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    /**
+     * Reads a response with a {@code Content-Length} body, returns the head and the body.
+     */
+    private static String readResponse(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int last = 0;
+        while (last != 0x0d0a0d0a) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Unexpected end of response: " + head);
+            }
+            head.write(b);
+            last = (last << 8) | b;
+        }
+
+        String headString = head.toString("ISO-8859-1");
+        int contentLength = 0;
+        for (String line : headString.split("\r\n")) {
+            if (line.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+                contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+
+        byte[] body = new byte[contentLength];
+        int n = 0;
+        while (n < contentLength) {
+            int r = in.read(body, n, contentLength - n);
+            if (r < 0) {
+                throw new IOException("Unexpected end of body");
+            }
+            n += r;
+        }
+        return headString + new String(body, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testStopGracefully() throws Exception {
+        CountDownLatch handling = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Plumo server = Plumo.newBuilder()
+                .bind("127.0.0.1", 0)
+                .handler(request -> {
+                    if (request.getURI().getPath().equals("/slow")) {
+                        handling.countDown();
+                        release.await();
+                    }
+                    return HttpResponse.newTextResponse("done");
+                })
+                .start();
+        try (Socket busy = connect(server); Socket idle = connect(server)) {
+            send(idle, "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(readResponse(idle.getInputStream()).startsWith("HTTP/1.1 200"));
+
+            send(busy, "GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(handling.await(10, TimeUnit.SECONDS));
+
+            server.stopGracefully(10, TimeUnit.SECONDS);
+
+            // Idle keep-alive connections are closed right away
+            assertEquals(-1, idle.getInputStream().read());
+            assertFalse(server.awaitTermination(50, TimeUnit.MILLISECONDS));
+
+            // The in-flight request completes and its connection is closed afterwards
+            release.countDown();
+            String response = readResponse(busy.getInputStream());
+            assertTrue(response.startsWith("HTTP/1.1 200"), response);
+            assertTrue(response.toLowerCase(Locale.ROOT).contains("connection: close"), response);
+            assertTrue(response.endsWith("done"), response);
+            assertEquals(-1, busy.getInputStream().read());
+
+            assertTrue(server.awaitTermination(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            server.stop();
+        }
+
+        assertEquals(1, server.getDrainedRequestCount());
+        assertEquals(0, server.getKilledRequestCount());
+    }
+
+    @Test
+    public void testStopGracefullyDeadline() throws Exception {
+        CountDownLatch handling = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        Plumo server = Plumo.newBuilder()
+                .bind("127.0.0.1", 0)
+                .handler(request -> {
+                    handling.countDown();
+                    try {
+                        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                    } catch (InterruptedException e) {
+                        assertEquals(HttpRequest.CancellationReason.SERVER_STOPPED, request.getContext().getCancellationReason());
+                        interrupted.countDown();
+                        throw e;
+                    }
+                    return HttpResponse.newTextResponse("done");
+                })
+                .start();
+        try (Socket socket = connect(server)) {
+            send(socket, "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(handling.await(10, TimeUnit.SECONDS));
+
+            long start = System.nanoTime();
+            server.stopGracefully(100, TimeUnit.MILLISECONDS);
+            assertTrue(server.awaitTermination(10, TimeUnit.SECONDS));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+
+            // The request is cancelled and its connection is closed without a response
+            assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+            assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            server.stop();
+        }
+
+        assertEquals(0, server.getDrainedRequestCount());
+        assertEquals(1, server.getKilledRequestCount());
+    }
+
+    @Test
+    public void testIfNoneMatch() {
+        assertTrue(HttpSessionImpl.ifNoneMatchMatches("\"abc\"", "\"abc\""));
+        assertTrue(HttpSessionImpl.ifNoneMatchMatches("*", "\"abc\""));
+        assertTrue(HttpSessionImpl.ifNoneMatchMatches("\"x\", \"abc\"", "\"abc\""));
+        assertTrue(HttpSessionImpl.ifNoneMatchMatches("W/\"abc\"", "\"abc\""));
+        assertTrue(HttpSessionImpl.ifNoneMatchMatches("\"abc\"", "W/\"abc\""));
+        assertTrue(HttpSessionImpl.ifNoneMatchMatches("\"a,b\", \"c\"", "\"a,b\""));
+
+        assertFalse(HttpSessionImpl.ifNoneMatchMatches("\"abcd\"", "\"abc\""));
+        assertFalse(HttpSessionImpl.ifNoneMatchMatches("\"ab\"", "\"abc\""));
+        assertFalse(HttpSessionImpl.ifNoneMatchMatches("\"abc-gzip\"", "\"abc\""));
+        assertFalse(HttpSessionImpl.ifNoneMatchMatches("\"a,b\", \"c\"", "\"b\""));
+        assertFalse(HttpSessionImpl.ifNoneMatchMatches("\"abc", "\"abc\""));
+        assertFalse(HttpSessionImpl.ifNoneMatchMatches("", "\"abc\""));
+    }
+    @Test
+    public void testRequestTimeout() throws Exception {
+        Plumo server = Plumo.newBuilder()
+                .bind("127.0.0.1", 0)
+                .requestTimeout(100)
+                .handler(request -> {
+                    if (request.getURI().getPath().equals("/slow")) {
+                        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                    }
+                    return HttpResponse.newTextResponse("done");
+                })
+                .start();
+        try (Socket socket = connect(server)) {
+            send(socket, "GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            String response = readResponse(socket.getInputStream());
+            assertTrue(response.startsWith("HTTP/1.1 503"), response);
+
+            // The connection is still usable
+            send(socket, "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            response = readResponse(socket.getInputStream());
+            assertTrue(response.startsWith("HTTP/1.1 200"), response);
+        } finally {
+            server.stopAndWait();
+        }
+    }
+
+    @Test
+    public void testClientDisconnect() throws Exception {
+        CountDownLatch handling = new CountDownLatch(1);
+        CompletableFuture<HttpRequest.CancellationReason> reason = new CompletableFuture<>();
+        Plumo server = Plumo.newBuilder()
+                .bind("127.0.0.1", 0)
+                .detectClientDisconnect(true)
+                .handler(request -> {
+                    handling.countDown();
+                    try {
+                        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                    } catch (InterruptedException e) {
+                        reason.complete(request.getContext().getCancellationReason());
+                        throw e;
+                    }
+                    return HttpResponse.newTextResponse("done");
+                })
+                .start();
+        try {
+            try (Socket socket = connect(server)) {
+                send(socket, "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(handling.await(10, TimeUnit.SECONDS));
+            }
+
+            assertEquals(HttpRequest.CancellationReason.CLIENT_DISCONNECTED, reason.get(10, TimeUnit.SECONDS));
+        } finally {
+            server.stopAndWait();
+        }
+    }
+
+    @Test
+    public void testReadAheadKeepsPipelinedRequest() throws Exception {
+        CountDownLatch handling = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Plumo server = Plumo.newBuilder()
+                .bind("127.0.0.1", 0)
+                .detectClientDisconnect(true)
+                .handler(request -> {
+                    String path = request.getURI().getPath();
+                    if (path.equals("/slow")) {
+                        handling.countDown();
+                        release.await();
+                    }
+                    return HttpResponse.newTextResponse(path);
+                })
+                .start();
+        try (Socket socket = connect(server)) {
+            send(socket, "GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(handling.await(10, TimeUnit.SECONDS));
+
+            // Read ahead by the disconnect monitor while the first request is being handled
+            send(socket, "GET /next HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            Thread.sleep(50);
+            release.countDown();
+
+            InputStream in = socket.getInputStream();
+            assertTrue(readResponse(in).endsWith("/slow"));
+            assertTrue(readResponse(in).endsWith("/next"));
+        } finally {
+            release.countDown();
+            server.stopAndWait();
+        }
+    }
+
+    @Test
+    public void testReadAheadTakesOverIdleConnection() throws Exception {
+        // One thread for the session and one for the read ahead
+        WorkerExecutor executor = WorkerExecutor.newBoundedThreadPool(2, 16);
+        Plumo server = Plumo.newBuilder()
+                .bind("127.0.0.1", 0)
+                .executor(executor, true)
+                .detectClientDisconnect(true)
+                .handler(request -> {
+                    // Let the read ahead start
+                    Thread.sleep(50);
+                    return HttpResponse.newTextResponse(request.getURI().getPath());
+                })
+                .start();
+        try (Socket first = connect(server)) {
+            send(first, "GET /first HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            InputStream firstIn = first.getInputStream();
+            assertTrue(readResponse(firstIn).endsWith("/first"));
+
+            // The idle connection holds a single thread, so another connection can still be served
+            try (Socket second = connect(server)) {
+                second.setSoTimeout(10_000);
+                send(second, "GET /second HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(readResponse(second.getInputStream()).endsWith("/second"));
+            }
+
+            send(first, "GET /next HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(readResponse(firstIn).endsWith("/next"));
+        } finally {
+            server.stopAndWait();
+        }
+    }
+
+    @Test
+    public void testReadAheadDoesNotHoldClosedConnection() throws Exception {
+        Plumo server = Plumo.newBuilder()
+                .bind("127.0.0.1", 0)
+                .detectClientDisconnect(true)
+                .handler(request -> {
+                    // Let the read ahead start
+                    Thread.sleep(50);
+                    return HttpResponse.newTextResponse("done");
+                })
+                .start();
+        try (Socket socket = connect(server)) {
+            // The client keeps the connection open, but the server must close it after the response
+            send(socket, "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+            InputStream in = socket.getInputStream();
+            assertTrue(readResponse(in).startsWith("HTTP/1.1 200"));
+            assertEquals(-1, in.read());
+        } finally {
+            server.stopAndWait();
+        }
+    }
+
+    @Test
+    public void testReadAheadDoesNotStallDrain() throws Exception {
+        CountDownLatch handling = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Plumo server = Plumo.newBuilder()
+                .bind("127.0.0.1", 0)
+                .detectClientDisconnect(true)
+                .handler(request -> {
+                    handling.countDown();
+                    release.await();
+                    return HttpResponse.newTextResponse("done");
+                })
+                .start();
+        try (Socket socket = connect(server)) {
+            send(socket, "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(handling.await(10, TimeUnit.SECONDS));
+
+            server.stopGracefully(1, TimeUnit.MINUTES);
+            release.countDown();
+
+            InputStream in = socket.getInputStream();
+            assertTrue(readResponse(in).startsWith("HTTP/1.1 200"));
+            assertEquals(-1, in.read());
+            assertTrue(server.awaitTermination(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            server.stop();
+        }
+
+        assertEquals(1, server.getDrainedRequestCount());
+        assertEquals(0, server.getKilledRequestCount());
+    }
+    @Test
+    public void testAsyncHandler() throws Exception {
+        BlockingQueue<CompletableFuture<HttpResponse>> pending = new LinkedBlockingQueue<>();
+        WorkerExecutor executor = WorkerExecutor.newBoundedThreadPool(1, 16);
+        Plumo server = Plumo.newBuilder()
+                .bind("127.0.0.1", 0)
+                .executor(executor, true)
+                .handler((AsyncHttpHandler) request -> {
+                    String path = request.getURI().getPath();
+                    if (path.equals("/sync")) {
+                        return CompletableFuture.completedFuture(HttpResponse.newTextResponse(path));
+                    }
+
+                    CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+                    pending.add(future);
+                    return future;
+                })
+                .start();
+        try (Socket first = connect(server); Socket second = connect(server)) {
+            // Suspended sessions do not occupy the only worker thread
+            send(first, "GET /first HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            CompletableFuture<HttpResponse> firstFuture = pending.poll(10, TimeUnit.SECONDS);
+            assertNotNull(firstFuture);
+            send(second, "GET /second HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+            CompletableFuture<HttpResponse> secondFuture = pending.poll(10, TimeUnit.SECONDS);
+            assertNotNull(secondFuture);
+
+            new Thread(() -> secondFuture.complete(HttpResponse.newTextResponse("second"))).start();
+            assertTrue(readResponse(second.getInputStream()).endsWith("second"));
+            assertEquals(-1, second.getInputStream().read());
+
+            firstFuture.completeExceptionally(new HttpResponseException(HttpResponse.Status.NOT_FOUND));
+            String response = readResponse(first.getInputStream());
+            assertTrue(response.startsWith("HTTP/1.1 404"), response);
+
+            // The resumed session keeps serving the connection
+            send(first, "GET /sync HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(readResponse(first.getInputStream()).endsWith("/sync"));
+            send(first, "GET /third HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            CompletableFuture<HttpResponse> thirdFuture = pending.poll(10, TimeUnit.SECONDS);
+            assertNotNull(thirdFuture);
+            thirdFuture.complete(HttpResponse.newTextResponse("third"));
+            assertTrue(readResponse(first.getInputStream()).endsWith("third"));
+
+            // Completing with null closes the connection
+            send(first, "GET /fourth HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            CompletableFuture<HttpResponse> fourthFuture = pending.poll(10, TimeUnit.SECONDS);
+            assertNotNull(fourthFuture);
+            fourthFuture.complete(null);
+            assertEquals(-1, first.getInputStream().read());
+        } finally {
+            server.stopAndWait();
+        }
+    }
+
+    @Test
+    public void testAsyncHandlerTimeout() throws Exception {
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+        CompletableFuture<HttpRequest.CancellationReason> reason = new CompletableFuture<>();
+        Plumo server = Plumo.newBuilder()
+                .bind("127.0.0.1", 0)
+                .requestTimeout(100)
+                .handler((AsyncHttpHandler) request -> {
+                    if (request.getURI().getPath().equals("/next")) {
+                        return CompletableFuture.completedFuture(HttpResponse.newTextResponse("next"));
+                    }
+
+                    request.getContext().onCancel(() -> reason.complete(request.getContext().getCancellationReason()));
+                    return future;
+                })
+                .start();
+        try (Socket socket = connect(server)) {
+            send(socket, "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            String response = readResponse(socket.getInputStream());
+            assertTrue(response.startsWith("HTTP/1.1 503"), response);
+            assertEquals(HttpRequest.CancellationReason.TIMEOUT, reason.get(10, TimeUnit.SECONDS));
+
+            // A late response is discarded
+            assertTrue(future.complete(HttpResponse.newTextResponse("late")));
+
+            send(socket, "GET /next HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            response = readResponse(socket.getInputStream());
+            assertTrue(response.endsWith("next"), response);
+        } finally {
+            server.stopAndWait();
+        }
+    }
+
+    @Test
+    public void testInterimResponse() throws Exception {
+        BlockingQueue<List<Object>> results = new LinkedBlockingQueue<>();
+        Plumo server = Plumo.newBuilder()
+                .bind("127.0.0.1", 0)
+                .handler(request -> {
+                    List<Object> result = new ArrayList<>();
+                    for (HttpResponse.Status status : new HttpResponse.Status[]{
+                            HttpResponse.Status.OK, HttpResponse.Status.NOT_FOUND, HttpResponse.Status.SWITCH_PROTOCOL}) {
+                        try {
+                            result.add(request.sendInterimResponse(status, Collections.emptyMap()));
+                        } catch (IllegalArgumentException e) {
+                            result.add(e);
+                        }
+                    }
+
+                    // Header values must not be able to inject headers or end the head
+                    try {
+                        result.add(request.sendInterimResponse(HttpResponse.Status.EARLY_HINTS,
+                                Collections.singletonMap(HttpHeaderField.LINK, Collections.singletonList("</a.css>\r\nSet-Cookie: a=b"))));
+                    } catch (IllegalArgumentException e) {
+                        result.add(e);
+                    }
+                    try {
+                        result.add(request.sendEarlyHints("</a.css>; rel=preload", "</b.css>\n\r\n"));
+                    } catch (IllegalArgumentException e) {
+                        result.add(e);
+                    }
+
+                    result.add(request.sendEarlyHints("</style.css>; rel=preload; as=style", "</app.js>; rel=preload; as=script"));
+                    results.add(result);
+                    return HttpResponse.newTextResponse("done");
+                })
+                .start();
+        try (Socket socket = connect(server)) {
+            send(socket, "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            String interim = readResponse(socket.getInputStream());
+            assertTrue(interim.startsWith("HTTP/1.1 103 Early Hints\r\n"), interim);
+            assertEquals(2, interim.split("\r\n").length - 1, interim);
+            assertTrue(interim.contains("link: </style.css>; rel=preload; as=style\r\n"), interim);
+            assertTrue(interim.contains("link: </app.js>; rel=preload; as=script\r\n"), interim);
+
+            String response = readResponse(socket.getInputStream());
+            assertTrue(response.startsWith("HTTP/1.1 200"), response);
+            assertTrue(response.endsWith("done"), response);
+
+            List<Object> result = results.poll(10, TimeUnit.SECONDS);
+            assertNotNull(result);
+            assertEquals(6, result.size(), result.toString());
+            for (int i = 0; i < 5; i++) {
+                assertTrue(result.get(i) instanceof IllegalArgumentException, result.toString());
+            }
+            assertEquals(true, result.get(5));
+        } finally {
+            server.stopAndWait();
+        }
+
+        // HTTP/1.0 clients do not get interim responses
+        server = Plumo.newBuilder()
+                .bind("127.0.0.1", 0)
+                .handler(request -> {
+                    results.add(Collections.singletonList(request.sendEarlyHints("</style.css>; rel=preload; as=style")));
+                    return HttpResponse.newTextResponse("done");
+                })
+                .start();
+        try (Socket socket = connect(server)) {
+            send(socket, "GET / HTTP/1.0\r\n\r\n");
+            String response = readResponse(socket.getInputStream());
+            assertTrue(response.startsWith("HTTP/1.1 200"), response);
+            assertTrue(response.endsWith("done"), response);
+            assertEquals(Collections.singletonList(false), results.poll(10, TimeUnit.SECONDS));
+        } finally {
+            server.stopAndWait();
+        }
+
+        // Interim responses cannot follow the final response
+        HttpRequestImpl request = new HttpRequestImpl(null, null);
+        request.startResponse();
+        assertThrows(IllegalStateException.class, () -> request.sendEarlyHints("</style.css>; rel=preload; as=style"));
+    }
+}
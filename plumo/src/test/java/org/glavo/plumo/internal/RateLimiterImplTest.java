@@ -0,0 +1,134 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.glavo.plumo.HttpHeaderField;
+import org.glavo.plumo.HttpRequest;
+import org.glavo.plumo.Plumo;
+import org.glavo.plumo.RateLimiter;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class RateLimiterImplTest {
+
+    private static HttpRequestImpl request(String address, String forwardedFor) {
+        HttpRequestImpl request = new HttpRequestImpl(new InetSocketAddress(address, 12345), new InetSocketAddress("127.0.0.1", 80));
+        if (forwardedFor != null) {
+            request.headers.putDirect(HttpHeaderField.of("X-Forwarded-For"), forwardedFor);
+        }
+        return request;
+    }
+
+    @Test
+    public void testBurst() throws InterruptedException {
+        RateLimiterImpl limiter = (RateLimiterImpl) RateLimiter.newBuilder(10).burst(3).build();
+        HttpRequestImpl a = request("10.0.0.1", null);
+        HttpRequestImpl b = request("10.0.0.2", null);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0L, limiter.acquire(a));
+        }
+        long delay = limiter.acquire(a);
+        assertTrue(delay > 0 && delay <= 100_000_000L, "delay=" + delay);
+        assertFalse(limiter.tryAcquire(a));
+        assertEquals(2, limiter.getRejectedRequestCount());
+
+        // Clients have separate budgets
+        assertTrue(limiter.tryAcquire(b));
+        assertEquals(2, limiter.getTrackedClientCount());
+
+        Thread.sleep(150);
+        assertTrue(limiter.tryAcquire(a));
+    }
+
+    @Test
+    public void testDefaultBurst() {
+        assertEquals(1, RateLimiter.newBuilder(0.5).build().getBurst());
+        assertEquals(100, RateLimiter.newBuilder(100).build().getBurst());
+        assertThrows(IllegalArgumentException.class, () -> RateLimiter.newBuilder(0));
+        assertThrows(IllegalArgumentException.class, () -> RateLimiter.newBuilder(Double.NaN));
+    }
+
+    @Test
+    public void testBuilder() {
+        RateLimiter other = new RateLimiter() {
+            @Override
+            public double getRequestsPerSecond() {
+                return 1;
+            }
+
+            @Override
+            public int getBurst() {
+                return 1;
+            }
+
+            @Override
+            public boolean tryAcquire(HttpRequest request) {
+                return true;
+            }
+
+            @Override
+            public int getTrackedClientCount() {
+                return 0;
+            }
+
+            @Override
+            public long getRejectedRequestCount() {
+                return 0;
+            }
+        };
+
+        Plumo.Builder builder = Plumo.newBuilder().rateLimiter(RateLimiter.newBuilder(1).build());
+        assertThrows(NullPointerException.class, () -> builder.rateLimiter(null));
+        assertThrows(IllegalArgumentException.class, () -> builder.rateLimiter(other));
+    }
+
+    @Test
+    public void testKeyHeader() {
+        RateLimiterImpl limiter = (RateLimiterImpl) RateLimiter.newBuilder(0.001).burst(1).keyHeader("X-Forwarded-For").build();
+
+        assertTrue(limiter.tryAcquire(request("127.0.0.1", "1.1.1.1, 10.0.0.1")));
+        assertFalse(limiter.tryAcquire(request("127.0.0.1", "2.2.2.2,10.0.0.1")));
+        assertTrue(limiter.tryAcquire(request("127.0.0.1", "10.0.0.2")));
+
+        // Falls back to the remote address
+        assertTrue(limiter.tryAcquire(request("127.0.0.1", null)));
+        assertFalse(limiter.tryAcquire(request("127.0.0.1", null)));
+        assertFalse(limiter.tryAcquire(request("127.0.0.1", " ")));
+    }
+
+    @Test
+    public void testEviction() throws InterruptedException {
+        RateLimiterImpl limiter = (RateLimiterImpl) RateLimiter.newBuilder(1000).burst(10).build();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquire(request("10.0.1." + i, null)));
+        }
+        assertEquals(100, limiter.getTrackedClientCount());
+
+        // Clients with a full budget are dropped by the next sweep, a batch per request
+        Thread.sleep(1100);
+        assertTrue(limiter.tryAcquire(request("10.0.2.1", null)));
+        assertEquals(101 - RateLimiterImpl.SWEEP_BATCH_SIZE, limiter.getTrackedClientCount());
+
+        for (int i = 0; i < 100 / RateLimiterImpl.SWEEP_BATCH_SIZE + 1; i++) {
+            assertTrue(limiter.tryAcquire(request("10.0.2.1", null)));
+        }
+        assertEquals(1, limiter.getTrackedClientCount());
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.glavo.plumo.HttpRequest;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class RequestContextImplTest {
+
+    @Test
+    public void testCancel() {
+        RequestContextImpl context = new RequestContextImpl(0);
+        AtomicInteger callbacks = new AtomicInteger();
+        context.onCancel(callbacks::incrementAndGet);
+
+        assertNull(context.getDeadline());
+        assertFalse(context.isCancelled());
+        context.checkCancelled();
+
+        context.enter();
+        try {
+            assertTrue(context.cancel(HttpRequest.CancellationReason.CLIENT_DISCONNECTED));
+            assertFalse(context.cancel(HttpRequest.CancellationReason.TIMEOUT));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            context.exit();
+        }
+
+        // The interrupt sent by cancellation is cleared on exit
+        assertFalse(Thread.interrupted());
+
+        assertEquals(1, callbacks.get());
+        assertEquals(HttpRequest.CancellationReason.CLIENT_DISCONNECTED, context.getCancellationReason());
+        assertThrows(CancellationException.class, context::checkCancelled);
+
+        // Callbacks registered after cancellation run immediately
+        context.onCancel(callbacks::incrementAndGet);
+        assertEquals(2, callbacks.get());
+    }
+
+    @Test
+    public void testCancelAfterExit() {
+        RequestContextImpl context = new RequestContextImpl(0);
+        context.enter();
+        context.exit();
+
+        assertFalse(context.cancel(HttpRequest.CancellationReason.SERVER_STOPPED));
+        assertFalse(context.isCancelled());
+        assertFalse(Thread.interrupted());
+    }
+
+    @Test
+    public void testCancelBeforeEnter() {
+        RequestContextImpl context = new RequestContextImpl(0);
+        context.cancel(HttpRequest.CancellationReason.SERVER_STOPPED);
+
+        context.enter();
+        assertTrue(Thread.currentThread().isInterrupted());
+        context.exit();
+        assertFalse(Thread.interrupted());
+    }
+
+    @Test
+    public void testForeignInterruptIsPreserved() {
+        RequestContextImpl context = new RequestContextImpl(0);
+        context.enter();
+        Thread.currentThread().interrupt();
+        context.exit();
+        assertTrue(Thread.interrupted());
+
+        context = new RequestContextImpl(0);
+        context.enter();
+        Thread.currentThread().interrupt();
+        context.detach();
+        assertTrue(Thread.interrupted());
+
+        // Cancellation after detaching does not interrupt the thread
+        context.cancel(HttpRequest.CancellationReason.TIMEOUT);
+        assertFalse(Thread.interrupted());
+        context.exit();
+    }
+
+    @Test
+    public void testTimeout() throws InterruptedException {
+        RequestContextImpl context = new RequestContextImpl(50);
+        assertNotNull(context.getDeadline());
+
+        context.enter();
+        try {
+            assertThrows(InterruptedException.class, () -> Thread.sleep(TimeUnit.SECONDS.toMillis(10)));
+            assertEquals(HttpRequest.CancellationReason.TIMEOUT, context.getCancellationReason());
+        } finally {
+            context.exit();
+        }
+        assertFalse(Thread.interrupted());
+
+        // The timeout has no effect after the handler has finished
+        context = new RequestContextImpl(50);
+        context.enter();
+        context.exit();
+        Thread.sleep(100);
+        assertFalse(context.isCancelled());
+    }
+}
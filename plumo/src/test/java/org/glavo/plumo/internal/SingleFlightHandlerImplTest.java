@@ -0,0 +1,204 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.glavo.plumo.HttpHandler;
+import org.glavo.plumo.HttpHeaderField;
+import org.glavo.plumo.HttpRequest;
+import org.glavo.plumo.HttpResponse;
+import org.glavo.plumo.SingleFlightHandler;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class SingleFlightHandlerImplTest {
+
+    private static HttpRequestImpl request(String uri) {
+        HttpRequestImpl request = new HttpRequestImpl(new InetSocketAddress("127.0.0.1", 12345), new InetSocketAddress("127.0.0.1", 80));
+        request.method = HttpRequest.Method.GET;
+        request.rawUri = uri;
+        request.httpVersion = "1.1";
+        return request;
+    }
+
+    private static final class BlockingHandler implements HttpHandler {
+        final AtomicInteger invocations = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<HttpResponse> response;
+
+        BlockingHandler(Callable<HttpResponse> response) {
+            this.response = response;
+        }
+
+        @Override
+        public HttpResponse handle(HttpRequest request) throws Exception {
+            invocations.incrementAndGet();
+            release.await();
+            return response.call();
+        }
+    }
+
+    /**
+     * Handles the first request, then the others while the first one is still running.
+     */
+    private static List<Future<HttpResponse>> handleConcurrently(SingleFlightHandler handler, BlockingHandler delegate,
+                                                                 HttpRequestImpl... requests) throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            List<Future<HttpResponse>> results = new ArrayList<>();
+            results.add(executor.submit(() -> handler.handle(requests[0])));
+            while (delegate.invocations.get() == 0) {
+                Thread.sleep(1);
+            }
+            for (int i = 1; i < requests.length; i++) {
+                HttpRequestImpl request = requests[i];
+                results.add(executor.submit(() -> handler.handle(request)));
+            }
+            Thread.sleep(200);
+            delegate.release.countDown();
+            for (Future<HttpResponse> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException ignored) {
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        BlockingHandler delegate = new BlockingHandler(() -> HttpResponse.newTextResponse("hello"));
+        SingleFlightHandler handler = SingleFlightHandler.newBuilder(delegate).build();
+
+        List<Future<HttpResponse>> results = handleConcurrently(handler, delegate,
+                request("/a"), request("/a"), request("/a"), request("/b"));
+
+        // The request for /b is handled independently
+        assertEquals(2, delegate.invocations.get());
+        assertEquals(2, handler.getCoalescedRequestCount());
+        assertEquals(0, handler.getInFlightRequestCount());
+
+        HttpResponseImpl shared = (HttpResponseImpl) results.get(0).get();
+        assertTrue(shared.isFrozen());
+        assertSame(shared, results.get(1).get());
+        assertSame(shared, results.get(2).get());
+        assertNotSame(shared, results.get(3).get());
+    }
+
+    @Test
+    public void testVaryHeaders() throws Exception {
+        BlockingHandler delegate = new BlockingHandler(() -> HttpResponse.newTextResponse("hello"));
+        SingleFlightHandler handler = SingleFlightHandler.newBuilder(delegate).varyHeaders(HttpHeaderField.of("Accept-Language")).build();
+
+        HttpRequestImpl en1 = request("/a");
+        en1.headers.putDirect(HttpHeaderField.of("accept-language"), "en");
+        HttpRequestImpl en2 = request("/a");
+        en2.headers.putDirect(HttpHeaderField.of("accept-language"), "en");
+        HttpRequestImpl fr = request("/a");
+        fr.headers.putDirect(HttpHeaderField.of("accept-language"), "fr");
+        HttpRequestImpl authorized = request("/a");
+        authorized.headers.putDirect(HttpHeaderField.of("accept-language"), "en");
+        authorized.headers.putDirect(HttpHeaderField.AUTHORIZATION, "Basic dXNlcjpwYXNz");
+
+        handleConcurrently(handler, delegate, en1, en2, fr, authorized);
+        assertEquals(3, delegate.invocations.get());
+        assertEquals(1, handler.getCoalescedRequestCount());
+    }
+
+    @Test
+    public void testNotShareable() throws Exception {
+        BlockingHandler delegate = new BlockingHandler(() ->
+                HttpResponse.newResponse().withBody(new ByteArrayInputStream(new byte[10])));
+        SingleFlightHandler handler = SingleFlightHandler.newBuilder(delegate).build();
+
+        List<Future<HttpResponse>> results = handleConcurrently(handler, delegate, request("/a"), request("/a"), request("/a"));
+        assertEquals(3, delegate.invocations.get());
+        assertEquals(0, handler.getCoalescedRequestCount());
+        assertNotSame(results.get(0).get(), results.get(1).get());
+    }
+
+    @Test
+    public void testHost() throws Exception {
+        BlockingHandler delegate = new BlockingHandler(() -> HttpResponse.newTextResponse("hello"));
+        SingleFlightHandler handler = SingleFlightHandler.newBuilder(delegate).build();
+
+        HttpRequestImpl a1 = request("/");
+        a1.headers.putDirect(HttpHeaderField.HOST, "a.example");
+        HttpRequestImpl a2 = request("/");
+        a2.headers.putDirect(HttpHeaderField.HOST, "a.example");
+        HttpRequestImpl b = request("/");
+        b.headers.putDirect(HttpHeaderField.HOST, "b.example");
+
+        // Virtual hosts do not share responses
+        List<Future<HttpResponse>> results = handleConcurrently(handler, delegate, a1, a2, b, request("/"));
+        assertEquals(3, delegate.invocations.get());
+        assertEquals(1, handler.getCoalescedRequestCount());
+        assertSame(results.get(0).get(), results.get(1).get());
+        assertNotSame(results.get(0).get(), results.get(2).get());
+    }
+
+    @Test
+    public void testPersonalized() throws Exception {
+        for (HttpResponse template : new HttpResponse[]{
+                HttpResponse.newTextResponse("hello").withHeader(HttpHeaderField.SET_COOKIE, "session=1"),
+                HttpResponse.newTextResponse("hello").withHeader(HttpHeaderField.CACHE_CONTROL, "private"),
+                HttpResponse.newTextResponse("hello").withHeader(HttpHeaderField.CACHE_CONTROL, "max-age=60, no-store")}) {
+            BlockingHandler delegate = new BlockingHandler(() -> template);
+            SingleFlightHandler handler = SingleFlightHandler.newBuilder(delegate).build();
+
+            // Each cookieless request must get its own session
+            handleConcurrently(handler, delegate, request("/a"), request("/a"), request("/a"));
+            assertEquals(3, delegate.invocations.get(), template.toString());
+            assertEquals(0, handler.getCoalescedRequestCount());
+        }
+    }
+
+    @Test
+    public void testException() throws Exception {
+        BlockingHandler delegate = new BlockingHandler(() -> {
+            throw new HttpResponseException(HttpResponse.Status.NOT_FOUND);
+        });
+        SingleFlightHandler handler = SingleFlightHandler.newBuilder(delegate).build();
+
+        List<Future<HttpResponse>> results = handleConcurrently(handler, delegate, request("/a"), request("/a"));
+        assertEquals(1, delegate.invocations.get());
+        for (Future<HttpResponse> result : results) {
+            ExecutionException e = assertThrows(ExecutionException.class, result::get);
+            assertInstanceOf(HttpResponseException.class, e.getCause());
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        BlockingHandler delegate = new BlockingHandler(() -> HttpResponse.newTextResponse("hello"));
+        SingleFlightHandler handler = SingleFlightHandler.newBuilder(delegate).timeout(50).build();
+
+        // The follower gives up waiting and runs the handler itself, which is released with the leader
+        handleConcurrently(handler, delegate, request("/a"), request("/a"));
+        assertEquals(2, delegate.invocations.get());
+        assertEquals(0, handler.getCoalescedRequestCount());
+    }
+}
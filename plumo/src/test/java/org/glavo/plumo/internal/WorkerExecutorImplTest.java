@@ -0,0 +1,167 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal;
+
+import org.glavo.plumo.HttpResponse;
+import org.glavo.plumo.Plumo;
+import org.glavo.plumo.WorkerExecutor;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class WorkerExecutorImplTest {
+
+    private static void awaitCompleted(WorkerExecutor executor, long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (executor.getCompletedTaskCount() < count) {
+            assertTrue(System.nanoTime() < deadline, "Tasks have not completed: " + executor);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testStrategies() throws Exception {
+        for (WorkerExecutor executor : Arrays.asList(
+                WorkerExecutor.newCachedThreadPool(),
+                WorkerExecutor.newBoundedThreadPool(2, 100),
+                WorkerExecutor.newWorkStealingPool(2))) {
+            AtomicInteger runs = new AtomicInteger();
+            for (int i = 0; i < 50; i++) {
+                executor.execute(runs::incrementAndGet);
+            }
+            awaitCompleted(executor, 50);
+
+            assertEquals(50, runs.get(), executor.getStrategy());
+            assertEquals(50, executor.getSubmittedTaskCount());
+            assertEquals(0, executor.getRejectedTaskCount());
+            assertEquals(0, executor.getActiveTaskCount());
+
+            executor.shutdown();
+            assertTrue(executor.isShutdown());
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> {
+            }));
+            assertEquals(1, executor.getRejectedTaskCount());
+        }
+    }
+
+    @Test
+    public void testBoundedThreadPool() throws Exception {
+        WorkerExecutor executor = WorkerExecutor.newBoundedThreadPool(1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            executor.execute(() -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            executor.execute(() -> {
+            });
+
+            assertEquals(1, executor.getActiveTaskCount());
+            assertEquals(1, executor.getQueuedTaskCount());
+            assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> {
+            }));
+            assertEquals(2, executor.getSubmittedTaskCount());
+            assertEquals(1, executor.getRejectedTaskCount());
+        } finally {
+            release.countDown();
+        }
+
+        awaitCompleted(executor, 2);
+        assertEquals(0, executor.getActiveTaskCount());
+        assertEquals(0, executor.getQueuedTaskCount());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testShutdownNow() throws Exception {
+        WorkerExecutor executor = WorkerExecutor.newCachedThreadPool();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        executor.execute(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        executor.shutdownNow();
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRejectedConnectionIsClosed() throws Exception {
+        WorkerExecutor executor = WorkerExecutor.newBoundedThreadPool(1, 0);
+        CountDownLatch handling = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Plumo server = Plumo.newBuilder()
+                .bind("127.0.0.1", 0)
+                .executor(executor, true)
+                .handler(request -> {
+                    handling.countDown();
+                    release.await();
+                    return HttpResponse.newTextResponse("done");
+                })
+                .start();
+        try (Socket first = new Socket("127.0.0.1", server.getPort());
+             Socket second = new Socket("127.0.0.1", server.getPort())) {
+            OutputStream out = first.getOutputStream();
+            out.write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            assertTrue(handling.await(10, TimeUnit.SECONDS));
+
+            // The only thread is busy with the first connection, so the second one is rejected and closed
+            second.setSoTimeout(10_000);
+            assertEquals(-1, second.getInputStream().read());
+            assertTrue(executor.getRejectedTaskCount() >= 1);
+
+            release.countDown();
+            first.setSoTimeout(10_000);
+            InputStream in = first.getInputStream();
+            byte[] head = new byte[12];
+            int n = 0;
+            while (n < head.length) {
+                int r = in.read(head, n, head.length - n);
+                assertTrue(r > 0);
+                n += r;
+            }
+            assertEquals("HTTP/1.1 200", new String(head, StandardCharsets.ISO_8859_1));
+        } finally {
+            release.countDown();
+            server.stopAndWait();
+        }
+        assertTrue(executor.isShutdown());
+    }
+}
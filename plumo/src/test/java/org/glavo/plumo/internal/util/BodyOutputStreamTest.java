@@ -0,0 +1,187 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal.util;
+
+import org.apache.http.impl.io.ChunkedInputStream;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class BodyOutputStreamTest {
+
+    private static byte[] randomData(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    // Mixes single bytes, small arrays, large arrays and buffers
+    private static void writeMixed(BodyOutputStream out, byte[] data) throws IOException {
+        Random random = new Random(0);
+        int n = 0;
+        while (n < data.length) {
+            int len = Math.min(data.length - n, random.nextBoolean() ? random.nextInt(16) : random.nextInt(20000));
+            switch (random.nextInt(3)) {
+                case 0:
+                    if (len > 0) {
+                        out.write(data[n]);
+                        len = 1;
+                    }
+                    break;
+                case 1:
+                    out.write(data, n, len);
+                    break;
+                default:
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(len);
+                    buffer.put(data, n, len).flip();
+                    out.write(buffer);
+                    break;
+            }
+            n += len;
+        }
+    }
+
+    private static InputStream dechunk(byte[] bytes) {
+        SessionInputBufferImpl inputBuffer = new SessionInputBufferImpl(new HttpTransportMetricsImpl(), 8192);
+        inputBuffer.bind(new ByteArrayInputStream(bytes));
+        return new ChunkedInputStream(inputBuffer);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 10, 8192, 100000})
+    public void testChunked(int length) throws IOException {
+        byte[] data = randomData(length);
+
+        ByteArrayOutputStream ba = new ByteArrayOutputStream();
+        try (OutputWrapper output = new OutputWrapper(ba, 512)) {
+            BodyOutputStream out = BodyOutputStream.newChunked(output);
+            writeMixed(out, data);
+            out.close();
+        }
+
+        assertArrayEquals(data, dechunk(ba.toByteArray()).readAllBytes());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 10, 8192, 100000})
+    public void testGZipChunked(int length) throws IOException {
+        byte[] data = randomData(length);
+
+        ByteArrayOutputStream ba = new ByteArrayOutputStream();
+        try (OutputWrapper output = new OutputWrapper(ba, 512)) {
+            BodyOutputStream out = BodyOutputStream.newGZipChunked(output);
+            writeMixed(out, data);
+            out.close();
+        }
+
+        try (InputStream input = new GZIPInputStream(dechunk(ba.toByteArray()))) {
+            assertArrayEquals(data, input.readAllBytes());
+        }
+    }
+
+    @Test
+    public void testGZipSingleBytes() throws IOException {
+        byte[] data = randomData(2000);
+
+        ByteArrayOutputStream ba = new ByteArrayOutputStream();
+        try (OutputWrapper output = new OutputWrapper(ba, 512)) {
+            BodyOutputStream out = BodyOutputStream.newGZipChunked(output);
+            for (int i = 0; i < 1500; i++) {
+                out.write(data[i]);
+            }
+            out.flush();
+
+            // Staged bytes are compressed by the flush
+            InputStream partial = new GZIPInputStream(dechunk(ba.toByteArray()));
+            assertArrayEquals(Arrays.copyOf(data, 1500), partial.readNBytes(1500));
+
+            out.write(data[1500]);
+            out.write(data, 1501, 400);
+            for (int i = 1901; i < data.length; i++) {
+                out.write(data[i]);
+            }
+            out.close();
+        }
+
+        try (InputStream input = new GZIPInputStream(dechunk(ba.toByteArray()))) {
+            assertArrayEquals(data, input.readAllBytes());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    public void testGZipFlush(boolean channel) throws IOException {
+        byte[] data = randomData(50000);
+
+        ByteArrayOutputStream ba = new ByteArrayOutputStream();
+        try (OutputWrapper output = channel ? new OutputWrapper(Channels.newChannel(ba), 1024, 4096) : new OutputWrapper(ba, 1024, 4096)) {
+            output.acquireBuffer();
+            BodyOutputStream out = BodyOutputStream.newGZipChunked(output);
+            out.write(data, 0, 30000);
+            out.flush();
+
+            // Everything written before the flush can be decompressed
+            InputStream partial = new GZIPInputStream(dechunk(ba.toByteArray()));
+            assertArrayEquals(Arrays.copyOf(data, 30000), partial.readNBytes(30000));
+
+            out.write(data, 30000, 20000);
+            out.close();
+            output.flush();
+            output.releaseBuffer();
+        }
+        assertTrue(DeflaterPool.getPooledCount() > 0);
+
+        try (InputStream input = new GZIPInputStream(dechunk(ba.toByteArray()))) {
+            assertArrayEquals(data, input.readAllBytes());
+        }
+    }
+
+    @Test
+    public void testFixedLength() throws IOException {
+        byte[] data = randomData(100000);
+
+        ByteArrayOutputStream ba = new ByteArrayOutputStream();
+        try (OutputWrapper output = new OutputWrapper(ba, 512)) {
+            BodyOutputStream out = BodyOutputStream.newFixedLength(output, data.length);
+            writeMixed(out, data);
+            out.close();
+        }
+        assertArrayEquals(data, ba.toByteArray());
+
+        try (OutputWrapper output = new OutputWrapper(new ByteArrayOutputStream(), 512)) {
+            BodyOutputStream tooLong = BodyOutputStream.newFixedLength(output, 4);
+            assertThrows(IOException.class, () -> tooLong.write(new byte[5]));
+
+            BodyOutputStream tooShort = BodyOutputStream.newFixedLength(output, 4);
+            tooShort.write(new byte[3]);
+            assertThrows(IOException.class, tooShort::close);
+        }
+    }
+}
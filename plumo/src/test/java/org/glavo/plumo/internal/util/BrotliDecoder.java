@@ -0,0 +1,596 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A Brotli (RFC 7932) decoder for verifying the output of {@link BrotliEncoder} in tests.
+ * <p>
+ * It is written from the format specification rather than from the encoder, and checks the stream strictly.
+ * References to the static dictionary and literal context modeling in the UTF8 mode are not supported.
+ */
+final class BrotliDecoder {
+
+    private static final int[] BLOCK_COUNT_BASE = {
+            1, 5, 9, 13, 17, 25, 33, 41, 49, 65, 81, 97, 113, 145, 177, 209, 241, 305, 369, 497, 753, 1265, 2289, 4337,
+            8433, 16625
+    };
+    private static final int[] BLOCK_COUNT_EXTRA = {
+            2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 6, 6, 7, 8, 9, 10, 11, 12, 13, 24
+    };
+
+    private static final int[] INSERT_BASE = {
+            0, 1, 2, 3, 4, 5, 6, 8, 10, 14, 18, 26, 34, 50, 66, 98, 130, 194, 322, 578, 1090, 2114, 6210, 22594
+    };
+    private static final int[] INSERT_EXTRA = {
+            0, 0, 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 7, 8, 9, 10, 12, 14, 24
+    };
+    private static final int[] COPY_BASE = {
+            2, 3, 4, 5, 6, 7, 8, 9, 10, 12, 14, 18, 22, 30, 38, 54, 70, 102, 134, 198, 326, 582, 1094, 2118
+    };
+    private static final int[] COPY_EXTRA = {
+            0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 7, 8, 9, 10, 24
+    };
+
+    // High bits of the insert length code and copy length code for each range of 64 insert-and-copy codes
+    private static final int[] INSERT_RANGE = {0, 0, 0, 0, 8, 8, 0, 16, 8, 16, 16};
+    private static final int[] COPY_RANGE = {0, 8, 0, 8, 0, 8, 16, 0, 16, 8, 16};
+
+    private static final int[] CODE_LENGTH_ORDER = {1, 2, 3, 4, 0, 5, 17, 6, 16, 7, 8, 9, 10, 11, 12, 13, 14, 15};
+
+    // Index of the distance in the ring buffer and the offset added to it for the short distance codes
+    private static final int[] SHORT_DISTANCE_INDEX = {0, 1, 2, 3, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 1, 1};
+    private static final int[] SHORT_DISTANCE_OFFSET = {0, 0, 0, 0, -1, 1, -2, 2, -3, 3, -1, 1, -2, 2, -3, 3};
+
+    private static final int CONTEXT_LSB6 = 0;
+    private static final int CONTEXT_MSB6 = 1;
+    private static final int CONTEXT_UTF8 = 2;
+    private static final int CONTEXT_SIGNED = 3;
+
+    static byte[] decompress(byte[] input) throws IOException {
+        return new BrotliDecoder(input).decode();
+    }
+
+    private final byte[] input;
+    private int bitPosition;
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private byte[] window = new byte[1024];
+    private int outputLength;
+
+    private final int[] distances = {16, 15, 11, 4};
+    private int distanceIndex = 3;
+
+    private BrotliDecoder(byte[] input) {
+        this.input = input;
+    }
+
+    // Bit input
+
+    private int readBit() throws IOException {
+        if (bitPosition >= input.length * 8) {
+            throw new IOException("Unexpected end of stream");
+        }
+        int bit = (input[bitPosition >>> 3] >>> (bitPosition & 7)) & 1;
+        bitPosition++;
+        return bit;
+    }
+
+    private int readBits(int n) throws IOException {
+        int value = 0;
+        for (int i = 0; i < n; i++) {
+            value |= readBit() << i;
+        }
+        return value;
+    }
+
+    private void skipPadding() throws IOException {
+        while ((bitPosition & 7) != 0) {
+            if (readBit() != 0) {
+                throw new IOException("Non-zero padding bit");
+            }
+        }
+    }
+
+    // Output
+
+    private void emit(int b) {
+        if (outputLength == window.length) {
+            window = Arrays.copyOf(window, window.length * 2);
+        }
+        window[outputLength++] = (byte) b;
+        output.write(b);
+    }
+
+    private int outputByte(int back) {
+        return outputLength >= back ? window[outputLength - back] & 0xff : 0;
+    }
+
+    // Stream
+
+    private byte[] decode() throws IOException {
+        int windowBits = readWindowBits();
+        int maxDistance = (1 << windowBits) - 16;
+
+        while (true) {
+            boolean last = readBit() == 1;
+            if (last && readBit() == 1) {
+                break;
+            }
+
+            int nibbles = readBits(2);
+            if (nibbles == 3) {
+                if (last) {
+                    throw new IOException("Metadata in the last meta-block");
+                }
+                if (readBit() != 0) {
+                    throw new IOException("Reserved bit is set");
+                }
+                int skipBytes = readBits(2);
+                int skipLength = skipBytes > 0 ? readBits(8 * skipBytes) + 1 : 0;
+                skipPadding();
+                bitPosition += skipLength * 8;
+                continue;
+            }
+
+            int length = readBits(4 * (nibbles + 4)) + 1;
+            if (!last && readBit() == 1) {
+                skipPadding();
+                for (int i = 0; i < length; i++) {
+                    emit(readBits(8));
+                }
+                continue;
+            }
+
+            decodeCompressedMetaBlock(length, maxDistance);
+            if (last) {
+                break;
+            }
+        }
+
+        skipPadding();
+        if (bitPosition != input.length * 8) {
+            throw new IOException("Trailing data after the last meta-block");
+        }
+        return output.toByteArray();
+    }
+
+    private int readWindowBits() throws IOException {
+        if (readBit() == 0) {
+            return 16;
+        }
+        int n = readBits(3);
+        if (n != 0) {
+            return 17 + n;
+        }
+        n = readBits(3);
+        if (n == 1) {
+            throw new IOException("Invalid WBITS");
+        }
+        return n != 0 ? 8 + n : 17;
+    }
+
+    private int readCount() throws IOException {
+        if (readBit() == 0) {
+            return 1;
+        }
+        int n = readBits(3);
+        return n == 0 ? 2 : (1 << n) + readBits(n) + 1;
+    }
+
+    // Block switching
+
+    private final class BlockSwitch {
+        final int types;
+        final PrefixCode typeCode;
+        final PrefixCode countCode;
+
+        int type = 0;
+        int previousType = 1;
+        int remaining;
+
+        BlockSwitch() throws IOException {
+            this.types = readCount();
+            if (types >= 2) {
+                this.typeCode = readPrefixCode(types + 2);
+                this.countCode = readPrefixCode(26);
+                this.remaining = readBlockCount();
+            } else {
+                this.typeCode = null;
+                this.countCode = null;
+                this.remaining = Integer.MAX_VALUE;
+            }
+        }
+
+        private int readBlockCount() throws IOException {
+            int symbol = countCode.decode();
+            return BLOCK_COUNT_BASE[symbol] + readBits(BLOCK_COUNT_EXTRA[symbol]);
+        }
+
+        int next() throws IOException {
+            if (remaining == 0) {
+                int symbol = typeCode.decode();
+                int newType = symbol == 0 ? previousType : symbol == 1 ? (type + 1) % types : symbol - 2;
+                if (newType >= types) {
+                    throw new IOException("Invalid block type: " + newType);
+                }
+                previousType = type;
+                type = newType;
+                remaining = readBlockCount();
+            }
+            remaining--;
+            return type;
+        }
+    }
+
+    // Meta-block
+
+    private void decodeCompressedMetaBlock(int length, int maxDistance) throws IOException {
+        BlockSwitch literalSwitch = new BlockSwitch();
+        BlockSwitch commandSwitch = new BlockSwitch();
+        BlockSwitch distanceSwitch = new BlockSwitch();
+
+        int postfixBits = readBits(2);
+        int directCodes = readBits(4) << postfixBits;
+
+        int[] contextModes = new int[literalSwitch.types];
+        for (int i = 0; i < contextModes.length; i++) {
+            contextModes[i] = readBits(2);
+        }
+
+        int literalTrees = readCount();
+        int[] literalContextMap = readContextMap(64 * literalSwitch.types, literalTrees);
+        int distanceTrees = readCount();
+        int[] distanceContextMap = readContextMap(4 * distanceSwitch.types, distanceTrees);
+
+        PrefixCode[] literalCodes = new PrefixCode[literalTrees];
+        for (int i = 0; i < literalTrees; i++) {
+            literalCodes[i] = readPrefixCode(256);
+        }
+        PrefixCode[] commandCodes = new PrefixCode[commandSwitch.types];
+        for (int i = 0; i < commandCodes.length; i++) {
+            commandCodes[i] = readPrefixCode(704);
+        }
+        PrefixCode[] distanceCodes = new PrefixCode[distanceTrees];
+        for (int i = 0; i < distanceTrees; i++) {
+            distanceCodes[i] = readPrefixCode(16 + directCodes + (48 << postfixBits));
+        }
+
+        int end = outputLength + length;
+        while (outputLength < end) {
+            int command = commandCodes[commandSwitch.next()].decode();
+            int range = command >>> 6;
+            int insertCode = INSERT_RANGE[range] + ((command >>> 3) & 7);
+            int copyCode = COPY_RANGE[range] + (command & 7);
+            int insertLength = INSERT_BASE[insertCode] + readBits(INSERT_EXTRA[insertCode]);
+            int copyLength = COPY_BASE[copyCode] + readBits(COPY_EXTRA[copyCode]);
+
+            if (outputLength + insertLength > end) {
+                throw new IOException("Insert length exceeds the meta-block");
+            }
+            for (int i = 0; i < insertLength; i++) {
+                int type = literalSwitch.next();
+                int context = literalContext(contextModes[type], literalTrees);
+                emit(literalCodes[literalContextMap[64 * type + context]].decode());
+            }
+
+            if (outputLength == end) {
+                break;
+            }
+
+            int distanceCode;
+            if (range < 2) {
+                distanceCode = 0;
+            } else {
+                int type = distanceSwitch.next();
+                int context = copyLength > 4 ? 3 : copyLength - 2;
+                distanceCode = distanceCodes[distanceContextMap[4 * type + context]].decode();
+            }
+
+            int distance;
+            if (distanceCode < 16) {
+                distance = distances[(distanceIndex - SHORT_DISTANCE_INDEX[distanceCode]) & 3] + SHORT_DISTANCE_OFFSET[distanceCode];
+                if (distance <= 0) {
+                    throw new IOException("Invalid distance: " + distance);
+                }
+            } else if (distanceCode < 16 + directCodes) {
+                distance = distanceCode - 15;
+            } else {
+                int code = distanceCode - directCodes - 16;
+                int extraBits = 1 + (code >>> (postfixBits + 1));
+                int offset = ((2 + ((code >>> postfixBits) & 1)) << extraBits) - 4;
+                distance = ((offset + readBits(extraBits)) << postfixBits) + (code & ((1 << postfixBits) - 1)) + directCodes + 1;
+            }
+
+            if (distance > Math.min(maxDistance, outputLength)) {
+                throw new IOException("Static dictionary references are not supported");
+            }
+            if (outputLength + copyLength > end) {
+                throw new IOException("Copy length exceeds the meta-block");
+            }
+            if (distanceCode != 0) {
+                distanceIndex = (distanceIndex + 1) & 3;
+                distances[distanceIndex] = distance;
+            }
+            for (int i = 0; i < copyLength; i++) {
+                emit(window[outputLength - distance]);
+            }
+        }
+    }
+
+    private int literalContext(int mode, int trees) throws IOException {
+        int p1 = outputByte(1);
+        switch (mode) {
+            case CONTEXT_LSB6:
+                return p1 & 0x3f;
+            case CONTEXT_MSB6:
+                return p1 >>> 2;
+            case CONTEXT_UTF8:
+            case CONTEXT_SIGNED:
+                if (trees == 1) {
+                    return 0;
+                }
+                throw new IOException("Unsupported context mode: " + mode);
+            default:
+                throw new AssertionError(mode);
+        }
+    }
+
+    private int[] readContextMap(int size, int trees) throws IOException {
+        int[] map = new int[size];
+        if (trees < 2) {
+            return map;
+        }
+
+        int maxRunLengthPrefix = readBit() == 1 ? readBits(4) + 1 : 0;
+        PrefixCode code = readPrefixCode(trees + maxRunLengthPrefix);
+        int i = 0;
+        while (i < size) {
+            int symbol = code.decode();
+            if (symbol == 0) {
+                map[i++] = 0;
+            } else if (symbol <= maxRunLengthPrefix) {
+                int run = (1 << symbol) + readBits(symbol);
+                if (i + run > size) {
+                    throw new IOException("Context map run exceeds its size");
+                }
+                i += run;
+            } else {
+                map[i++] = symbol - maxRunLengthPrefix;
+            }
+        }
+
+        if (readBit() == 1) {
+            // Inverse move-to-front transform
+            int[] mtf = new int[256];
+            for (int j = 0; j < mtf.length; j++) {
+                mtf[j] = j;
+            }
+            for (int j = 0; j < size; j++) {
+                int index = map[j];
+                int value = mtf[index];
+                map[j] = value;
+                System.arraycopy(mtf, 0, mtf, 1, index);
+                mtf[0] = value;
+            }
+        }
+
+        for (int value : map) {
+            if (value >= trees) {
+                throw new IOException("Invalid context map entry: " + value);
+            }
+        }
+        return map;
+    }
+
+    // Prefix codes
+
+    private final class PrefixCode {
+        // Number of codes of each length and the symbols ordered by code
+        final int[] counts = new int[16];
+        final int[] symbols;
+
+        // The code has a single symbol, which is encoded with no bits
+        final boolean single;
+
+        PrefixCode(int[] lengths) throws IOException {
+            int n = 0;
+            for (int length : lengths) {
+                counts[length]++;
+                if (length != 0) {
+                    n++;
+                }
+            }
+            counts[0] = 0;
+
+            symbols = new int[n];
+            int[] offsets = new int[16];
+            for (int length = 1; length < 15; length++) {
+                offsets[length + 1] = offsets[length] + counts[length];
+            }
+            for (int symbol = 0; symbol < lengths.length; symbol++) {
+                if (lengths[symbol] != 0) {
+                    symbols[offsets[lengths[symbol]]++] = symbol;
+                }
+            }
+            single = false;
+
+            if (n > 1) {
+                int space = 1 << 15;
+                for (int length = 1; length < 16; length++) {
+                    space -= counts[length] << (15 - length);
+                }
+                if (space != 0) {
+                    throw new IOException("Incomplete or oversubscribed prefix code");
+                }
+            }
+        }
+
+        PrefixCode(int symbol) {
+            symbols = new int[]{symbol};
+            single = true;
+        }
+
+        int decode() throws IOException {
+            if (single) {
+                return symbols[0];
+            }
+
+            // Codes are packed starting with the most significant bit of the code
+            int code = 0;
+            int first = 0;
+            int index = 0;
+            for (int length = 1; length < 16; length++) {
+                code |= readBit();
+                int count = counts[length];
+                if (code - first < count) {
+                    return symbols[index + code - first];
+                }
+                index += count;
+                first = (first + count) << 1;
+                code <<= 1;
+            }
+            throw new IOException("Invalid prefix code");
+        }
+    }
+
+    private PrefixCode readPrefixCode(int alphabetSize) throws IOException {
+        int alphabetBits = 32 - Integer.numberOfLeadingZeros(alphabetSize - 1);
+        int[] lengths = new int[alphabetSize];
+
+        int skip = readBits(2);
+        if (skip == 1) {
+            int n = readBits(2) + 1;
+            int[] symbols = new int[n];
+            for (int i = 0; i < n; i++) {
+                symbols[i] = readBits(alphabetBits);
+                if (symbols[i] >= alphabetSize) {
+                    throw new IOException("Invalid symbol: " + symbols[i]);
+                }
+                for (int j = 0; j < i; j++) {
+                    if (symbols[j] == symbols[i]) {
+                        throw new IOException("Duplicate symbol: " + symbols[i]);
+                    }
+                }
+            }
+
+            int[] symbolLengths;
+            switch (n) {
+                case 1:
+                    return new PrefixCode(symbols[0]);
+                case 2:
+                    symbolLengths = new int[]{1, 1};
+                    break;
+                case 3:
+                    symbolLengths = new int[]{1, 2, 2};
+                    break;
+                default:
+                    symbolLengths = readBit() == 0 ? new int[]{2, 2, 2, 2} : new int[]{1, 2, 3, 3};
+                    break;
+            }
+            for (int i = 0; i < n; i++) {
+                lengths[symbols[i]] = symbolLengths[i];
+            }
+            return new PrefixCode(lengths);
+        }
+
+        int[] codeLengthCodeLengths = new int[18];
+        int space = 32;
+        int codes = 0;
+        for (int i = skip; i < CODE_LENGTH_ORDER.length && space > 0; i++) {
+            int length = readCodeLengthCodeLength();
+            codeLengthCodeLengths[CODE_LENGTH_ORDER[i]] = length;
+            if (length != 0) {
+                space -= 32 >> length;
+                codes++;
+            }
+        }
+        if (codes != 1 && space != 0) {
+            throw new IOException("Invalid code length code");
+        }
+
+        PrefixCode codeLengthCode;
+        if (codes == 1) {
+            int symbol = 0;
+            while (codeLengthCodeLengths[symbol] == 0) {
+                symbol++;
+            }
+            codeLengthCode = new PrefixCode(symbol);
+        } else {
+            codeLengthCode = new PrefixCode(codeLengthCodeLengths);
+        }
+
+        int symbol = 0;
+        int previousLength = 8;
+        int repeat = 0;
+        int repeatLength = 0;
+        space = 1 << 15;
+        while (symbol < alphabetSize && space > 0) {
+            int code = codeLengthCode.decode();
+            if (code < 16) {
+                lengths[symbol++] = code;
+                repeat = 0;
+                if (code != 0) {
+                    previousLength = code;
+                    space -= (1 << 15) >> code;
+                }
+            } else {
+                int extraBits = code == 16 ? 2 : 3;
+                int newLength = code == 16 ? previousLength : 0;
+                if (repeatLength != newLength) {
+                    repeat = 0;
+                    repeatLength = newLength;
+                }
+                int oldRepeat = repeat;
+                if (repeat > 0) {
+                    repeat = (repeat - 2) << extraBits;
+                }
+                repeat += readBits(extraBits) + 3;
+                int delta = repeat - oldRepeat;
+                if (symbol + delta > alphabetSize) {
+                    throw new IOException("Code length repeat exceeds the alphabet");
+                }
+                for (int i = 0; i < delta; i++) {
+                    lengths[symbol++] = repeatLength;
+                }
+                if (repeatLength != 0) {
+                    space -= delta * ((1 << 15) >> repeatLength);
+                }
+            }
+        }
+        if (space != 0) {
+            throw new IOException("Incomplete or oversubscribed prefix code");
+        }
+        return new PrefixCode(lengths);
+    }
+
+    // Code lengths of the code length code, which are read as 0 = 00, 1 = 1110, 2 = 110, 3 = 01, 4 = 10, 5 = 1111
+    private int readCodeLengthCodeLength() throws IOException {
+        if (readBit() == 0) {
+            return readBit() == 0 ? 0 : 3;
+        }
+        if (readBit() == 0) {
+            return 4;
+        }
+        if (readBit() == 0) {
+            return 2;
+        }
+        return readBit() == 0 ? 1 : 5;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class BrotliEncoderTest {
+
+    private static byte[] text(int length, long seed) {
+        Random random = new Random(seed);
+        String[] words = {"plumo", "http", "server", "response", "brotli", "compression", " ", " ", "\n"};
+        byte[] data = new byte[length];
+        int i = 0;
+        while (i < length) {
+            String word = words[random.nextInt(words.length)];
+            for (int j = 0; j < word.length() && i < length; j++) {
+                data[i++] = (byte) word.charAt(j);
+            }
+        }
+        return data;
+    }
+
+    private static byte[] repetitive(int length) {
+        byte[] pattern = "<tr><td>plumo</td><td>0123456789</td></tr>\n".getBytes();
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = i % 1000 < 900 ? pattern[i % pattern.length] : (byte) 'x';
+        }
+        return data;
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static void assertRoundTrip(byte[] data, int quality) throws IOException {
+        byte[] compressed = BrotliEncoder.compress(ByteBuffer.wrap(data), quality);
+        assertArrayEquals(data, BrotliDecoder.decompress(compressed), "quality " + quality);
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        // WBITS = 16, ISLAST, ISLASTEMPTY
+        assertArrayEquals(new byte[]{0x06}, BrotliEncoder.compress(ByteBuffer.allocate(0), 1));
+        assertArrayEquals(new byte[0], BrotliDecoder.decompress(new byte[]{0x06}));
+
+        for (int quality = BrotliEncoder.MIN_QUALITY; quality <= BrotliEncoder.MAX_QUALITY; quality++) {
+            assertRoundTrip(new byte[0], quality);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11})
+    public void testRoundTrip(int quality) throws IOException {
+        assertRoundTrip(new byte[]{'a'}, quality);
+        assertRoundTrip(new byte[]{'a', 'a', 'a', 'a', 'a', 'a', 'a', 'a'}, quality);
+        assertRoundTrip(text(1000, quality), quality);
+        assertRoundTrip(text(300000, quality), quality);
+        assertRoundTrip(repetitive(200000), quality);
+        assertRoundTrip(random(1000), quality);
+        assertRoundTrip(random(100000), quality);
+
+        // Only one distinct byte, so the literal code has a single symbol
+        byte[] zeros = new byte[70000];
+        assertRoundTrip(zeros, quality);
+
+        // Text with runs of incompressible bytes spanning meta-blocks
+        byte[] mixed = text(200000, quality);
+        System.arraycopy(random(60000), 0, mixed, 50000, 60000);
+        assertRoundTrip(mixed, quality);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 5, 9, 11})
+    public void testStreaming(int quality) throws IOException {
+        byte[] data = text(300000, quality);
+        byte[] expected = BrotliEncoder.compress(ByteBuffer.wrap(data), quality);
+        assertTrue(expected.length < data.length / 3);
+
+        // Meta-blocks do not depend on how the input is split
+        BrotliEncoder encoder = new BrotliEncoder(quality);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Random random = new Random(0);
+        int position = 0;
+        while (position < data.length) {
+            int n = Math.min(data.length - position, random.nextInt(10000));
+            encoder.write(data, position, n);
+            position += n;
+            output.write(encoder.getOutput(), 0, encoder.getOutputLength());
+            encoder.clearOutput();
+        }
+        encoder.finish();
+        output.write(encoder.getOutput(), 0, encoder.getOutputLength());
+        assertArrayEquals(expected, output.toByteArray());
+        assertArrayEquals(data, BrotliDecoder.decompress(expected));
+    }
+
+    private static byte[] base64(int length) {
+        byte[] alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+        Random random = new Random(length);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = i % 77 == 76 ? (byte) '\n' : alphabet[random.nextInt(alphabet.length)];
+        }
+        return data;
+    }
+
+    @Test
+    public void testQualityOrder() {
+        byte[][] inputs = {text(300000, 0), text(100000, 1), random(100000), base64(300000)};
+        for (byte[] data : inputs) {
+            int previous = Integer.MAX_VALUE;
+            for (int quality = BrotliEncoder.MIN_QUALITY; quality <= BrotliEncoder.MAX_QUALITY; quality++) {
+                int length = BrotliEncoder.compress(ByteBuffer.wrap(data), quality).length;
+                assertTrue(length <= previous, "quality " + quality + " is worse than quality " + (quality - 1));
+                previous = length;
+            }
+        }
+    }
+
+    @Test
+    public void testIncompressible() throws IOException {
+        byte[] data = new byte[200000];
+        new Random(0).nextBytes(data);
+
+        // Stored as uncompressed meta-blocks
+        byte[] compressed = BrotliEncoder.compress(ByteBuffer.wrap(data), 5);
+        assertTrue(compressed.length > data.length);
+        assertTrue(compressed.length < data.length + 64);
+        assertArrayEquals(data, BrotliDecoder.decompress(compressed));
+    }
+
+    @Test
+    public void testFlush() throws IOException {
+        byte[] data = text(1000, 0);
+        BrotliEncoder encoder = new BrotliEncoder(5);
+        encoder.write(data, 0, 1000);
+        assertEquals(0, encoder.getOutputLength());
+
+        encoder.flush();
+        int length = encoder.getOutputLength();
+        assertTrue(length > 0 && length < 1000);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(encoder.getOutput(), 0, length);
+
+        // Without pending input, only an empty metadata meta-block is written
+        encoder.clearOutput();
+        encoder.flush();
+        assertEquals(1, encoder.getOutputLength());
+        assertEquals(0x06, encoder.getOutput()[0]);
+        output.write(encoder.getOutput(), 0, 1);
+
+        // Matches after a flush may refer to the input before it
+        encoder.clearOutput();
+        encoder.write(data, 0, 1000);
+        encoder.finish();
+        output.write(encoder.getOutput(), 0, encoder.getOutputLength());
+
+        byte[] expected = new byte[2000];
+        System.arraycopy(data, 0, expected, 0, 1000);
+        System.arraycopy(data, 0, expected, 1000, 1000);
+        assertArrayEquals(expected, BrotliDecoder.decompress(output.toByteArray()));
+    }
+
+    @Test
+    public void testCreateDepths() {
+        // A Fibonacci histogram would need depths up to 24 without a limit
+        int[] histogram = new int[25];
+        histogram[0] = 1;
+        histogram[1] = 1;
+        for (int i = 2; i < histogram.length; i++) {
+            histogram[i] = histogram[i - 1] + histogram[i - 2];
+        }
+
+        byte[] depths = new byte[histogram.length];
+        BrotliEncoder.createDepths(histogram, histogram.length, 15, depths);
+
+        long kraft = 0;
+        for (byte depth : depths) {
+            assertTrue(depth >= 1 && depth <= 15);
+            kraft += 1L << (15 - depth);
+        }
+        assertEquals(1L << 15, kraft);
+
+        short[] codes = new short[histogram.length];
+        BrotliEncoder.convertDepthsToCodes(depths, histogram.length, codes);
+        for (int i = 0; i < histogram.length; i++) {
+            for (int j = 0; j < histogram.length; j++) {
+                // Prefix free
+                if (i != j && depths[i] <= depths[j]) {
+                    int mask = (1 << depths[i]) - 1;
+                    assertNotEquals(codes[i] & mask, codes[j] & mask);
+                }
+            }
+        }
+    }
+}
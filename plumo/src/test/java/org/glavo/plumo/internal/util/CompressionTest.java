@@ -0,0 +1,120 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal.util;
+
+import org.glavo.plumo.CompressionPolicy;
+import org.glavo.plumo.internal.Constants;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class CompressionTest {
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 1000, 100000})
+    public void testEncode(int length) throws IOException {
+        Random random = new Random(length);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(4));
+        }
+
+        for (int level = 1; level <= 9; level += 4) {
+            ByteBuffer direct = ByteBuffer.allocateDirect(length).put(data);
+            direct.flip();
+
+            byte[] gzip = Compression.encode(ByteBuffer.wrap(data), CompressionPolicy.Encoding.GZIP, level);
+            try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+                assertArrayEquals(data, input.readAllBytes());
+            }
+
+            byte[] deflate = Compression.encode(direct, CompressionPolicy.Encoding.DEFLATE, level);
+            assertEquals(0, direct.position());
+            try (InputStream input = new InflaterInputStream(new ByteArrayInputStream(deflate))) {
+                assertArrayEquals(data, input.readAllBytes());
+            }
+        }
+    }
+    @Test
+    public void testDeflaterPool() {
+        int active = DeflaterPool.getActiveCount();
+
+        Deflater[] deflaters = new Deflater[3];
+        for (int i = 0; i < deflaters.length; i++) {
+            deflaters[i] = DeflaterPool.acquire(6);
+        }
+        assertEquals(active + 3, DeflaterPool.getActiveCount());
+
+        int pooled = DeflaterPool.getPooledCount();
+        for (Deflater deflater : deflaters) {
+            DeflaterPool.release(deflater, 6);
+        }
+        assertEquals(active, DeflaterPool.getActiveCount());
+        assertTrue(DeflaterPool.getPooledCount() > pooled);
+
+        // Released deflaters are reused
+        Deflater reused = DeflaterPool.acquire(6);
+        assertTrue(reused == deflaters[0] || reused == deflaters[1] || reused == deflaters[2]);
+        DeflaterPool.release(reused, 6);
+
+        Compression.encode(ByteBuffer.wrap(new byte[1000]), CompressionPolicy.Encoding.GZIP, 1);
+        assertEquals(active, DeflaterPool.getActiveCount());
+    }
+
+    @Test
+    public void testDeflaterPoolExhausted() throws IOException {
+        int active = DeflaterPool.getActiveCount();
+        List<Deflater> deflaters = new ArrayList<>();
+        try {
+            Deflater deflater;
+            while ((deflater = DeflaterPool.tryAcquire(1)) != null) {
+                deflaters.add(deflater);
+            }
+            assertEquals(Constants.MAX_DEFLATERS, DeflaterPool.getActiveCount());
+
+            // Compression does not wait for a pooled deflater
+            Deflater unpooled = DeflaterPool.acquire(1);
+            assertEquals(Constants.MAX_DEFLATERS, DeflaterPool.getActiveCount());
+            int pooled = DeflaterPool.getPooledCount();
+            DeflaterPool.release(unpooled, 1);
+            assertEquals(pooled, DeflaterPool.getPooledCount());
+
+            byte[] data = new byte[1000];
+            byte[] gzip = Compression.encode(ByteBuffer.wrap(data), CompressionPolicy.Encoding.GZIP, 1);
+            try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+                assertArrayEquals(data, input.readAllBytes());
+            }
+        } finally {
+            for (Deflater deflater : deflaters) {
+                DeflaterPool.release(deflater, 1);
+            }
+        }
+        assertEquals(active, DeflaterPool.getActiveCount());
+    }
+}
@@ -18,6 +18,7 @@ package org.glavo.plumo.internal.util;
 import org.apache.http.impl.io.ChunkedInputStream;
 import org.apache.http.impl.io.HttpTransportMetricsImpl;
 import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.glavo.plumo.internal.Constants;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
@@ -30,7 +31,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.zip.GZIPInputStream;
@@ -209,4 +217,321 @@ public final class OutputWrapperTest {
             }
         }
     }
+
+    private static byte[] writeToFile(Action action) throws IOException {
+        Path file = Files.createTempFile("plumo", ".bin");
+        try {
+            try (OutputWrapper output = new OutputWrapper(FileChannel.open(file, StandardOpenOption.WRITE), 512)) {
+                action.accept(output);
+            }
+            return Files.readAllBytes(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testWriteByteBuffers() throws IOException {
+        byte[] data = new byte[8192];
+        new Random(0).nextBytes(data);
+
+        Action action = output -> {
+            output.write(data, 0, 10);
+            output.write(new ByteBuffer[]{
+                    ByteBuffer.wrap(data, 10, 100),
+                    ByteBuffer.wrap(data, 110, 4000),
+                    ByteBuffer.allocateDirect(4082).put(ByteBuffer.wrap(data, 4110, 4082)).flip()
+            });
+        };
+
+        assertResult(data, 512, action);
+        assertArrayEquals(data, writeToFile(action));
+    }
+
+    @Test
+    public void testTransferFromFileChannel() throws IOException {
+        byte[] data = new byte[8192];
+        new Random(0).nextBytes(data);
+
+        Path file = Files.createTempFile("plumo", ".bin");
+        try (FileChannel channel = FileChannel.open(Files.write(file, data), StandardOpenOption.READ)) {
+            byte[] expected = Arrays.copyOfRange(data, 1000, 8000);
+            Action action = output -> output.transferFrom(channel, 1000, 7000);
+
+            assertResult(expected, 512, action);
+            assertArrayEquals(expected, writeToFile(action));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testBandwidthLimit() throws IOException {
+        byte[] data = new byte[48 * 1024];
+        new Random(0).nextBytes(data);
+
+        Path file = Files.createTempFile("plumo", ".bin");
+        try (FileChannel channel = FileChannel.open(Files.write(file, data), StandardOpenOption.READ)) {
+            Action action = output -> {
+                // 16 KiB are available immediately, the remaining 32 KiB take 125 ms
+                output.setBandwidthLimits(null, new TokenBucket(256 * 1024));
+
+                long start = System.nanoTime();
+                output.write(data, 0, 10000);
+                output.write(ByteBuffer.allocateDirect(10000).put(data, 10000, 10000).flip());
+                output.write(new ByteBuffer[]{ByteBuffer.wrap(data, 20000, 5000), ByteBuffer.wrap(data, 25000, 5000)});
+                output.transferFrom(channel, 30000, data.length - 30000);
+                output.flush();
+                assertTrue(System.nanoTime() - start >= 100_000_000L);
+            };
+
+            assertResult(data, 512, action);
+            assertArrayEquals(data, writeToFile(action));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testAdaptiveBufferSize() throws IOException {
+        byte[] large = new byte[64 * 1024];
+        new Random(0).nextBytes(large);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputWrapper output = new OutputWrapper(out, 1024, 16 * 1024)) {
+            assertEquals(0, output.getBufferCapacity());
+
+            // Grows after two large responses
+            for (int i = 0; i < 2; i++) {
+                output.acquireBuffer();
+                assertEquals(1024, output.getBufferCapacity());
+                output.write(large);
+                output.flush();
+                output.releaseBuffer();
+            }
+            for (int expected : new int[]{4096, 16384, 16384}) {
+                output.acquireBuffer();
+                assertEquals(expected, output.getBufferCapacity());
+                output.write(large);
+                output.flush();
+                output.releaseBuffer();
+                if (expected == 4096) {
+                    output.acquireBuffer();
+                    output.write(large);
+                    output.flush();
+                    output.releaseBuffer();
+                }
+            }
+
+            // Shrinks after eight small responses
+            for (int i = 0; i < 8; i++) {
+                output.acquireBuffer();
+                assertEquals(16384, output.getBufferCapacity());
+                output.write(large, 0, 10);
+                output.flush();
+                output.releaseBuffer();
+            }
+            output.acquireBuffer();
+            assertEquals(4096, output.getBufferCapacity());
+            output.releaseBuffer();
+            assertEquals(0, output.getBufferCapacity());
+        }
+
+        assertEquals(6 * large.length + 8 * 10, out.size());
+    }
+
+    @Test
+    public void testBufferPool() {
+        ByteBuffer buffer = BufferPool.HEAP.acquire(4096);
+        assertEquals(4096, buffer.capacity());
+        assertFalse(buffer.isDirect());
+
+        int count = BufferPool.HEAP.getPooledCount(4096);
+        buffer.put((byte) 1);
+        BufferPool.HEAP.release(buffer);
+        assertEquals(count + 1, BufferPool.HEAP.getPooledCount(4096));
+
+        ByteBuffer reused = BufferPool.HEAP.acquire(4096);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(count, BufferPool.HEAP.getPooledCount(4096));
+
+        // Buffers outside the size classes and of the wrong kind are not pooled
+        BufferPool.HEAP.release(ByteBuffer.allocate(3000));
+        assertEquals(0, BufferPool.HEAP.getPooledCount(3000));
+        BufferPool.HEAP.release(ByteBuffer.allocateDirect(4096));
+        assertEquals(count, BufferPool.HEAP.getPooledCount(4096));
+
+        // Other sizes are rounded up to the next size class
+        ByteBuffer rounded = BufferPool.DIRECT.acquire(3000);
+        assertEquals(4096, rounded.capacity());
+        assertTrue(rounded.isDirect());
+        int directCount = BufferPool.DIRECT.getPooledCount(4096);
+        BufferPool.DIRECT.release(rounded);
+        assertEquals(directCount + 1, BufferPool.DIRECT.getPooledCount(4096));
+        assertEquals(256 * 1024, BufferPool.HEAP.acquire(64 * 1024 + 1).capacity());
+
+        // Buffers larger than the size classes are heap buffers
+        ByteBuffer large = BufferPool.DIRECT.acquire(BufferPool.MAX_CLASS_SIZE + 1);
+        assertEquals(BufferPool.MAX_CLASS_SIZE + 1, large.capacity());
+        assertFalse(large.isDirect());
+    }
+    /**
+     * Parses the framing of a chunked body, returns the payload and the size of each chunk except the last one.
+     */
+    private static List<Integer> parseChunks(byte[] body, ByteArrayOutputStream payload) {
+        List<Integer> sizes = new ArrayList<>();
+        int i = 0;
+        while (true) {
+            int lineEnd = i;
+            while (body[lineEnd] != '\r') {
+                lineEnd++;
+            }
+            assertEquals('\n', body[lineEnd + 1]);
+
+            int size = Integer.parseInt(new String(body, i, lineEnd - i, StandardCharsets.ISO_8859_1), 16);
+            i = lineEnd + 2;
+            if (size == 0) {
+                assertEquals(i + 2, body.length);
+                assertEquals('\r', body[i]);
+                assertEquals('\n', body[i + 1]);
+                return sizes;
+            }
+
+            sizes.add(size);
+            payload.write(body, i, size);
+            i += size;
+            assertEquals('\r', body[i]);
+            assertEquals('\n', body[i + 1]);
+            i += 2;
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {true, false})
+    public void testWriteChunked(boolean channel) throws IOException {
+        byte[] data = new byte[64 * 1024];
+        new Random(0).nextBytes(data);
+
+        ByteArrayOutputStream ba = new ByteArrayOutputStream();
+        try (OutputWrapper output = channel ? new OutputWrapper(Channels.newChannel(ba), 512) : new OutputWrapper(ba, 512)) {
+            output.write(data, 0, 3);
+
+            Random random = new Random(1);
+            int n = 3;
+            output.beginChunk();
+            while (n < data.length) {
+                int len = Math.min(data.length - n, random.nextInt(4) == 0 ? 600 + random.nextInt(2000) : random.nextInt(100));
+                switch (random.nextInt(4)) {
+                    case 0:
+                        for (int i = 0; i < Math.min(len, 3); i++) {
+                            output.writeChunked(data[n + i]);
+                        }
+                        len = Math.min(len, 3);
+                        break;
+                    case 1:
+                        output.writeChunked(data, n, len);
+                        break;
+                    case 2:
+                        output.writeChunked(ByteBuffer.wrap(data, n, len));
+                        break;
+                    default:
+                        output.writeChunked(ByteBuffer.allocateDirect(len).put(data, n, len).flip());
+                        break;
+                }
+                n += len;
+            }
+            output.finishChunked();
+        }
+
+        byte[] result = ba.toByteArray();
+        assertArrayEquals(Arrays.copyOf(data, 3), Arrays.copyOf(result, 3));
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        List<Integer> sizes = parseChunks(Arrays.copyOfRange(result, 3, result.length), payload);
+        assertArrayEquals(Arrays.copyOfRange(data, 3, data.length), payload.toByteArray());
+
+        // Small writes are coalesced into chunks bounded by the buffer
+        assertTrue(sizes.size() < data.length / 256, "Too many chunks: " + sizes.size());
+        for (int size : sizes) {
+            assertTrue(size > 0);
+        }
+    }
+
+    @Test
+    public void testChunkSizeLimit() throws IOException {
+        byte[] data = new byte[Constants.MAX_CHUNK_SIZE * 3];
+        new Random(0).nextBytes(data);
+
+        ByteArrayOutputStream ba = new ByteArrayOutputStream();
+        try (OutputWrapper output = new OutputWrapper(ba, Constants.MAX_CHUNK_SIZE * 4)) {
+            output.beginChunk();
+            for (int i = 0; i < data.length; i += 100) {
+                output.writeChunked(data, i, Math.min(100, data.length - i));
+            }
+            output.finishChunked();
+        }
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        List<Integer> sizes = parseChunks(ba.toByteArray(), payload);
+        assertArrayEquals(data, payload.toByteArray());
+        assertEquals(Arrays.asList(Constants.MAX_CHUNK_SIZE, Constants.MAX_CHUNK_SIZE, Constants.MAX_CHUNK_SIZE), sizes);
+    }
+
+    @Test
+    public void testEmptyChunked() throws IOException {
+        ByteArrayOutputStream ba = new ByteArrayOutputStream();
+        try (OutputWrapper output = new OutputWrapper(ba, 512)) {
+            output.beginChunk();
+            output.writeChunked(new byte[0], 0, 0);
+            output.finishChunked();
+        }
+        assertEquals("0\r\n\r\n", ba.toString("ISO-8859-1"));
+    }
+
+    @Test
+    public void testTransferChunkedFromShortReads() throws IOException {
+        byte[] data = new byte[4096];
+        new Random(0).nextBytes(data);
+
+        // A stream that delivers at most 100 bytes at a time, like a live input
+        ReadableByteChannel input = new ReadableByteChannel() {
+            private int position = 0;
+
+            @Override
+            public int read(ByteBuffer dst) {
+                if (position == data.length) {
+                    return -1;
+                }
+                int n = Math.min(Math.min(100, dst.remaining()), data.length - position);
+                dst.put(data, position, n);
+                position += n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        ByteArrayOutputStream ba = new ByteArrayOutputStream();
+        try (OutputWrapper output = new OutputWrapper(ba, 1024)) {
+            output.transferChunkedFrom(input);
+        }
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        List<Integer> sizes = parseChunks(ba.toByteArray(), payload);
+        assertArrayEquals(data, payload.toByteArray());
+
+        // Each short read is sent as a chunk right away
+        for (int i = 0; i < sizes.size() - 1; i++) {
+            assertEquals(100, sizes.get(i));
+        }
+        assertEquals(data.length % 100, sizes.get(sizes.size() - 1));
+    }
 }
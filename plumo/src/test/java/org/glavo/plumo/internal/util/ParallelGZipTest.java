@@ -0,0 +1,151 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal.util;
+
+import org.apache.http.impl.io.ChunkedInputStream;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.glavo.plumo.internal.Constants;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class ParallelGZipTest {
+
+    // Compressible data, so that the dictionary matters
+    private static byte[] textData(int length) {
+        Random random = new Random(length);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return data;
+    }
+
+    private static byte[] decompress(byte[] chunked) throws IOException {
+        SessionInputBufferImpl inputBuffer = new SessionInputBufferImpl(new HttpTransportMetricsImpl(), 8192);
+        inputBuffer.bind(new ByteArrayInputStream(chunked));
+        try (InputStream input = new GZIPInputStream(new ChunkedInputStream(inputBuffer))) {
+            return input.readAllBytes();
+        }
+    }
+
+    @Test
+    public void testCrc32Combine() {
+        byte[] data = textData(100000);
+
+        CRC32 total = new CRC32();
+        total.update(data);
+
+        for (int split : new int[]{0, 1, 32768, 99999, 100000}) {
+            CRC32 first = new CRC32();
+            first.update(data, 0, split);
+            CRC32 second = new CRC32();
+            second.update(data, split, data.length - split);
+
+            assertEquals((int) total.getValue(),
+                    ParallelGZip.crc32Combine((int) first.getValue(), (int) second.getValue(), data.length - split));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 100000, 128 * 1024, 3 * 128 * 1024 + 5, 2 * 1024 * 1024})
+    public void testTransfer(int length) throws IOException {
+        assertEquals(128 * 1024, Constants.PARALLEL_GZIP_BLOCK_SIZE);
+
+        byte[] data = textData(length);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int mode = 0; mode < 3; mode++) {
+                assertArrayEquals(data, decompress(transfer(data, mode, executor)));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static byte[] transfer(byte[] data, int mode, Executor executor) throws IOException {
+        ByteArrayOutputStream ba = new ByteArrayOutputStream();
+        try (OutputWrapper output = new OutputWrapper(Channels.newChannel(ba), 4096)) {
+            switch (mode) {
+                case 0:
+                    ParallelGZip.transfer(output, ByteBuffer.wrap(data), 6, executor);
+                    break;
+                case 1:
+                    ParallelGZip.transfer(output, ByteBuffer.allocateDirect(data.length).put(data).flip(), 1, executor);
+                    break;
+                default:
+                    ParallelGZip.transfer(output, Channels.newChannel(new ByteArrayInputStream(data)), 9, executor);
+                    break;
+            }
+        }
+        return ba.toByteArray();
+    }
+
+    @Test
+    public void testFallback() throws IOException {
+        byte[] data = textData(3 * 128 * 1024 + 5);
+        int active = DeflaterPool.getActiveCount();
+
+        // Blocks rejected by the executor are compressed by the caller
+        Executor rejecting = task -> {
+            throw new RejectedExecutionException();
+        };
+        for (int mode = 0; mode < 3; mode++) {
+            assertArrayEquals(data, decompress(transfer(data, mode, rejecting)));
+        }
+        assertEquals(active, DeflaterPool.getActiveCount());
+
+        // Without free deflaters, the body is compressed sequentially and the executor is not used
+        List<Deflater> deflaters = new ArrayList<>();
+        try {
+            Deflater deflater;
+            while ((deflater = DeflaterPool.tryAcquire(6)) != null) {
+                deflaters.add(deflater);
+            }
+
+            Executor unused = task -> fail("Blocks must not be submitted");
+            for (int mode = 0; mode < 3; mode++) {
+                assertArrayEquals(data, decompress(transfer(data, mode, unused)));
+            }
+        } finally {
+            for (Deflater deflater : deflaters) {
+                DeflaterPool.release(deflater, 6);
+            }
+        }
+        assertEquals(active, DeflaterPool.getActiveCount());
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class TokenBucketTest {
+
+    @Test
+    public void testBurstSize() {
+        assertEquals(16 * 1024, new TokenBucket(1024).getBurstSize());
+        assertEquals(64 * 1024, new TokenBucket(1024 * 1024).getBurstSize());
+        assertEquals(1024 * 1024, new TokenBucket(Long.MAX_VALUE / 2).getBurstSize());
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0));
+    }
+
+    @Test
+    public void testAcquire() throws Exception {
+        TokenBucket bucket = new TokenBucket(160 * 1024);
+        int burst = bucket.getBurstSize();
+
+        // The bucket starts full
+        long start = System.nanoTime();
+        bucket.acquire(burst);
+        assertTrue(System.nanoTime() - start < 50_000_000L);
+
+        // The next burst is available after 100 ms, shared by all threads
+        int threads = 4;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                try {
+                    bucket.acquire(burst / threads);
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertTrue(System.nanoTime() - start >= 90_000_000L);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2024 Glavo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glavo.plumo.internal.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class XXHash64Test {
+
+    private static long hash(String str) {
+        return XXHash64.hash(ByteBuffer.wrap(str.getBytes(StandardCharsets.US_ASCII)), 0);
+    }
+
+    @Test
+    public void testKnownValues() {
+        assertEquals(0xEF46DB3751D8E999L, hash(""));
+        assertEquals(0x44BC2CF5AD770999L, hash("abc"));
+        assertEquals(0xFBCEA83C8A378BF1L, hash("Nobody inspects the spammish repetition"));
+    }
+
+    @Test
+    public void testBuffers() {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + (i >>> 3));
+        }
+
+        for (int length : new int[]{0, 1, 3, 4, 7, 8, 31, 32, 33, 63, 64, 100, 999}) {
+            long expected = XXHash64.hash(ByteBuffer.wrap(Arrays.copyOfRange(data, 1, 1 + length)), 0);
+
+            ByteBuffer heap = ByteBuffer.wrap(data, 1, length);
+            assertEquals(expected, XXHash64.hash(heap, 0));
+            assertEquals(1, heap.position());
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(length + 1);
+            direct.put((byte) 0).put(data, 1, length).flip().position(1);
+            assertEquals(expected, XXHash64.hash(direct, 0));
+
+            assertEquals(expected, XXHash64.hash(ByteBuffer.wrap(data, 1, length).slice(), 0));
+        }
+
+        assertNotEquals(XXHash64.hash(ByteBuffer.wrap(data), 0), XXHash64.hash(ByteBuffer.wrap(data), 1));
+    }
+}
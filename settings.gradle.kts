@@ -6,4 +6,7 @@ include(
     "webdav",
     "plumo",
     "plumo-http2",
+    "plumo-flow",
+    "plumo-router",
+    "plumo-annotation-processor",
 )